@@ -0,0 +1,117 @@
+package net.coderodde.vfs;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * This class measures the free-range allocation of blocks. The allocator
+ * holds {@code freeRangeCount} free extents of 1 to {@link #MAXIMUM_LENGTH}
+ * blocks separated by allocated gaps, as on a fragmented image; each
+ * operation allocates {@code blockCount} blocks and frees them again, so the
+ * free extents stay the same throughout the run. The allocator is shared by
+ * all the benchmark threads, as it is shared by all the writers of a file
+ * system.
+ * 
+ * @author Rodion "rodde" Efremov
+ * @version 1.6 (Aug 21, 2017)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class VirtualBlockAllocatorBenchmark {
+
+    /**
+     * The length of the longest free extent.
+     */
+    static final int MAXIMUM_LENGTH = 64;
+    
+    @Param({"1000", "100000"})
+    public int freeRangeCount;
+    
+    @Param({"1", "16", "200"})
+    public int blockCount;
+    
+    private VirtualFileSystemBlockAllocator blockAllocator;
+    
+    @Setup(Level.Trial)
+    public void setUp() {
+        blockAllocator = new VirtualFileSystemBlockAllocator();
+        Random random = new Random(13L);
+        
+        for (int i = 0; i < freeRangeCount; ++i) {
+            int start = 2 * MAXIMUM_LENGTH * i;
+            int length = 1 + random.nextInt(MAXIMUM_LENGTH);
+            blockAllocator.addFreeRange(
+                    new VirtualFileSystemBlockIndexRange(start,
+                                                         start + length - 1));
+        }
+    }
+    
+    /**
+     * The goal block of a single benchmark thread.
+     */
+    @State(Scope.Thread)
+    public static class ThreadState {
+
+        private final Random random = new Random();
+        
+        int randomGoalBlockIndex(int freeRangeCount) {
+            return 2 * MAXIMUM_LENGTH * random.nextInt(freeRangeCount);
+        }
+    }
+    
+    /**
+     * Allocates from the smallest free extent large enough; only the
+     * benchmarks with {@code blockCount} not above {@link #MAXIMUM_LENGTH}
+     * find one.
+     */
+    @Benchmark
+    public VirtualFileSystemBlockIndexRange allocateContiguous() {
+        VirtualFileSystemBlockIndexRange range =
+                blockAllocator.allocate(blockCount);
+        
+        if (range != null) {
+            blockAllocator.free(range);
+        }
+        
+        return range;
+    }
+    
+    @Benchmark
+    public List<VirtualFileSystemBlockIndexRange> allocateRuns() {
+        return free(blockAllocator.allocateRuns(blockCount));
+    }
+    
+    @Benchmark
+    public List<VirtualFileSystemBlockIndexRange>
+        allocateRunsAtGoal(ThreadState state) {
+        return free(blockAllocator.allocateRuns(
+                blockCount,
+                state.randomGoalBlockIndex(freeRangeCount)));
+    }
+    
+    private List<VirtualFileSystemBlockIndexRange>
+        free(List<VirtualFileSystemBlockIndexRange> ranges) {
+        for (VirtualFileSystemBlockIndexRange range : ranges) {
+            blockAllocator.free(range);
+        }
+        
+        return ranges;
+    }
+}
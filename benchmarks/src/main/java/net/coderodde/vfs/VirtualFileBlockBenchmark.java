@@ -0,0 +1,143 @@
+package net.coderodde.vfs;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * This class measures the throughput of reading and writing single blocks
+ * via {@link VirtualFileBlock}, both synchronously on the block device and
+ * asynchronously through the I/O scheduler. The blocks are chosen at random
+ * or, for the sequential benchmarks, one after another per thread within an
+ * image of {@link #BLOCK_COUNT} blocks. The byte throughput is the operation
+ * throughput times the block size.
+ * 
+ * @author Rodion "rodde" Efremov
+ * @version 1.6 (Aug 21, 2017)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class VirtualFileBlockBenchmark {
+
+    /**
+     * The number of blocks in the benchmark image.
+     */
+    static final int BLOCK_COUNT = 64 * 1024;
+    
+    @Param({"CHANNEL", "MEMORY_MAPPED"})
+    public VirtualFileSystemAccessMode accessMode;
+    
+    @Param({"512", "4096"})
+    public int blockSize;
+    
+    private File file;
+    private VirtualBlockDevice blockDevice;
+    private VirtualBlockScheduler blockScheduler;
+    
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        file = File.createTempFile("vfs-block-benchmark", ".img");
+        
+        try (RandomAccessFile image = new RandomAccessFile(file, "rw")) {
+            image.setLength((long) BLOCK_COUNT * blockSize);
+        }
+        
+        blockDevice = accessMode == VirtualFileSystemAccessMode.CHANNEL ?
+                      new ChannelVirtualBlockDevice(file, blockSize) :
+                      new MappedVirtualBlockDevice(file, blockSize);
+        
+        blockScheduler =
+                new VirtualBlockScheduler(
+                        blockDevice,
+                        VirtualBlockScheduler.DEFAULT_THREAD_COUNT);
+    }
+    
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        blockScheduler.close();
+        blockDevice.close();
+        file.delete();
+    }
+    
+    /**
+     * The block and the data of a single benchmark thread.
+     */
+    @State(Scope.Thread)
+    public static class ThreadState {
+
+        private final VirtualFileBlock block = new VirtualFileBlock();
+        private final Random random = new Random();
+        private byte[] data;
+        private int blockSize;
+        private int nextBlockIndex;
+        
+        @Setup(Level.Trial)
+        public void setUp(VirtualFileBlockBenchmark benchmark) {
+            blockSize = benchmark.blockSize;
+            block.setSize(blockSize);
+            data = new byte[blockSize];
+            random.nextBytes(data);
+            nextBlockIndex = random.nextInt(BLOCK_COUNT);
+        }
+        
+        VirtualFileBlock randomBlock() {
+            block.setOffset((long) random.nextInt(BLOCK_COUNT) * blockSize);
+            return block;
+        }
+        
+        VirtualFileBlock nextBlock() {
+            block.setOffset((long) nextBlockIndex * blockSize);
+            nextBlockIndex = (nextBlockIndex + 1) % BLOCK_COUNT;
+            return block;
+        }
+    }
+    
+    @Benchmark
+    public byte[] readRandomBlock(ThreadState state) {
+        return state.randomBlock().read(blockDevice);
+    }
+    
+    @Benchmark
+    public void writeRandomBlock(ThreadState state) {
+        state.randomBlock().write(blockDevice, state.data);
+    }
+    
+    @Benchmark
+    public byte[] readSequentialBlock(ThreadState state) {
+        return state.nextBlock().read(blockDevice);
+    }
+    
+    @Benchmark
+    public void writeSequentialBlock(ThreadState state) {
+        state.nextBlock().write(blockDevice, state.data);
+    }
+    
+    @Benchmark
+    public byte[] readRandomBlockAsync(ThreadState state) {
+        return state.randomBlock().readAsync(blockScheduler).join();
+    }
+    
+    @Benchmark
+    public void writeRandomBlockAsync(ThreadState state) {
+        state.randomBlock().writeAsync(blockScheduler, state.data).join();
+    }
+}
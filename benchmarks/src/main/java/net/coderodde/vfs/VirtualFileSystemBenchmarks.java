@@ -0,0 +1,42 @@
+package net.coderodde.vfs;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * This class runs the benchmarks of the virtual file system. Each benchmark
+ * is run once for each of {@link #THREAD_COUNTS} with the GC profiler, which
+ * reports the allocation rate and the collections per operation next to the
+ * throughput. The arguments are regular expressions selecting the benchmarks
+ * to run; without arguments all the benchmarks are run.
+ * 
+ * @author Rodion "rodde" Efremov
+ * @version 1.6 (Aug 21, 2017)
+ */
+public final class VirtualFileSystemBenchmarks {
+
+    /**
+     * The numbers of threads each benchmark is run with.
+     */
+    static final int[] THREAD_COUNTS = { 1, 2, 4, 8 };
+    
+    private VirtualFileSystemBenchmarks() {}
+    
+    public static void main(String[] args) throws RunnerException {
+        for (int threadCount : THREAD_COUNTS) {
+            ChainedOptionsBuilder options =
+                    new OptionsBuilder()
+                            .threads(threadCount)
+                            .addProfiler(GCProfiler.class);
+            
+            for (String include : args) {
+                options.include(include);
+            }
+            
+            new Runner(options.build()).run();
+        }
+    }
+}
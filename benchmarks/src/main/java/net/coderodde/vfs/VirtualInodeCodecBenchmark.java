@@ -0,0 +1,169 @@
+package net.coderodde.vfs;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * This class measures encoding the metadata of a node into its inode and
+ * decoding it back. The inode is the metablock of the node: it holds the
+ * name, the sizes and the times, and then either the inline content, the
+ * inline extents or the directory index root. The benchmarked nodes are a
+ * file small enough to be stored inline, a file of a single extent, a file
+ * written in turns with another one so that it consists of
+ * {@link #FRAGMENTED_EXTENTS} extents, and a directory.
+ * 
+ * @author Rodion "rodde" Efremov
+ * @version 1.6 (Aug 21, 2017)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class VirtualInodeCodecBenchmark {
+
+    /**
+     * The number of extents of the fragmented file.
+     */
+    static final int FRAGMENTED_EXTENTS = 8;
+    
+    @Param({"INLINE_FILE", "CONTIGUOUS_FILE", "FRAGMENTED_FILE", "DIRECTORY"})
+    public String nodeKind;
+    
+    private File file;
+    private VirtualFilesystem fileSystem;
+    private VirtualFileSystemNode node;
+    
+    /**
+     * The inode of {@code node}.
+     */
+    private byte[] encodedInode;
+    
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        file = File.createTempFile("vfs-inode-benchmark", ".img");
+        file.delete();
+        VirtualFilesystem.createNativeImage(file, 16 * 1024);
+        fileSystem = 
+                VirtualFilesystem.readVirtualFileSystemFromNativeImage(file);
+        
+        VirtualFileSystemNode root = fileSystem.getRoot();
+        int blockSize = fileSystem.getBlockSize();
+        
+        switch (nodeKind) {
+            case "INLINE_FILE":
+                node = VirtualFileSystemNode.createRegularFile("file",
+                                                               null,
+                                                               root);
+                node.writeContent(0L, ByteBuffer.wrap(new byte[64]));
+                break;
+            
+            case "CONTIGUOUS_FILE":
+                node = VirtualFileSystemNode.createRegularFile("file",
+                                                               null,
+                                                               root);
+                node.writeContent(0L,
+                                  ByteBuffer.wrap(new byte[64 * blockSize]));
+                break;
+            
+            case "FRAGMENTED_FILE":
+                node = VirtualFileSystemNode.createRegularFile("file",
+                                                               null,
+                                                               root);
+                VirtualFileSystemNode other =
+                        VirtualFileSystemNode.createRegularFile("other",
+                                                                null,
+                                                                root);
+                byte[] block = new byte[blockSize];
+                
+                for (int i = 0; i < FRAGMENTED_EXTENTS; ++i) {
+                    node.writeContent(node.getNodeSize(),
+                                      ByteBuffer.wrap(block));
+                    other.writeContent(other.getNodeSize(),
+                                       ByteBuffer.wrap(block));
+                }
+                
+                break;
+            
+            case "DIRECTORY":
+                node = VirtualFileSystemNode.createDirectory("directory",
+                                                             null,
+                                                             root);
+                VirtualFileSystemNode.createRegularFile("file", null, node);
+                break;
+            
+            default:
+                throw new IllegalArgumentException(
+                        "Unknown node kind: " + nodeKind);
+        }
+        
+        ByteBuffer inode =
+                ByteBuffer.allocate(VirtualFileSystemInodeTable.INODE_SIZE);
+        node.encodeInode(inode);
+        encodedInode = inode.array();
+    }
+    
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        fileSystem.close();
+        file.delete();
+    }
+    
+    /**
+     * The inode buffers of a single benchmark thread.
+     */
+    @State(Scope.Thread)
+    public static class ThreadState {
+
+        private final ByteBuffer inode =
+                ByteBuffer.allocate(VirtualFileSystemInodeTable.INODE_SIZE);
+        
+        private ByteBuffer encodedInode;
+        
+        @Setup(Level.Trial)
+        public void setUp(VirtualInodeCodecBenchmark benchmark) {
+            encodedInode = ByteBuffer.wrap(benchmark.encodedInode.clone());
+        }
+        
+        ByteBuffer clearedInode() {
+            Arrays.fill(inode.array(), (byte) 0);
+            inode.clear();
+            return inode;
+        }
+        
+        ByteBuffer encodedInode() {
+            encodedInode.clear();
+            return encodedInode;
+        }
+    }
+    
+    @Benchmark
+    public ByteBuffer encode(ThreadState state) {
+        ByteBuffer inode = state.clearedInode();
+        node.encodeInode(inode);
+        return inode;
+    }
+    
+    @Benchmark
+    public VirtualFileSystemNode decode(ThreadState state) {
+        return VirtualFileSystemNode.decodeInode(state.encodedInode(),
+                                                 node.getInodeNumber());
+    }
+}
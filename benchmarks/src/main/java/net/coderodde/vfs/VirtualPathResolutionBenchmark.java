@@ -0,0 +1,122 @@
+package net.coderodde.vfs;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * This class measures resolving paths and looking up the children of a 
+ * directory holding {@code entryCount} regular files. The path resolution
+ * goes through the path cache, which cannot hold all the paths of the 
+ * largest directory, while the lookups go through the child map and the 
+ * directory index of the directory. The files are created once per trial;
+ * with a million entries the setup takes a minute or two, the nodes need a
+ * few gigabytes of heap, and the sparse image spans about 8 GB, though only
+ * the written blocks take disk space.
+ * 
+ * @author Rodion "rodde" Efremov
+ * @version 1.6 (Aug 21, 2017)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class VirtualPathResolutionBenchmark {
+
+    /**
+     * The block size of the benchmark image.
+     */
+    static final int BLOCK_SIZE = 4096;
+    
+    /**
+     * The number of blocks of the image beyond those needed for the inodes.
+     */
+    static final int SPARE_BLOCKS = 64 * 1024;
+    
+    @Param({"10", "10000", "1000000"})
+    public int entryCount;
+    
+    private File file;
+    private VirtualFilesystem fileSystem;
+    private VirtualFileSystemNode directory;
+    private String[] names;
+    private String[] paths;
+    
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        file = File.createTempFile("vfs-path-benchmark", ".img");
+        file.delete();
+        
+        // An image of this block size holds an inode per two blocks:
+        VirtualFilesystem.createNativeImage(file, 
+                                            2 * entryCount + SPARE_BLOCKS,
+                                            BLOCK_SIZE);
+        
+        fileSystem = 
+                VirtualFilesystem.readVirtualFileSystemFromNativeImage(file);
+        directory = VirtualFileSystemNode.createDirectory("entries", 
+                                                          null, 
+                                                          fileSystem.getRoot());
+        names = new String[entryCount];
+        paths = new String[entryCount];
+        
+        for (int i = 0; i < entryCount; ++i) {
+            names[i] = "entry-" + i;
+            paths[i] = "/entries/" + names[i];
+            VirtualFileSystemNode.createRegularFile(names[i], null, directory);
+        }
+        
+        fileSystem.flush();
+    }
+    
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        fileSystem.close();
+        file.delete();
+    }
+    
+    /**
+     * The random number generator of a single benchmark thread.
+     */
+    @State(Scope.Thread)
+    public static class ThreadState {
+
+        private final Random random = new Random();
+        
+        int nextIndex(int entryCount) {
+            return random.nextInt(entryCount);
+        }
+    }
+    
+    @Benchmark
+    public VirtualFileSystemNode resolvePath(ThreadState state) {
+        return fileSystem.resolve(paths[state.nextIndex(entryCount)]);
+    }
+    
+    @Benchmark
+    public VirtualFileSystemNode getChild(ThreadState state) {
+        return directory.getChild(names[state.nextIndex(entryCount)]);
+    }
+    
+    @Benchmark
+    public VirtualFileSystemNode getMissingChild(ThreadState state) {
+        return directory.getChild(
+                names[state.nextIndex(entryCount)].concat("-missing"));
+    }
+}
@@ -0,0 +1,176 @@
+package net.coderodde.vfs;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * This class implements a block device on top of a single long-lived
+ * {@link FileChannel}. Single blocks are accessed via positional reads and
+ * writes that do not touch the position of the channel, and so may proceed
+ * concurrently. Runs of consecutive blocks are transferred via scatter/gather
+ * I/O, which does move the channel position, and so those are serialized.
+ * 
+ * @author Rodion "rodde" Efremov
+ * @version 1.6 (Aug 7, 2017)
+ */
+final class ChannelVirtualBlockDevice extends VirtualBlockDevice {
+
+    /**
+     * The channel to the native image file.
+     */
+    private final FileChannel channel;
+    
+    /**
+     * Guards the channel position during vectored transfers.
+     */
+    private final Object positionLock = new Object();
+    
+    /**
+     * Opens a block device over the given native image file. The file is
+     * created if it does not exist.
+     * 
+     * @param file      the native image file.
+     * @param blockSize the number of bytes in a block.
+     */
+    ChannelVirtualBlockDevice(File file, int blockSize) {
+        super(file, blockSize);
+        
+        try {
+            this.channel = FileChannel.open(file.toPath(),
+                                            StandardOpenOption.CREATE,
+                                            StandardOpenOption.READ,
+                                            StandardOpenOption.WRITE);
+        } catch (IOException ex) {
+            throw new RuntimeException(
+                    "Cannot open the file \"" + file.getAbsolutePath() +
+                    "\".", ex);
+        }
+    }
+    
+    @Override
+    void read(long offset, ByteBuffer buffer) {
+        try {
+            while (buffer.hasRemaining()) {
+                int bytesRead = channel.read(buffer, offset);
+                
+                if (bytesRead < 0) {
+                    fillWithZeros(buffer);
+                    return;
+                }
+                
+                offset += bytesRead;
+            }
+        } catch (IOException ex) {
+            throw readException(ex);
+        }
+    }
+    
+    @Override
+    void write(long offset, ByteBuffer buffer) {
+        try {
+            while (buffer.hasRemaining()) {
+                offset += channel.write(buffer, offset);
+            }
+        } catch (IOException ex) {
+            throw writeException(ex);
+        }
+    }
+    
+    @Override
+    void readBlocks(int firstBlockIndex, ByteBuffer[] buffers) {
+        if (buffers.length == 0) {
+            return;
+        }
+        
+        long offset = getBlockOffset(firstBlockIndex);
+        
+        try {
+            synchronized (positionLock) {
+                channel.position(offset);
+                
+                while (buffers[buffers.length - 1].hasRemaining()) {
+                    if (channel.read(buffers) < 0) {
+                        for (ByteBuffer buffer : buffers) {
+                            fillWithZeros(buffer);
+                        }
+                        
+                        return;
+                    }
+                }
+            }
+        } catch (IOException ex) {
+            throw readException(ex);
+        }
+    }
+    
+    @Override
+    void writeBlocks(int firstBlockIndex, ByteBuffer[] buffers) {
+        if (buffers.length == 0) {
+            return;
+        }
+        
+        long offset = getBlockOffset(firstBlockIndex);
+        
+        try {
+            synchronized (positionLock) {
+                channel.position(offset);
+                
+                while (buffers[buffers.length - 1].hasRemaining()) {
+                    channel.write(buffers);
+                }
+            }
+        } catch (IOException ex) {
+            throw writeException(ex);
+        }
+    }
+    
+    @Override
+    long size() {
+        try {
+            return channel.size();
+        } catch (IOException ex) {
+            throw readException(ex);
+        }
+    }
+    
+    @Override
+    void force() {
+        try {
+            channel.force(false);
+        } catch (IOException ex) {
+            throw writeException(ex);
+        }
+    }
+    
+    @Override
+    public void close() {
+        try {
+            channel.close();
+        } catch (IOException ex) {
+            throw new RuntimeException(
+                    "Cannot close the file \"" +
+                    getFile().getAbsolutePath() + "\".", ex);
+        }
+    }
+    
+    private static void fillWithZeros(ByteBuffer buffer) {
+        while (buffer.hasRemaining()) {
+            buffer.put((byte) 0);
+        }
+    }
+    
+    private RuntimeException readException(IOException cause) {
+        return new RuntimeException(
+                "Cannot read the file \"" + getFile().getAbsolutePath() +
+                "\".", cause);
+    }
+    
+    private RuntimeException writeException(IOException cause) {
+        return new RuntimeException(
+                "Cannot write the file \"" + getFile().getAbsolutePath() +
+                "\".", cause);
+    }
+}
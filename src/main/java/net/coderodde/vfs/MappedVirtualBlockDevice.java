@@ -0,0 +1,197 @@
+package net.coderodde.vfs;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * This class implements a block device that maps the entire native image into
+ * memory. Since a single {@link MappedByteBuffer} may not exceed 2 GB, the
+ * image is mapped in segments of {@link #SEGMENT_SIZE} bytes. The segment size
+ * is a multiple of the block size so that no block straddles two segments,
+ * which allows serving blocks as zero-copy slices of the mapping.
+ * <p>
+ * The mapping is fixed at the time the device is opened; writes past the end
+ * of the image are rejected.
+ * 
+ * @author Rodion "rodde" Efremov
+ * @version 1.6 (Aug 7, 2017)
+ */
+final class MappedVirtualBlockDevice extends VirtualBlockDevice {
+
+    /**
+     * The number of bytes in each mapped segment.
+     */
+    static final int SEGMENT_SIZE = 1 << 30;
+    
+    /**
+     * The channel through which the image is mapped.
+     */
+    private final FileChannel channel;
+    
+    /**
+     * The mapped segments of the image.
+     */
+    private final MappedByteBuffer[] segments;
+    
+    /**
+     * The number of mapped bytes.
+     */
+    private final long size;
+    
+    /**
+     * Maps the given native image file into memory.
+     * 
+     * @param file      the native image file.
+     * @param blockSize the number of bytes in a block.
+     */
+    MappedVirtualBlockDevice(File file, int blockSize) {
+        super(file, blockSize);
+        
+        try {
+            this.channel = FileChannel.open(file.toPath(),
+                                            StandardOpenOption.READ,
+                                            StandardOpenOption.WRITE);
+            this.size = channel.size();
+            
+            int numberOfSegments =
+                    (int)((size + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+            
+            this.segments = new MappedByteBuffer[numberOfSegments];
+            
+            for (int i = 0; i < numberOfSegments; ++i) {
+                long segmentOffset = (long) i * SEGMENT_SIZE;
+                long segmentSize = Math.min(SEGMENT_SIZE,
+                                            size - segmentOffset);
+                
+                segments[i] = channel.map(FileChannel.MapMode.READ_WRITE,
+                                          segmentOffset,
+                                          segmentSize);
+            }
+        } catch (IOException ex) {
+            throw new RuntimeException(
+                    "Cannot map the file \"" + file.getAbsolutePath() +
+                    "\".", ex);
+        }
+    }
+    
+    @Override
+    void read(long offset, ByteBuffer buffer) {
+        while (buffer.hasRemaining()) {
+            if (offset >= size) {
+                while (buffer.hasRemaining()) {
+                    buffer.put((byte) 0);
+                }
+                
+                return;
+            }
+            
+            ByteBuffer source = segmentView(offset, buffer.remaining());
+            offset += source.remaining();
+            buffer.put(source);
+        }
+    }
+    
+    @Override
+    void write(long offset, ByteBuffer buffer) {
+        if (offset + buffer.remaining() > size) {
+            throw new IllegalArgumentException(
+                    "Writing " + buffer.remaining() + " byte(s) at offset " +
+                    offset + " exceeds the mapped image size (" + size +
+                    ").");
+        }
+        
+        while (buffer.hasRemaining()) {
+            ByteBuffer target = segmentView(offset, buffer.remaining());
+            int length = target.remaining();
+            ByteBuffer source = buffer.duplicate();
+            source.limit(source.position() + length);
+            target.put(source);
+            buffer.position(buffer.position() + length);
+            offset += length;
+        }
+    }
+    
+    @Override
+    void readBlocks(int firstBlockIndex, ByteBuffer[] buffers) {
+        for (int i = 0; i < buffers.length; ++i) {
+            readBlock(firstBlockIndex + i, buffers[i]);
+        }
+    }
+    
+    @Override
+    void writeBlocks(int firstBlockIndex, ByteBuffer[] buffers) {
+        for (int i = 0; i < buffers.length; ++i) {
+            writeBlock(firstBlockIndex + i, buffers[i]);
+        }
+    }
+    
+    /**
+     * Returns a view of the mapping covering the requested range. The
+     * returned buffer shares its content with the image, so no bytes are
+     * copied.
+     * 
+     * @param offset the offset of the first byte.
+     * @param length the number of bytes.
+     * @return the view of the mapping.
+     */
+    @Override
+    ByteBuffer slice(long offset, int length) {
+        if (offset + length > size
+                || offset / SEGMENT_SIZE
+                != (offset + length - 1) / SEGMENT_SIZE) {
+            return super.slice(offset, length);
+        }
+        
+        return segmentView(offset, length).slice();
+    }
+    
+    @Override
+    long size() {
+        return size;
+    }
+    
+    @Override
+    void force() {
+        for (MappedByteBuffer segment : segments) {
+            segment.force();
+        }
+    }
+    
+    /**
+     * Closes the channel of this device. The mapped segments are released by
+     * the garbage collector.
+     */
+    @Override
+    public void close() {
+        force();
+        
+        try {
+            channel.close();
+        } catch (IOException ex) {
+            throw new RuntimeException(
+                    "Cannot close the file \"" +
+                    getFile().getAbsolutePath() + "\".", ex);
+        }
+    }
+    
+    /**
+     * Returns a view of the segment containing {@code offset} positioned at
+     * {@code offset} and limited to at most {@code length} bytes.
+     * 
+     * @param offset the image offset.
+     * @param length the maximum number of bytes in the view.
+     * @return the segment view.
+     */
+    private ByteBuffer segmentView(long offset, int length) {
+        MappedByteBuffer segment = segments[(int)(offset / SEGMENT_SIZE)];
+        int segmentOffset = (int)(offset % SEGMENT_SIZE);
+        ByteBuffer view = segment.duplicate();
+        view.position(segmentOffset);
+        view.limit(Math.min(segment.capacity(), segmentOffset + length));
+        return view;
+    }
+}
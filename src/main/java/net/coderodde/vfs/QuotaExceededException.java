@@ -0,0 +1,17 @@
+package net.coderodde.vfs;
+
+/**
+ * Thrown when an operation would make a directory exceed its byte quota or
+ * its node quota.
+ * 
+ * @author Rodion "rodde" Efremov
+ * @version 1.6 (Aug 17, 2017)
+ */
+public class QuotaExceededException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+    
+    public QuotaExceededException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,450 @@
+package net.coderodde.vfs;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * This class implements a block cache shared by all the nodes of a virtual
+ * file system. The cache holds at most {@code capacity / blockSize} blocks
+ * and evicts them using the CLOCK algorithm: each cached block (a
+ * <i>frame</i>) has a reference bit that is set on every access and cleared
+ * by the clock hand as it sweeps past; the first frame found with a cleared
+ * bit is evicted.
+ * <p>
+ * Writes only modify the cached copy and mark the frame dirty. Dirty frames
+ * are written back lazily: when the clock hand selects a dirty victim, all
+ * the dirty frames are written back in one batch sorted by block index, with
+ * runs of consecutive blocks coalesced into single vectored writes.
+ * <p>
+ * The write-backs and the prefetches go through the I/O scheduler: all the
+ * runs of a batch are submitted at once and served by the I/O threads in
+ * parallel, and the cache waits for the whole batch. A block missed on 
+ * demand is read directly on the calling thread, since the caller needs it
+ * right away.
+ * 
+ * @author Rodion "rodde" Efremov
+ * @version 1.6 (Aug 8, 2017)
+ */
+final class VirtualBlockCache {
+
+    /**
+     * The default number of bytes the cache may occupy.
+     */
+    static final long DEFAULT_CAPACITY = 32L * 1024 * 1024;
+    
+    /**
+     * Marks a frame that holds no block.
+     */
+    private static final int NO_BLOCK = -1;
+    
+    /**
+     * The block device this cache reads the blocks missed on demand from.
+     */
+    private final VirtualBlockDevice blockDevice;
+    
+    /**
+     * The I/O scheduler serving the write-backs and the prefetches.
+     */
+    private final VirtualBlockScheduler blockScheduler;
+    
+    /**
+     * The number of bytes in a block.
+     */
+    private final int blockSize;
+    
+    /**
+     * The block data of each frame. Allocated on first use.
+     */
+    private final byte[][] frameData;
+    
+    /**
+     * The index of the block held by each frame, or {@link #NO_BLOCK}.
+     */
+    private final int[] frameBlockIndex;
+    
+    /**
+     * The CLOCK reference bit of each frame.
+     */
+    private final boolean[] referenced;
+    
+    /**
+     * The dirty bit of each frame.
+     */
+    private final boolean[] dirty;
+    
+    /**
+     * Maps each cached block index to the index of its frame.
+     */
+    private final Map<Integer, Integer> frameMap = new HashMap<>();
+    
+    /**
+     * The current position of the clock hand.
+     */
+    private int clockHand;
+    
+    /**
+     * The number of frames that were never used.
+     */
+    private int unusedFrames;
+    
+    /**
+     * The number of dirty frames.
+     */
+    private int dirtyFrames;
+    
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long writeBacks;
+    
+    /**
+     * Constructs this block cache.
+     * 
+     * @param blockScheduler the I/O scheduler of the underlying block 
+     *                       device.
+     * @param capacity       the maximum number of bytes of cached block 
+     *                       data.
+     */
+    VirtualBlockCache(VirtualBlockScheduler blockScheduler, long capacity) {
+        this.blockScheduler =
+                Objects.requireNonNull(blockScheduler,
+                                       "The input I/O scheduler is null.");
+        
+        this.blockDevice = blockScheduler.getBlockDevice();
+        
+        this.blockSize = blockDevice.getBlockSize();
+        
+        if (capacity < blockSize) {
+            throw new IllegalArgumentException(
+                    "The cache capacity (" + capacity + ") is smaller than " +
+                    "a block (" + blockSize + ").");
+        }
+        
+        int numberOfFrames =
+                (int) Math.min(Integer.MAX_VALUE - 8, capacity / blockSize);
+        
+        this.frameData       = new byte[numberOfFrames][];
+        this.frameBlockIndex = new int[numberOfFrames];
+        this.referenced      = new boolean[numberOfFrames];
+        this.dirty           = new boolean[numberOfFrames];
+        this.unusedFrames    = numberOfFrames;
+        Arrays.fill(frameBlockIndex, NO_BLOCK);
+    }
+    
+    /**
+     * Copies {@code length} bytes starting at {@code offset} of the given
+     * block into {@code target}.
+     * 
+     * @param blockIndex   the index of the block.
+     * @param offset       the offset within the block.
+     * @param target       the target array.
+     * @param targetOffset the offset within the target array.
+     * @param length       the number of bytes to copy.
+     */
+    synchronized void read(int blockIndex,
+                           int offset,
+                           byte[] target,
+                           int targetOffset,
+                           int length) {
+        checkRange(offset, length);
+        int frame = getFrame(blockIndex, true);
+        System.arraycopy(frameData[frame], offset, 
+                         target, targetOffset, 
+                         length);
+    }
+    
+    /**
+     * Copies {@code length} bytes from {@code source} into the given block
+     * starting at {@code offset} and marks the block dirty. A write covering
+     * the entire block does not read the block from the device.
+     * 
+     * @param blockIndex   the index of the block.
+     * @param offset       the offset within the block.
+     * @param source       the source array.
+     * @param sourceOffset the offset within the source array.
+     * @param length       the number of bytes to copy.
+     */
+    synchronized void write(int blockIndex,
+                            int offset,
+                            byte[] source,
+                            int sourceOffset,
+                            int length) {
+        checkRange(offset, length);
+        boolean wholeBlock = length == blockSize;
+        int frame = getFrame(blockIndex, !wholeBlock);
+        System.arraycopy(source, sourceOffset, 
+                         frameData[frame], offset, 
+                         length);
+        
+        if (!dirty[frame]) {
+            dirty[frame] = true;
+            ++dirtyFrames;
+        }
+    }
+    
+    /**
+     * Loads the given run of consecutive blocks into this cache. The blocks 
+     * that are not cached yet are read with as few vectored reads as 
+     * possible. At most half of the cache is filled by a single prefetch.
+     * 
+     * @param firstBlockIndex the index of the first block of the run.
+     * @param blockCount      the number of blocks in the run.
+     */
+    void prefetch(int firstBlockIndex, int blockCount) {
+        prefetch(Collections.singletonList(
+                new VirtualFileSystemBlockIndexRange(
+                        firstBlockIndex,
+                        firstBlockIndex + blockCount - 1)));
+    }
+    
+    /**
+     * Loads the given ranges of blocks into this cache. The reads of all the
+     * ranges are submitted at once, so that the I/O scheduler may serve them
+     * in parallel and in the image order. At most half of the cache is 
+     * filled by a single prefetch.
+     * 
+     * @param ranges the ranges of blocks to load.
+     */
+    synchronized void prefetch(List<VirtualFileSystemBlockIndexRange> ranges) {
+        Map<Integer, byte[]> loadedBlocks = new HashMap<>();
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        int budget = frameData.length / 2;
+        
+        for (VirtualFileSystemBlockIndexRange range : ranges) {
+            int blockCount = Math.min(range.getLength(), budget);
+            budget -= blockCount;
+            prefetch(range.getMinimumBlockRangeIndex(), 
+                     blockCount, 
+                     loadedBlocks, 
+                     futures);
+        }
+        
+        VirtualBlockScheduler.await(futures);
+        
+        // The frames are taken only now, so that no frame is evicted while 
+        // being loaded:
+        for (Map.Entry<Integer, byte[]> entry : loadedBlocks.entrySet()) {
+            int frame = getFrame(entry.getKey(), false);
+            frameData[frame] = entry.getValue();
+        }
+    }
+    
+    /**
+     * Submits the reads of the blocks of the given run that are neither 
+     * cached nor being loaded yet.
+     * 
+     * @param firstBlockIndex the index of the first block of the run.
+     * @param blockCount      the number of blocks in the run.
+     * @param loadedBlocks    maps the index of each block being loaded to the
+     *                        array receiving it.
+     * @param futures         the list receiving the futures of the reads.
+     */
+    private void prefetch(int firstBlockIndex, 
+                          int blockCount, 
+                          Map<Integer, byte[]> loadedBlocks,
+                          List<CompletableFuture<Void>> futures) {
+        int lastBlockIndex = firstBlockIndex + blockCount - 1;
+        int blockIndex = firstBlockIndex;
+        
+        while (blockIndex <= lastBlockIndex) {
+            if (isPresent(blockIndex, loadedBlocks)) {
+                ++blockIndex;
+                continue;
+            }
+            
+            int runStart = blockIndex;
+            
+            while (blockIndex <= lastBlockIndex 
+                    && !isPresent(blockIndex, loadedBlocks)) {
+                ++blockIndex;
+            }
+            
+            ByteBuffer[] buffers = new ByteBuffer[blockIndex - runStart];
+            
+            for (int i = 0; i < buffers.length; ++i) {
+                byte[] data = new byte[blockSize];
+                loadedBlocks.put(runStart + i, data);
+                buffers[i] = ByteBuffer.wrap(data);
+            }
+            
+            futures.add(blockScheduler.readBlocks(runStart, buffers));
+        }
+    }
+    
+    /**
+     * Drops the given block from this cache without writing it back. Used
+     * when the block is freed.
+     * 
+     * @param blockIndex the index of the block to drop.
+     */
+    synchronized void discard(int blockIndex) {
+        Integer frame = frameMap.remove(blockIndex);
+        
+        if (frame != null) {
+            if (dirty[frame]) {
+                dirty[frame] = false;
+                --dirtyFrames;
+            }
+            
+            referenced[frame] = false;
+            frameBlockIndex[frame] = NO_BLOCK;
+        }
+    }
+    
+    /**
+     * Writes all the dirty blocks back to the block device.
+     * 
+     * @return {@code true} if at least one block was written.
+     */
+    synchronized boolean flush() {
+        if (dirtyFrames == 0) {
+            return false;
+        }
+        
+        writeBackDirtyFrames();
+        return true;
+    }
+    
+    /**
+     * Returns the counters of this cache.
+     * 
+     * @return the cache statistics.
+     */
+    synchronized VirtualBlockCacheStatistics getStatistics() {
+        return new VirtualBlockCacheStatistics(hits,
+                                               misses,
+                                               evictions,
+                                               writeBacks);
+    }
+    
+    /**
+     * Returns the frame holding the given block, loading the block if it is
+     * not cached.
+     * 
+     * @param blockIndex the index of the block.
+     * @param load       whether the block should be read from the device on a
+     *                   miss.
+     * @return the frame index.
+     */
+    private int getFrame(int blockIndex, boolean load) {
+        Integer frame = frameMap.get(blockIndex);
+        
+        if (frame != null) {
+            ++hits;
+            referenced[frame] = true;
+            return frame;
+        }
+        
+        ++misses;
+        int newFrame = allocateFrame();
+        
+        if (frameData[newFrame] == null) {
+            frameData[newFrame] = new byte[blockSize];
+        }
+        
+        if (load) {
+            blockDevice.readBlock(blockIndex,
+                                  ByteBuffer.wrap(frameData[newFrame]));
+        }
+        
+        frameBlockIndex[newFrame] = blockIndex;
+        referenced[newFrame] = true;
+        frameMap.put(blockIndex, newFrame);
+        return newFrame;
+    }
+    
+    /**
+     * Returns a frame ready to receive a block, evicting a block if needed.
+     * 
+     * @return a free frame index.
+     */
+    private int allocateFrame() {
+        if (unusedFrames > 0) {
+            return frameData.length - unusedFrames--;
+        }
+        
+        while (true) {
+            int frame = clockHand;
+            clockHand = (clockHand + 1) % frameData.length;
+            
+            if (frameBlockIndex[frame] == NO_BLOCK) {
+                return frame;
+            }
+            
+            if (referenced[frame]) {
+                referenced[frame] = false;
+                continue;
+            }
+            
+            if (dirty[frame]) {
+                writeBackDirtyFrames();
+            }
+            
+            frameMap.remove(frameBlockIndex[frame]);
+            frameBlockIndex[frame] = NO_BLOCK;
+            ++evictions;
+            return frame;
+        }
+    }
+    
+    /**
+     * Writes all the dirty frames back in block index order. Each run of
+     * consecutive blocks is written via a single transfer.
+     */
+    private void writeBackDirtyFrames() {
+        int[] dirtyBlockIndices = new int[dirtyFrames];
+        int count = 0;
+        
+        for (int frame = 0; frame < frameBlockIndex.length; ++frame) {
+            if (dirty[frame]) {
+                dirtyBlockIndices[count++] = frameBlockIndex[frame];
+                dirty[frame] = false;
+            }
+        }
+        
+        Arrays.sort(dirtyBlockIndices, 0, count);
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        int runStart = 0;
+        
+        for (int i = 1; i <= count; ++i) {
+            if (i == count
+                    || dirtyBlockIndices[i] != dirtyBlockIndices[i - 1] + 1) {
+                ByteBuffer[] buffers = new ByteBuffer[i - runStart];
+                
+                for (int j = runStart; j < i; ++j) {
+                    int frame = frameMap.get(dirtyBlockIndices[j]);
+                    buffers[j - runStart] = ByteBuffer.wrap(frameData[frame]);
+                }
+                
+                futures.add(blockScheduler.writeBlocks(
+                        dirtyBlockIndices[runStart], buffers));
+                runStart = i;
+            }
+        }
+        
+        VirtualBlockScheduler.await(futures);
+        writeBacks += count;
+        dirtyFrames = 0;
+    }
+    
+    private boolean isPresent(int blockIndex, 
+                              Map<Integer, byte[]> loadedBlocks) {
+        return frameMap.containsKey(blockIndex) 
+                || loadedBlocks.containsKey(blockIndex);
+    }
+    
+    private void checkRange(int offset, int length) {
+        if (offset < 0 || length < 0 || offset + length > blockSize) {
+            throw new IndexOutOfBoundsException(
+                    "Range [" + offset + ", " + (offset + length) + ") " +
+                    "does not fit in a block.");
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package net.coderodde.vfs;
+
+/**
+ * This class holds a snapshot of the counters of a block cache.
+ * 
+ * @author Rodion "rodde" Efremov
+ * @version 1.6 (Aug 8, 2017)
+ */
+public final class VirtualBlockCacheStatistics {
+
+    /**
+     * The number of block accesses served from the cache.
+     */
+    private final long hits;
+    
+    /**
+     * The number of block accesses that had to load the block.
+     */
+    private final long misses;
+    
+    /**
+     * The number of blocks evicted from the cache.
+     */
+    private final long evictions;
+    
+    /**
+     * The number of dirty blocks written back to the image.
+     */
+    private final long writeBacks;
+    
+    VirtualBlockCacheStatistics(long hits,
+                                long misses,
+                                long evictions,
+                                long writeBacks) {
+        this.hits       = hits;
+        this.misses     = misses;
+        this.evictions  = evictions;
+        this.writeBacks = writeBacks;
+    }
+    
+    /**
+     * Returns the number of cache hits.
+     * 
+     * @return the number of hits.
+     */
+    public long getHits() {
+        return hits;
+    }
+    
+    /**
+     * Returns the number of cache misses.
+     * 
+     * @return the number of misses.
+     */
+    public long getMisses() {
+        return misses;
+    }
+    
+    /**
+     * Returns the number of evicted blocks.
+     * 
+     * @return the number of evictions.
+     */
+    public long getEvictions() {
+        return evictions;
+    }
+    
+    /**
+     * Returns the number of dirty blocks written back to the image.
+     * 
+     * @return the number of write-backs.
+     */
+    public long getWriteBacks() {
+        return writeBacks;
+    }
+    
+    /**
+     * Returns the ratio of hits to all accesses, or zero if the cache was not
+     * accessed.
+     * 
+     * @return the hit ratio.
+     */
+    public double getHitRatio() {
+        long accesses = hits + misses;
+        return accesses == 0L ? 0.0 : (double) hits / accesses;
+    }
+    
+    @Override
+    public String toString() {
+        return "[hits: " + hits + ", misses: " + misses + ", evictions: " +
+               evictions + ", write-backs: " + writeBacks + "]";
+    }
+}
@@ -0,0 +1,178 @@
+package net.coderodde.vfs;
+
+import java.io.Closeable;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Objects;
+
+/**
+ * This abstract class defines the API for accessing the blocks of a native
+ * image file. The block with index {@code i} starts at the byte offset
+ * {@code i * blockSize} of the image, where the block size is chosen when the
+ * image is formatted. Offsets are 64-bit, so an image may exceed 2 GB. A 
+ * block device is opened once per image and kept open until the virtual file
+ * system is closed.
+ * 
+ * @author Rodion "rodde" Efremov
+ * @version 1.6 (Aug 7, 2017)
+ */
+abstract class VirtualBlockDevice implements Closeable {
+
+    /**
+     * The native image file of this device.
+     */
+    private final File file;
+    
+    /**
+     * The number of bytes in a block.
+     */
+    private final int blockSize;
+    
+    /**
+     * Constructs this block device.
+     * 
+     * @param file      the native image file.
+     * @param blockSize the number of bytes in a block.
+     */
+    protected VirtualBlockDevice(File file, int blockSize) {
+        this.file = Objects.requireNonNull(file, "The input file is null.");
+        this.blockSize = VirtualFileBlock.checkBlockSize(blockSize);
+    }
+    
+    /**
+     * Returns the native image file of this device.
+     * 
+     * @return the native image file.
+     */
+    File getFile() {
+        return file;
+    }
+    
+    /**
+     * Returns the number of bytes in a block of this device.
+     * 
+     * @return the block size.
+     */
+    int getBlockSize() {
+        return blockSize;
+    }
+    
+    /**
+     * Reads {@code buffer.remaining()} bytes starting from the given offset of
+     * the image into {@code buffer}. The bytes past the end of the image are
+     * read as zeros.
+     * 
+     * @param offset the offset of the first byte to read.
+     * @param buffer the target buffer.
+     */
+    abstract void read(long offset, ByteBuffer buffer);
+    
+    /**
+     * Writes the remaining bytes of {@code buffer} to the image starting from
+     * the given offset.
+     * 
+     * @param offset the offset of the first byte to write.
+     * @param buffer the source buffer.
+     */
+    abstract void write(long offset, ByteBuffer buffer);
+    
+    /**
+     * Reads a run of consecutive blocks into the given buffers. The buffer
+     * {@code buffers[i]} receives the block {@code firstBlockIndex + i}.
+     * 
+     * @param firstBlockIndex the index of the first block in the run.
+     * @param buffers         the target buffers, one per block.
+     */
+    abstract void readBlocks(int firstBlockIndex, ByteBuffer[] buffers);
+    
+    /**
+     * Writes a run of consecutive blocks from the given buffers. The buffer
+     * {@code buffers[i]} is written to the block {@code firstBlockIndex + i}.
+     * 
+     * @param firstBlockIndex the index of the first block in the run.
+     * @param buffers         the source buffers, one per block.
+     */
+    abstract void writeBlocks(int firstBlockIndex, ByteBuffer[] buffers);
+    
+    /**
+     * Returns the current size of the image in bytes.
+     * 
+     * @return the size of the image.
+     */
+    abstract long size();
+    
+    /**
+     * Forces all the writes issued so far to the storage device.
+     */
+    abstract void force();
+    
+    /**
+     * Releases the native resources held by this device.
+     */
+    @Override
+    public abstract void close();
+    
+    /**
+     * Returns a buffer holding {@code length} bytes of the image starting from
+     * the given offset. Devices that keep the image in memory return a view
+     * sharing its content with the image; the default implementation copies 
+     * the bytes into a fresh buffer, so writes to it are not reflected in the
+     * image.
+     * 
+     * @param offset the offset of the first byte.
+     * @param length the number of bytes.
+     * @return the buffer positioned at zero.
+     */
+    ByteBuffer slice(long offset, int length) {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        read(offset, buffer);
+        buffer.flip();
+        return buffer;
+    }
+    
+    /**
+     * Returns a buffer holding the block with the given index.
+     * 
+     * @param blockIndex the index of the block.
+     * @return the buffer holding the block.
+     * @see #slice(long, int)
+     */
+    ByteBuffer sliceBlock(int blockIndex) {
+        return slice(getBlockOffset(blockIndex), blockSize);
+    }
+    
+    /**
+     * Reads a single block into the given buffer.
+     * 
+     * @param blockIndex the index of the block to read.
+     * @param buffer     the target buffer.
+     */
+    void readBlock(int blockIndex, ByteBuffer buffer) {
+        read(getBlockOffset(blockIndex), buffer);
+    }
+    
+    /**
+     * Writes a single block from the given buffer.
+     * 
+     * @param blockIndex the index of the block to write.
+     * @param buffer     the source buffer.
+     */
+    void writeBlock(int blockIndex, ByteBuffer buffer) {
+        write(getBlockOffset(blockIndex), buffer);
+    }
+    
+    /**
+     * Returns the image offset of the block with the given index.
+     * 
+     * @param blockIndex the index of the block.
+     * @return the byte offset of the block.
+     */
+    long getBlockOffset(int blockIndex) {
+        if (blockIndex < 0) {
+            throw new IllegalArgumentException(
+                    "The block index (" + blockIndex + ") is negative.");
+        }
+        
+        return (long) blockIndex * blockSize;
+    }
+}
@@ -0,0 +1,397 @@
+package net.coderodde.vfs;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.Objects;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * This class implements an I/O scheduler in front of a block device. Reads
+ * and writes are submitted from any thread and complete asynchronously via a
+ * {@link CompletableFuture}; a small pool of I/O threads serves them. The
+ * pending requests are kept sorted by their image offset, and each I/O thread
+ * takes them elevator style: the next transfer starts at the first pending
+ * request at or above the offset where the previous transfer ended, wrapping
+ * around to the lowest offset once the sweep reaches the end of the image.
+ * Pending requests of the same kind that are adjacent in the image are merged
+ * into a single transfer of at most {@link #MAXIMUM_TRANSFER_SIZE} bytes, so
+ * that scattered small requests of concurrent clients become fewer, larger
+ * sequential transfers.
+ * <p>
+ * Overlapping requests pending at the same time may complete in any order;
+ * a caller that needs a write to precede a read of the same bytes waits for
+ * the write to complete first.
+ * 
+ * @author Rodion "rodde" Efremov
+ * @version 1.6 (Aug 19, 2017)
+ */
+final class VirtualBlockScheduler implements Closeable {
+
+    /**
+     * The default number of I/O threads.
+     */
+    static final int DEFAULT_THREAD_COUNT = 4;
+    
+    /**
+     * The largest number of bytes transferred by merging requests.
+     */
+    static final int MAXIMUM_TRANSFER_SIZE = 1024 * 1024;
+    
+    /**
+     * The block device the requests are served from.
+     */
+    private final VirtualBlockDevice blockDevice;
+    
+    /**
+     * The pending requests sorted by offset and then by submission order.
+     * Guarded by {@code this}.
+     */
+    private final NavigableSet<Request> pendingRequests = new TreeSet<>();
+    
+    /**
+     * The I/O threads.
+     */
+    private final Thread[] threads;
+    
+    /**
+     * The offset at which the last transfer ended. Guarded by {@code this}.
+     */
+    private long headOffset;
+    
+    /**
+     * The sequence number of the next request. Guarded by {@code this}.
+     */
+    private long nextSequence;
+    
+    /**
+     * Set when this scheduler is being closed. Guarded by {@code this}.
+     */
+    private boolean closed;
+    
+    /**
+     * Constructs this scheduler and starts its I/O threads.
+     * 
+     * @param blockDevice the block device to serve the requests from.
+     * @param threadCount the number of I/O threads.
+     */
+    VirtualBlockScheduler(VirtualBlockDevice blockDevice, int threadCount) {
+        this.blockDevice =
+                Objects.requireNonNull(blockDevice,
+                                       "The input block device is null.");
+        
+        if (threadCount < 1) {
+            throw new IllegalArgumentException(
+                    "The number of I/O threads (" + threadCount + ") is " +
+                    "not positive.");
+        }
+        
+        this.threads = new Thread[threadCount];
+        
+        for (int i = 0; i < threadCount; ++i) {
+            threads[i] = new Thread(this::run, "vfs-io-" + i);
+            threads[i].setDaemon(true);
+            threads[i].start();
+        }
+    }
+    
+    /**
+     * Returns the block device this scheduler serves the requests from.
+     * 
+     * @return the block device.
+     */
+    VirtualBlockDevice getBlockDevice() {
+        return blockDevice;
+    }
+    
+    /**
+     * Submits a read of {@code buffer.remaining()} bytes starting from the
+     * given offset of the image into {@code buffer}. The buffer must not be
+     * accessed until the read completes.
+     * 
+     * @param offset the offset of the first byte to read.
+     * @param buffer the target buffer.
+     * @return the future completed once the buffer is filled.
+     */
+    CompletableFuture<Void> read(long offset, ByteBuffer buffer) {
+        return submit(false, offset, buffer);
+    }
+    
+    /**
+     * Submits a write of the remaining bytes of {@code buffer} to the image
+     * starting from the given offset. The buffer must not be modified until
+     * the write completes.
+     * 
+     * @param offset the offset of the first byte to write.
+     * @param buffer the source buffer.
+     * @return the future completed once the bytes are written.
+     */
+    CompletableFuture<Void> write(long offset, ByteBuffer buffer) {
+        return submit(true, offset, buffer);
+    }
+    
+    /**
+     * Submits a read of a run of consecutive blocks. The buffer
+     * {@code buffers[i]} receives the block {@code firstBlockIndex + i}.
+     * 
+     * @param firstBlockIndex the index of the first block in the run.
+     * @param buffers         the target buffers, one per block.
+     * @return the future completed once all the buffers are filled.
+     */
+    CompletableFuture<Void> readBlocks(int firstBlockIndex,
+                                       ByteBuffer[] buffers) {
+        return submitBlocks(false, firstBlockIndex, buffers);
+    }
+    
+    /**
+     * Submits a write of a run of consecutive blocks. The buffer
+     * {@code buffers[i]} is written to the block {@code firstBlockIndex + i}.
+     * 
+     * @param firstBlockIndex the index of the first block in the run.
+     * @param buffers         the source buffers, one per block.
+     * @return the future completed once all the blocks are written.
+     */
+    CompletableFuture<Void> writeBlocks(int firstBlockIndex,
+                                        ByteBuffer[] buffers) {
+        return submitBlocks(true, firstBlockIndex, buffers);
+    }
+    
+    /**
+     * Serves all the pending requests and stops the I/O threads. The
+     * requests submitted afterwards are rejected.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(
+                        "Interrupted while closing the I/O scheduler.", ex);
+            }
+        }
+    }
+    
+    /**
+     * Waits for the given requests to complete. A failed request rethrows
+     * the exception of its transfer.
+     * 
+     * @param futures the futures of the requests.
+     */
+    static void await(List<CompletableFuture<Void>> futures) {
+        for (CompletableFuture<Void> future : futures) {
+            try {
+                future.join();
+            } catch (CompletionException ex) {
+                if (ex.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) ex.getCause();
+                }
+                
+                throw ex;
+            }
+        }
+    }
+    
+    private CompletableFuture<Void> submitBlocks(boolean write,
+                                                 int firstBlockIndex,
+                                                 ByteBuffer[] buffers) {
+        CompletableFuture<?>[] futures =
+                new CompletableFuture<?>[buffers.length];
+        
+        synchronized (this) {
+            for (int i = 0; i < buffers.length; ++i) {
+                futures[i] = submit(write,
+                                    blockDevice.getBlockOffset(
+                                            firstBlockIndex + i),
+                                    buffers[i]);
+            }
+        }
+        
+        return CompletableFuture.allOf(futures);
+    }
+    
+    private synchronized CompletableFuture<Void> submit(boolean write,
+                                                        long offset,
+                                                        ByteBuffer buffer) {
+        if (closed) {
+            throw new IllegalStateException("The I/O scheduler is closed.");
+        }
+        
+        if (offset < 0L) {
+            throw new IllegalArgumentException(
+                    "The offset (" + offset + ") is negative.");
+        }
+        
+        Request request = new Request(write, offset, buffer, nextSequence++);
+        
+        if (!buffer.hasRemaining()) {
+            request.future.complete(null);
+            return request.future;
+        }
+        
+        pendingRequests.add(request);
+        notify();
+        return request.future;
+    }
+    
+    /**
+     * The loop of each I/O thread: takes the next transfer and performs it,
+     * until this scheduler is closed and no request is pending.
+     */
+    private void run() {
+        while (true) {
+            List<Request> transfer;
+            
+            synchronized (this) {
+                while (pendingRequests.isEmpty() && !closed) {
+                    try {
+                        wait();
+                    } catch (InterruptedException ex) {
+                        return;
+                    }
+                }
+                
+                if (pendingRequests.isEmpty()) {
+                    return;
+                }
+                
+                transfer = takeTransfer();
+            }
+            
+            perform(transfer);
+        }
+    }
+    
+    /**
+     * Removes the requests of the next transfer from the pending requests:
+     * the first request at or above the head offset, followed by the
+     * adjacent requests of the same kind.
+     * 
+     * @return the requests of the transfer sorted by offset.
+     */
+    private List<Request> takeTransfer() {
+        Request first = pendingRequests.ceiling(
+                new Request(false, headOffset, null, Long.MIN_VALUE));
+        
+        if (first == null) {
+            // The sweep reached the end of the image:
+            first = pendingRequests.first();
+        }
+        
+        pendingRequests.remove(first);
+        List<Request> transfer = new ArrayList<>();
+        transfer.add(first);
+        long end = first.offset + first.length;
+        Iterator<Request> iterator =
+                pendingRequests.tailSet(first, false).iterator();
+        
+        while (iterator.hasNext()) {
+            Request request = iterator.next();
+            
+            if (request.offset > end) {
+                break;
+            }
+            
+            if (request.offset == end
+                    && request.write == first.write
+                    && end + request.length - first.offset
+                    <= MAXIMUM_TRANSFER_SIZE) {
+                iterator.remove();
+                transfer.add(request);
+                end += request.length;
+            }
+        }
+        
+        headOffset = end;
+        return transfer;
+    }
+    
+    /**
+     * Performs a single transfer of the given adjacent requests and completes
+     * their futures.
+     * 
+     * @param transfer the requests sorted by offset.
+     */
+    private void perform(List<Request> transfer) {
+        Request first = transfer.get(0);
+        
+        try {
+            if (transfer.size() == 1) {
+                if (first.write) {
+                    blockDevice.write(first.offset, first.buffer);
+                } else {
+                    blockDevice.read(first.offset, first.buffer);
+                }
+            } else {
+                Request last = transfer.get(transfer.size() - 1);
+                ByteBuffer merged = ByteBuffer.allocate(
+                        (int)(last.offset + last.length - first.offset));
+                
+                if (first.write) {
+                    for (Request request : transfer) {
+                        merged.put(request.buffer);
+                    }
+                    
+                    merged.flip();
+                    blockDevice.write(first.offset, merged);
+                } else {
+                    blockDevice.read(first.offset, merged);
+                    merged.flip();
+                    
+                    for (Request request : transfer) {
+                        merged.limit(merged.position() + request.length);
+                        request.buffer.put(merged);
+                    }
+                }
+            }
+        } catch (RuntimeException ex) {
+            for (Request request : transfer) {
+                request.future.completeExceptionally(ex);
+            }
+            
+            return;
+        }
+        
+        for (Request request : transfer) {
+            request.future.complete(null);
+        }
+    }
+    
+    /**
+     * A pending read or write.
+     */
+    private static final class Request implements Comparable<Request> {
+
+        final boolean write;
+        final long offset;
+        final ByteBuffer buffer;
+        final int length;
+        final long sequence;
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+        
+        Request(boolean write, long offset, ByteBuffer buffer, long sequence) {
+            this.write    = write;
+            this.offset   = offset;
+            this.buffer   = buffer;
+            this.length   = buffer == null ? 0 : buffer.remaining();
+            this.sequence = sequence;
+        }
+        
+        @Override
+        public int compareTo(Request other) {
+            int cmp = Long.compare(offset, other.offset);
+            return cmp != 0 ? cmp : Long.compare(sequence, other.sequence);
+        }
+    }
+}
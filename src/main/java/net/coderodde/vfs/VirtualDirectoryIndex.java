@@ -0,0 +1,666 @@
+package net.coderodde.vfs;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.BiPredicate;
+
+/**
+ * This class implements the on-image index of a directory: a B+-tree mapping
+ * the name of each child to its inode number. Each tree node occupies a
+ * single block. Lookup, insertion and deletion touch one block per tree 
+ * level, and the leaves are chained in key order, so that an ordered range
+ * listing reads only the leaves it returns.
+ * <p>
+ * Every tree node starts with a header consisting of the node type (1 byte),
+ * the number of keys (2 bytes) and a link (4 bytes). In a leaf the link is
+ * the index of the next leaf, or -1 for the last leaf. In an internal node the
+ * link is the leftmost child. The header is followed by the entries: a key
+ * encoded as the node names in the inodes (the number of bytes as 1 byte 
+ * followed by the UTF-8 bytes; see 
+ * {@link VirtualFileSystemInodeTable#putName(ByteBuffer, String)}) and 
+ * either the child inode number (in a leaf) or the child node holding the 
+ * keys not smaller than the key (in an internal node).
+ * <p>
+ * Deletion does not merge or rebalance sparse nodes, which keeps it a 
+ * single leaf write in the common case. A leaf that becomes empty, however,
+ * is unlinked from the leaf chain and freed, and removed from its parent; 
+ * an internal node left without children is freed in turn, and a root left
+ * with a single child is replaced by that child. Hence a scan never walks 
+ * over empty leaves, and the tree of a directory emptied by deletions 
+ * shrinks back to nothing.
+ * 
+ * @author Rodion "rodde" Efremov
+ * @version 1.6 (Aug 12, 2017)
+ */
+final class VirtualDirectoryIndex {
+
+    /**
+     * Denotes a leaf node.
+     */
+    private static final byte LEAF_NODE = 1;
+    
+    /**
+     * Denotes an internal node.
+     */
+    private static final byte INTERNAL_NODE = 2;
+    
+    /**
+     * The number of bytes in the header of a tree node.
+     */
+    private static final int NODE_HEADER_SIZE =
+            Byte.BYTES + Short.BYTES + Integer.BYTES;
+    
+    /**
+     * Denotes the absence of a block.
+     */
+    static final int NO_BLOCK = -1;
+    
+    /**
+     * The file system storing the tree nodes.
+     */
+    private final VirtualFilesystem fileSystem;
+    
+    /**
+     * The index of the block holding the root node, or {@link #NO_BLOCK} if
+     * the tree is empty.
+     */
+    private int rootBlockIndex;
+    
+    /**
+     * Constructs a view over the tree with the given root.
+     * 
+     * @param fileSystem     the file system storing the tree nodes.
+     * @param rootBlockIndex the index of the root block, or {@link #NO_BLOCK}.
+     */
+    VirtualDirectoryIndex(VirtualFilesystem fileSystem, int rootBlockIndex) {
+        this.fileSystem =
+                Objects.requireNonNull(fileSystem,
+                                       "The input file system is null.");
+        this.rootBlockIndex = rootBlockIndex;
+    }
+    
+    /**
+     * Returns the index of the root block. The root changes when the root
+     * node splits or collapses, so the owner of the tree must persist it 
+     * after each insertion and deletion.
+     * 
+     * @return the root block index, or {@link #NO_BLOCK}.
+     */
+    int getRootBlockIndex() {
+        return rootBlockIndex;
+    }
+    
+    /**
+     * Returns the inode number mapped to the given name.
+     * 
+     * @param name the name to look up.
+     * @return the inode number, or -1 if the name is not present.
+     */
+    int lookup(String name) {
+        if (rootBlockIndex == NO_BLOCK) {
+            return -1;
+        }
+        
+        Node node = readTreeNode(rootBlockIndex);
+        
+        while (!node.leaf) {
+            node = readTreeNode(node.getChild(name));
+        }
+        
+        int index = Collections.binarySearch(node.keys, name);
+        return index >= 0 ? node.values.get(index) : -1;
+    }
+    
+    /**
+     * Returns the number of the levels of the tree, zero for an empty tree. 
+     * Inserting a name allocates at most one block more than that.
+     * 
+     * @return the height of the tree.
+     */
+    int getHeight() {
+        if (rootBlockIndex == NO_BLOCK) {
+            return 0;
+        }
+        
+        int height = 1;
+        Node node = readTreeNode(rootBlockIndex);
+        
+        while (!node.leaf) {
+            node = readTreeNode(node.link);
+            ++height;
+        }
+        
+        return height;
+    }
+    
+    /**
+     * Maps the given name to the given inode number.
+     * 
+     * @param name        the name to insert.
+     * @param inodeNumber the inode number of the named node.
+     * @throws IllegalArgumentException if the name is already present.
+     */
+    void insert(String name, int inodeNumber) {
+        if (rootBlockIndex == NO_BLOCK) {
+            Node root = new Node(fileSystem.allocateMetadataBlock(), true);
+            root.link = NO_BLOCK;
+            root.keys.add(name);
+            root.values.add(inodeNumber);
+            writeTreeNode(root);
+            rootBlockIndex = root.blockIndex;
+            return;
+        }
+        
+        Split split = insert(readTreeNode(rootBlockIndex),
+                             name,
+                             inodeNumber);
+        
+        if (split != null) {
+            Node root = new Node(fileSystem.allocateMetadataBlock(), false);
+            root.link = rootBlockIndex;
+            root.keys.add(split.separator);
+            root.values.add(split.rightBlockIndex);
+            writeTreeNode(root);
+            rootBlockIndex = root.blockIndex;
+        }
+    }
+    
+    /**
+     * Removes the given name from the tree.
+     * 
+     * @param name the name to remove.
+     * @return {@code true} if the name was present.
+     */
+    boolean delete(String name) {
+        if (rootBlockIndex == NO_BLOCK) {
+            return false;
+        }
+        
+        // The internal nodes on the path to the leaf and the position of
+        // the child taken in each of them:
+        List<Node> path = new ArrayList<>();
+        List<Integer> positions = new ArrayList<>();
+        Node node = readTreeNode(rootBlockIndex);
+        
+        while (!node.leaf) {
+            int position = node.getChildPosition(name);
+            path.add(node);
+            positions.add(position);
+            node = readTreeNode(node.getChildAt(position));
+        }
+        
+        int index = Collections.binarySearch(node.keys, name);
+        
+        if (index < 0) {
+            return false;
+        }
+        
+        node.keys.remove(index);
+        node.values.remove(index);
+        
+        if (!node.keys.isEmpty()) {
+            writeTreeNode(node);
+            return true;
+        }
+        
+        unlinkLeaf(node, path, positions);
+        freeTreeNode(node);
+        
+        // Remove the freed node from its parent, freeing the parents left 
+        // without children:
+        for (int level = path.size() - 1; level >= 0; --level) {
+            Node parent = path.get(level);
+            int position = positions.get(level);
+            
+            if (position != Node.LEFTMOST_CHILD) {
+                parent.keys.remove(position);
+                parent.values.remove(position);
+            } else if (!parent.keys.isEmpty()) {
+                parent.link = parent.values.remove(0);
+                parent.keys.remove(0);
+            } else {
+                freeTreeNode(parent);
+                continue;
+            }
+            
+            writeTreeNode(parent);
+            collapseRoot();
+            return true;
+        }
+        
+        rootBlockIndex = NO_BLOCK;
+        return true;
+    }
+    
+    /**
+     * Frees all the blocks of the tree, leaving the tree empty.
+     */
+    void destroy() {
+        if (rootBlockIndex != NO_BLOCK) {
+            destroy(readTreeNode(rootBlockIndex));
+            rootBlockIndex = NO_BLOCK;
+        }
+    }
+    
+    /**
+     * Copies the tree node by node into newly allocated blocks. This tree is
+     * left unchanged.
+     * 
+     * @return the copy of this tree.
+     */
+    VirtualDirectoryIndex copy() {
+        if (rootBlockIndex == NO_BLOCK) {
+            return new VirtualDirectoryIndex(fileSystem, NO_BLOCK);
+        }
+        
+        List<Node> nodes = new ArrayList<>();
+        collect(readTreeNode(rootBlockIndex), nodes);
+        Map<Integer, Integer> blockMap = new HashMap<>();
+        
+        for (Node node : nodes) {
+            blockMap.put(node.blockIndex, fileSystem.allocateMetadataBlock());
+        }
+        
+        for (Node node : nodes) {
+            Node copy = new Node(blockMap.get(node.blockIndex), node.leaf);
+            copy.keys.addAll(node.keys);
+            
+            if (node.leaf) {
+                copy.link = node.link == NO_BLOCK ? NO_BLOCK :
+                                                    blockMap.get(node.link);
+                copy.values.addAll(node.values);
+            } else {
+                copy.link = blockMap.get(node.link);
+                
+                for (int childBlockIndex : node.values) {
+                    copy.values.add(blockMap.get(childBlockIndex));
+                }
+            }
+            
+            writeTreeNode(copy);
+        }
+        
+        return new VirtualDirectoryIndex(fileSystem,
+                                         blockMap.get(rootBlockIndex));
+    }
+    
+    /**
+     * Visits the entries in ascending name order starting from the first
+     * name not smaller than {@code fromName}. The visiting stops as soon as
+     * the visitor returns {@code false}.
+     * 
+     * @param fromName the smallest name to visit, or {@code null} to start
+     *                 from the first entry.
+     * @param visitor  the entry visitor receiving the name and the inode
+     *                 number.
+     */
+    void scan(String fromName,
+              BiPredicate<String, Integer> visitor) {
+        if (rootBlockIndex == NO_BLOCK) {
+            return;
+        }
+        
+        Node node = readTreeNode(rootBlockIndex);
+        
+        while (!node.leaf) {
+            node = readTreeNode(fromName == null ? node.link :
+                                                   node.getChild(fromName));
+        }
+        
+        int index = 0;
+        
+        if (fromName != null) {
+            index = Collections.binarySearch(node.keys, fromName);
+            
+            if (index < 0) {
+                index = -index - 1;
+            }
+        }
+        
+        while (true) {
+            for (; index < node.keys.size(); ++index) {
+                if (!visitor.test(node.keys.get(index),
+                                  node.values.get(index))) {
+                    return;
+                }
+            }
+            
+            if (node.link == NO_BLOCK) {
+                return;
+            }
+            
+            node = readTreeNode(node.link);
+            index = 0;
+        }
+    }
+    
+    private void destroy(Node node) {
+        if (!node.leaf) {
+            destroy(readTreeNode(node.link));
+            
+            for (int childBlockIndex : node.values) {
+                destroy(readTreeNode(childBlockIndex));
+            }
+        }
+        
+        freeTreeNode(node);
+    }
+    
+    private void collect(Node node, List<Node> nodes) {
+        nodes.add(node);
+        
+        if (!node.leaf) {
+            collect(readTreeNode(node.link), nodes);
+            
+            for (int childBlockIndex : node.values) {
+                collect(readTreeNode(childBlockIndex), nodes);
+            }
+        }
+    }
+    
+    /**
+     * Makes the leaf preceding the given leaf in the chain point past it. 
+     * The preceding leaf is the rightmost leaf of the subtree to the left of
+     * the path at the lowest level where the path does not take the leftmost
+     * child; the first leaf has no predecessor.
+     */
+    private void unlinkLeaf(Node leaf, 
+                            List<Node> path, 
+                            List<Integer> positions) {
+        for (int level = path.size() - 1; level >= 0; --level) {
+            int position = positions.get(level);
+            
+            if (position == Node.LEFTMOST_CHILD) {
+                continue;
+            }
+            
+            Node node = readTreeNode(path.get(level).getChildAt(position - 1));
+            
+            while (!node.leaf) {
+                node = readTreeNode(node.getChildAt(node.keys.size() - 1));
+            }
+            
+            node.link = leaf.link;
+            writeTreeNode(node);
+            return;
+        }
+    }
+    
+    /**
+     * Replaces the root by its only child as long as the root is an internal
+     * node without keys.
+     */
+    private void collapseRoot() {
+        Node root = readTreeNode(rootBlockIndex);
+        
+        while (!root.leaf && root.keys.isEmpty()) {
+            freeTreeNode(root);
+            rootBlockIndex = root.link;
+            root = readTreeNode(rootBlockIndex);
+        }
+    }
+    
+    private void freeTreeNode(Node node) {
+        fileSystem.freeBlocks(
+                new VirtualFileSystemBlockIndexRange(node.blockIndex,
+                                                     node.blockIndex));
+    }
+    
+    /**
+     * Inserts into the subtree rooted at {@code node}.
+     * 
+     * @return the split of {@code node}, or {@code null} if it did not split.
+     */
+    private Split insert(Node node, String name, int value) {
+        int index = Collections.binarySearch(node.keys, name);
+        
+        if (node.leaf) {
+            if (index >= 0) {
+                throw new IllegalArgumentException(
+                        "The name \"" + name + "\" is already indexed.");
+            }
+            
+            node.keys.add(-index - 1, name);
+            node.values.add(-index - 1, value);
+        } else {
+            Split childSplit = insert(readTreeNode(node.getChild(name)),
+                                      name,
+                                      value);
+            
+            if (childSplit == null) {
+                return null;
+            }
+            
+            int position = Collections.binarySearch(node.keys,
+                                                    childSplit.separator);
+            position = -position - 1;
+            node.keys.add(position, childSplit.separator);
+            node.values.add(position, childSplit.rightBlockIndex);
+        }
+        
+        if (node.getEncodedSize() <= fileSystem.getBlockSize()) {
+            writeTreeNode(node);
+            return null;
+        }
+        
+        return split(node);
+    }
+    
+    /**
+     * Splits an overflowing node into two nodes of roughly equal encoded
+     * size and writes both.
+     */
+    private Split split(Node node) {
+        int halfSize = (node.getEncodedSize() - NODE_HEADER_SIZE) / 2;
+        int leftSize = 0;
+        int middle = 0;
+        
+        while (leftSize < halfSize) {
+            leftSize += Node.getEntrySize(node.keys.get(middle++));
+        }
+        
+        // Both halves must be non-empty:
+        middle = Math.max(1, Math.min(middle, node.keys.size() - 1));
+        
+        Node right = new Node(fileSystem.allocateMetadataBlock(), node.leaf);
+        String separator;
+        
+        if (node.leaf) {
+            right.keys.addAll(node.keys.subList(middle, node.keys.size()));
+            right.values.addAll(node.values.subList(middle,
+                                                    node.values.size()));
+            right.link = node.link;
+            node.link = right.blockIndex;
+            separator = right.keys.get(0);
+        } else {
+            separator = node.keys.get(middle);
+            right.link = node.values.get(middle);
+            right.keys.addAll(node.keys.subList(middle + 1,
+                                                node.keys.size()));
+            right.values.addAll(node.values.subList(middle + 1,
+                                                    node.values.size()));
+        }
+        
+        node.keys.subList(middle, node.keys.size()).clear();
+        node.values.subList(middle, node.values.size()).clear();
+        
+        writeTreeNode(node);
+        writeTreeNode(right);
+        return new Split(separator, right.blockIndex);
+    }
+    
+    private Node readTreeNode(int blockIndex) {
+        return Node.decode(blockIndex,
+                           fileSystem.readMetadataBlock(blockIndex));
+    }
+    
+    private void writeTreeNode(Node node) {
+        fileSystem.writeMetadataBlock(node.blockIndex, 
+                                      node.encode(fileSystem.getBlockSize()));
+    }
+    
+    /**
+     * Describes the split of a tree node.
+     */
+    private static final class Split {
+        
+        /**
+         * The smallest key of the right node.
+         */
+        final String separator;
+        
+        /**
+         * The block index of the new right node.
+         */
+        final int rightBlockIndex;
+        
+        Split(String separator, int rightBlockIndex) {
+            this.separator = separator;
+            this.rightBlockIndex = rightBlockIndex;
+        }
+    }
+    
+    /**
+     * The decoded contents of a single tree node.
+     */
+    private static final class Node {
+        
+        /**
+         * The child position of the leftmost child of an internal node, 
+         * which is held in {@code link}.
+         */
+        static final int LEFTMOST_CHILD = -1;
+        
+        /**
+         * The index of the block holding this node.
+         */
+        final int blockIndex;
+        
+        /**
+         * Whether this node is a leaf.
+         */
+        final boolean leaf;
+        
+        /**
+         * The next leaf for a leaf node, the leftmost child for an internal
+         * node.
+         */
+        int link;
+        
+        /**
+         * The sorted keys.
+         */
+        final List<String> keys = new ArrayList<>();
+        
+        /**
+         * The inode numbers for a leaf node; the children to the right
+         * of the respective keys for an internal node.
+         */
+        final List<Integer> values = new ArrayList<>();
+        
+        Node(int blockIndex, boolean leaf) {
+            this.blockIndex = blockIndex;
+            this.leaf = leaf;
+        }
+        
+        /**
+         * Returns the child of an internal node that covers the given key.
+         */
+        int getChild(String key) {
+            return getChildAt(getChildPosition(key));
+        }
+        
+        /**
+         * Returns the position of the child of an internal node that covers
+         * the given key: the index of the key to the left of the child, or 
+         * {@link #LEFTMOST_CHILD}.
+         */
+        int getChildPosition(String key) {
+            int index = Collections.binarySearch(keys, key);
+            return index >= 0 ? index : -index - 2;
+        }
+        
+        /**
+         * Returns the child of an internal node at the given position.
+         */
+        int getChildAt(int position) {
+            return position == LEFTMOST_CHILD ? link : values.get(position);
+        }
+        
+        int getEncodedSize() {
+            int size = NODE_HEADER_SIZE;
+            
+            for (String key : keys) {
+                size += getEntrySize(key);
+            }
+            
+            return size;
+        }
+        
+        static int getEntrySize(String key) {
+            return Byte.BYTES + getEncodedKeyLength(key) + Integer.BYTES;
+        }
+        
+        /**
+         * Returns the number of bytes in the UTF-8 encoding of the given 
+         * key, which is known to be encodable.
+         */
+        static int getEncodedKeyLength(String key) {
+            int length = 0;
+            
+            for (int i = 0; i < key.length(); ++i) {
+                char c = key.charAt(i);
+                
+                if (c < 0x80) {
+                    length += 1;
+                } else if (c < 0x800) {
+                    length += 2;
+                } else if (Character.isSurrogate(c)) {
+                    // Each half of a surrogate pair accounts for half of the
+                    // four bytes:
+                    length += 2;
+                } else {
+                    length += 3;
+                }
+            }
+            
+            return length;
+        }
+        
+        byte[] encode(int blockSize) {
+            ByteBuffer byteBuffer =
+                    ByteBuffer.allocate(blockSize)
+                              .order(ByteOrder.LITTLE_ENDIAN);
+            
+            byteBuffer.put(leaf ? LEAF_NODE : INTERNAL_NODE);
+            byteBuffer.putShort((short) keys.size());
+            byteBuffer.putInt(link);
+            
+            for (int i = 0; i < keys.size(); ++i) {
+                VirtualFileSystemInodeTable.putName(byteBuffer, keys.get(i));
+                byteBuffer.putInt(values.get(i));
+            }
+            
+            return byteBuffer.array();
+        }
+        
+        static Node decode(int blockIndex, ByteBuffer byteBuffer) {
+            Node node = new Node(blockIndex, byteBuffer.get() == LEAF_NODE);
+            int keyCount = byteBuffer.getShort();
+            node.link = byteBuffer.getInt();
+            
+            for (int i = 0; i < keyCount; ++i) {
+                node.keys.add(VirtualFileSystemInodeTable.getName(byteBuffer));
+                node.values.add(byteBuffer.getInt());
+            }
+            
+            return node;
+        }
+    }
+}
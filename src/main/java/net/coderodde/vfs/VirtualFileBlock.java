@@ -1,10 +1,7 @@
 package net.coderodde.vfs;
 
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
-import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * This class represents a block in the native file representing the file
@@ -16,9 +13,19 @@ import java.io.IOException;
 final class VirtualFileBlock {
 
     /**
-     * Number of bytes each block can accommodate.
+     * The smallest block size an image may be formatted with.
      */
-    private static final int BLOCK_SIZE = 512;
+    static final int MINIMUM_BLOCK_SIZE = 512;
+    
+    /**
+     * The largest block size an image may be formatted with.
+     */
+    static final int MAXIMUM_BLOCK_SIZE = 64 * 1024;
+    
+    /**
+     * The block size of the images formatted without an explicit block size.
+     */
+    static final int DEFAULT_BLOCK_SIZE = 512;
     
     /**
      * Number of bytes used in this block.
@@ -28,7 +35,7 @@ final class VirtualFileBlock {
     /**
      * In the actual file, the offset of this block.
      */
-    private int offset;
+    private long offset;
     
     /**
      * Returns the size of this block (number of bytes considered to belong to
@@ -55,7 +62,7 @@ final class VirtualFileBlock {
      * 
      * @return the native file offset.
      */
-    int getOffset() {
+    long getOffset() {
         return offset;
     }
     
@@ -64,55 +71,76 @@ final class VirtualFileBlock {
      * 
      * @param offset the new offset.
      */
-    void setOffset(int offset) {
+    void setOffset(long offset) {
         this.offset = checkOffset(offset);
     }
     
     /**
-     * Reads this block from the given file.
+     * Reads this block from the given block device.
      * 
-     * @param file the native file containing this block.
+     * @param blockDevice the block device of the native image containing this
+     *                    block.
      * 
      * @return the data read.
      */
-    byte[] read(File file) {
+    byte[] read(VirtualBlockDevice blockDevice) {
         byte[] data = new byte[size];
-        
-        try {
-            FileInputStream fileInputStream = new FileInputStream(file);
-            fileInputStream.read(data, offset, size);
-        } catch (FileNotFoundException ex) {
-            throw new RuntimeException(
-                    "File \"" + file.getAbsolutePath() + "\" is not found.",
-                    ex);
-        } catch (IOException ex) {
-            throw new RuntimeException(
-                    "Cannot read the file \"" + file.getAbsolutePath() + 
-                    "\".", ex);
-        }
-        
+        blockDevice.read(offset, ByteBuffer.wrap(data));
         return data;
     }
     
     /**
-     * Saves this block to the native file representing this file system.
+     * Returns the significant bytes of this block as a buffer. On a memory 
+     * mapped image the returned buffer is a slice of the mapping and no bytes
+     * are copied.
+     * 
+     * @param blockDevice the block device of the native image containing this
+     *                    block.
      * 
-     * @param file the file to write to.
-     * @param data the data to write.
+     * @return the buffer holding the block data.
      */
-    void write(File file, byte[] data) {
-        try {
-            FileOutputStream fileOutputStream = new FileOutputStream(file);
-            fileOutputStream.write(data, offset, size);
-        } catch (FileNotFoundException ex) {
-            throw new RuntimeException(
-                    "File \"" + file.getAbsolutePath() + "\" is not found.",
-                    ex);
-        } catch (IOException ex) {
-            throw new RuntimeException(
-                    "Cannot write the file \"" + file.getAbsolutePath() +
-                    "\".", ex);
-        }
+    ByteBuffer slice(VirtualBlockDevice blockDevice) {
+        return blockDevice.slice(offset, size);
+    }
+    
+    /**
+     * Saves this block to the block device of the native image representing 
+     * this file system.
+     * 
+     * @param blockDevice the block device to write to.
+     * @param data        the data to write.
+     */
+    void write(VirtualBlockDevice blockDevice, byte[] data) {
+        blockDevice.write(offset, ByteBuffer.wrap(data, 0, size));
+    }
+    
+    /**
+     * Submits a read of this block to the given I/O scheduler.
+     * 
+     * @param blockScheduler the I/O scheduler of the native image containing
+     *                       this block.
+     * 
+     * @return the future completed with the data read.
+     */
+    CompletableFuture<byte[]> readAsync(VirtualBlockScheduler blockScheduler) {
+        byte[] data = new byte[size];
+        return blockScheduler.read(offset, ByteBuffer.wrap(data))
+                             .thenApply(ignored -> data);
+    }
+    
+    /**
+     * Submits a write of this block to the given I/O scheduler. The data must
+     * not be modified until the write completes.
+     * 
+     * @param blockScheduler the I/O scheduler of the native image containing
+     *                       this block.
+     * @param data           the data to write.
+     * 
+     * @return the future completed once the block is written.
+     */
+    CompletableFuture<Void> writeAsync(VirtualBlockScheduler blockScheduler,
+                                       byte[] data) {
+        return blockScheduler.write(offset, ByteBuffer.wrap(data, 0, size));
     }
     
     private int checkSize(int size) {
@@ -121,16 +149,36 @@ final class VirtualFileBlock {
                     "The requested block size is negative: " + size);
         }
         
-        if (size > BLOCK_SIZE) {
+        if (size > MAXIMUM_BLOCK_SIZE) {
             throw new IllegalArgumentException(
                     "The requested block size (" + size + ") exceeds the " +
-                    "block size (" + BLOCK_SIZE + ").");
+                    "maximum block size (" + MAXIMUM_BLOCK_SIZE + ").");
         }
         
         return size;
     }
     
-    private int checkOffset(int offset) {
+    /**
+     * Checks that the given image block size is a power of two between 
+     * {@link #MINIMUM_BLOCK_SIZE} and {@link #MAXIMUM_BLOCK_SIZE}.
+     * 
+     * @param blockSize the block size to check.
+     * @return the block size.
+     */
+    static int checkBlockSize(int blockSize) {
+        if (blockSize < MINIMUM_BLOCK_SIZE 
+                || blockSize > MAXIMUM_BLOCK_SIZE
+                || Integer.bitCount(blockSize) != 1) {
+            throw new IllegalArgumentException(
+                    "The block size (" + blockSize + ") is not a power of " +
+                    "two between " + MINIMUM_BLOCK_SIZE + " and " + 
+                    MAXIMUM_BLOCK_SIZE + ".");
+        }
+        
+        return blockSize;
+    }
+    
+    private long checkOffset(long offset) {
         if (offset < 0) {
             throw new IllegalArgumentException(
                     "The requested offset (" + offset + ") is negative.");
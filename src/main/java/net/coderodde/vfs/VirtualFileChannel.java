@@ -0,0 +1,376 @@
+package net.coderodde.vfs;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.util.Objects;
+
+/**
+ * This class implements a channel over the content of a regular file. The
+ * channel keeps only its position and a small write buffer; all the reads and
+ * writes go through the block cache, so the memory used does not depend on 
+ * the size of the file.
+ * <p>
+ * When the reads are sequential, the channel loads a window of blocks ahead
+ * of the position. The window starts at {@link #MINIMUM_READ_AHEAD_BLOCKS}
+ * and doubles with each window consumed, up to 
+ * {@link #MAXIMUM_READ_AHEAD_BLOCKS}; the next window is loaded once the 
+ * reads pass the middle of the current one, so that it is in the cache by the
+ * time the reads reach it. A read elsewhere than at the end of the previous
+ * one shrinks the window back to its minimum.
+ * <p>
+ * Consecutive writes smaller than the write buffer are coalesced in it, and 
+ * the buffer is written to the file once full, up to the last block 
+ * boundary, so that a writer appending a few bytes at a time rewrites each 
+ * block once instead of on every write. The buffered bytes reach the file 
+ * before this channel reads or truncates, and when the channel or its 
+ * output stream is flushed or closed; until then, other readers of the file
+ * do not see them, and a failure to write them, such as an exceeded quota,
+ * is reported by the call that writes them.
+ * 
+ * @author Rodion "rodde" Efremov
+ * @version 1.6 (Aug 20, 2017)
+ */
+final class VirtualFileChannel implements SeekableByteChannel {
+
+    /**
+     * The number of blocks in the first read-ahead window of a sequential 
+     * scan.
+     */
+    static final int MINIMUM_READ_AHEAD_BLOCKS = 4;
+    
+    /**
+     * The largest number of blocks in a read-ahead window.
+     */
+    static final int MAXIMUM_READ_AHEAD_BLOCKS = 256;
+    
+    /**
+     * The number of blocks the write buffer holds.
+     */
+    static final int WRITE_BUFFER_BLOCKS = 16;
+    
+    /**
+     * The regular file this channel operates on.
+     */
+    private final VirtualFileSystemNode file;
+    
+    /**
+     * Whether every write appends to the end of the file.
+     */
+    private final boolean append;
+    
+    /**
+     * The number of bytes in a block of the file.
+     */
+    private final int blockSize;
+    
+    /**
+     * The current position of this channel.
+     */
+    private long position;
+    
+    /**
+     * The position at which the last read ended. A read starting there is 
+     * sequential.
+     */
+    private long lastReadEnd;
+    
+    /**
+     * The position up to which the content was read ahead.
+     */
+    private long readAheadEnd;
+    
+    /**
+     * The position past which a sequential read loads the next window.
+     */
+    private long readAheadMarker;
+    
+    /**
+     * The number of blocks in the next read-ahead window.
+     */
+    private int readAheadBlocks = MINIMUM_READ_AHEAD_BLOCKS;
+    
+    /**
+     * The buffer coalescing the small writes. Allocated on first use.
+     */
+    private byte[] writeBuffer;
+    
+    /**
+     * The number of bytes in the write buffer.
+     */
+    private int writeBufferLength;
+    
+    /**
+     * The position in the file of the first byte in the write buffer.
+     */
+    private long writeBufferPosition;
+    
+    /**
+     * Whether this channel is open.
+     */
+    private volatile boolean open = true;
+    
+    /**
+     * Constructs a channel over the given regular file.
+     * 
+     * @param file   the regular file.
+     * @param append whether every write appends to the end of the file.
+     */
+    VirtualFileChannel(VirtualFileSystemNode file, boolean append) {
+        this.file = Objects.requireNonNull(file, "The input file is null.");
+        this.append = append;
+        this.blockSize = file.getBlockSize();
+    }
+    
+    @Override
+    public synchronized int read(ByteBuffer target)
+    throws ClosedChannelException {
+        checkOpen();
+        flushWriteBuffer();
+        
+        if (position != lastReadEnd) {
+            readAheadBlocks = MINIMUM_READ_AHEAD_BLOCKS;
+            readAheadEnd = position;
+            readAheadMarker = position;
+        } else if (position + target.remaining() > readAheadMarker) {
+            long start = Math.max(position, readAheadEnd);
+            long length = Math.max((long) readAheadBlocks * blockSize,
+                                   position + target.remaining() - start);
+            file.prefetch(start, length);
+            readAheadEnd = start + length;
+            readAheadMarker = readAheadEnd - length / 2;
+            readAheadBlocks = Math.min(2 * readAheadBlocks,
+                                       MAXIMUM_READ_AHEAD_BLOCKS);
+        }
+        
+        int bytesRead = file.readContent(position, target);
+        
+        if (bytesRead > 0) {
+            position += bytesRead;
+            lastReadEnd = position;
+        }
+        
+        return bytesRead;
+    }
+    
+    @Override
+    public synchronized int write(ByteBuffer source)
+    throws ClosedChannelException {
+        checkOpen();
+        
+        if (append) {
+            position = getSize();
+        }
+        
+        int capacity = WRITE_BUFFER_BLOCKS * blockSize;
+        
+        if (writeBufferLength > 0 
+                && position != writeBufferPosition + writeBufferLength) {
+            flushWriteBuffer();
+        }
+        
+        if (writeBufferLength == 0) {
+            writeBufferPosition = position;
+        }
+        
+        int bytesWritten = source.remaining();
+        
+        while (source.hasRemaining()) {
+            if (writeBufferLength == 0 && source.remaining() >= capacity) {
+                // Large writes bypass the buffer:
+                file.writeContent(writeBufferPosition, source);
+                break;
+            }
+            
+            if (writeBuffer == null) {
+                writeBuffer = new byte[capacity];
+            }
+            
+            int length = Math.min(source.remaining(),
+                                  capacity - writeBufferLength);
+            source.get(writeBuffer, writeBufferLength, length);
+            writeBufferLength += length;
+            
+            if (writeBufferLength == capacity) {
+                writeWholeBlocks();
+            }
+        }
+        
+        position += bytesWritten;
+        return bytesWritten;
+    }
+    
+    @Override
+    public synchronized long position() throws ClosedChannelException {
+        checkOpen();
+        return position;
+    }
+    
+    @Override
+    public synchronized SeekableByteChannel position(long newPosition)
+    throws ClosedChannelException {
+        checkOpen();
+        
+        if (newPosition < 0L) {
+            throw new IllegalArgumentException(
+                    "The position (" + newPosition + ") is negative.");
+        }
+        
+        position = newPosition;
+        return this;
+    }
+    
+    @Override
+    public synchronized long size() throws ClosedChannelException {
+        checkOpen();
+        return getSize();
+    }
+    
+    /**
+     * Writes the buffered bytes to the file.
+     * 
+     * @throws ClosedChannelException if this channel is closed.
+     */
+    synchronized void flush() throws ClosedChannelException {
+        checkOpen();
+        flushWriteBuffer();
+    }
+    
+    /**
+     * Returns a stream writing to this channel. Flushing the stream flushes
+     * this channel, and closing the stream closes this channel.
+     * 
+     * @return the output stream.
+     */
+    OutputStream newOutputStream() {
+        OutputStream out = Channels.newOutputStream(this);
+        
+        return new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+            }
+            
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+            }
+            
+            @Override
+            public void flush() throws IOException {
+                VirtualFileChannel.this.flush();
+            }
+            
+            @Override
+            public void close() throws IOException {
+                out.close();
+            }
+        };
+    }
+    
+    @Override
+    public synchronized SeekableByteChannel truncate(long size)
+    throws ClosedChannelException {
+        checkOpen();
+        
+        if (size < 0L) {
+            throw new IllegalArgumentException(
+                    "The size (" + size + ") is negative.");
+        }
+        
+        flushWriteBuffer();
+        
+        if (size < file.getNodeSize()) {
+            file.truncate(size);
+        }
+        
+        position = Math.min(position, size);
+        return this;
+    }
+    
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+    
+    @Override
+    public synchronized void close() {
+        if (!open) {
+            return;
+        }
+        
+        try {
+            flushWriteBuffer();
+        } finally {
+            open = false;
+        }
+    }
+    
+    /**
+     * Returns the size of the file including the buffered writes.
+     * 
+     * @return the size of the file as seen through this channel.
+     */
+    private long getSize() {
+        long size = file.getNodeSize();
+        
+        if (writeBufferLength > 0) {
+            size = Math.max(size, writeBufferPosition + writeBufferLength);
+        }
+        
+        return size;
+    }
+    
+    /**
+     * Writes the whole write buffer to the file.
+     */
+    private void flushWriteBuffer() {
+        if (writeBufferLength > 0) {
+            if (append) {
+                writeBufferPosition = file.getNodeSize();
+            }
+            
+            writeBuffer(writeBufferLength);
+        }
+    }
+    
+    /**
+     * Writes the write buffer to the file up to its last block boundary and
+     * keeps the rest buffered, so that the following writes start at a block
+     * boundary.
+     */
+    private void writeWholeBlocks() {
+        if (append) {
+            writeBufferPosition = file.getNodeSize();
+        }
+        
+        long end = writeBufferPosition + writeBufferLength;
+        int length = (int)(end - end % blockSize - writeBufferPosition);
+        writeBuffer(length > 0 ? length : writeBufferLength);
+    }
+    
+    /**
+     * Writes the given number of bytes from the beginning of the write 
+     * buffer to the file and moves the rest to the beginning.
+     * 
+     * @param length the number of bytes to write.
+     */
+    private void writeBuffer(int length) {
+        file.writeContent(writeBufferPosition, 
+                          ByteBuffer.wrap(writeBuffer, 0, length));
+        System.arraycopy(writeBuffer, length, 
+                         writeBuffer, 0, 
+                         writeBufferLength - length);
+        writeBufferLength -= length;
+        writeBufferPosition += length;
+    }
+    
+    private void checkOpen() throws ClosedChannelException {
+        if (!open) {
+            throw new ClosedChannelException();
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package net.coderodde.vfs;
+
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * This class compresses and decompresses the chunks of the compressed
+ * regular files. A chunk is {@link #CHUNK_SIZE} bytes of file content, or a
+ * single block on images with larger blocks, and is compressed on its own,
+ * so that any chunk can be decompressed without touching the others. The
+ * codec is raw deflate at its fastest level, which is part of the JDK and
+ * still compresses text several times. Each thread reuses its own deflater
+ * and inflater.
+ * 
+ * @author Rodion "rodde" Efremov
+ * @version 1.6 (Aug 18, 2017)
+ */
+final class VirtualFileChunkCodec {
+
+    /**
+     * The number of content bytes in a chunk on images whose blocks are not
+     * larger.
+     */
+    static final int CHUNK_SIZE = 64 * 1024;
+    
+    /**
+     * The deflater of each thread.
+     */
+    private static final ThreadLocal<Deflater> DEFLATER =
+            ThreadLocal.withInitial(
+                    () -> new Deflater(Deflater.BEST_SPEED, true));
+    
+    /**
+     * The inflater of each thread.
+     */
+    private static final ThreadLocal<Inflater> INFLATER =
+            ThreadLocal.withInitial(() -> new Inflater(true));
+    
+    private VirtualFileChunkCodec() {}
+    
+    /**
+     * Returns the number of blocks in a chunk.
+     * 
+     * @param blockSize the number of bytes in a block.
+     * @return the number of blocks in a chunk.
+     */
+    static int getChunkBlocks(int blockSize) {
+        return Math.max(1, CHUNK_SIZE / blockSize);
+    }
+    
+    /**
+     * Compresses the given bytes into the given array.
+     * 
+     * @param data   the array holding the bytes.
+     * @param length the number of bytes to compress.
+     * @param target the array receiving the compressed bytes.
+     * @return the number of compressed bytes, or -1 if they do not fit in
+     *         {@code target}.
+     */
+    static int compress(byte[] data, int length, byte[] target) {
+        Deflater deflater = DEFLATER.get();
+        deflater.reset();
+        deflater.setInput(data, 0, length);
+        deflater.finish();
+        int compressedLength = 0;
+        
+        while (!deflater.finished()) {
+            if (compressedLength == target.length) {
+                return -1;
+            }
+            
+            compressedLength += deflater.deflate(target,
+                                                 compressedLength,
+                                                 target.length -
+                                                 compressedLength);
+        }
+        
+        return compressedLength;
+    }
+    
+    /**
+     * Decompresses the given bytes into the given array.
+     * 
+     * @param data   the array holding the compressed bytes, possibly
+     *               followed by padding.
+     * @param length the number of bytes in {@code data}.
+     * @param target the array receiving the content of the chunk.
+     */
+    static void decompress(byte[] data, int length, byte[] target) {
+        Inflater inflater = INFLATER.get();
+        inflater.reset();
+        inflater.setInput(data, 0, length);
+        
+        try {
+            int done = 0;
+            
+            while (!inflater.finished() && done < target.length) {
+                int inflated = inflater.inflate(target,
+                                                done,
+                                                target.length - done);
+                
+                if (inflated == 0 && inflater.needsInput()) {
+                    throw new IllegalStateException(
+                            "A compressed chunk is truncated.");
+                }
+                
+                done += inflated;
+            }
+        } catch (DataFormatException ex) {
+            throw new IllegalStateException(
+                    "A compressed chunk is corrupted.", ex);
+        }
+    }
+}
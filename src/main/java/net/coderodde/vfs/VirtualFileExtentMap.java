@@ -0,0 +1,655 @@
+package net.coderodde.vfs;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * This class maps the blocks of a regular file to the blocks of the image.
+ * The data of a file is described as a sequence of extents, each a run of
+ * consecutive image blocks given by its first block and its length. A file
+ * written sequentially into free space consists of a few extents regardless
+ * of its size, so the map of a large file takes a few bytes instead of an
+ * entry per block.
+ * <p>
+ * In memory the extents are kept in primitive arrays together with the index
+ * of the first file block of each extent, so that mapping a file block is a
+ * binary search. On the image the first {@link #INLINE_EXTENTS} extents are
+ * stored in the data area of the inode of the file: the number of extents,
+ * the index of the first indirect extent block (or -1) and the extents as
+ * pairs of integers. The rest of the extents of a fragmented file are 
+ * stored in a chain of indirect extent blocks, each holding the index of the
+ * next block of the chain, the number of extents in the block and the 
+ * extents.
+ * <p>
+ * A chain shared with a snapshot is never changed in place: the first store
+ * after the sharing writes the whole map into a new chain.
+ * <p>
+ * An extent starting at {@link #HOLE} is a hole: a run of file blocks with
+ * no image blocks. Only the compressed files have holes, where each chunk
+ * keeps its compressed bytes in the first blocks of its run of file blocks
+ * and leaves the rest of the run a hole.
+ * <p>
+ * The extent map is not thread-safe; it is guarded by the lock of the file
+ * owning it.
+ * 
+ * @author Rodion "rodde" Efremov
+ * @version 1.6 (Aug 17, 2017)
+ */
+final class VirtualFileExtentMap {
+
+    /**
+     * The maximum number of extents stored in the inode of the file. The 
+     * inline part of the map fills the 88-byte data area of the inode.
+     */
+    static final int INLINE_EXTENTS = 10;
+    
+    /**
+     * The image block of the file blocks in a hole.
+     */
+    static final int HOLE = -1;
+    
+    /**
+     * The initial capacity of the extent arrays.
+     */
+    private static final int INITIAL_CAPACITY = 4;
+    
+    /**
+     * The first image block of each extent.
+     */
+    private int[] extentStarts = new int[INITIAL_CAPACITY];
+    
+    /**
+     * The number of blocks in each extent.
+     */
+    private int[] extentLengths = new int[INITIAL_CAPACITY];
+    
+    /**
+     * The index of the first file block of each extent.
+     */
+    private int[] extentFileBlocks = new int[INITIAL_CAPACITY];
+    
+    /**
+     * The number of extents.
+     */
+    private int extentCount;
+    
+    /**
+     * The number of blocks in the file.
+     */
+    private int blockCount;
+    
+    /**
+     * The number of extents recorded on the image. The extents past
+     * {@link #INLINE_EXTENTS} are not in memory until {@link #load} is called.
+     */
+    private int storedExtentCount;
+    
+    /**
+     * The indices of the indirect extent blocks in chain order. Read by
+     * {@link #load}.
+     */
+    private int[] indirectChain = new int[0];
+    
+    /**
+     * The index of the first indirect extent block, or -1.
+     */
+    private int firstIndirectBlockIndex = -1;
+    
+    /**
+     * Whether all the extents are in memory.
+     */
+    private boolean loaded = true;
+    
+    /**
+     * The index of the first extent changed since the last
+     * {@link #store}.
+     */
+    private int firstChangedExtent = Integer.MAX_VALUE;
+    
+    /**
+     * Reads the inline part of an extent map as written by
+     * {@link #encodeInline(ByteBuffer)}.
+     * 
+     * @param buffer the buffer positioned at the extent map.
+     * @return the extent map. If the file has more than
+     *         {@link #INLINE_EXTENTS} extents, it must be loaded before use.
+     */
+    static VirtualFileExtentMap decodeInline(ByteBuffer buffer) {
+        VirtualFileExtentMap extentMap = new VirtualFileExtentMap();
+        extentMap.storedExtentCount = buffer.getInt();
+        extentMap.firstIndirectBlockIndex = buffer.getInt();
+        
+        int inlineExtents = Math.min(INLINE_EXTENTS,
+                                     extentMap.storedExtentCount);
+        
+        for (int i = 0; i < inlineExtents; ++i) {
+            int start = buffer.getInt();
+            extentMap.add(start, buffer.getInt());
+        }
+        
+        extentMap.loaded = extentMap.storedExtentCount <= INLINE_EXTENTS;
+        extentMap.firstChangedExtent = Integer.MAX_VALUE;
+        return extentMap;
+    }
+    
+    /**
+     * Writes the inline part of this extent map: the number of extents, the
+     * first indirect extent block and at most {@link #INLINE_EXTENTS}
+     * extents.
+     * 
+     * @param buffer the buffer to write to.
+     */
+    void encodeInline(ByteBuffer buffer) {
+        int count = loaded ? extentCount : storedExtentCount;
+        buffer.putInt(count);
+        buffer.putInt(firstIndirectBlockIndex);
+        
+        for (int i = 0; i < Math.min(INLINE_EXTENTS, count); ++i) {
+            buffer.putInt(extentStarts[i]);
+            buffer.putInt(extentLengths[i]);
+        }
+    }
+    
+    /**
+     * Returns whether all the extents are in memory.
+     * 
+     * @return {@code true} if this map is loaded.
+     */
+    boolean isLoaded() {
+        return loaded;
+    }
+    
+    /**
+     * Reads the indirect extent blocks unless they are loaded already.
+     * 
+     * @param fileSystem the file system storing the blocks.
+     */
+    void load(VirtualFilesystem fileSystem) {
+        if (loaded) {
+            return;
+        }
+        
+        int chainLength = getChainLength(storedExtentCount,
+                                         fileSystem.getBlockSize());
+        indirectChain = new int[chainLength];
+        int blockIndex = firstIndirectBlockIndex;
+        
+        for (int i = 0; i < chainLength; ++i) {
+            ByteBuffer buffer = fileSystem.readMetadataBlock(blockIndex);
+            indirectChain[i] = blockIndex;
+            blockIndex = buffer.getInt();
+            int extents = buffer.getInt();
+            
+            for (int j = 0; j < extents; ++j) {
+                int start = buffer.getInt();
+                add(start, buffer.getInt());
+            }
+        }
+        
+        loaded = true;
+        firstChangedExtent = Integer.MAX_VALUE;
+    }
+    
+    /**
+     * Rewrites the indirect extent blocks holding the extents changed since
+     * the last call, growing or shrinking the chain as needed. The inline
+     * extents are written with the inode of the file, which the caller
+     * writes afterwards.
+     * 
+     * @param fileSystem the file system storing the blocks.
+     */
+    void store(VirtualFilesystem fileSystem) {
+        if (firstChangedExtent == Integer.MAX_VALUE) {
+            return;
+        }
+        
+        int[] sharedChain = null;
+        
+        if (firstIndirectBlockIndex != -1
+                && fileSystem.isBlockShared(firstIndirectBlockIndex)) {
+            // The chain belongs to a snapshot as well: leave it as it is and
+            // write the whole map into a new chain.
+            sharedChain = indirectChain;
+            indirectChain = new int[0];
+            firstChangedExtent = 0;
+        }
+        
+        int oldChainLength = indirectChain.length;
+        int blockSize = fileSystem.getBlockSize();
+        int indirectExtents = getIndirectExtents(blockSize);
+        int newChainLength = getChainLength(extentCount, blockSize);
+        
+        for (int i = newChainLength; i < oldChainLength; ++i) {
+            fileSystem.freeBlocks(
+                    new VirtualFileSystemBlockIndexRange(indirectChain[i],
+                                                         indirectChain[i]));
+        }
+        
+        indirectChain = Arrays.copyOf(indirectChain, newChainLength);
+        
+        for (int i = oldChainLength; i < newChainLength; ++i) {
+            indirectChain[i] = fileSystem.allocateMetadataBlock();
+        }
+        
+        // A chain block whose successor changed must be rewritten as well:
+        int firstChainBlock =
+                Math.max(0,
+                         Math.min((Math.max(firstChangedExtent,
+                                            INLINE_EXTENTS) -
+                                   INLINE_EXTENTS) / indirectExtents,
+                                  Math.min(oldChainLength,
+                                           newChainLength) - 1));
+        
+        for (int i = firstChainBlock; i < newChainLength; ++i) {
+            ByteBuffer buffer =
+                    ByteBuffer.allocate(blockSize)
+                              .order(ByteOrder.LITTLE_ENDIAN);
+            
+            int firstExtent = INLINE_EXTENTS + i * indirectExtents;
+            int extents = Math.min(indirectExtents,
+                                   extentCount - firstExtent);
+            
+            buffer.putInt(i + 1 < newChainLength ? indirectChain[i + 1] : -1);
+            buffer.putInt(extents);
+            
+            for (int j = firstExtent; j < firstExtent + extents; ++j) {
+                buffer.putInt(extentStarts[j]);
+                buffer.putInt(extentLengths[j]);
+            }
+            
+            fileSystem.writeMetadataBlock(indirectChain[i], buffer.array());
+        }
+        
+        firstIndirectBlockIndex = newChainLength == 0 ? -1 : indirectChain[0];
+        storedExtentCount = extentCount;
+        firstChangedExtent = Integer.MAX_VALUE;
+        
+        if (sharedChain != null
+                && !fileSystem.dropSharedReference(sharedChain[0])) {
+            // The snapshots let go of the old chain meanwhile.
+            freeChain(fileSystem, sharedChain);
+        }
+    }
+    
+    /**
+     * Gives up this map's hold on its chain of indirect extent blocks: a chain
+     * shared with a snapshot loses one reference, any other chain is freed.
+     * The map must be loaded.
+     * 
+     * @param fileSystem the file system storing the blocks.
+     */
+    void releaseIndirectChain(VirtualFilesystem fileSystem) {
+        if (firstIndirectBlockIndex != -1
+                && !fileSystem.dropSharedReference(firstIndirectBlockIndex)) {
+            freeChain(fileSystem, indirectChain);
+        }
+        
+        indirectChain = new int[0];
+        firstIndirectBlockIndex = -1;
+    }
+    
+    /**
+     * Returns the index of the first indirect extent block.
+     * 
+     * @return the index of the first indirect block, or -1 if the map fits in
+     *         the inode.
+     */
+    int getFirstIndirectBlockIndex() {
+        return firstIndirectBlockIndex;
+    }
+    
+    /**
+     * Returns the extents in file order, leaving out the holes. The map must
+     * be loaded.
+     * 
+     * @return the image blocks of the file.
+     */
+    List<VirtualFileSystemBlockIndexRange> getExtents() {
+        List<VirtualFileSystemBlockIndexRange> extents =
+                new ArrayList<>(extentCount);
+        
+        for (int i = 0; i < extentCount; ++i) {
+            if (extentStarts[i] == HOLE) {
+                continue;
+            }
+            
+            extents.add(new VirtualFileSystemBlockIndexRange(
+                    extentStarts[i],
+                    extentStarts[i] + extentLengths[i] - 1));
+        }
+        
+        return extents;
+    }
+    
+    /**
+     * Returns the number of blocks in the file.
+     * 
+     * @return the number of file blocks.
+     */
+    int getBlockCount() {
+        return blockCount;
+    }
+    
+    /**
+     * Returns the number of extents.
+     * 
+     * @return the number of extents.
+     */
+    int getExtentCount() {
+        return extentCount;
+    }
+    
+    /**
+     * Returns the image block holding the given file block.
+     * 
+     * @param fileBlock the index of the block within the file.
+     * @return the index of the image block, or {@link #HOLE} if the file 
+     *         block lies in a hole.
+     */
+    int getBlockIndex(int fileBlock) {
+        int extent = findExtent(fileBlock);
+        return offset(extentStarts[extent], 
+                      fileBlock - extentFileBlocks[extent]);
+    }
+    
+    /**
+     * Returns the number of file blocks starting from the given one that are
+     * stored in consecutive image blocks, or that lie in the same hole.
+     * 
+     * @param fileBlock the index of the block within the file.
+     * @return the length of the run starting at {@code fileBlock}.
+     */
+    int getRunLength(int fileBlock) {
+        int extent = findExtent(fileBlock);
+        return extentLengths[extent] - (fileBlock - extentFileBlocks[extent]);
+    }
+    
+    /**
+     * Returns the image block following the last block of the file, which is
+     * where the file is best extended.
+     * 
+     * @return the goal block for the next allocation, or -1 if the file has
+     *         no blocks.
+     */
+    int getGoalBlockIndex() {
+        for (int i = extentCount - 1; i >= 0; --i) {
+            if (extentStarts[i] != HOLE) {
+                return extentStarts[i] + extentLengths[i];
+            }
+        }
+        
+        return -1;
+    }
+    
+    /**
+     * Appends the given image blocks to the end of the file. A range
+     * continuing the last extent extends it instead of adding an extent.
+     * 
+     * @param range the image blocks to append.
+     */
+    void append(VirtualFileSystemBlockIndexRange range) {
+        append(range.getMinimumBlockRangeIndex(), range.getLength());
+    }
+    
+    /**
+     * Appends a hole of the given number of file blocks to the end of the 
+     * file.
+     * 
+     * @param length the number of file blocks in the hole.
+     */
+    void appendHole(int length) {
+        append(HOLE, length);
+    }
+    
+    /**
+     * Removes the file blocks from {@code newBlockCount} on.
+     * 
+     * @param newBlockCount the new number of blocks in the file.
+     * @return the image blocks no longer used by the file.
+     */
+    List<VirtualFileSystemBlockIndexRange> truncate(int newBlockCount) {
+        List<VirtualFileSystemBlockIndexRange> freedRanges = new ArrayList<>();
+        
+        while (blockCount > newBlockCount) {
+            int last = extentCount - 1;
+            int removed = Math.min(extentLengths[last],
+                                   blockCount - newBlockCount);
+            int end = extentStarts[last] + extentLengths[last];
+            
+            if (extentStarts[last] != HOLE) {
+                freedRanges.add(
+                        new VirtualFileSystemBlockIndexRange(end - removed,
+                                                             end - 1));
+            }
+            
+            extentLengths[last] -= removed;
+            blockCount -= removed;
+            
+            if (extentLengths[last] == 0) {
+                --extentCount;
+                markChanged(extentCount);
+            } else {
+                markChanged(last);
+            }
+        }
+        
+        return freedRanges;
+    }
+    
+    /**
+     * Maps the file blocks starting from {@code fileBlock} to the given image
+     * blocks instead of the blocks they are mapped to now. The map must be
+     * loaded.
+     * 
+     * @param fileBlock the index of the first remapped file block.
+     * @param range     the new image blocks.
+     */
+    void remap(int fileBlock, VirtualFileSystemBlockIndexRange range) {
+        replace(fileBlock, 
+                range.getLength(), 
+                Collections.singletonList(range));
+    }
+    
+    /**
+     * Maps {@code length} file blocks starting from {@code fileBlock} to the
+     * given image blocks followed by a hole covering the rest of them. The 
+     * map must be loaded.
+     * 
+     * @param fileBlock the index of the first remapped file block.
+     * @param length    the number of remapped file blocks.
+     * @param ranges    the new image blocks, at most {@code length} in 
+     *                  total.
+     * @return the image blocks the file blocks were mapped to before.
+     */
+    List<VirtualFileSystemBlockIndexRange> 
+        replace(int fileBlock, 
+                int length, 
+                List<VirtualFileSystemBlockIndexRange> ranges) {
+        int end = fileBlock + length;
+        int first = findExtent(fileBlock);
+        int last = findExtent(end - 1);
+        int oldExtentCount = extentCount;
+        int[] oldStarts = extentStarts.clone();
+        int[] oldLengths = extentLengths.clone();
+        int[] oldFileBlocks = extentFileBlocks.clone();
+        List<VirtualFileSystemBlockIndexRange> replacedRanges = 
+                new ArrayList<>();
+        
+        for (int i = first; i <= last; ++i) {
+            if (oldStarts[i] == HOLE) {
+                continue;
+            }
+            
+            int runStart = Math.max(fileBlock, oldFileBlocks[i]);
+            int runEnd = Math.min(end, oldFileBlocks[i] + oldLengths[i]);
+            int start = oldStarts[i] + runStart - oldFileBlocks[i];
+            replacedRanges.add(
+                    new VirtualFileSystemBlockIndexRange(
+                            start, 
+                            start + runEnd - runStart - 1));
+        }
+        
+        extentCount = 0;
+        blockCount = 0;
+        
+        for (int i = 0; i < first; ++i) {
+            add(oldStarts[i], oldLengths[i]);
+        }
+        
+        if (oldFileBlocks[first] < fileBlock) {
+            add(oldStarts[first], fileBlock - oldFileBlocks[first]);
+        }
+        
+        int mappedLength = 0;
+        
+        for (VirtualFileSystemBlockIndexRange range : ranges) {
+            addMerged(range.getMinimumBlockRangeIndex(), range.getLength());
+            mappedLength += range.getLength();
+        }
+        
+        if (mappedLength < length) {
+            addMerged(HOLE, length - mappedLength);
+        }
+        
+        int lastEnd = oldFileBlocks[last] + oldLengths[last];
+        
+        if (end < lastEnd) {
+            addMerged(offset(oldStarts[last], end - oldFileBlocks[last]), 
+                      lastEnd - end);
+        }
+        
+        for (int i = last + 1; i < oldExtentCount; ++i) {
+            addMerged(oldStarts[i], oldLengths[i]);
+        }
+        
+        markChanged(Math.max(0, first - 1));
+        return replacedRanges;
+    }
+    
+    /**
+     * Appends an extent, extending the last one if the extent continues it.
+     */
+    private void append(int start, int length) {
+        if (continuesLastExtent(start)) {
+            extentLengths[extentCount - 1] += length;
+            blockCount += length;
+            markChanged(extentCount - 1);
+        } else {
+            markChanged(extentCount);
+            add(start, length);
+        }
+    }
+    
+    /**
+     * Adds an extent, extending the last one if the extent continues it.
+     */
+    private void addMerged(int start, int length) {
+        if (continuesLastExtent(start)) {
+            extentLengths[extentCount - 1] += length;
+            blockCount += length;
+        } else {
+            add(start, length);
+        }
+    }
+    
+    /**
+     * Returns whether an extent starting at the given image block continues
+     * the last extent: both are holes, or the image blocks are consecutive.
+     */
+    private boolean continuesLastExtent(int start) {
+        if (extentCount == 0) {
+            return false;
+        }
+        
+        int lastStart = extentStarts[extentCount - 1];
+        
+        if (start == HOLE || lastStart == HOLE) {
+            return start == lastStart;
+        }
+        
+        return lastStart + extentLengths[extentCount - 1] == start;
+    }
+    
+    /**
+     * Returns the image block {@code delta} blocks past the given one, or 
+     * {@link #HOLE} within a hole.
+     */
+    private static int offset(int start, int delta) {
+        return start == HOLE ? HOLE : start + delta;
+    }
+    
+    /**
+     * Adds an extent without merging it with the last one.
+     */
+    private void add(int start, int length) {
+        if (extentCount == extentStarts.length) {
+            int capacity = 2 * extentCount;
+            extentStarts = Arrays.copyOf(extentStarts, capacity);
+            extentLengths = Arrays.copyOf(extentLengths, capacity);
+            extentFileBlocks = Arrays.copyOf(extentFileBlocks, capacity);
+        }
+        
+        extentStarts[extentCount] = start;
+        extentLengths[extentCount] = length;
+        extentFileBlocks[extentCount] = blockCount;
+        ++extentCount;
+        blockCount += length;
+    }
+    
+    /**
+     * Finds the extent holding the given file block by binary search.
+     */
+    private int findExtent(int fileBlock) {
+        if (fileBlock < 0 || fileBlock >= blockCount) {
+            throw new IndexOutOfBoundsException(
+                    "The file block " + fileBlock + " is out of range " +
+                    "[0, " + blockCount + ").");
+        }
+        
+        int low = 0;
+        int high = extentCount - 1;
+        
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            
+            if (extentFileBlocks[middle] <= fileBlock) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        
+        return low;
+    }
+    
+    private static void freeChain(VirtualFilesystem fileSystem, int[] chain) {
+        for (int blockIndex : chain) {
+            fileSystem.freeBlocks(
+                    new VirtualFileSystemBlockIndexRange(blockIndex,
+                                                         blockIndex));
+        }
+    }
+    
+    private void markChanged(int extent) {
+        firstChangedExtent = Math.min(firstChangedExtent, extent);
+    }
+    
+    /**
+     * Returns the number of extents in an indirect extent block. The first 
+     * two integers of the block hold the index of the next block and the 
+     * number of extents.
+     */
+    private static int getIndirectExtents(int blockSize) {
+        return blockSize / 8 - 1;
+    }
+    
+    private static int getChainLength(int extentCount, int blockSize) {
+        int indirectExtents = getIndirectExtents(blockSize);
+        return (Math.max(0, extentCount - INLINE_EXTENTS) +
+                indirectExtents - 1) / indirectExtents;
+    }
+}
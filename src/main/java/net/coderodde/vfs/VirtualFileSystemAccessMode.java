@@ -0,0 +1,21 @@
+package net.coderodde.vfs;
+
+/**
+ * This enumeration lists the ways a native image may be accessed.
+ * 
+ * @author Rodion "rodde" Efremov
+ * @version 1.6 (Aug 7, 2017)
+ */
+public enum VirtualFileSystemAccessMode {
+
+    /**
+     * Blocks are read and written via positional file channel I/O.
+     */
+    CHANNEL,
+    
+    /**
+     * The image is mapped into memory, and blocks are served as slices of the
+     * mapping.
+     */
+    MEMORY_MAPPED
+}
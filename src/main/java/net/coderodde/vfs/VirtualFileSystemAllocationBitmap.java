@@ -0,0 +1,289 @@
+package net.coderodde.vfs;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.BitSet;
+import java.util.Map;
+
+/**
+ * This class implements the on-image allocation bitmap. Bit {@code i} is set
+ * if and only if the block {@code i} is allocated. The bitmap is loaded with a
+ * single sequential read at mount time; afterwards, every allocation and
+ * deallocation updates the bits in memory and remembers which bitmap blocks
+ * became dirty, so that only those blocks are written back on flush.
+ * 
+ * @author Rodion "rodde" Efremov
+ * @version 1.6 (Aug 10, 2017)
+ */
+final class VirtualFileSystemAllocationBitmap {
+
+    /**
+     * The number of bytes in a bitmap block.
+     */
+    private final int blockSize;
+    
+    /**
+     * The number of bits in a bitmap block.
+     */
+    private final int bitsPerBlock;
+    
+    /**
+     * The number of words in a bitmap block.
+     */
+    private final int wordsPerBlock;
+    
+    /**
+     * The bits of the bitmap.
+     */
+    private final long[] words;
+    
+    /**
+     * The number of blocks tracked by this bitmap.
+     */
+    private final int totalBlocks;
+    
+    /**
+     * The index of the first image block holding the bitmap.
+     */
+    private final int firstBlockIndex;
+    
+    /**
+     * Holds the indices (relative to {@code firstBlockIndex}) of the bitmap
+     * blocks modified since the last flush.
+     */
+    private final BitSet dirtyBlocks = new BitSet();
+    
+    private VirtualFileSystemAllocationBitmap(int blockSize,
+                                              int totalBlocks,
+                                              int firstBlockIndex,
+                                              long[] words) {
+        this.blockSize       = blockSize;
+        this.bitsPerBlock    = blockSize * Byte.SIZE;
+        this.wordsPerBlock   = blockSize / Long.BYTES;
+        this.totalBlocks     = totalBlocks;
+        this.firstBlockIndex = firstBlockIndex;
+        this.words           = words;
+    }
+    
+    /**
+     * Returns the number of blocks needed to store the bitmap of an image
+     * with the given number of blocks.
+     * 
+     * @param totalBlocks the number of blocks in the image.
+     * @param blockSize   the number of bytes in a block.
+     * @return the number of bitmap blocks.
+     */
+    static int getBlockCount(int totalBlocks, int blockSize) {
+        long bitsPerBlock = (long) blockSize * Byte.SIZE;
+        return (int)((totalBlocks + bitsPerBlock - 1) / bitsPerBlock);
+    }
+    
+    /**
+     * Creates a bitmap for a fresh image in which all the blocks are free.
+     * The bits past {@code totalBlocks} are set, so that they never appear
+     * free. The whole bitmap is dirty. The same bitmap format tracks the free
+     * inodes, in which case the inodes take the place of the blocks.
+     * 
+     * @param blockSize       the number of bytes in a block.
+     * @param totalBlocks     the number of tracked blocks.
+     * @param firstBlockIndex the first image block holding the bitmap.
+     * @param blockCount      the number of image blocks holding the bitmap.
+     * @return the bitmap.
+     */
+    static VirtualFileSystemAllocationBitmap create(int blockSize,
+                                                    int totalBlocks,
+                                                    int firstBlockIndex,
+                                                    int blockCount) {
+        VirtualFileSystemAllocationBitmap bitmap =
+                new VirtualFileSystemAllocationBitmap(
+                        blockSize,
+                        totalBlocks,
+                        firstBlockIndex,
+                        new long[blockCount * (blockSize / Long.BYTES)]);
+        
+        bitmap.setRange(bitmap.totalBlocks,
+                        (int)((long) bitmap.words.length * Long.SIZE - 1),
+                        true);
+        
+        bitmap.dirtyBlocks.set(0, blockCount);
+        return bitmap;
+    }
+    
+    /**
+     * Loads a bitmap with a single sequential read.
+     * 
+     * @param blockDevice     the block device of the image.
+     * @param totalBlocks     the number of tracked blocks.
+     * @param firstBlockIndex the first image block holding the bitmap.
+     * @param blockCount      the number of image blocks holding the bitmap.
+     * @return the bitmap.
+     */
+    static VirtualFileSystemAllocationBitmap
+        load(VirtualBlockDevice blockDevice,
+             int totalBlocks,
+             int firstBlockIndex,
+             int blockCount) {
+        int blockSize = blockDevice.getBlockSize();
+        ByteBuffer byteBuffer = ByteBuffer.allocate(blockCount * blockSize);
+        
+        blockDevice.readBlock(firstBlockIndex, byteBuffer);
+        
+        long[] words = new long[blockCount * (blockSize / Long.BYTES)];
+        byteBuffer.flip();
+        byteBuffer.order(ByteOrder.LITTLE_ENDIAN).asLongBuffer().get(words);
+        
+        return new VirtualFileSystemAllocationBitmap(blockSize,
+                                                     totalBlocks,
+                                                     firstBlockIndex,
+                                                     words);
+    }
+    
+    /**
+     * Marks the given range as allocated.
+     * 
+     * @param range the allocated range.
+     */
+    void markAllocated(VirtualFileSystemBlockIndexRange range) {
+        setRange(range.getMinimumBlockRangeIndex(),
+                 range.getMaximumBlockRangeIndex(),
+                 true);
+    }
+    
+    /**
+     * Marks the given range as free.
+     * 
+     * @param range the freed range.
+     */
+    void markFree(VirtualFileSystemBlockIndexRange range) {
+        setRange(range.getMinimumBlockRangeIndex(),
+                 range.getMaximumBlockRangeIndex(),
+                 false);
+    }
+    
+    /**
+     * Checks whether the given block is allocated.
+     * 
+     * @param blockIndex the index of the block.
+     * @return {@code true} if the block is allocated.
+     */
+    boolean isAllocated(int blockIndex) {
+        return (words[blockIndex >>> 6] & (1L << blockIndex)) != 0L;
+    }
+    
+    /**
+     * Feeds every maximal run of free blocks to the given allocator. Words
+     * with all bits set are skipped as a whole, so the running time is
+     * proportional to the size of the bitmap.
+     * 
+     * @param allocator the allocator to populate.
+     */
+    void populate(VirtualFileSystemBlockAllocator allocator) {
+        int runStart = -1;
+        
+        for (int wordIndex = 0; wordIndex < words.length; ++wordIndex) {
+            long word = words[wordIndex];
+            
+            if (word == -1L && runStart < 0) {
+                continue;
+            }
+            
+            if (word == 0L && runStart >= 0) {
+                continue;
+            }
+            
+            for (int bit = 0; bit < Long.SIZE; ++bit) {
+                int blockIndex = wordIndex * Long.SIZE + bit;
+                boolean allocated = (word & (1L << bit)) != 0L;
+                
+                if (!allocated && runStart < 0) {
+                    runStart = blockIndex;
+                } else if (allocated && runStart >= 0) {
+                    allocator.addFreeRange(
+                            new VirtualFileSystemBlockIndexRange(
+                                    runStart,
+                                    blockIndex - 1));
+                    runStart = -1;
+                }
+            }
+        }
+        
+        if (runStart >= 0) {
+            allocator.addFreeRange(
+                    new VirtualFileSystemBlockIndexRange(runStart,
+                                                         totalBlocks - 1));
+        }
+    }
+    
+    /**
+     * Writes the dirty bitmap blocks to the image. Runs of consecutive dirty
+     * blocks are written with a single vectored write.
+     * 
+     * @param blockDevice the block device of the image.
+     */
+    void flush(VirtualBlockDevice blockDevice) {
+        int runStart = dirtyBlocks.nextSetBit(0);
+        
+        while (runStart >= 0) {
+            int runEnd = dirtyBlocks.nextClearBit(runStart);
+            ByteBuffer[] buffers = new ByteBuffer[runEnd - runStart];
+            
+            for (int i = runStart; i < runEnd; ++i) {
+                buffers[i - runStart] = ByteBuffer.wrap(encodeBlock(i));
+            }
+            
+            blockDevice.writeBlocks(firstBlockIndex + runStart, buffers);
+            runStart = dirtyBlocks.nextSetBit(runEnd);
+        }
+        
+        dirtyBlocks.clear();
+    }
+    
+    /**
+     * Encodes the dirty bitmap blocks into the given map, keyed by their image
+     * block indices, and clears the dirty set. Used for writing the bitmap 
+     * through the journal.
+     * 
+     * @param blockMap the map receiving the encoded blocks.
+     */
+    void collectDirtyBlocks(Map<Integer, byte[]> blockMap) {
+        for (int i = dirtyBlocks.nextSetBit(0); 
+                i >= 0; 
+                i = dirtyBlocks.nextSetBit(i + 1)) {
+            blockMap.put(firstBlockIndex + i, encodeBlock(i));
+        }
+        
+        dirtyBlocks.clear();
+    }
+    
+    /**
+     * Encodes the bitmap block with the given index relative to 
+     * {@code firstBlockIndex}.
+     * 
+     * @param bitmapBlockIndex the relative index of the bitmap block.
+     * @return the block bytes.
+     */
+    private byte[] encodeBlock(int bitmapBlockIndex) {
+        ByteBuffer buffer = ByteBuffer.allocate(blockSize)
+                                      .order(ByteOrder.LITTLE_ENDIAN);
+        
+        buffer.asLongBuffer().put(words,
+                                  bitmapBlockIndex * wordsPerBlock,
+                                  wordsPerBlock);
+        return buffer.array();
+    }
+    
+    private void setRange(int fromIndex, int toIndex, boolean allocated) {
+        for (long i = fromIndex; i <= toIndex; ++i) {
+            if (allocated) {
+                words[(int)(i >>> 6)] |= 1L << i;
+            } else {
+                words[(int)(i >>> 6)] &= ~(1L << i);
+            }
+        }
+        
+        if (fromIndex <= toIndex) {
+            dirtyBlocks.set(fromIndex / bitsPerBlock,
+                            toIndex / bitsPerBlock + 1);
+        }
+    }
+}
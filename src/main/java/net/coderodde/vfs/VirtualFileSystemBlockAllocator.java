@@ -0,0 +1,341 @@
+package net.coderodde.vfs;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * This class implements a free space allocator over the blocks of a virtual
+ * file system. Free space is kept as maximal extents of consecutive free
+ * blocks, indexed twice: by the first block index, which allows finding the
+ * neighbours of an extent for coalescing, and by the length, which allows
+ * finding the best fitting extent. All the operations run in
+ * {@code O(log n)} time, where {@code n} is the number of free extents.
+ * <p>
+ * If the allocator is backed by an allocation bitmap, every allocation and
+ * deallocation is reflected in the bitmap.
+ * <p>
+ * The allocator is thread-safe. Its monitor also guards the allocation 
+ * bitmap, so the bitmap must be flushed while holding the monitor.
+ * 
+ * @author Rodion "rodde" Efremov
+ * @version 1.6 (Aug 9, 2017)
+ */
+final class VirtualFileSystemBlockAllocator {
+
+    /**
+     * Maps the first block index of each free extent to the extent.
+     */
+    private final TreeMap<Integer, VirtualFileSystemBlockIndexRange>
+            freeRangesByStart = new TreeMap<>();
+    
+    /**
+     * Holds a key {@code (length << 32) | start} for each free extent, so that
+     * the extents are ordered by length first and by position second.
+     */
+    private final TreeSet<Long> freeRangesByLength = new TreeSet<>();
+    
+    /**
+     * The total number of free blocks.
+     */
+    private long freeBlocks;
+    
+    /**
+     * The allocation bitmap kept in sync with this allocator, or {@code null}.
+     */
+    private final VirtualFileSystemAllocationBitmap allocationBitmap;
+    
+    /**
+     * Constructs an allocator with no free blocks that is not backed by an 
+     * allocation bitmap.
+     */
+    VirtualFileSystemBlockAllocator() {
+        this(null);
+    }
+    
+    /**
+     * Constructs an allocator with no free blocks that reflects all the
+     * allocations and deallocations in the given bitmap.
+     * 
+     * @param allocationBitmap the allocation bitmap.
+     */
+    VirtualFileSystemBlockAllocator(
+            VirtualFileSystemAllocationBitmap allocationBitmap) {
+        this.allocationBitmap = allocationBitmap;
+    }
+    
+    /**
+     * Builds an allocator from the free runs of the given allocation bitmap. 
+     * The running time is proportional to the size of the bitmap.
+     * 
+     * @param allocationBitmap the allocation bitmap.
+     * @return the allocator backed by the bitmap.
+     */
+    static VirtualFileSystemBlockAllocator 
+        fromBitmap(VirtualFileSystemAllocationBitmap allocationBitmap) {
+        VirtualFileSystemBlockAllocator allocator = 
+                new VirtualFileSystemBlockAllocator(allocationBitmap);
+        
+        allocationBitmap.populate(allocator);
+        return allocator;
+    }
+    
+    /**
+     * Allocates {@code blockCount} consecutive blocks from the smallest free
+     * extent that is large enough. Among the equally long extents the one
+     * with the smallest start index is chosen.
+     * 
+     * @param blockCount the number of blocks to allocate.
+     * @return the allocated range, or {@code null} if no free extent is large
+     *         enough.
+     */
+    synchronized VirtualFileSystemBlockIndexRange allocate(int blockCount) {
+        checkBlockCount(blockCount);
+        Long key = freeRangesByLength.ceiling((long) blockCount << 32);
+        
+        if (key == null) {
+            return null;
+        }
+        
+        VirtualFileSystemBlockIndexRange range =
+                freeRangesByStart.get((int) key.longValue());
+        
+        return take(range, blockCount);
+    }
+    
+    /**
+     * Allocates {@code blockCount} blocks in as few extents as possible. If a
+     * single free extent is large enough, the allocation is contiguous;
+     * otherwise the largest free extents are taken first.
+     * 
+     * @param blockCount the number of blocks to allocate.
+     * @return the list of allocated ranges in allocation order.
+     * @throws IllegalStateException if there are not enough free blocks.
+     */
+    List<VirtualFileSystemBlockIndexRange> allocateRuns(int blockCount) {
+        return allocateRuns(blockCount, -1);
+    }
+    
+    /**
+     * Allocates {@code blockCount} blocks in as few extents as possible, 
+     * starting at the goal block if it is free. Passing the block following 
+     * the last block of a file as the goal lets the file grow in place. The 
+     * blocks not available at the goal are allocated as by 
+     * {@link #allocateRuns(int)}.
+     * 
+     * @param blockCount     the number of blocks to allocate.
+     * @param goalBlockIndex the preferred first block, or -1 for none.
+     * @return the list of allocated ranges in allocation order.
+     * @throws IllegalStateException if there are not enough free blocks.
+     */
+    synchronized List<VirtualFileSystemBlockIndexRange> 
+        allocateRuns(int blockCount, int goalBlockIndex) {
+        checkBlockCount(blockCount);
+        
+        if (blockCount > freeBlocks) {
+            throw new IllegalStateException(
+                    "Cannot allocate " + blockCount + " block(s): only " +
+                    freeBlocks + " free block(s) left.");
+        }
+        
+        List<VirtualFileSystemBlockIndexRange> runs = new ArrayList<>();
+        VirtualFileSystemBlockIndexRange atGoal = 
+                goalBlockIndex < 0 ? null : 
+                                     allocateAt(goalBlockIndex, blockCount);
+        
+        if (atGoal != null) {
+            runs.add(atGoal);
+            blockCount -= atGoal.getLength();
+            
+            if (blockCount == 0) {
+                return runs;
+            }
+        }
+        
+        VirtualFileSystemBlockIndexRange contiguous = allocate(blockCount);
+        
+        if (contiguous != null) {
+            runs.add(contiguous);
+            return runs;
+        }
+        
+        while (blockCount > 0) {
+            long key = freeRangesByLength.last();
+            VirtualFileSystemBlockIndexRange range =
+                    freeRangesByStart.get((int) key);
+            
+            int runLength = Math.min(blockCount, range.getLength());
+            runs.add(take(range, runLength));
+            blockCount -= runLength;
+        }
+        
+        return runs;
+    }
+    
+    /**
+     * Allocates at most {@code maximumBlockCount} consecutive blocks starting
+     * exactly at the given block.
+     * 
+     * @param blockIndex        the first block to allocate.
+     * @param maximumBlockCount the maximum number of blocks to allocate.
+     * @return the allocated range, or {@code null} if the block 
+     *         {@code blockIndex} is not free.
+     */
+    synchronized VirtualFileSystemBlockIndexRange 
+        allocateAt(int blockIndex, int maximumBlockCount) {
+        checkBlockCount(maximumBlockCount);
+        Map.Entry<Integer, VirtualFileSystemBlockIndexRange> entry = 
+                freeRangesByStart.floorEntry(blockIndex);
+        
+        if (entry == null 
+                || entry.getValue().getMaximumBlockRangeIndex() 
+                < blockIndex) {
+            return null;
+        }
+        
+        VirtualFileSystemBlockIndexRange range = entry.getValue();
+        
+        if (range.getMinimumBlockRangeIndex() < blockIndex) {
+            remove(range);
+            insert(new VirtualFileSystemBlockIndexRange(
+                    range.getMinimumBlockRangeIndex(),
+                    blockIndex - 1));
+            
+            range = new VirtualFileSystemBlockIndexRange(
+                    blockIndex,
+                    range.getMaximumBlockRangeIndex());
+            
+            insert(range);
+        }
+        
+        return take(range, Math.min(maximumBlockCount, range.getLength()));
+    }
+    
+    /**
+     * Returns the given range to the free space, merging it with the adjacent
+     * free extents.
+     * 
+     * @param range the range to free.
+     * @throws IllegalArgumentException if the range overlaps free space.
+     */
+    synchronized void free(VirtualFileSystemBlockIndexRange range) {
+        int start = range.getMinimumBlockRangeIndex();
+        int end   = range.getMaximumBlockRangeIndex();
+        
+        Map.Entry<Integer, VirtualFileSystemBlockIndexRange> previousEntry =
+                freeRangesByStart.floorEntry(end);
+        
+        if (previousEntry != null
+                && previousEntry.getValue().getMaximumBlockRangeIndex()
+                >= start) {
+            throw new IllegalArgumentException(
+                    "The range " + range + " overlaps the free range " +
+                    previousEntry.getValue() + ".");
+        }
+        
+        if (previousEntry != null
+                && previousEntry.getValue().getMaximumBlockRangeIndex()
+                == start - 1) {
+            remove(previousEntry.getValue());
+            start = previousEntry.getKey();
+        }
+        
+        VirtualFileSystemBlockIndexRange next =
+                end == Integer.MAX_VALUE ? null :
+                                           freeRangesByStart.get(end + 1);
+        
+        if (next != null) {
+            remove(next);
+            end = next.getMaximumBlockRangeIndex();
+        }
+        
+        insert(new VirtualFileSystemBlockIndexRange(start, end));
+        freeBlocks += range.getLength();
+        
+        if (allocationBitmap != null) {
+            allocationBitmap.markFree(range);
+        }
+    }
+    
+    /**
+     * Adds a maximal free extent that is already recorded as free in the
+     * allocation bitmap. Used while building the allocator at mount time.
+     * 
+     * @param range the free extent.
+     */
+    synchronized void addFreeRange(VirtualFileSystemBlockIndexRange range) {
+        insert(range);
+        freeBlocks += range.getLength();
+    }
+    
+    /**
+     * Returns the total number of free blocks.
+     * 
+     * @return the number of free blocks.
+     */
+    synchronized long getFreeBlockCount() {
+        return freeBlocks;
+    }
+    
+    /**
+     * Returns the number of maximal free extents.
+     * 
+     * @return the number of free extents.
+     */
+    synchronized int getFreeRangeCount() {
+        return freeRangesByStart.size();
+    }
+    
+    /**
+     * Takes the first {@code blockCount} blocks of the given free extent and
+     * returns the rest of it to the free space.
+     */
+    private VirtualFileSystemBlockIndexRange
+        take(VirtualFileSystemBlockIndexRange range, int blockCount) {
+        remove(range);
+        int start = range.getMinimumBlockRangeIndex();
+        
+        if (range.getLength() > blockCount) {
+            insert(new VirtualFileSystemBlockIndexRange(
+                    start + blockCount,
+                    range.getMaximumBlockRangeIndex()));
+        }
+        
+        freeBlocks -= blockCount;
+        
+        VirtualFileSystemBlockIndexRange allocated = 
+                new VirtualFileSystemBlockIndexRange(start,
+                                                     start + blockCount - 1);
+        
+        if (allocationBitmap != null) {
+            allocationBitmap.markAllocated(allocated);
+        }
+        
+        return allocated;
+    }
+    
+    private void insert(VirtualFileSystemBlockIndexRange range) {
+        freeRangesByStart.put(range.getMinimumBlockRangeIndex(), range);
+        freeRangesByLength.add(lengthKey(range));
+    }
+    
+    private void remove(VirtualFileSystemBlockIndexRange range) {
+        freeRangesByStart.remove(range.getMinimumBlockRangeIndex());
+        freeRangesByLength.remove(lengthKey(range));
+    }
+    
+    private static long lengthKey(VirtualFileSystemBlockIndexRange range) {
+        return ((long) range.getLength() << 32)
+                | range.getMinimumBlockRangeIndex();
+    }
+    
+    private static void checkBlockCount(int blockCount) {
+        if (blockCount < 1) {
+            throw new IllegalArgumentException(
+                    "The requested block count (" + blockCount + ") is not " +
+                    "positive.");
+        }
+    }
+}
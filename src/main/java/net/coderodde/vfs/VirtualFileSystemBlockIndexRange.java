@@ -53,6 +53,15 @@ final class VirtualFileSystemBlockIndexRange {
         return maximumRangeBlockIndex;
     }
     
+    /**
+     * Returns the number of blocks in this range.
+     * 
+     * @return the number of blocks.
+     */
+    int getLength() {
+        return maximumRangeBlockIndex - minimumRangeBlockIndex + 1;
+    }
+    
     /**
      * Converts this block index range to a byte array representing its state.
      * 
@@ -70,4 +79,10 @@ final class VirtualFileSystemBlockIndexRange {
         
         return byteBuffer.array();
     }
-}
+    
+    @Override
+    public String toString() {
+        return "[" + minimumRangeBlockIndex + ", " + 
+                     maximumRangeBlockIndex + "]";
+    }
+}
\ No newline at end of file
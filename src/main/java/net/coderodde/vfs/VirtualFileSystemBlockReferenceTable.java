@@ -0,0 +1,381 @@
+package net.coderodde.vfs;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * This class counts the references to the shared blocks: the blocks shared
+ * between the live tree and its snapshots and the deduplicated blocks. A
+ * block is referenced once by each structure using it: every live file or
+ * directory and every preserved copy of one. Only the
+ * blocks with more than one reference are recorded; every other allocated
+ * block has an implicit single reference. The shared blocks are recorded as
+ * runs of consecutive blocks with the same count, so that sharing a large
+ * file costs one entry per extent.
+ * <p>
+ * The runs are mirrored in an on-image {@link VirtualLongIndex} mapping the
+ * first block of each run to its last block and its count, and the table 
+ * inode holds the root of the index. Every change of the counts updates the
+ * index within the running operation, so the counts reach the image through
+ * the journal atomically with the inodes referring to the blocks, and 
+ * mounting merely reads the index instead of counting the references of 
+ * every node.
+ * 
+ * @author Rodion "rodde" Efremov
+ * @version 1.6 (Aug 17, 2017)
+ */
+final class VirtualFileSystemBlockReferenceTable {
+
+    /**
+     * The type byte of the reference table inode. Differs from the values of
+     * the node types and of the other table inodes.
+     */
+    private static final byte REFERENCE_TABLE_TYPE = 19;
+    
+    /**
+     * The inode table of the file system.
+     */
+    private final VirtualFileSystemInodeTable inodeTable;
+    
+    /**
+     * The inode of the reference table.
+     */
+    private final int tableInodeNumber;
+    
+    /**
+     * The on-image mirror of {@code runMap}.
+     */
+    private final VirtualLongIndex runIndex;
+    
+    /**
+     * Maps the first block of each run of shared blocks to the run.
+     */
+    private final TreeMap<Integer, Run> runMap = new TreeMap<>();
+    
+    /**
+     * The number of runs. Read without locking by {@link #isEmpty()}.
+     */
+    private volatile int runCount;
+    
+    /**
+     * Loads the reference table of a mounted file system.
+     * 
+     * @param fileSystem the file system.
+     * @param inodeTable the inode table of the file system.
+     * @param superblock the superblock of the image.
+     */
+    VirtualFileSystemBlockReferenceTable(
+            VirtualFilesystem fileSystem,
+            VirtualFileSystemInodeTable inodeTable,
+            VirtualFileSystemSuperblock superblock) {
+        this.inodeTable = inodeTable;
+        this.tableInodeNumber = superblock.getReferenceTableInodeNumber();
+        
+        ByteBuffer inode = inodeTable.read(tableInodeNumber);
+        
+        if (inode.get() != VirtualFileSystemInodeTable.INODE_VERSION
+                || inode.get() != REFERENCE_TABLE_TYPE) {
+            throw new IllegalArgumentException(
+                    "The inode " + tableInodeNumber + " does not hold a " +
+                    "block reference table.");
+        }
+        
+        runIndex = new VirtualLongIndex(fileSystem, inode.getInt());
+        runIndex.scan((first, run) -> {
+            runMap.put((int) first, new Run(getLast(run), getCount(run)));
+            return true;
+        });
+        
+        runCount = runMap.size();
+    }
+    
+    /**
+     * Writes the inode of an empty reference table.
+     * 
+     * @param inode the zeroed buffer receiving the inode.
+     */
+    static void format(ByteBuffer inode) {
+        inode.put(VirtualFileSystemInodeTable.INODE_VERSION);
+        inode.put(REFERENCE_TABLE_TYPE);
+        inode.putInt(VirtualLongIndex.NO_BLOCK);
+    }
+    
+    /**
+     * Returns whether no block is shared.
+     * 
+     * @return {@code true} if there are no shared blocks.
+     */
+    boolean isEmpty() {
+        return runCount == 0;
+    }
+    
+    /**
+     * Adds a reference to each block of the given range.
+     * 
+     * @param range the referenced blocks.
+     */
+    synchronized void addReference(VirtualFileSystemBlockIndexRange range) {
+        adjust(range, 1, null);
+    }
+    
+    /**
+     * Drops a reference of each block of the given range.
+     * 
+     * @param range the blocks.
+     * @return the blocks left without references, which the caller must
+     *         free.
+     */
+    synchronized List<VirtualFileSystemBlockIndexRange>
+        release(VirtualFileSystemBlockIndexRange range) {
+        List<VirtualFileSystemBlockIndexRange> unreferencedRanges =
+                new ArrayList<>();
+        adjust(range, -1, unreferencedRanges);
+        return unreferencedRanges;
+    }
+    
+    /**
+     * Returns whether the given block has more than one reference.
+     * 
+     * @param blockIndex the index of the block.
+     * @return {@code true} if the block is shared.
+     */
+    synchronized boolean isShared(int blockIndex) {
+        Map.Entry<Integer, Run> entry = runMap.floorEntry(blockIndex);
+        return entry != null && entry.getValue().last >= blockIndex;
+    }
+    
+    /**
+     * Drops a reference of the given block if it is shared.
+     * 
+     * @param blockIndex the index of the block.
+     * @return {@code true} if the block was shared, {@code false} if the
+     *         caller holds the only reference.
+     */
+    synchronized boolean dropSharedReference(int blockIndex) {
+        if (!isShared(blockIndex)) {
+            return false;
+        }
+        
+        adjust(new VirtualFileSystemBlockIndexRange(blockIndex, blockIndex),
+               -1,
+               null);
+        return true;
+    }
+    
+    /**
+     * Finds the first run of shared blocks within the given blocks.
+     * 
+     * @param first the first block to search.
+     * @param last  the last block to search.
+     * @return the shared blocks, or {@code null} if none of the blocks is
+     *         shared.
+     */
+    synchronized VirtualFileSystemBlockIndexRange findShared(int first,
+                                                             int last) {
+        Map.Entry<Integer, Run> entry = runMap.floorEntry(first);
+        
+        if (entry == null || entry.getValue().last < first) {
+            entry = runMap.ceilingEntry(first);
+            
+            if (entry == null || entry.getKey() > last) {
+                return null;
+            }
+        }
+        
+        return new VirtualFileSystemBlockIndexRange(
+                Math.max(first, entry.getKey()),
+                Math.min(last, entry.getValue().last));
+    }
+    
+    /**
+     * Adds {@code delta} to the reference count of each block of the range.
+     * The blocks whose count drops to zero are added to
+     * {@code unreferencedRanges}. The changed runs are written to the index.
+     */
+    private void adjust(VirtualFileSystemBlockIndexRange range,
+                        int delta,
+                        List<VirtualFileSystemBlockIndexRange>
+                                unreferencedRanges) {
+        int first = range.getMinimumBlockRangeIndex();
+        int last = range.getMaximumBlockRangeIndex();
+        
+        // Splitting and merging change only the runs from the one holding
+        // the block before the range to the one starting right after it:
+        Integer windowKey = runMap.floorKey(first - 1);
+        int windowFirst = windowKey != null ? windowKey : first;
+        Map<Integer, Long> oldRuns = getRuns(windowFirst, last + 1);
+        
+        split(first);
+        split(last + 1);
+        
+        List<Map.Entry<Integer, Run>> entries =
+                new ArrayList<>(runMap.subMap(first, true, last, true)
+                                      .entrySet());
+        int position = first;
+        
+        for (Map.Entry<Integer, Run> entry : entries) {
+            if (position < entry.getKey()) {
+                adjustUnshared(position,
+                               entry.getKey() - 1,
+                               delta,
+                               unreferencedRanges);
+            }
+            
+            Run run = entry.getValue();
+            run.count += delta;
+            
+            if (run.count == 1) {
+                runMap.remove(entry.getKey());
+            }
+            
+            position = run.last + 1;
+        }
+        
+        if (position <= last) {
+            adjustUnshared(position, last, delta, unreferencedRanges);
+        }
+        
+        merge(first, last);
+        runCount = runMap.size();
+        writeRuns(oldRuns, getRuns(windowFirst, last + 1));
+    }
+    
+    /**
+     * Returns the encoded runs starting within the given blocks.
+     */
+    private Map<Integer, Long> getRuns(int first, int last) {
+        Map<Integer, Long> runs = new HashMap<>();
+        
+        for (Map.Entry<Integer, Run> entry : 
+                runMap.subMap(first, true, last, true).entrySet()) {
+            Run run = entry.getValue();
+            runs.put(entry.getKey(), encodeRun(run.last, run.count));
+        }
+        
+        return runs;
+    }
+    
+    /**
+     * Brings the index from the old runs to the new runs of a window.
+     */
+    private void writeRuns(Map<Integer, Long> oldRuns,
+                           Map<Integer, Long> newRuns) {
+        int rootBlockIndex = runIndex.getRootBlockIndex();
+        
+        for (Integer first : oldRuns.keySet()) {
+            if (!newRuns.containsKey(first)) {
+                runIndex.delete(first);
+            }
+        }
+        
+        for (Map.Entry<Integer, Long> entry : newRuns.entrySet()) {
+            if (!entry.getValue().equals(oldRuns.get(entry.getKey()))) {
+                runIndex.put(entry.getKey(), entry.getValue());
+            }
+        }
+        
+        if (runIndex.getRootBlockIndex() != rootBlockIndex) {
+            writeTableInode();
+        }
+    }
+    
+    private void writeTableInode() {
+        ByteBuffer inode = VirtualFileSystemInodeTable.getEncodeBuffer();
+        inode.put(VirtualFileSystemInodeTable.INODE_VERSION);
+        inode.put(REFERENCE_TABLE_TYPE);
+        inode.putInt(runIndex.getRootBlockIndex());
+        inodeTable.write(tableInodeNumber, inode);
+    }
+    
+    private static long encodeRun(int last, int count) {
+        return ((long) last << Integer.SIZE) | (count & 0xFFFFFFFFL);
+    }
+    
+    private static int getLast(long run) {
+        return (int)(run >>> Integer.SIZE);
+    }
+    
+    private static int getCount(long run) {
+        return (int) run;
+    }
+    
+    /**
+     * Adjusts the count of blocks with a single reference.
+     */
+    private void adjustUnshared(int first,
+                                int last,
+                                int delta,
+                                List<VirtualFileSystemBlockIndexRange>
+                                        unreferencedRanges) {
+        if (delta > 0) {
+            runMap.put(first, new Run(last, 1 + delta));
+        } else if (unreferencedRanges != null) {
+            unreferencedRanges.add(
+                    new VirtualFileSystemBlockIndexRange(first, last));
+        }
+    }
+    
+    /**
+     * Splits the run containing {@code blockIndex} so that a run starts at
+     * {@code blockIndex}.
+     */
+    private void split(int blockIndex) {
+        Map.Entry<Integer, Run> entry = runMap.lowerEntry(blockIndex);
+        
+        if (entry != null && entry.getValue().last >= blockIndex) {
+            Run run = entry.getValue();
+            runMap.put(blockIndex, new Run(run.last, run.count));
+            run.last = blockIndex - 1;
+        }
+    }
+    
+    /**
+     * Merges the adjacent runs with equal counts around the given blocks.
+     */
+    private void merge(int first, int last) {
+        Integer key = runMap.floorKey(first - 1);
+        
+        if (key == null) {
+            key = runMap.ceilingKey(first);
+        }
+        
+        while (key != null && key <= last + 1) {
+            Run run = runMap.get(key);
+            Map.Entry<Integer, Run> next = runMap.higherEntry(key);
+            
+            if (next != null
+                    && next.getKey() == run.last + 1
+                    && next.getValue().count == run.count) {
+                run.last = next.getValue().last;
+                runMap.remove(next.getKey());
+            } else {
+                key = next == null ? null : next.getKey();
+            }
+        }
+    }
+    
+    /**
+     * A run of consecutive blocks with the same reference count.
+     */
+    private static final class Run {
+        
+        /**
+         * The last block of the run.
+         */
+        int last;
+        
+        /**
+         * The number of references to each block of the run.
+         */
+        int count;
+        
+        Run(int last, int count) {
+            this.last = last;
+            this.count = count;
+        }
+    }
+}
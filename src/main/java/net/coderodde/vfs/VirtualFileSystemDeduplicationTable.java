@@ -0,0 +1,622 @@
+package net.coderodde.vfs;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * This class implements the deduplication of the data blocks of a virtual
+ * file system. When the deduplication is enabled, every data block a file
+ * writes in full is fingerprinted; a block whose content is already stored
+ * is not written, but the file refers to the stored block instead, and the
+ * stored block gains a reference in the
+ * {@link VirtualFileSystemBlockReferenceTable}. From then on the block is
+ * shared just like a block shared with a snapshot: it is copied on write
+ * and freed with its last reference.
+ * <p>
+ * The fingerprints are 64-bit hashes of the block contents. They are only
+ * hints: a matching block is compared byte by byte before it is shared, so
+ * a collision or a block changed since it was fingerprinted never shares
+ * unequal contents. The fingerprints of the blocks written in place or
+ * freed are invalidated at once.
+ * <p>
+ * The fingerprints are held in a {@link VirtualFileSystemFingerprintTable}
+ * and spilled to an on-image {@link VirtualLongIndex} mapping them to the
+ * blocks, along with a second one mapping the blocks back to their 
+ * fingerprints. The spilling happens before each commit, in batches small
+ * enough for the journal, so the write path never touches the indices;
+ * updates not yet spilled when the image is closed or crashes are merely 
+ * lost as hints. A freed block is queued for removal by its index alone and
+ * its fingerprint is found in the second index when the removal is spilled,
+ * so freeing never reads the freed blocks; the mappings to the blocks freed
+ * with the removal lost are dropped when the index is loaded at mount time.
+ * If the index does not fit in memory, or the table overflows later and 
+ * evicts an entry, a fingerprint missing from memory is looked up on the
+ * image.
+ * <p>
+ * The references to the shared blocks are counted in the 
+ * {@link VirtualFileSystemBlockReferenceTable}, which is stored on the 
+ * image through the journal along with the files referring to the blocks.
+ * 
+ * @author Rodion "rodde" Efremov
+ * @version 1.6 (Aug 17, 2017)
+ */
+final class VirtualFileSystemDeduplicationTable {
+
+    /**
+     * The type byte of the deduplication table inode. Differs from the
+     * values of the node types and of the snapshot inodes.
+     */
+    private static final byte DEDUPLICATION_TABLE_TYPE = 18;
+    
+    /**
+     * The flag set in the table inode while the deduplication is enabled.
+     */
+    private static final byte ENABLED_FLAG = 1;
+    
+    /**
+     * The maximum number of index updates waiting for a commit. The updates
+     * past it are dropped.
+     */
+    private static final int MAXIMUM_PENDING_UPDATES = 1 << 16;
+    
+    /**
+     * The file system.
+     */
+    private final VirtualFilesystem fileSystem;
+    
+    /**
+     * The inode table of the file system.
+     */
+    private final VirtualFileSystemInodeTable inodeTable;
+    
+    /**
+     * The reference counts of the shared blocks.
+     */
+    private final VirtualFileSystemBlockReferenceTable referenceTable;
+    
+    /**
+     * The inode of the deduplication table.
+     */
+    private final int tableInodeNumber;
+    
+    /**
+     * The maximum number of index updates spilled with a single commit.
+     */
+    private final int spillBatchSize;
+    
+    /**
+     * Guards the state below.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+    
+    /**
+     * The fingerprint of no block. The fingerprints computed by
+     * {@link #fingerprint(byte[], int, int)} never equal it.
+     */
+    private static final long NO_FINGERPRINT = 0L;
+    
+    /**
+     * The on-image index mapping the fingerprints to the blocks.
+     */
+    private final VirtualLongIndex fingerprintIndex;
+    
+    /**
+     * The on-image index mapping the blocks to their fingerprints.
+     */
+    private final VirtualLongIndex blockFingerprintIndex;
+    
+    /**
+     * Whether the written blocks are deduplicated.
+     */
+    private volatile boolean enabled;
+    
+    /**
+     * The fingerprints held in memory, or {@code null} until the first
+     * fingerprint.
+     */
+    private volatile VirtualFileSystemFingerprintTable fingerprintTable;
+    
+    /**
+     * Whether {@code fingerprintTable} holds every fingerprint of the
+     * on-image index, so that a fingerprint missing from it is missing
+     * altogether.
+     */
+    private boolean complete = true;
+    
+    /**
+     * Whether the on-image index maps no allocated block, so that its
+     * blocks are freed at the next commit instead of being kept around
+     * with nothing but stale mappings.
+     */
+    private boolean discardIndex;
+    
+    /**
+     * The blocks whose content has not changed since they were
+     * fingerprinted.
+     */
+    private final BitSet fingerprintedBlocks = new BitSet();
+    
+    /**
+     * The blocks that may be mapped by the on-image index or by a pending
+     * update, whose mappings to remove once they are freed.
+     */
+    private final BitSet indexedBlocks = new BitSet();
+    
+    /**
+     * The fingerprints of the index updates waiting for a commit. The 
+     * fingerprint of a removal is {@code NO_FINGERPRINT} unless known.
+     */
+    private long[] pendingFingerprints = new long[16];
+    
+    /**
+     * The blocks of the pending updates: the block to map the fingerprint
+     * to, or the complement of the block whose mapping to remove.
+     */
+    private int[] pendingBlockIndices = new int[16];
+    
+    /**
+     * The number of pending updates.
+     */
+    private int pendingUpdateCount;
+    
+    /**
+     * Loads the deduplication table of a mounted file system. The fingerprint
+     * index is read into memory, and the mappings to the blocks that are no
+     * longer allocated are scheduled for removal. An index left with no
+     * live mapping is freed as a whole at the first commit.
+     * 
+     * @param fileSystem       the file system.
+     * @param inodeTable       the inode table of the file system.
+     * @param referenceTable   the table of block references.
+     * @param allocationBitmap the allocation bitmap of the image.
+     * @param superblock       the superblock of the image.
+     */
+    VirtualFileSystemDeduplicationTable(
+            VirtualFilesystem fileSystem,
+            VirtualFileSystemInodeTable inodeTable,
+            VirtualFileSystemBlockReferenceTable referenceTable,
+            VirtualFileSystemAllocationBitmap allocationBitmap,
+            VirtualFileSystemSuperblock superblock) {
+        this.fileSystem       = fileSystem;
+        this.inodeTable       = inodeTable;
+        this.referenceTable   = referenceTable;
+        this.tableInodeNumber = superblock.getDeduplicationTableInodeNumber();
+        this.spillBatchSize   = Math.max(1,
+                                         superblock.getJournalBlockCount() / 8);
+        
+        ByteBuffer inode = inodeTable.read(tableInodeNumber);
+        
+        if (inode.get() != VirtualFileSystemInodeTable.INODE_VERSION
+                || inode.get() != DEDUPLICATION_TABLE_TYPE) {
+            throw new IllegalArgumentException(
+                    "The inode " + tableInodeNumber + " does not hold a " +
+                    "deduplication table.");
+        }
+        
+        byte flags = inode.get();
+        enabled = (flags & ENABLED_FLAG) != 0;
+        fingerprintIndex = new VirtualLongIndex(fileSystem, inode.getInt());
+        blockFingerprintIndex = new VirtualLongIndex(fileSystem,
+                                                     inode.getInt());
+        
+        if (fingerprintIndex.getRootBlockIndex() != VirtualLongIndex.NO_BLOCK
+                || blockFingerprintIndex.getRootBlockIndex()
+                != VirtualLongIndex.NO_BLOCK) {
+            fingerprintTable = new VirtualFileSystemFingerprintTable(
+                    VirtualFileSystemFingerprintTable.DEFAULT_CAPACITY);
+            fingerprintIndex.scan((fingerprint, value) -> {
+                int blockIndex = (int) value;
+                
+                if (!allocationBitmap.isAllocated(blockIndex)) {
+                    addPendingUpdate(fingerprint, ~blockIndex);
+                } else {
+                    fingerprintedBlocks.set(blockIndex);
+                    indexedBlocks.set(blockIndex);
+                    
+                    if (complete
+                            && !fingerprintTable.put(fingerprint,
+                                                     blockIndex)) {
+                        complete = false;
+                    }
+                }
+                
+                return true;
+            });
+            
+            if (fingerprintedBlocks.isEmpty()) {
+                fingerprintTable = null;
+                pendingUpdateCount = 0;
+                discardIndex = true;
+            }
+        }
+    }
+    
+    /**
+     * Writes the inode of an empty, disabled deduplication table.
+     * 
+     * @param inode the zeroed buffer receiving the inode.
+     */
+    static void format(ByteBuffer inode) {
+        inode.put(VirtualFileSystemInodeTable.INODE_VERSION);
+        inode.put(DEDUPLICATION_TABLE_TYPE);
+        inode.put((byte) 0);
+        inode.putInt(VirtualLongIndex.NO_BLOCK);
+        inode.putInt(VirtualLongIndex.NO_BLOCK);
+    }
+    
+    /**
+     * Computes the fingerprint of the given bytes: a 64-bit hash mixing
+     * eight bytes at a time. The hash zero is mapped to one, since it stands
+     * for no fingerprint.
+     * 
+     * @param data   the array holding the bytes.
+     * @param offset the offset of the first byte.
+     * @param length the number of bytes, a multiple of eight.
+     * @return the fingerprint.
+     */
+    static long fingerprint(byte[] data, int offset, int length) {
+        ByteBuffer buffer = ByteBuffer.wrap(data, offset, length)
+                                      .order(ByteOrder.LITTLE_ENDIAN);
+        long hash = length * 0x9E3779B97F4A7C15L;
+        
+        while (buffer.hasRemaining()) {
+            long word = buffer.getLong() * 0xC2B2AE3D27D4EB4FL;
+            hash ^= Long.rotateLeft(word, 31) * 0x9E3779B97F4A7C15L;
+            hash = Long.rotateLeft(hash, 27) * 5L + 0x52DCE729L;
+        }
+        
+        hash ^= hash >>> 33;
+        hash *= 0xFF51AFD7ED558CCDL;
+        hash ^= hash >>> 33;
+        hash *= 0xC4CEB9FE1A85EC53L;
+        hash ^= hash >>> 33;
+        return hash == NO_FINGERPRINT ? 1L : hash;
+    }
+    
+    /**
+     * Returns whether the written blocks are deduplicated.
+     * 
+     * @return {@code true} if the deduplication is enabled.
+     */
+    boolean isEnabled() {
+        return enabled;
+    }
+    
+    /**
+     * Enables or disables the deduplication. Disabling it keeps the blocks
+     * already shared.
+     * 
+     * @param enabled whether to deduplicate the written blocks.
+     */
+    void setEnabled(boolean enabled) {
+        lock.lock();
+        
+        try {
+            if (this.enabled != enabled) {
+                this.enabled = enabled;
+                writeTableInode();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Returns whether the table tracks fingerprinted blocks, so that the
+     * frees must go through {@link #release(VirtualFileSystemBlockIndexRange)}.
+     * 
+     * @return {@code true} if there may be fingerprinted blocks.
+     */
+    boolean isActive() {
+        return fingerprintTable != null;
+    }
+    
+    /**
+     * Finds a stored block holding the given bytes and adds a reference to
+     * it. The caller maps its file block to the returned block and frees the
+     * block mapped before.
+     * 
+     * @param fingerprint     the fingerprint of the bytes.
+     * @param data            the array holding the bytes of a full block.
+     * @param offset          the offset of the bytes.
+     * @param ownBlockIndex   the block the caller would write the bytes to.
+     * @return the index of the block holding the same bytes, or -1 if there
+     *         is none.
+     */
+    int share(long fingerprint, byte[] data, int offset, int ownBlockIndex) {
+        lock.lock();
+        
+        try {
+            if (fingerprintTable == null) {
+                return -1;
+            }
+            
+            int blockIndex = fingerprintTable.get(fingerprint);
+            
+            if (blockIndex == -1 && !complete) {
+                blockIndex = (int) fingerprintIndex.get(fingerprint, -1L);
+            }
+            
+            if (blockIndex == -1
+                    || blockIndex == ownBlockIndex
+                    || !fingerprintedBlocks.get(blockIndex)
+                    || !contains(blockIndex, data, offset)) {
+                return -1;
+            }
+            
+            referenceTable.addReference(
+                    new VirtualFileSystemBlockIndexRange(blockIndex,
+                                                         blockIndex));
+            return blockIndex;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Records the fingerprint of a block just written in full.
+     * 
+     * @param fingerprint the fingerprint of the content of the block.
+     * @param blockIndex  the index of the block.
+     */
+    void register(long fingerprint, int blockIndex) {
+        lock.lock();
+        
+        try {
+            if (fingerprintTable == null) {
+                fingerprintTable = new VirtualFileSystemFingerprintTable(
+                        VirtualFileSystemFingerprintTable.DEFAULT_CAPACITY);
+            }
+            
+            if (!fingerprintTable.put(fingerprint, blockIndex)) {
+                // Make room with a single entry, which is on the image or on
+                // its way there:
+                fingerprintTable.evict(fingerprint);
+                fingerprintTable.put(fingerprint, blockIndex);
+                complete = false;
+            }
+            
+            fingerprintedBlocks.set(blockIndex);
+            indexedBlocks.set(blockIndex);
+            addPendingUpdate(fingerprint, blockIndex);
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Invalidates the fingerprints of the given blocks, which are about to
+     * be written in place. Must precede the check whether the blocks are
+     * shared, so that a block is either shared before the check or never.
+     * 
+     * @param range the blocks.
+     */
+    void invalidate(VirtualFileSystemBlockIndexRange range) {
+        lock.lock();
+        
+        try {
+            fingerprintedBlocks.clear(range.getMinimumBlockRangeIndex(),
+                                      range.getMaximumBlockRangeIndex() + 1);
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Drops a reference of each block of the given range and invalidates
+     * the fingerprints of the blocks left without references, atomically
+     * with respect to {@link #share(long, byte[], int, int)}. The mappings
+     * of the blocks left without references are queued for removal from
+     * the on-image index.
+     * 
+     * @param range the blocks.
+     * @return the blocks left without references, which the caller must
+     *         free.
+     */
+    List<VirtualFileSystemBlockIndexRange>
+        release(VirtualFileSystemBlockIndexRange range) {
+        lock.lock();
+        
+        try {
+            List<VirtualFileSystemBlockIndexRange> unreferencedRanges =
+                    referenceTable.isEmpty() ?
+                    Collections.singletonList(range) :
+                    referenceTable.release(range);
+            
+            for (VirtualFileSystemBlockIndexRange unreferencedRange :
+                    unreferencedRanges) {
+                int first = unreferencedRange.getMinimumBlockRangeIndex();
+                int last = unreferencedRange.getMaximumBlockRangeIndex();
+                fingerprintedBlocks.clear(first, last + 1);
+                
+                for (int i = indexedBlocks.nextSetBit(first); 
+                        i != -1 && i <= last; 
+                        i = indexedBlocks.nextSetBit(i + 1)) {
+                    addPendingUpdate(NO_FINGERPRINT, ~i);
+                }
+                
+                indexedBlocks.clear(first, last + 1);
+            }
+            
+            return unreferencedRanges;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Writes a batch of the pending updates to the on-image indices, first
+     * freeing the indices found with no live mapping at mount. Called by 
+     * the journal before each commit.
+     */
+    void spill() {
+        if (discardIndex) {
+            lock.lock();
+            
+            try {
+                fingerprintIndex.destroy();
+                blockFingerprintIndex.destroy();
+                discardIndex = false;
+                writeTableInode();
+            } finally {
+                lock.unlock();
+            }
+        }
+        
+        if (fingerprintTable == null) {
+            return;
+        }
+        
+        lock.lock();
+        
+        try {
+            int count = Math.min(pendingUpdateCount, spillBatchSize);
+            
+            if (count == 0) {
+                return;
+            }
+            
+            int fingerprintRootBlockIndex = 
+                    fingerprintIndex.getRootBlockIndex();
+            int blockRootBlockIndex = 
+                    blockFingerprintIndex.getRootBlockIndex();
+            
+            for (int i = 0; i < count; ++i) {
+                if (pendingBlockIndices[i] < 0) {
+                    removeMapping(pendingFingerprints[i],
+                                  ~pendingBlockIndices[i]);
+                } else {
+                    addMapping(pendingFingerprints[i], pendingBlockIndices[i]);
+                }
+            }
+            
+            pendingUpdateCount -= count;
+            System.arraycopy(pendingFingerprints, count,
+                             pendingFingerprints, 0,
+                             pendingUpdateCount);
+            System.arraycopy(pendingBlockIndices, count,
+                             pendingBlockIndices, 0,
+                             pendingUpdateCount);
+            
+            if (fingerprintIndex.getRootBlockIndex() 
+                    != fingerprintRootBlockIndex
+                    || blockFingerprintIndex.getRootBlockIndex() 
+                    != blockRootBlockIndex) {
+                writeTableInode();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Maps the given fingerprint to the given block in the on-image indices,
+     * dropping the mapping of the fingerprint the block held before.
+     */
+    private void addMapping(long fingerprint, int blockIndex) {
+        long previousFingerprint = blockFingerprintIndex.get(blockIndex,
+                                                             NO_FINGERPRINT);
+        
+        if (previousFingerprint == fingerprint) {
+            fingerprintIndex.put(fingerprint, blockIndex);
+            return;
+        }
+        
+        if (previousFingerprint != NO_FINGERPRINT
+                && fingerprintIndex.get(previousFingerprint, -1L) 
+                == blockIndex) {
+            fingerprintIndex.delete(previousFingerprint);
+        }
+        
+        fingerprintIndex.put(fingerprint, blockIndex);
+        blockFingerprintIndex.put(blockIndex, fingerprint);
+    }
+    
+    /**
+     * Removes the mappings of the given freed block from the on-image 
+     * indices, and from memory unless the block has been fingerprinted 
+     * anew since.
+     * 
+     * @param fingerprint the fingerprint mapped to the block, or 
+     *                    {@code NO_FINGERPRINT} to look it up.
+     * @param blockIndex  the index of the block.
+     */
+    private void removeMapping(long fingerprint, int blockIndex) {
+        long indexedFingerprint = blockFingerprintIndex.get(blockIndex,
+                                                            NO_FINGERPRINT);
+        
+        if (indexedFingerprint != NO_FINGERPRINT) {
+            blockFingerprintIndex.delete(blockIndex);
+            
+            if (fingerprint == NO_FINGERPRINT) {
+                fingerprint = indexedFingerprint;
+            }
+        }
+        
+        if (fingerprint == NO_FINGERPRINT) {
+            return;
+        }
+        
+        if (fingerprintIndex.get(fingerprint, -1L) == blockIndex) {
+            fingerprintIndex.delete(fingerprint);
+        }
+        
+        if (!fingerprintedBlocks.get(blockIndex)) {
+            fingerprintTable.remove(fingerprint, blockIndex);
+        }
+    }
+    
+    /**
+     * Returns whether the given block holds the given bytes.
+     */
+    private boolean contains(int blockIndex, byte[] data, int offset) {
+        int blockSize = fileSystem.getBlockSize();
+        byte[] blockData = new byte[blockSize];
+        fileSystem.getBlockCache().read(blockIndex,
+                                        0,
+                                        blockData,
+                                        0,
+                                        blockSize);
+        
+        for (int i = 0; i < blockSize; ++i) {
+            if (blockData[i] != data[offset + i]) {
+                return false;
+            }
+        }
+        
+        return true;
+    }
+    
+    private void addPendingUpdate(long fingerprint, int blockIndex) {
+        if (pendingUpdateCount == MAXIMUM_PENDING_UPDATES) {
+            return;
+        }
+        
+        if (pendingUpdateCount == pendingFingerprints.length) {
+            int capacity = 2 * pendingUpdateCount;
+            pendingFingerprints = Arrays.copyOf(pendingFingerprints,
+                                                capacity);
+            pendingBlockIndices = Arrays.copyOf(pendingBlockIndices,
+                                                capacity);
+        }
+        
+        pendingFingerprints[pendingUpdateCount] = fingerprint;
+        pendingBlockIndices[pendingUpdateCount] = blockIndex;
+        ++pendingUpdateCount;
+    }
+    
+    private void writeTableInode() {
+        ByteBuffer inode = VirtualFileSystemInodeTable.getEncodeBuffer();
+        inode.put(VirtualFileSystemInodeTable.INODE_VERSION);
+        inode.put(DEDUPLICATION_TABLE_TYPE);
+        inode.put(enabled ? ENABLED_FLAG : 0);
+        inode.putInt(fingerprintIndex.getRootBlockIndex());
+        inode.putInt(blockFingerprintIndex.getRootBlockIndex());
+        inodeTable.write(tableInodeNumber, inode);
+    }
+}
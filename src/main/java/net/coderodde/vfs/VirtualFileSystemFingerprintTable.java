@@ -0,0 +1,210 @@
+package net.coderodde.vfs;
+
+/**
+ * This class implements an open-addressed hash table mapping the 64-bit
+ * fingerprints of data blocks to the indices of the blocks. The entries are
+ * kept in two primitive arrays probed linearly, so that a lookup costs no
+ * allocation and typically a single cache miss. The table has a fixed
+ * capacity and never rehashes: once it is full, the caller evicts an entry
+ * to make room for a new one. The entries are removed by shifting the 
+ * following entries of the probe sequence back, so no tombstones pile up.
+ * <p>
+ * The fingerprint zero marks an empty slot, so it is stored as one. The
+ * table is not thread-safe.
+ * 
+ * @author Rodion "rodde" Efremov
+ * @version 1.6 (Aug 17, 2017)
+ */
+final class VirtualFileSystemFingerprintTable {
+
+    /**
+     * The number of slots of a table created without an explicit capacity.
+     * The table takes 12 MB and holds the fingerprints of 786 432 blocks.
+     */
+    static final int DEFAULT_CAPACITY = 1 << 20;
+    
+    /**
+     * The smallest capacity of a table.
+     */
+    private static final int MINIMUM_CAPACITY = 16;
+    
+    /**
+     * The fingerprints of the slots; zero in an empty slot.
+     */
+    private final long[] fingerprints;
+    
+    /**
+     * The block indices of the slots.
+     */
+    private final int[] blockIndices;
+    
+    /**
+     * The mask mapping a fingerprint to its home slot.
+     */
+    private final int mask;
+    
+    /**
+     * The maximum number of entries, three quarters of the slots, which 
+     * keeps the probe sequences short.
+     */
+    private final int maximumSize;
+    
+    /**
+     * The number of entries.
+     */
+    private int size;
+    
+    /**
+     * Creates an empty table with the given number of slots.
+     * 
+     * @param capacity the number of slots, a power of two.
+     */
+    VirtualFileSystemFingerprintTable(int capacity) {
+        if (capacity < MINIMUM_CAPACITY || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException(
+                    "The capacity " + capacity + " is not a power of two " +
+                    "of at least " + MINIMUM_CAPACITY + ".");
+        }
+        
+        this.fingerprints = new long[capacity];
+        this.blockIndices = new int[capacity];
+        this.mask = capacity - 1;
+        this.maximumSize = capacity / 4 * 3;
+    }
+    
+    /**
+     * Returns the block mapped to the given fingerprint.
+     * 
+     * @param fingerprint the fingerprint.
+     * @return the index of the block, or -1 if there is none.
+     */
+    int get(long fingerprint) {
+        fingerprint = normalize(fingerprint);
+        
+        for (int slot = (int) fingerprint & mask;; slot = (slot + 1) & mask) {
+            long slotFingerprint = fingerprints[slot];
+            
+            if (slotFingerprint == fingerprint) {
+                return blockIndices[slot];
+            }
+            
+            if (slotFingerprint == 0L) {
+                return -1;
+            }
+        }
+    }
+    
+    /**
+     * Maps the given fingerprint to the given block, replacing the block
+     * mapped to it before.
+     * 
+     * @param fingerprint the fingerprint.
+     * @param blockIndex  the index of the block.
+     * @return {@code false} if the fingerprint is new and the table is full.
+     */
+    boolean put(long fingerprint, int blockIndex) {
+        fingerprint = normalize(fingerprint);
+        int slot = (int) fingerprint & mask;
+        
+        while (fingerprints[slot] != 0L && fingerprints[slot] != fingerprint) {
+            slot = (slot + 1) & mask;
+        }
+        
+        if (fingerprints[slot] == 0L) {
+            if (size == maximumSize) {
+                return false;
+            }
+            
+            fingerprints[slot] = fingerprint;
+            ++size;
+        }
+        
+        blockIndices[slot] = blockIndex;
+        return true;
+    }
+    
+    /**
+     * Removes the mapping of the given fingerprint to the given block.
+     * 
+     * @param fingerprint the fingerprint.
+     * @param blockIndex  the index of the block.
+     * @return {@code true} if the fingerprint was mapped to the block.
+     */
+    boolean remove(long fingerprint, int blockIndex) {
+        fingerprint = normalize(fingerprint);
+        
+        for (int slot = (int) fingerprint & mask;; slot = (slot + 1) & mask) {
+            long slotFingerprint = fingerprints[slot];
+            
+            if (slotFingerprint == fingerprint) {
+                if (blockIndices[slot] != blockIndex) {
+                    return false;
+                }
+                
+                removeSlot(slot);
+                return true;
+            }
+            
+            if (slotFingerprint == 0L) {
+                return false;
+            }
+        }
+    }
+    
+    /**
+     * Removes a single entry to make room for the given fingerprint: the 
+     * first entry at or after its home slot. Since the home slots are spread
+     * uniformly, the evicted entry is effectively chosen at random.
+     * 
+     * @param fingerprint the fingerprint to make room for.
+     */
+    void evict(long fingerprint) {
+        if (size == 0) {
+            return;
+        }
+        
+        int slot = (int) normalize(fingerprint) & mask;
+        
+        while (fingerprints[slot] == 0L) {
+            slot = (slot + 1) & mask;
+        }
+        
+        removeSlot(slot);
+    }
+    
+    /**
+     * Returns the number of entries.
+     * 
+     * @return the number of entries.
+     */
+    int size() {
+        return size;
+    }
+    
+    /**
+     * Empties the given slot, moving back each following entry of the probe
+     * sequence that may take the freed slot without passing its home slot.
+     */
+    private void removeSlot(int slot) {
+        int hole = slot;
+        
+        for (int next = (hole + 1) & mask; 
+                fingerprints[next] != 0L; 
+                next = (next + 1) & mask) {
+            int home = (int) fingerprints[next] & mask;
+            
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                fingerprints[hole] = fingerprints[next];
+                blockIndices[hole] = blockIndices[next];
+                hole = next;
+            }
+        }
+        
+        fingerprints[hole] = 0L;
+        --size;
+    }
+    
+    private static long normalize(long fingerprint) {
+        return fingerprint == 0L ? 1L : fingerprint;
+    }
+}
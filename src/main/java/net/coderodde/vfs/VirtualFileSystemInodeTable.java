@@ -0,0 +1,335 @@
+package net.coderodde.vfs;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * This class implements the inode table of a native image. The metadata of
+ * each node is stored in an inode of {@link #INODE_SIZE} bytes; the inodes
+ * are packed into a fixed region of blocks created at format time, so the
+ * inode with the number {@code i} is found at a computed position without
+ * any lookup. The free inodes are tracked by an allocation bitmap of their
+ * own.
+ * <p>
+ * An inode starts with the version of its encoding, where zero marks a free
+ * inode, followed by the variable-length metadata of the node, in which the
+ * integers are written as unsigned base-128 varints and the name as a varint
+ * byte count followed by the UTF-8 bytes. The last {@link #DATA_AREA_SIZE}
+ * bytes of the inode are the data area holding the root of the directory
+ * index, the inline extent map of a file, or the whole content of a small
+ * file. The metadata of a directory or a regular file always ends before the
+ * data area; a symbolic link has no data area.
+ * <p>
+ * The inodes are written through the journal as patches of their blocks, so
+ * the nodes sharing a block do not overwrite each other. The encoding and
+ * decoding reuse per-thread buffers and coders, so writing a node allocates
+ * nothing but the patch.
+ * 
+ * @author Rodion "rodde" Efremov
+ * @version 1.6 (Aug 17, 2017)
+ */
+final class VirtualFileSystemInodeTable {
+
+    /**
+     * The number of bytes in an inode.
+     */
+    static final int INODE_SIZE = 256;
+    
+    /**
+     * The version of the inode encoding written by this class.
+     */
+    static final byte INODE_VERSION = 1;
+    
+    /**
+     * The offset of the data area within an inode.
+     */
+    static final int DATA_AREA_OFFSET = 168;
+    
+    /**
+     * The number of bytes in the data area of an inode.
+     */
+    static final int DATA_AREA_SIZE = INODE_SIZE - DATA_AREA_OFFSET;
+    
+    /**
+     * The number of image bytes per inode of the images formatted without an
+     * explicit inode ratio.
+     */
+    static final int DEFAULT_BYTES_PER_INODE = 8 * 1024;
+    
+    /**
+     * The encoding buffer of each thread.
+     */
+    private static final ThreadLocal<ByteBuffer> ENCODE_BUFFER =
+            ThreadLocal.withInitial(
+                    () -> ByteBuffer.allocate(INODE_SIZE)
+                                    .order(ByteOrder.LITTLE_ENDIAN));
+    
+    /**
+     * The UTF-8 encoder of each thread.
+     */
+    private static final ThreadLocal<CharsetEncoder> NAME_ENCODER =
+            ThreadLocal.withInitial(StandardCharsets.UTF_8::newEncoder);
+    
+    /**
+     * The UTF-8 decoder of each thread.
+     */
+    private static final ThreadLocal<CharsetDecoder> NAME_DECODER =
+            ThreadLocal.withInitial(StandardCharsets.UTF_8::newDecoder);
+    
+    /**
+     * The name decoding buffer of each thread. A name never takes more
+     * {@code char}s than its UTF-8 encoding takes bytes.
+     */
+    private static final ThreadLocal<CharBuffer> NAME_BUFFER =
+            ThreadLocal.withInitial(() -> CharBuffer.allocate(INODE_SIZE));
+    
+    /**
+     * The file system owning this inode table.
+     */
+    private final VirtualFilesystem fileSystem;
+    
+    /**
+     * The allocator of the inode numbers. Backed by the inode bitmap.
+     */
+    private final VirtualFileSystemBlockAllocator inodeAllocator;
+    
+    /**
+     * The index of the first block of the inode table.
+     */
+    private final int firstBlockIndex;
+    
+    /**
+     * The number of inodes in a block.
+     */
+    private final int inodesPerBlock;
+    
+    /**
+     * Constructs the inode table of a mounted image.
+     * 
+     * @param fileSystem     the file system.
+     * @param superblock     the superblock of the image.
+     * @param inodeAllocator the allocator of the inode numbers.
+     */
+    VirtualFileSystemInodeTable(
+            VirtualFilesystem fileSystem,
+            VirtualFileSystemSuperblock superblock,
+            VirtualFileSystemBlockAllocator inodeAllocator) {
+        this.fileSystem      = fileSystem;
+        this.inodeAllocator  = inodeAllocator;
+        this.firstBlockIndex = superblock.getInodeTableFirstBlockIndex();
+        this.inodesPerBlock  = superblock.getBlockSize() / INODE_SIZE;
+    }
+    
+    /**
+     * Returns the zeroed encoding buffer of the calling thread.
+     * 
+     * @return the buffer positioned at zero.
+     */
+    static ByteBuffer getEncodeBuffer() {
+        ByteBuffer buffer = ENCODE_BUFFER.get();
+        Arrays.fill(buffer.array(), (byte) 0);
+        buffer.clear();
+        return buffer;
+    }
+    
+    /**
+     * Returns the buffer holding the given inode.
+     * 
+     * @param inodeNumber the number of the inode.
+     * @return a little-endian buffer of {@link #INODE_SIZE} bytes positioned
+     *         at the start of the inode.
+     */
+    ByteBuffer read(int inodeNumber) {
+        ByteBuffer block =
+                fileSystem.readMetadataBlock(getBlockIndex(inodeNumber));
+        int offset = getOffset(inodeNumber);
+        
+        block.limit(offset + INODE_SIZE);
+        block.position(offset);
+        return block.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+    
+    /**
+     * Writes the given inode through the journal.
+     * 
+     * @param inodeNumber the number of the inode.
+     * @param inode       the buffer holding the inode from its start.
+     */
+    void write(int inodeNumber, ByteBuffer inode) {
+        fileSystem.writeMetadataBlock(getBlockIndex(inodeNumber),
+                                      getOffset(inodeNumber),
+                                      inode.array(),
+                                      INODE_SIZE);
+    }
+    
+    /**
+     * Checks that the given number of image bytes per inode is valid: an 
+     * inode cannot be given less of the image than it takes itself.
+     * 
+     * @param bytesPerInode the number of image bytes per inode.
+     * @return {@code bytesPerInode}.
+     * @throws IllegalArgumentException if the inode ratio is invalid.
+     */
+    static int checkBytesPerInode(int bytesPerInode) {
+        if (bytesPerInode < INODE_SIZE) {
+            throw new IllegalArgumentException(
+                    "The number of bytes per inode (" + bytesPerInode + 
+                    ") is less than the inode size " + INODE_SIZE + ".");
+        }
+        
+        return bytesPerInode;
+    }
+    
+    /**
+     * Allocates a free inode.
+     * 
+     * @return the number of the allocated inode.
+     */
+    int allocate() {
+        VirtualFileSystemBlockIndexRange range = inodeAllocator.allocate(1);
+        
+        if (range == null) {
+            throw new IllegalStateException("No free inodes left.");
+        }
+        
+        return range.getMinimumBlockRangeIndex();
+    }
+    
+    /**
+     * Marks the given inode as free on the image.
+     * 
+     * @param inodeNumber the number of the inode.
+     */
+    void clear(int inodeNumber) {
+        write(inodeNumber, getEncodeBuffer());
+    }
+    
+    private int getBlockIndex(int inodeNumber) {
+        return firstBlockIndex + inodeNumber / inodesPerBlock;
+    }
+    
+    private int getOffset(int inodeNumber) {
+        return (inodeNumber % inodesPerBlock) * INODE_SIZE;
+    }
+    
+    /**
+     * Writes the given non-negative value as an unsigned base-128 varint:
+     * seven bits per byte, least significant group first, with the high bit
+     * set on all the bytes but the last.
+     * 
+     * @param buffer the buffer to write to.
+     * @param value  the value to write.
+     */
+    static void putVarint(ByteBuffer buffer, long value) {
+        while ((value & ~0x7FL) != 0L) {
+            buffer.put((byte)((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        
+        buffer.put((byte) value);
+    }
+    
+    /**
+     * Reads a varint written by {@link #putVarint(ByteBuffer, long)}.
+     * 
+     * @param buffer the buffer to read from.
+     * @return the value.
+     */
+    static long getVarint(ByteBuffer buffer) {
+        long value = 0L;
+        
+        for (int shift = 0; shift < Long.SIZE; shift += 7) {
+            byte b = buffer.get();
+            value |= (long)(b & 0x7F) << shift;
+            
+            if (b >= 0) {
+                return value;
+            }
+        }
+        
+        throw new IllegalArgumentException("Malformed varint.");
+    }
+    
+    /**
+     * Writes the given name as its UTF-8 byte count followed by the bytes. The
+     * count is written as a one-byte varint, so the name may take at most 127
+     * bytes.
+     * 
+     * @param buffer the buffer to write to.
+     * @param name   the name to write.
+     */
+    static void putName(ByteBuffer buffer, String name) {
+        int lengthPosition = buffer.position();
+        buffer.put((byte) 0);
+        
+        CharsetEncoder encoder = NAME_ENCODER.get().reset();
+        CoderResult result = encoder.encode(CharBuffer.wrap(name),
+                                            buffer,
+                                            true);
+        
+        if (!result.isUnderflow()) {
+            throw new IllegalArgumentException(
+                    "Cannot encode the name \"" + name + "\".");
+        }
+        
+        encoder.flush(buffer);
+        int length = buffer.position() - lengthPosition - 1;
+        
+        if (length > 0x7F) {
+            throw new IllegalArgumentException(
+                    "The name \"" + name + "\" takes " + length + " bytes.");
+        }
+        
+        buffer.put(lengthPosition, (byte) length);
+    }
+    
+    /**
+     * Reads a name written by {@link #putName(ByteBuffer, String)}.
+     * 
+     * @param buffer the buffer to read from.
+     * @return the name.
+     */
+    static String getName(ByteBuffer buffer) {
+        int length = (int) getVarint(buffer);
+        ByteBuffer bytes = buffer.slice();
+        bytes.limit(length);
+        buffer.position(buffer.position() + length);
+        
+        CharBuffer chars = NAME_BUFFER.get();
+        chars.clear();
+        CoderResult result = NAME_DECODER.get().reset()
+                                         .decode(bytes, chars, true);
+        
+        if (!result.isUnderflow()) {
+            throw new IllegalArgumentException("Malformed node name.");
+        }
+        
+        chars.flip();
+        return chars.toString();
+    }
+    
+    /**
+     * Returns the number of bytes in the UTF-8 encoding of the given name.
+     * 
+     * @param name the name.
+     * @return the number of bytes.
+     * @throws IllegalArgumentException if the name cannot be encoded.
+     */
+    static int getEncodedNameLength(String name) {
+        try {
+            return NAME_ENCODER.get().reset()
+                               .encode(CharBuffer.wrap(name))
+                               .remaining();
+        } catch (CharacterCodingException ex) {
+            throw new IllegalArgumentException(
+                    "Cannot encode the name \"" + name + "\".", ex);
+        }
+    }
+}
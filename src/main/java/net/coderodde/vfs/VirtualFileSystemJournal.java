@@ -0,0 +1,935 @@
+package net.coderodde.vfs;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Queue;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
+
+/**
+ * This class implements the write-ahead journal of the metadata blocks. The
+ * journal occupies a fixed region of the image: the first block of the
+ * region is the journal header holding the sequence number of the first
+ * transaction not yet checkpointed, and the rest of the region holds the
+ * committed transactions one after another.
+ * <p>
+ * The metadata writes of all the operations completed within a commit
+ * interval form a single transaction (group commit). A transaction consists
+ * of descriptor blocks listing the home block indices, followed by the
+ * blocks themselves; the descriptor carries a CRC-32 of the whole
+ * transaction, so the transaction is written with one sequential write and
+ * made durable with one force. Until a block is checkpointed to its home
+ * location, the journal serves the reads of that block. Checkpointing runs on
+ * the journal thread whenever the journal is half full, and writes the home
+ * blocks in ascending order.
+ * <p>
+ * Operations, that is, groups of metadata writes that must be applied
+ * atomically, are bracketed by {@link #beginOperation()} and
+ * {@link #endOperation()}. A transaction never contains a part of an
+ * operation. The blocks and the inodes freed by an operation are returned to
+ * their allocators only after the operation is committed, so that they 
+ * cannot be overwritten while the image still refers to them.
+ * 
+ * @author Rodion "rodde" Efremov
+ * @version 1.6 (Aug 15, 2017)
+ */
+final class VirtualFileSystemJournal {
+
+    /**
+     * The interval in milliseconds at which the running transaction is
+     * committed.
+     */
+    static final long DEFAULT_COMMIT_INTERVAL_MILLIS = 20L;
+    
+    /**
+     * The magic number of the journal header ("JRNL" in ASCII).
+     */
+    private static final int HEADER_MAGIC = 0x4A524E4C;
+    
+    /**
+     * The magic number of a transaction descriptor ("TXN1" in ASCII).
+     */
+    private static final int TRANSACTION_MAGIC = 0x54584E31;
+    
+    /**
+     * The number of bytes preceding the home block indices in a descriptor:
+     * the magic number, the sequence number, the block count and the
+     * checksum.
+     */
+    private static final int DESCRIPTOR_HEADER_SIZE = 20;
+    
+    /**
+     * The offset of the checksum within a descriptor.
+     */
+    private static final int CHECKSUM_OFFSET = 16;
+    
+    /**
+     * The block device of the image.
+     */
+    private final VirtualBlockDevice blockDevice;
+    
+    /**
+     * The number of bytes in a block.
+     */
+    private final int blockSize;
+    
+    /**
+     * The block cache. Flushed before each commit, so that the data blocks
+     * reach the image before the metadata referring to them.
+     */
+    private final VirtualBlockCache blockCache;
+    
+    /**
+     * The allocation bitmap, written through the journal.
+     */
+    private final VirtualFileSystemAllocationBitmap allocationBitmap;
+    
+    /**
+     * The allocator receiving the blocks freed by the committed operations.
+     * Its monitor guards the allocation bitmap.
+     */
+    private final VirtualFileSystemBlockAllocator blockAllocator;
+    
+    /**
+     * The inode bitmap, written through the journal.
+     */
+    private final VirtualFileSystemAllocationBitmap inodeBitmap;
+    
+    /**
+     * The allocator receiving the inodes freed by the committed operations.
+     * Its monitor guards the inode bitmap.
+     */
+    private final VirtualFileSystemBlockAllocator inodeAllocator;
+    
+    /**
+     * The index of the journal header block.
+     */
+    private final int firstBlockIndex;
+    
+    /**
+     * The number of blocks in the journal region.
+     */
+    private final int blockCount;
+    
+    /**
+     * Held in read mode by each running operation and in write mode while
+     * the running transaction is being closed.
+     */
+    private final ReentrantReadWriteLock commitLock =
+            new ReentrantReadWriteLock();
+    
+    /**
+     * The blocks written by the operations of the running transaction.
+     */
+    private volatile Map<Integer, byte[]> runningBlocks =
+            new ConcurrentHashMap<>();
+    
+    /**
+     * The blocks freed by the operations of the running transaction.
+     */
+    private volatile Queue<VirtualFileSystemBlockIndexRange> runningFrees =
+            new ConcurrentLinkedQueue<>();
+    
+    /**
+     * The inodes freed by the operations of the running transaction.
+     */
+    private volatile Queue<Integer> runningInodeFrees =
+            new ConcurrentLinkedQueue<>();
+    
+    /**
+     * The blocks of the transaction being committed, or {@code null}.
+     */
+    private volatile Map<Integer, byte[]> committingBlocks;
+    
+    /**
+     * The committed blocks not yet written to their home locations.
+     */
+    private final Map<Integer, byte[]> checkpointBlocks =
+            new ConcurrentHashMap<>();
+    
+    /**
+     * Run by the journal thread before closing each running transaction, so 
+     * that the file system can write the metadata it keeps dirty in memory.
+     */
+    private final Runnable beforeCommit;
+    
+    /**
+     * The commit interval in milliseconds.
+     */
+    private final long commitIntervalMillis;
+    
+    /**
+     * The thread committing and checkpointing the transactions.
+     */
+    private final Thread journalThread;
+    
+    /**
+     * The sequence number of the next transaction. Accessed only by the
+     * journal thread.
+     */
+    private long nextSequence;
+    
+    /**
+     * The position of the next transaction relative to
+     * {@code firstBlockIndex}. Accessed only by the journal thread.
+     */
+    private int writePosition = 1;
+    
+    /**
+     * The number of commits requested so far. Guarded by {@code this}.
+     */
+    private long requestedCommits;
+    
+    /**
+     * The number of requested commits completed so far. Guarded by
+     * {@code this}.
+     */
+    private long completedCommits;
+    
+    /**
+     * Set when the journal is being closed. Guarded by {@code this}.
+     */
+    private boolean closing;
+    
+    /**
+     * The exception that stopped the journal thread, or {@code null}.
+     */
+    private volatile RuntimeException failure;
+    
+    /**
+     * Constructs the journal of a mounted image. The journal must have been
+     * replayed with {@link #replay(VirtualBlockDevice,
+     * VirtualFileSystemSuperblock)}.
+     * 
+     * @param blockDevice          the block device of the image.
+     * @param superblock           the superblock of the image.
+     * @param blockCache           the block cache.
+     * @param allocationBitmap     the allocation bitmap.
+     * @param blockAllocator       the block allocator.
+     * @param inodeBitmap          the inode bitmap.
+     * @param inodeAllocator       the inode allocator.
+     * @param beforeCommit         run before closing each running 
+     *                             transaction.
+     * @param commitIntervalMillis the commit interval in milliseconds.
+     */
+    VirtualFileSystemJournal(VirtualBlockDevice blockDevice,
+                             VirtualFileSystemSuperblock superblock,
+                             VirtualBlockCache blockCache,
+                             VirtualFileSystemAllocationBitmap allocationBitmap,
+                             VirtualFileSystemBlockAllocator blockAllocator,
+                             VirtualFileSystemAllocationBitmap inodeBitmap,
+                             VirtualFileSystemBlockAllocator inodeAllocator,
+                             Runnable beforeCommit,
+                             long commitIntervalMillis) {
+        this.blockDevice          = blockDevice;
+        this.blockSize            = blockDevice.getBlockSize();
+        this.blockCache           = blockCache;
+        this.allocationBitmap     = allocationBitmap;
+        this.blockAllocator       = blockAllocator;
+        this.inodeBitmap          = inodeBitmap;
+        this.inodeAllocator       = inodeAllocator;
+        this.beforeCommit         = beforeCommit;
+        this.firstBlockIndex      = superblock.getJournalFirstBlockIndex();
+        this.blockCount           = superblock.getJournalBlockCount();
+        this.commitIntervalMillis = commitIntervalMillis;
+        this.nextSequence         = readHeader(blockDevice.sliceBlock(
+                                                   firstBlockIndex));
+        
+        this.journalThread = new Thread(this::run, "vfs-journal");
+        this.journalThread.setDaemon(true);
+    }
+    
+    /**
+     * Initializes an empty journal in a fresh image.
+     * 
+     * @param blockDevice the block device of the image.
+     * @param superblock  the superblock of the image.
+     */
+    static void format(VirtualBlockDevice blockDevice,
+                       VirtualFileSystemSuperblock superblock) {
+        writeHeader(blockDevice, superblock.getJournalFirstBlockIndex(), 1L);
+    }
+    
+    /**
+     * Applies all the valid transactions of the journal to their home blocks
+     * and empties the journal. The journal region is read with a single
+     * sequential read; replay stops at the first transaction that is torn or
+     * stale.
+     * 
+     * @param blockDevice the block device of the image.
+     * @param superblock  the superblock of the image.
+     * @return the number of replayed transactions.
+     */
+    static int replay(VirtualBlockDevice blockDevice,
+                      VirtualFileSystemSuperblock superblock) {
+        int journalFirstBlockIndex = superblock.getJournalFirstBlockIndex();
+        int journalBlockCount = superblock.getJournalBlockCount();
+        int blockSize = blockDevice.getBlockSize();
+        ByteBuffer region = ByteBuffer.allocate(journalBlockCount * blockSize);
+        
+        blockDevice.readBlock(journalFirstBlockIndex, region);
+        region.flip();
+        region.order(ByteOrder.LITTLE_ENDIAN);
+        
+        long sequence = readHeader(region);
+        int position = 1;
+        int transactions = 0;
+        SortedMap<Integer, byte[]> homeBlocks = new TreeMap<>();
+        
+        while (position < journalBlockCount) {
+            int transactionBlocks = checkTransaction(region,
+                                                     position,
+                                                     journalBlockCount,
+                                                     blockSize,
+                                                     sequence);
+            if (transactionBlocks == 0) {
+                break;
+            }
+            
+            int offset = position * blockSize;
+            int count = region.getInt(offset + 12);
+            int dataOffset = offset + (transactionBlocks - count) * blockSize;
+            
+            for (int i = 0; i < count; ++i) {
+                byte[] data = new byte[blockSize];
+                ByteBuffer source = region.duplicate();
+                source.position(dataOffset + i * blockSize);
+                source.get(data);
+                homeBlocks.put(
+                        region.getInt(offset + DESCRIPTOR_HEADER_SIZE + 4 * i),
+                        data);
+            }
+            
+            position += transactionBlocks;
+            ++sequence;
+            ++transactions;
+        }
+        
+        if (transactions > 0) {
+            writeHomeBlocks(blockDevice, homeBlocks);
+            blockDevice.force();
+            writeHeader(blockDevice, journalFirstBlockIndex, sequence);
+            blockDevice.force();
+        }
+        
+        return transactions;
+    }
+    
+    /**
+     * Starts the journal thread.
+     */
+    void start() {
+        journalThread.start();
+    }
+    
+    /**
+     * Begins an operation. The metadata writes of the operation will be
+     * committed atomically. Operations may be nested; a nested operation
+     * becomes a part of the enclosing one. The caller must not hold any
+     * directory lock when beginning an outermost operation, since the call
+     * may wait for a commit to free the journal space.
+     */
+    void beginOperation() {
+        if (commitLock.getReadHoldCount() == 0
+                && runningBlocks.size() > (blockCount - 1) / 2) {
+            commit();
+        }
+        
+        commitLock.readLock().lock();
+    }
+    
+    /**
+     * Ends an operation.
+     */
+    void endOperation() {
+        commitLock.readLock().unlock();
+        
+        if (commitLock.getReadHoldCount() == 0
+                && runningBlocks.size() > (blockCount - 1) / 4) {
+            synchronized (this) {
+                notifyAll();
+            }
+        }
+    }
+    
+    /**
+     * Runs the given action while no operation is running, so that the action
+     * sees the metadata at a single point in time. The writes of the action
+     * become a part of the running transaction. The caller must not be
+     * within an operation.
+     * 
+     * @param <T>    the type of the result of the action.
+     * @param action the action to run.
+     * @return the result of the action.
+     */
+    <T> T runExclusively(Supplier<T> action) {
+        if (runningBlocks.size() > (blockCount - 1) / 2) {
+            commit();
+        }
+        
+        commitLock.writeLock().lock();
+        
+        try {
+            return action.get();
+        } finally {
+            commitLock.writeLock().unlock();
+        }
+    }
+    
+    /**
+     * Records a write of the given metadata block. The block is written to
+     * its home location after it has been committed and checkpointed.
+     * 
+     * @param blockIndex the index of the block.
+     * @param data       the block data. Must not be modified afterwards.
+     */
+    void write(int blockIndex, byte[] data) {
+        commitLock.readLock().lock();
+        
+        try {
+            runningBlocks.put(blockIndex, data);
+        } finally {
+            commitLock.readLock().unlock();
+        }
+    }
+    
+    /**
+     * Records a write of a part of the given metadata block. The rest of the 
+     * block keeps its latest version, so parts of the same block may be 
+     * written independently.
+     * 
+     * @param blockIndex the index of the block.
+     * @param offset     the offset of the part within the block.
+     * @param source     the array holding the part from its start.
+     * @param length     the number of bytes in the part.
+     */
+    void write(int blockIndex, int offset, byte[] source, int length) {
+        commitLock.readLock().lock();
+        
+        try {
+            runningBlocks.compute(blockIndex, (index, data) -> {
+                if (data == null) {
+                    data = readCommittedBlock(index);
+                }
+                
+                System.arraycopy(source, 0, data, offset, length);
+                return data;
+            });
+        } finally {
+            commitLock.readLock().unlock();
+        }
+    }
+    
+    /**
+     * Returns the latest version of the given block if it is held by the
+     * journal.
+     * 
+     * @param blockIndex the index of the block.
+     * @return the buffer holding the block, or {@code null} if the block is
+     *         not held by the journal.
+     */
+    ByteBuffer read(int blockIndex) {
+        byte[] data = runningBlocks.get(blockIndex);
+        
+        if (data == null) {
+            Map<Integer, byte[]> blocks = committingBlocks;
+            
+            if (blocks != null) {
+                data = blocks.get(blockIndex);
+            }
+            
+            if (data == null) {
+                data = checkpointBlocks.get(blockIndex);
+            }
+        }
+        
+        return data == null ? null : ByteBuffer.wrap(data);
+    }
+    
+    /**
+     * Records that the running operation freed the given range. The range
+     * is returned to the allocator once the operation is committed.
+     * 
+     * @param range the freed range.
+     */
+    void free(VirtualFileSystemBlockIndexRange range) {
+        commitLock.readLock().lock();
+        
+        try {
+            runningFrees.add(range);
+        } finally {
+            commitLock.readLock().unlock();
+        }
+    }
+    
+    /**
+     * Records that the running operation freed the given inode. The inode is
+     * returned to the inode allocator once the operation is committed.
+     * 
+     * @param inodeNumber the freed inode.
+     */
+    void freeInode(int inodeNumber) {
+        commitLock.readLock().lock();
+        
+        try {
+            runningInodeFrees.add(inodeNumber);
+        } finally {
+            commitLock.readLock().unlock();
+        }
+    }
+    
+    /**
+     * Commits all the completed operations and waits until they are durable.
+     */
+    void commit() {
+        synchronized (this) {
+            checkFailure();
+            long ticket = ++requestedCommits;
+            notifyAll();
+            
+            while (completedCommits < ticket && failure == null) {
+                try {
+                    wait();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException(
+                            "Interrupted while waiting for a commit.", ex);
+                }
+            }
+            
+            checkFailure();
+        }
+    }
+    
+    /**
+     * Commits all the completed operations, checkpoints the journal and stops
+     * the journal thread.
+     */
+    void close() {
+        synchronized (this) {
+            closing = true;
+            notifyAll();
+        }
+        
+        try {
+            journalThread.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(
+                    "Interrupted while closing the journal.", ex);
+        }
+        
+        checkFailure();
+    }
+    
+    /**
+     * The loop of the journal thread: commits the running transaction at the
+     * end of each commit interval or on request, and checkpoints the journal
+     * when it is half full.
+     */
+    private void run() {
+        try {
+            while (true) {
+                long ticket;
+                boolean closed;
+                
+                synchronized (this) {
+                    if (!closing && requestedCommits == completedCommits) {
+                        wait(commitIntervalMillis);
+                    }
+                    
+                    ticket = requestedCommits;
+                    closed = closing;
+                }
+                
+                commitRunningTransaction();
+                
+                if (closed) {
+                    // The frees of the last transaction went to the bitmaps
+                    // after it was written:
+                    commitRunningTransaction();
+                }
+                
+                if (closed || writePosition > blockCount / 2) {
+                    checkpoint();
+                }
+                
+                synchronized (this) {
+                    completedCommits = Math.max(completedCommits, ticket);
+                    notifyAll();
+                }
+                
+                if (closed) {
+                    return;
+                }
+            }
+        } catch (InterruptedException ex) {
+            failure = new RuntimeException("The journal was interrupted.",
+                                           ex);
+        } catch (RuntimeException ex) {
+            failure = ex;
+        }
+        
+        synchronized (this) {
+            notifyAll();
+        }
+    }
+    
+    /**
+     * Closes the running transaction and writes it to the journal.
+     */
+    private void commitRunningTransaction() {
+        Map<Integer, byte[]> blocks;
+        Queue<VirtualFileSystemBlockIndexRange> frees;
+        Queue<Integer> inodeFrees;
+        beforeCommit.run();
+        commitLock.writeLock().lock();
+        
+        try {
+            blocks = runningBlocks;
+            frees = runningFrees;
+            inodeFrees = runningInodeFrees;
+            
+            synchronized (blockAllocator) {
+                allocationBitmap.collectDirtyBlocks(blocks);
+            }
+            
+            synchronized (inodeAllocator) {
+                inodeBitmap.collectDirtyBlocks(blocks);
+            }
+            
+            if (blocks.isEmpty() && frees.isEmpty() && inodeFrees.isEmpty()) {
+                return;
+            }
+            
+            committingBlocks = blocks;
+            runningBlocks = new ConcurrentHashMap<>();
+            runningFrees = new ConcurrentLinkedQueue<>();
+            runningInodeFrees = new ConcurrentLinkedQueue<>();
+        } finally {
+            commitLock.writeLock().unlock();
+        }
+        
+        if (!blocks.isEmpty()) {
+            // Ordered mode: the data goes to the image before the metadata.
+            if (blockCache.flush()) {
+                blockDevice.force();
+            }
+            
+            writeTransaction(new TreeMap<>(blocks));
+            checkpointBlocks.putAll(blocks);
+        }
+        
+        committingBlocks = null;
+        
+        if (holdsAny(frees)) {
+            // A freed metadata block may be reused as a data block, which
+            // neither the checkpoint nor the replay may overwrite afterwards:
+            checkpoint();
+        }
+        
+        for (VirtualFileSystemBlockIndexRange range : frees) {
+            blockAllocator.free(range);
+        }
+        
+        for (int inodeNumber : inodeFrees) {
+            inodeAllocator.free(
+                    new VirtualFileSystemBlockIndexRange(inodeNumber,
+                                                         inodeNumber));
+        }
+    }
+    
+    /**
+     * Appends a transaction holding the given blocks to the journal and
+     * forces it to the image.
+     * 
+     * @param blocks the blocks of the transaction.
+     */
+    private void writeTransaction(SortedMap<Integer, byte[]> blocks) {
+        int count = blocks.size();
+        int descriptorBlocks = getDescriptorBlockCount(count, blockSize);
+        int transactionBlocks = descriptorBlocks + count;
+        
+        if (transactionBlocks > blockCount - 1) {
+            throw new IllegalStateException(
+                    "The transaction of " + transactionBlocks + " block(s) " +
+                    "does not fit in the journal.");
+        }
+        
+        if (writePosition + transactionBlocks > blockCount) {
+            checkpoint();
+        }
+        
+        ByteBuffer descriptor =
+                ByteBuffer.allocate(descriptorBlocks * blockSize)
+                          .order(ByteOrder.LITTLE_ENDIAN);
+        
+        descriptor.putInt(TRANSACTION_MAGIC);
+        descriptor.putLong(nextSequence);
+        descriptor.putInt(count);
+        descriptor.putInt(0);
+        
+        for (int blockIndex : blocks.keySet()) {
+            descriptor.putInt(blockIndex);
+        }
+        
+        CRC32 checksum = new CRC32();
+        checksum.update(descriptor.array());
+        
+        for (byte[] data : blocks.values()) {
+            checksum.update(data);
+        }
+        
+        descriptor.putInt(CHECKSUM_OFFSET, (int) checksum.getValue());
+        
+        ByteBuffer[] buffers = new ByteBuffer[transactionBlocks];
+        
+        for (int i = 0; i < descriptorBlocks; ++i) {
+            buffers[i] = ByteBuffer.wrap(descriptor.array(),
+                                         i * blockSize,
+                                         blockSize);
+        }
+        
+        int i = descriptorBlocks;
+        
+        for (byte[] data : blocks.values()) {
+            buffers[i++] = ByteBuffer.wrap(data);
+        }
+        
+        blockDevice.writeBlocks(firstBlockIndex + writePosition, buffers);
+        blockDevice.force();
+        
+        writePosition += transactionBlocks;
+        ++nextSequence;
+    }
+    
+    /**
+     * Writes all the committed blocks to their home locations and empties
+     * the journal.
+     */
+    private void checkpoint() {
+        if (writePosition == 1) {
+            return;
+        }
+        
+        SortedMap<Integer, byte[]> blocks = new TreeMap<>(checkpointBlocks);
+        writeHomeBlocks(blockDevice, blocks);
+        blockDevice.force();
+        writeHeader(blockDevice, firstBlockIndex, nextSequence);
+        blockDevice.force();
+        writePosition = 1;
+        
+        for (Map.Entry<Integer, byte[]> entry : blocks.entrySet()) {
+            checkpointBlocks.remove(entry.getKey(), entry.getValue());
+        }
+    }
+    
+    /**
+     * Checks whether any of the given ranges contains a committed block not
+     * yet written to its home location.
+     * 
+     * @param ranges the ranges to check.
+     * @return {@code true} if the checkpoint must precede reusing the ranges.
+     */
+    private boolean holdsAny(Queue<VirtualFileSystemBlockIndexRange> ranges) {
+        if (checkpointBlocks.isEmpty()) {
+            return false;
+        }
+        
+        for (VirtualFileSystemBlockIndexRange range : ranges) {
+            int first = range.getMinimumBlockRangeIndex();
+            int last = range.getMaximumBlockRangeIndex();
+            
+            if (range.getLength() < checkpointBlocks.size()) {
+                for (int blockIndex = first; blockIndex <= last; ++blockIndex) {
+                    if (checkpointBlocks.containsKey(blockIndex)) {
+                        return true;
+                    }
+                }
+            } else {
+                for (int blockIndex : checkpointBlocks.keySet()) {
+                    if (blockIndex >= first && blockIndex <= last) {
+                        return true;
+                    }
+                }
+            }
+        }
+        
+        return false;
+    }
+    
+    /**
+     * Returns a copy of the latest committed version of the given block: the
+     * version being committed, the version waiting for the checkpoint or the
+     * version on the image. A block moves from the first to the second before
+     * leaving the first, and is removed from the second only after being 
+     * written home, so no version is missed.
+     * 
+     * @param blockIndex the index of the block.
+     * @return the block bytes.
+     */
+    private byte[] readCommittedBlock(int blockIndex) {
+        Map<Integer, byte[]> blocks = committingBlocks;
+        byte[] committed = blocks == null ? null : blocks.get(blockIndex);
+        
+        if (committed == null) {
+            committed = checkpointBlocks.get(blockIndex);
+        }
+        
+        if (committed != null) {
+            return committed.clone();
+        }
+        
+        byte[] data = new byte[blockSize];
+        blockDevice.readBlock(blockIndex, ByteBuffer.wrap(data));
+        return data;
+    }
+    
+    private void checkFailure() {
+        if (failure != null) {
+            throw new IllegalStateException("The journal has failed.",
+                                            failure);
+        }
+    }
+    
+    /**
+     * Checks whether a valid transaction with the given sequence number
+     * starts at the given position of the journal region.
+     * 
+     * @param region            the journal region.
+     * @param position          the block position within the region.
+     * @param journalBlockCount the number of blocks in the region.
+     * @param blockSize         the number of bytes in a block.
+     * @param sequence          the expected sequence number.
+     * @return the number of blocks in the transaction, or zero if there is
+     *         no valid transaction at {@code position}.
+     */
+    private static int checkTransaction(ByteBuffer region,
+                                        int position,
+                                        int journalBlockCount,
+                                        int blockSize,
+                                        long sequence) {
+        int offset = position * blockSize;
+        
+        if (region.getInt(offset) != TRANSACTION_MAGIC
+                || region.getLong(offset + 4) != sequence) {
+            return 0;
+        }
+        
+        int count = region.getInt(offset + 12);
+        
+        if (count < 1 || count > journalBlockCount) {
+            return 0;
+        }
+        
+        int descriptorBlocks = getDescriptorBlockCount(count, blockSize);
+        int transactionBlocks = descriptorBlocks + count;
+        
+        if (position + transactionBlocks > journalBlockCount) {
+            return 0;
+        }
+        
+        int expectedChecksum = region.getInt(offset + CHECKSUM_OFFSET);
+        byte[] transaction = new byte[transactionBlocks * blockSize];
+        
+        ByteBuffer source = region.duplicate();
+        source.position(offset);
+        source.get(transaction);
+        
+        for (int i = 0; i < 4; ++i) {
+            transaction[CHECKSUM_OFFSET + i] = 0;
+        }
+        
+        CRC32 checksum = new CRC32();
+        checksum.update(transaction);
+        
+        return (int) checksum.getValue() == expectedChecksum ?
+                transactionBlocks : 0;
+    }
+    
+    /**
+     * Returns the number of descriptor blocks needed to list the given number
+     * of home block indices.
+     * 
+     * @param count     the number of blocks in a transaction.
+     * @param blockSize the number of bytes in a block.
+     * @return the number of descriptor blocks.
+     */
+    private static int getDescriptorBlockCount(int count, int blockSize) {
+        int descriptorBytes = DESCRIPTOR_HEADER_SIZE + 4 * count;
+        return (descriptorBytes + blockSize - 1) / blockSize;
+    }
+    
+    /**
+     * Reads the journal header.
+     * 
+     * @param header the buffer holding the journal header.
+     * @return the sequence number of the first transaction in the journal.
+     */
+    private static long readHeader(ByteBuffer header) {
+        header.order(ByteOrder.LITTLE_ENDIAN);
+        
+        if (header.getInt(0) != HEADER_MAGIC) {
+            throw new IllegalArgumentException("The journal is corrupted.");
+        }
+        
+        return header.getLong(4);
+    }
+    
+    private static void writeHeader(VirtualBlockDevice blockDevice,
+                                    int journalFirstBlockIndex,
+                                    long sequence) {
+        ByteBuffer header = ByteBuffer.allocate(blockDevice.getBlockSize())
+                                      .order(ByteOrder.LITTLE_ENDIAN);
+        
+        header.putInt(HEADER_MAGIC);
+        header.putLong(sequence);
+        header.position(0);
+        blockDevice.writeBlock(journalFirstBlockIndex, header);
+    }
+    
+    /**
+     * Writes the given blocks to their home locations. Runs of consecutive
+     * blocks are written with a single vectored write.
+     * 
+     * @param blockDevice the block device of the image.
+     * @param blocks      the blocks sorted by their indices.
+     */
+    private static void writeHomeBlocks(VirtualBlockDevice blockDevice,
+                                        SortedMap<Integer, byte[]> blocks) {
+        int runStart = -1;
+        int runEnd = -1;
+        ByteBuffer[] run = new ByteBuffer[blocks.size()];
+        int runLength = 0;
+        
+        for (Map.Entry<Integer, byte[]> entry : blocks.entrySet()) {
+            int blockIndex = entry.getKey();
+            
+            if (runLength > 0 && blockIndex != runEnd + 1) {
+                blockDevice.writeBlocks(runStart,
+                                        Arrays.copyOf(run,
+                                                                runLength));
+                runLength = 0;
+            }
+            
+            if (runLength == 0) {
+                runStart = blockIndex;
+            }
+            
+            run[runLength++] = ByteBuffer.wrap(entry.getValue());
+            runEnd = blockIndex;
+        }
+        
+        if (runLength > 0) {
+            blockDevice.writeBlocks(runStart,
+                                    Arrays.copyOf(run, runLength));
+        }
+    }
+}
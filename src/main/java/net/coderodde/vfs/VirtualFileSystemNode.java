@@ -1,16 +1,77 @@
 package net.coderodde.vfs;
 
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.ref.WeakReference;
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.nio.charset.StandardCharsets;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.nio.channels.Channels;
+import java.nio.channels.SeekableByteChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.LongSupplier;
 
 /**
  * This class implements a virtual file system node.
+ * <p>
+ * The nodes are safe for use by multiple threads. Each directory has a 
+ * read/write lock guarding its children and its directory index: lookups and
+ * listings take the read lock, so that any number of threads may traverse a 
+ * directory at the same time, and attaching or detaching a child takes the 
+ * write lock. An operation locking more than one directory acquires the 
+ * locks top-down (a directory before its descendants, and directories at the
+ * same depth in ascending inode number order); moves between directories
+ * are serialized by the file system, so that the depths cannot change while
+ * the locks are being acquired. The size and the time stamps of a node are
+ * guarded by a separate stamped lock, so that the metadata getters are 
+ * optimistic reads that never block.
+ * <p>
+ * Each directory keeps the total size of the regular files and the number of
+ * nodes below it. A change is added to the totals of all the directories on
+ * the parent chain, which takes time proportional to the depth of the node;
+ * the totals are striped counters, so that concurrent writes below a common
+ * ancestor do not contend for it, and reading a total takes constant time.
+ * The changed directories are written out before the next commit.
+ * <p>
+ * A directory may have a byte quota limiting the total size of its subtree
+ * and a node quota limiting its node count. The quotas of all the 
+ * directories above a node apply to it. They are checked against the totals
+ * on the parent chain before a file grows or a node is attached, so the 
+ * check never walks a subtree. The check does not reserve the space, so 
+ * concurrent writes below a directory may overshoot its quota by at most 
+ * the sizes of the writes.
+ * <p>
+ * A node of a snapshot is a read-only view of the node as it was when the
+ * snapshot was taken; its mutators throw an {@link IllegalStateException}.
+ * A live node that a snapshot sees is preserved for the snapshot before it
+ * first changes, after which the data blocks, the extent block chain and 
+ * the directory index it shares with its preserved copy are copied on 
+ * write. The data blocks shared with other files by deduplication are 
+ * copied on write the same way.
+ * <p>
+ * A regular file may store its content compressed. The content is then 
+ * split into chunks of {@link VirtualFileChunkCodec#CHUNK_SIZE} bytes, each
+ * compressed on its own into the first blocks of its run of file blocks, 
+ * the rest of the run being a hole in the extent map. The extent map thus 
+ * doubles as the chunk offset table, and a read decompresses only the 
+ * chunks it touches. A chunk that does not compress is stored as is, and a
+ * chunk of zeros takes no blocks. A write compresses the chunks it touches
+ * into new blocks, so the compressed files are never written in place. A 
+ * directory with the compression attribute passes it on to the nodes 
+ * created in it.
  * 
  * @author Rodion "rodde" Efremov
  * @version 1.6 (Aug 4, 2017)
@@ -18,29 +79,39 @@ import java.util.Objects;
 public class VirtualFileSystemNode {
     
     /**
-     * The byte value indicating that the node has a password.
+     * The inode flag indicating that the node has a password.
      */
-    private static final byte PASSWORD_ON = 1;
+    private static final byte PASSWORD_FLAG = 1;
     
     /**
-     * The byte value indicating that the node has no password.
+     * The inode flag indicating that the node is a symbolic link.
      */
-    private static final byte PASSWORD_OFF = 0;
+    private static final byte SYMBOLIC_LINK_FLAG = 2;
     
     /**
-     * Used to indicate in the metablock that this node is a symbolic link.
+     * The inode flag indicating that the content of the regular file is 
+     * stored in the data area of its inode.
      */
-    private static final byte SYMBOLIC_LINK_ON = 1;
+    private static final byte INLINE_DATA_FLAG = 4;
     
     /**
-     * Used to indicate in the metablock that this node is not a symbolic link.
+     * The inode flag marking the copy of a node preserved for a snapshot.
      */
-    private static final byte SYMBOLIC_LINK_OFF = 0;
+    private static final byte PRESERVED_FLAG = 8;
     
     /**
-     * Each file system block is half kilobytes large.
+     * The inode flag indicating that the regular file stores its content 
+     * compressed, or that the directory passes the compression on to its new
+     * children.
      */
-    private static final int BLOCK_SIZE = 512;
+    private static final byte COMPRESSED_FLAG = 16;
+    
+    /**
+     * The maximum size of a regular file whose content is stored in its 
+     * inode.
+     */
+    private static final int INLINE_DATA_CAPACITY = 
+            VirtualFileSystemInodeTable.DATA_AREA_SIZE;
     
     /**
      * Maximum number of {@code char}s in a node name regardless of the type of
@@ -49,9 +120,20 @@ public class VirtualFileSystemNode {
     private static final int MAXIMUM_NODE_NAME_LENGTH = 64;
     
     /**
-     * The number of bytes in a password hash.
+     * Maximum number of bytes in the UTF-8 encoding of a node name, so that 
+     * the metadata of any node fits in its inode.
+     */
+    private static final int MAXIMUM_NODE_NAME_BYTES = 96;
+    
+    /**
+     * The quota value meaning that a directory has no quota.
+     */
+    public static final long NO_QUOTA = -1L;
+    
+    /**
+     * The name of the root directory.
      */
-    private static final int PASSWORD_HASH_LENGTH = 32;
+    static final String ROOT_DIRECTORY_NAME = "/";
     
     /**
      * Stores the node type of this node.
@@ -62,20 +144,52 @@ public class VirtualFileSystemNode {
      * Points to the parent node that is a directory. For all nodes except the
      * root node "/" this field is not null.
      */
-    private VirtualFileSystemNode parent;
+    private volatile VirtualFileSystemNode parent;
     
     /**
-     * If this node is a file and was accessed, stores the binary data of the 
-     * file.
+     * If this object is a file, caches the size of the file. If this object
+     * is a directory, holds the total size of all the files in its subtree as
+     * of the last time the inode was written; the changes since then are in
+     * {@code subtreeSizeDelta}.
+     */
+    private long nodeSize;
+    
+    /**
+     * If this node is a directory, the changes of the total size of its 
+     * subtree not yet folded into {@code nodeSize}; {@code null} otherwise.
+     */
+    private LongAdder subtreeSizeDelta;
+    
+    /**
+     * If this node is a directory, the number of nodes in its subtree, not 
+     * counting the directory itself, as of the last time the inode was 
+     * written.
      */
-    private byte[] fileData;
+    private long nodeCount;
     
     /**
-     * If this object is a file, caches the size of the file. Otherwise, this 
-     * object is directory, and this field caches the size of all files in this
-     * subtree. If this node is a link, caches the size of the linked node.
+     * If this node is a directory, the changes of the node count not yet 
+     * folded into {@code nodeCount}; {@code null} otherwise.
      */
-    private int nodeSize;
+    private LongAdder nodeCountDelta;
+    
+    /**
+     * Set when the totals of this directory changed after its inode was last
+     * written.
+     */
+    private volatile boolean accountingDirty;
+    
+    /**
+     * If this node is a directory, the maximum total size of the files in its
+     * subtree, or {@link #NO_QUOTA}.
+     */
+    private volatile long byteQuota = NO_QUOTA;
+    
+    /**
+     * If this node is a directory, the maximum number of nodes in its 
+     * subtree, or {@link #NO_QUOTA}.
+     */
+    private volatile long nodeQuota = NO_QUOTA;
     
     /**
      * Stores the time at which this node was created. The number of 
@@ -100,92 +214,257 @@ public class VirtualFileSystemNode {
     
     /**
      * If this node is a directory, this map maps each node name to its node.
+     * The map holds only the children loaded so far: it is {@code null} until
+     * the directory is traversed for the first time, and again after the 
+     * directory was unloaded.
      */
     private Map<String, VirtualFileSystemNode> childMap;
     
+    /**
+     * Set to {@code true} whenever {@code childMap} holds all the children of
+     * this directory.
+     */
+    private boolean childMapComplete;
+    
+    /**
+     * If this directory was unloaded, the children it dropped by their inode
+     * numbers, or {@code null} if there are none. The children are held 
+     * weakly: a child still referenced elsewhere, such as by an open channel,
+     * is attached again on the next traversal instead of being read into a
+     * second node object diverging from it.
+     */
+    private Map<Integer, WeakReference<VirtualFileSystemNode>> 
+            unloadedChildMap;
+    
+    /**
+     * If this node is a directory, the index of the root block of the B+-tree
+     * mapping the child names to their inode numbers, or 
+     * {@link VirtualDirectoryIndex#NO_BLOCK} if the directory index is empty.
+     */
+    private int directoryIndexRootBlockIndex = VirtualDirectoryIndex.NO_BLOCK;
+    
+    /**
+     * The time at which the child map of this directory was last traversed.
+     * Used for unloading cold subtrees; not persisted.
+     */
+    private volatile long lastTraversalTime;
+    
+    /**
+     * The file system this node belongs to, or {@code null} if the node is 
+     * not attached to any file system.
+     */
+    private VirtualFilesystem fileSystem;
+    
     /**
      * This field contains the name of this node. If this node represents a
      * file, this is the name of that very file. Otherwise, this object 
      * represents a directory.
      */
-    private String nodeName;
+    private volatile String nodeName;
     
     /**
      * If this node is a symbolic link, this field points to the linked node.
      */
-    private VirtualFileSystemNode link;
+    private volatile VirtualFileSystemNode link;
     
     /**
-     * If this node is password protected, this field contains the SHA-256 hash
-     * of the password. If no password is set for this node, this field is
-     * {@code null}.
+     * If this node is password protected, this field contains the salted 
+     * hash of the password created by {@link VirtualPasswordHasher}. If no
+     * password is set for this node, this field is {@code null}.
      */
     private byte[] passwordHash;
     
     /**
-     * Set to {@code true} whenever this node represents a regular file whose
-     * data was modified but not committed.
+     * The number of the inode that contains the metadata of this node or -1 
+     * if this node was not persisted into the native image file.
+     */
+    private volatile int inodeNumber;
+    
+    /**
+     * If this node is a symbolic link read from its inode, the inode number
+     * of the linked node, or -1 otherwise.
+     */
+    private int linkInodeNumber = -1;
+    
+    /**
+     * Guards the children of this directory, {@code childMapComplete} and 
+     * {@code directoryIndexRootBlockIndex}, or the content of this regular
+     * file.
+     */
+    private final ReentrantReadWriteLock nodeLock = 
+            new ReentrantReadWriteLock();
+    
+    /**
+     * Guards the node size and the time stamps of this node.
+     */
+    private final StampedLock metadataLock = new StampedLock();
+    
+    /**
+     * If this node is a regular file, maps the blocks of the file to the 
+     * blocks of the image.
+     */
+    private VirtualFileExtentMap extentMap;
+    
+    /**
+     * If this node is a regular file whose content is stored in its inode, 
+     * holds the content followed by zeros; {@code null} otherwise. A file 
+     * starts out inline and moves to data blocks when it grows past 
+     * {@link #INLINE_DATA_CAPACITY} bytes.
+     */
+    private byte[] inlineData;
+    
+    /**
+     * If this node is a regular file being written with a known final size,
+     * the blocks reserved for its growth in allocation order; {@code null} 
+     * otherwise.
+     */
+    private ArrayDeque<VirtualFileSystemBlockIndexRange> reservedRanges;
+    
+    /**
+     * Whether this regular file stores its content compressed, or whether 
+     * this directory passes the compression on to the nodes created in it.
+     */
+    private volatile boolean compressed;
+    
+    /**
+     * If this node is a compressed regular file, the chunk decompressed last,
+     * so that a run of small reads decompresses each chunk once; 
+     * {@code null} if there is none.
      */
-    private boolean dirty;
+    private volatile DecodedChunk decodedChunk;
     
     /**
-     * The index of the block that contains the metadata of this node or -1 if
-     * this node was not persisted into the native image file.
+     * The generation of the newest snapshot when the state of this node on 
+     * the image came to be. A snapshot of a later generation sees this 
+     * state, so the state is preserved before the node changes.
      */
-    private int metablockIndex;
+    private volatile long generation;
     
-    private final List<VirtualFileBlock> dataBlockList = null;
+    /**
+     * The snapshot this read-only node belongs to, or {@code null} if this
+     * node belongs to the live tree.
+     */
+    private VirtualFileSystemSnapshot snapshot;
     
     
     
+    /**
+     * Creates a regular file. The password, if given, is hashed here with a
+     * fresh salt, which is slow by design; protected nodes are best created
+     * via {@link VirtualFileSystemSession#createRegularFile}, which derives
+     * the hash of a password once per session.
+     * 
+     * @param fileName        the name of the file.
+     * @param password        the password of the file, or {@code null}.
+     * @param parentDirectory the directory of the file.
+     * @return the new file.
+     */
     public static VirtualFileSystemNode 
         createRegularFile(String fileName, 
                           String password, 
                           VirtualFileSystemNode parentDirectory) {
-        VirtualFileSystemNode node =
-                new VirtualFileSystemNode(
-                        fileName,
-                        password,
-                        parentDirectory,
-                        VirtualFileSystemNodeType.REGULAR_FILE,
-                        null);
-                                                               
-        return node;
+        return createNode(fileName,
+                          hashPassword(password),
+                          parentDirectory,
+                          VirtualFileSystemNodeType.REGULAR_FILE,
+                          null);
     }
         
+    /**
+     * Creates a directory. The password is hashed as in 
+     * {@link #createRegularFile(String, String, VirtualFileSystemNode)}.
+     * 
+     * @param directoryName   the name of the directory.
+     * @param password        the password of the directory, or 
+     *                        {@code null}.
+     * @param parentDirectory the parent directory.
+     * @return the new directory.
+     */
     public static VirtualFileSystemNode
         createDirectory(String directoryName,
                         String password,
                         VirtualFileSystemNode parentDirectory) {
-        VirtualFileSystemNode node = 
-                new VirtualFileSystemNode(
-                        directoryName,
-                        password,
-                        parentDirectory,
-                        VirtualFileSystemNodeType.DIRECTORY,
-                        null);
-        
-        return node;
+        return createNode(directoryName,
+                          hashPassword(password),
+                          parentDirectory,
+                          VirtualFileSystemNodeType.DIRECTORY,
+                          null);
     }
         
+    /**
+     * Creates a symbolic link. The password is hashed as in 
+     * {@link #createRegularFile(String, String, VirtualFileSystemNode)}.
+     * 
+     * @param linkName        the name of the link.
+     * @param password        the password of the link, or {@code null}.
+     * @param parentDirectory the directory of the link.
+     * @param linkedNode      the node the link points to.
+     * @return the new link.
+     */
     public static VirtualFileSystemNode
         createSymbolicLink(String linkName,
                            String password,
                            VirtualFileSystemNode parentDirectory,
                            VirtualFileSystemNode linkedNode) {
         Objects.requireNonNull(linkedNode, "The linked node is null.");
+        return createNode(linkName,
+                          hashPassword(password),
+                          parentDirectory,
+                          VirtualFileSystemNodeType.SYMBOLIC_LINK,
+                          linkedNode);
+    }
+    
+    /**
+     * Creates a node protected by a password hash derived beforehand, and 
+     * attaches it to the given directory.
+     * 
+     * @param nodeName        the name of the node.
+     * @param passwordHash    the password hash, or {@code null} if the node 
+     *                        is not protected.
+     * @param parentDirectory the parent directory.
+     * @param nodeType        the type of the node.
+     * @param linkedNode      the linked node of a symbolic link.
+     * @return the new node.
+     */
+    static VirtualFileSystemNode createNode(
+            String nodeName,
+            byte[] passwordHash,
+            VirtualFileSystemNode parentDirectory,
+            VirtualFileSystemNodeType nodeType,
+            VirtualFileSystemNode linkedNode) {
         VirtualFileSystemNode node =
-                new VirtualFileSystemNode(
-                        linkName,
-                        password,
-                        parentDirectory,
-                        VirtualFileSystemNodeType.SYMBOLIC_LINK,
-                        linkedNode);
-        return null;
+                new VirtualFileSystemNode(nodeName,
+                                          passwordHash,
+                                          parentDirectory,
+                                          nodeType,
+                                          linkedNode);
+        parentDirectory.attachNode(node);
+        return node;
+    }
+    
+    /**
+     * Creates the root directory whose metadata is to be stored in the given
+     * inode.
+     * 
+     * @param inodeNumber the inode number of the root directory.
+     * @return the root directory.
+     */
+    static VirtualFileSystemNode createRootDirectory(int inodeNumber) {
+        VirtualFileSystemNode root = 
+                new VirtualFileSystemNode(ROOT_DIRECTORY_NAME,
+                                          VirtualFileSystemNodeType.DIRECTORY,
+                                          inodeNumber);
+        
+        long currentTime = System.currentTimeMillis();
+        
+        root.creationTime         = currentTime;
+        root.lastAccessedTime     = currentTime;
+        root.lastModificationTime = currentTime;
+        return root;
     }
     
     private VirtualFileSystemNode(String nodeName,
-                                  String password,
+                                  byte[] passwordHash,
                                   VirtualFileSystemNode parentDirectory,
                                   VirtualFileSystemNodeType nodeType,
                                   VirtualFileSystemNode linked) {
@@ -196,26 +475,27 @@ public class VirtualFileSystemNode {
         
         this.nodeName = checkNodeName(nodeName, parentDirectory);
         this.nodeType = nodeType;
+        this.link = linked;
+        this.inodeNumber = -1;
+        this.compressed = parentDirectory.compressed &&
+                          nodeType != VirtualFileSystemNodeType.SYMBOLIC_LINK;
         
         switch (nodeType) {
             case REGULAR_FILE:
+                this.extentMap = new VirtualFileExtentMap();
+                this.inlineData = new byte[INLINE_DATA_CAPACITY];
+                break;
                 
             case DIRECTORY:
+                this.subtreeSizeDelta = new LongAdder();
+                this.nodeCountDelta = new LongAdder();
+                break;
                 
             case SYMBOLIC_LINK:
                 
         }
         
-        if (password != null) {
-            try {
-                byte[] passwordHash = 
-                        MessageDigest
-                            .getInstance("SHA-256")
-                            .digest(password.getBytes(StandardCharsets.UTF_8));
-            } catch (NoSuchAlgorithmException ex) {
-                throw new RuntimeException("Cannot hash the password.", ex);
-            }
-        }
+        this.passwordHash = passwordHash;
         
         long currentTime = System.currentTimeMillis();
         
@@ -224,157 +504,2994 @@ public class VirtualFileSystemNode {
         this.lastModificationTime = currentTime;        
     }
         
+    /**
+     * Constructs a node read from its inode.
+     * 
+     * @param nodeName    the name of the node.
+     * @param nodeType    the type of the node.
+     * @param inodeNumber the inode number of the node.
+     */
+    private VirtualFileSystemNode(String nodeName,
+                                  VirtualFileSystemNodeType nodeType,
+                                  int inodeNumber) {
+        this.nodeName = nodeName;
+        this.nodeType = nodeType;
+        this.inodeNumber = inodeNumber;
+        
+        if (nodeType == VirtualFileSystemNodeType.DIRECTORY) {
+            this.subtreeSizeDelta = new LongAdder();
+            this.nodeCountDelta = new LongAdder();
+        }
+    }
+        
+    /**
+     * Checks whether this directory contains a node with the given name. If
+     * the child is not loaded yet, the directory index is consulted without 
+     * loading any children.
+     * 
+     * @param name the name to check.
+     * @return {@code true} if a child with the given name exists.
+     */
     public boolean containsNodeName(String name) {
         switch (nodeType) {
             case DIRECTORY:
-                return childMap.containsKey(name);
+                nodeLock.readLock().lock();
+                
+                try {
+                    return getLoadedChild(name) != null
+                            || (!childMapComplete && lookupIndex(name) != -1);
+                } finally {
+                    nodeLock.readLock().unlock();
+                }
                 
             case REGULAR_FILE:
                 throw new IllegalStateException("This node is a regular file.");
                 
             case SYMBOLIC_LINK:
-                return link.containsNodeName(name);
+                return getLink().containsNodeName(name);
                 
             default:
                 throw new IllegalStateException("This should not be thrown.");
         }
     }
     
-    public void attachNode(VirtualFileSystemNode node) {
-        Objects.requireNonNull(node, "The input node is null.");
-    }
-    
     /**
-     * Returns the node size. If this node represents a regular file, the size
-     * of that file is returned. If this node represents a directory, returns 
-     * the size of all the file in the subtree represented by this directory.
-     * If this node is a link, returns recursively the size of the linked node.
+     * Returns the child node with the given name. If this node is a symbolic
+     * link, the child is looked up in the linked node. Only the requested 
+     * child is loaded.
      * 
-     * @return the size in bytes.
+     * @param name the name of the child.
+     * @return the child node, or {@code null} if there is no such child.
      */
-    public int getNodeSize() {
-        return nodeSize;
+    public VirtualFileSystemNode getChild(String name) {
+        switch (nodeType) {
+            case DIRECTORY:
+                nodeLock.readLock().lock();
+                
+                try {
+                    VirtualFileSystemNode child = getLoadedChild(name);
+                    
+                    if (child != null || childMapComplete) {
+                        return child;
+                    }
+                    
+                    if (lookupIndex(name) == -1) {
+                        return null;
+                    }
+                } finally {
+                    nodeLock.readLock().unlock();
+                }
+                
+                // The child exists but is not loaded. Loading modifies the 
+                // child map, so retry under the write lock:
+                nodeLock.writeLock().lock();
+                
+                try {
+                    VirtualFileSystemNode child = getLoadedChild(name);
+                    
+                    if (child != null || childMapComplete) {
+                        return child;
+                    }
+                    
+                    int childInodeNumber = lookupIndex(name);
+                    
+                    if (childInodeNumber == -1) {
+                        return null;
+                    }
+                    
+                    return loadChild(childInodeNumber);
+                } finally {
+                    nodeLock.writeLock().unlock();
+                }
+                
+            case REGULAR_FILE:
+                throw new IllegalStateException("This node is a regular file.");
+                
+            case SYMBOLIC_LINK:
+                return getLink().getChild(name);
+                
+            default:
+                throw new IllegalStateException("This should not be thrown.");
+        }
     }
     
     /**
-     * Returns the creation time stamp of this node that is represented by the
-     * number of milliseconds since the Unix Epoch (00:00:00 UTC Thursday 1
-     * January, 1970).
+     * Returns all the children of this directory, loading those not loaded
+     * yet.
      * 
-     * @return the creation time stamp.
+     * @return the unmodifiable snapshot of the children.
      */
-    public long getCreationTimestamp() {
-        return creationTime;
+    public Collection<VirtualFileSystemNode> getChildren() {
+        checkIsDirectory();
+        nodeLock.writeLock().lock();
+        
+        try {
+            return Collections.unmodifiableCollection(
+                    new ArrayList<>(getChildMap().values()));
+        } finally {
+            nodeLock.writeLock().unlock();
+        }
     }
     
     /**
-     * Returns the last access time stamp in milliseconds since the Unix Epoch.
+     * Lists in ascending order at most {@code limit} child names not smaller 
+     * than {@code fromName}. Only the directory index is read; no child is 
+     * loaded.
      * 
-     * @return the last access time stamp.
+     * @param fromName the smallest name to list, or {@code null} to list from
+     *                 the first name.
+     * @param limit    the maximum number of names to list.
+     * @return the list of child names.
      */
-    public long getLastAccessTimestamp() {
-        return lastAccessedTime;
+    public List<String> listChildNames(String fromName, int limit) {
+        checkIsDirectory();
+        List<String> names = new ArrayList<>();
+        nodeLock.readLock().lock();
+        
+        try {
+            if (fileSystem == null) {
+                if (childMap == null) {
+                    return names;
+                }
+                
+                String fromKey = fromName == null ? "" : fromName;
+                
+                for (String name : new TreeSet<>(childMap.keySet())
+                                         .tailSet(fromKey)) {
+                    if (names.size() == limit) {
+                        break;
+                    }
+                    
+                    names.add(name);
+                }
+                
+                return names;
+            }
+            
+            getDirectoryIndex().scan(fromName, (name, inodeNumber) -> {
+                if (names.size() == limit) {
+                    return false;
+                }
+                
+                names.add(name);
+                return true;
+            });
+            
+            return names;
+        } finally {
+            nodeLock.readLock().unlock();
+        }
     }
     
     /**
-     * Returns the last modification time stamp in milliseconds since the Unix
-     * Epoch.
+     * Attaches the given node to this directory and persists the new entry. 
+     * If the node was not yet persisted, an inode is allocated for it. The 
+     * size and the node count of the subtree of the node are added to the 
+     * totals of this directory and of all the directories above it.
      * 
-     * @return the last modification time stamp.
+     * @param node the node to attach.
+     * @throws QuotaExceededException if the node would exceed a quota of 
+     *                                this directory or of a directory above
+     *                                it.
      */
-    public long getLastModificationTimestamp() {
-        return lastModificationTime;
+    public void attachNode(VirtualFileSystemNode node) {
+        attachNode(node, true);
     }
     
-    public void loadFile() {
+    /**
+     * Attaches the given node to this directory, checking the quotas only if
+     * {@code checkQuotas} is set.
+     * 
+     * @param node        the node to attach.
+     * @param checkQuotas whether to check the quotas.
+     */
+    private void attachNode(VirtualFileSystemNode node, boolean checkQuotas) {
+        Objects.requireNonNull(node, "The input node is null.");
+        checkIsDirectory();
+        checkWritable();
+        node.checkWritable();
+        beginOperation();
+        Lock accountingLock = lockAccounting(node);
+        nodeLock.writeLock().lock();
+        boolean reserved = false;
         
+        try {
+            if (node.parent != null) {
+                throw new IllegalArgumentException(
+                        "The node \"" + node.nodeName + "\" is already " +
+                        "attached.");
+            }
+            
+            if (containsNodeName(node.nodeName)) {
+                throw new IllegalArgumentException("The name \"" + 
+                        node.nodeName + "\" is already occupied.");
+            }
+            
+            node.nodeLock.readLock().lock();
+            
+            try {
+                if (checkQuotas) {
+                    checkQuotas(node.getAccountedSize(),
+                                node.getAccountedNodeCount());
+                }
+                
+                if (fileSystem != null) {
+                    reserveAttachment(node);
+                    reserved = true;
+                }
+                
+                node.parent = this;
+                node.propagate(node.getAccountedSize(), 
+                               node.getAccountedNodeCount());
+            } finally {
+                node.nodeLock.readLock().unlock();
+            }
+            
+            getLoadedChildMap().put(node.nodeName, node);
+            touch();
+            
+            if (fileSystem != null) {
+                fileSystem.getPathCache().invalidate(node.getPath());
+                node.fileSystem = fileSystem;
+                fileSystem.writeNode(node);
+                
+                VirtualDirectoryIndex directoryIndex = getDirectoryIndex();
+                directoryIndex.insert(node.nodeName, node.inodeNumber);
+                directoryIndexRootBlockIndex = 
+                        directoryIndex.getRootBlockIndex();
+                fileSystem.writeNode(this);
+            }
+        } finally {
+            if (reserved) {
+                fileSystem.releaseReservation();
+            }
+            
+            nodeLock.writeLock().unlock();
+            unlockAccounting(accountingLock);
+            endOperation();
+        }
     }
     
-    public void storeFile() {
+    /**
+     * Detaches the child with the given name from this directory and removes
+     * its entry from the image. The inode of the child is not freed. The size
+     * and the node count of the subtree of the child are subtracted from the
+     * totals of this directory and of all the directories above it.
+     * 
+     * @param name the name of the child to detach.
+     * @return the detached child.
+     */
+    public VirtualFileSystemNode detachNode(String name) {
+        checkIsDirectory();
+        checkWritable();
+        beginOperation();
         
+        try {
+            while (true) {
+                VirtualFileSystemNode node = getChild(name);
+                
+                if (node == null) {
+                    throw new IllegalArgumentException(
+                            "No node named \"" + name + "\" in this " +
+                            "directory.");
+                }
+                
+                // The move lock is taken in the mode the child calls for, 
+                // so the child is looked up again under the lock:
+                Lock accountingLock = lockAccounting(node);
+                nodeLock.writeLock().lock();
+                
+                try {
+                    if (getChild(name) == node) {
+                        detachChild(node);
+                        return node;
+                    }
+                } finally {
+                    nodeLock.writeLock().unlock();
+                    unlockAccounting(accountingLock);
+                }
+            }
+        } finally {
+            endOperation();
+        }
     }
     
     /**
-     * Converts this node's metadata into a metablock, that describes the node
-     * and not its content.
+     * Detaches the given child, holding the write lock of this directory and
+     * the move lock.
      * 
-     * @return the metablock bytes.
+     * @param node the child to detach.
      */
-    byte[] convertToMetaBlock() {
-        ByteBuffer byteBuffer = ByteBuffer.allocate(BLOCK_SIZE)
-                                          .order(ByteOrder.LITTLE_ENDIAN);
-        // Emit the node type:
-        byteBuffer.put(nodeType.getValue());
-        
-        // The index of the block that contains the metadata of the parent node:
-        byteBuffer.putInt(parent.metablockIndex);
+    private void detachChild(VirtualFileSystemNode node) {
+        if (fileSystem != null) {
+            prepareIndexChange();
+            
+            if (node.nodeType == VirtualFileSystemNodeType.DIRECTORY) {
+                fileSystem.getPathCache().invalidateSubtree(node.getPath());
+            } else {
+                fileSystem.getPathCache().invalidate(node.getPath());
+            }
+        }
         
-        // The number of characters in the name of this node:
-        int nodeNameLength = nodeName.length();
-        byteBuffer.putInt(nodeNameLength);
+        childMap.remove(node.nodeName);
+        node.nodeLock.readLock().lock();
         
-        // The actual node name characters:
-        for (int i = 0; i < nodeNameLength; ++i) {
-            byteBuffer.putChar(nodeName.charAt(i));
+        try {
+            node.propagate(-node.getAccountedSize(), 
+                           -node.getAccountedNodeCount());
+            node.parent = null;
+        } finally {
+            node.nodeLock.readLock().unlock();
         }
         
-        // The file size:
-        byteBuffer.putInt(nodeSize);
+        touch();
         
-        // Password?
-        byteBuffer.put(passwordHash != null ? PASSWORD_ON : PASSWORD_OFF);
+        if (fileSystem != null) {
+            VirtualDirectoryIndex directoryIndex = getDirectoryIndex();
+            directoryIndex.delete(node.nodeName);
+            directoryIndexRootBlockIndex = directoryIndex.getRootBlockIndex();
+            fileSystem.writeNode(this);
+        }
+    }
+    
+    /**
+     * Renames this node within its parent directory.
+     * 
+     * @param newName the new name of this node.
+     */
+    public void rename(String newName) {
+        VirtualFileSystemNode parentDirectory = parent;
         
-        if (passwordHash != null) {
-            // Indicate that password present:
-            byteBuffer.put(PASSWORD_ON);
-            
-            // Emit the password hash:
-            byteBuffer.put(passwordHash);
-        } else {
-            byteBuffer.put(PASSWORD_OFF);
+        if (parentDirectory == null) {
+            throw new IllegalStateException(
+                    "The node \"" + nodeName + "\" is not attached.");
         }
         
-        // The creation time stamp:
-        byteBuffer.putLong(creationTime);
+        moveTo(parentDirectory, newName);
+    }
+    
+    /**
+     * Moves this node to the given directory under the given name. Moves are
+     * serialized by the file system; the source and the target directories 
+     * are locked top-down.
+     * 
+     * @param targetDirectory the directory to move this node to.
+     * @param newName         the name of this node in the target directory.
+     */
+    public void moveTo(VirtualFileSystemNode targetDirectory, String newName) {
+        Objects.requireNonNull(targetDirectory, 
+                               "The target directory is null.");
+        Objects.requireNonNull(newName, "The new name is null.");
+        targetDirectory.checkIsDirectory();
+        checkWritable();
+        targetDirectory.checkWritable();
         
-        // The last access time stamp:
-        byteBuffer.putLong(lastAccessedTime);
+        if (fileSystem == null || targetDirectory.fileSystem != fileSystem) {
+            throw new IllegalArgumentException(
+                    "The node \"" + nodeName + "\" and the target " +
+                    "directory are not in the same file system.");
+        }
         
-        // The last modification time stamp:
-        byteBuffer.putLong(lastModificationTime);
+        fileSystem.beginOperation();
+        Lock moveLock = fileSystem.getMoveLock();
+        moveLock.lock();
         
-        if (link != null) {
-            byteBuffer.put(SYMBOLIC_LINK_ON);
-            byteBuffer.putInt(link.metablockIndex);
-        } else {
-            byteBuffer.put(SYMBOLIC_LINK_OFF);
+        try {
+            VirtualFileSystemNode sourceDirectory = parent;
+            
+            if (sourceDirectory == null) {
+                throw new IllegalStateException(
+                        "The node \"" + nodeName + "\" is not attached.");
+            }
+            
+            for (VirtualFileSystemNode node = targetDirectory; 
+                    node != null; 
+                    node = node.parent) {
+                if (node == this) {
+                    throw new IllegalArgumentException(
+                            "Cannot move the directory \"" + nodeName + 
+                            "\" into its own subtree.");
+                }
+            }
+            
+            List<VirtualFileSystemNode> directories = 
+                    lockTopDown(sourceDirectory, targetDirectory);
+            
+            try {
+                targetDirectory.checkNodeName(newName, targetDirectory);
+                reserveMove(sourceDirectory, targetDirectory);
+                
+                try {
+                    sourceDirectory.detachNode(nodeName);
+                    String oldName = nodeName;
+                    nodeName = newName;
+                    
+                    try {
+                        targetDirectory.attachNode(this, true);
+                    } catch (RuntimeException ex) {
+                        // Put the node back where it was:
+                        nodeName = oldName;
+                        sourceDirectory.attachNode(this, false);
+                        throw ex;
+                    }
+                } finally {
+                    fileSystem.releaseReservation();
+                }
+            } finally {
+                unlockAll(directories);
+            }
+        } finally {
+            moveLock.unlock();
+            fileSystem.endOperation();
         }
+    }
+    
+    /**
+     * Readies the source and the target directory of a move of this node and 
+     * reserves the index blocks of attaching this node to either of them, so
+     * that once this node is detached it can always be attached again: to 
+     * the target directory, or back to the source directory if the target 
+     * refuses it. Paired with {@link VirtualFilesystem#releaseReservation()}.
+     * 
+     * @param sourceDirectory the current parent directory of this node.
+     * @param targetDirectory the directory this node moves to.
+     */
+    private void reserveMove(VirtualFileSystemNode sourceDirectory, 
+                             VirtualFileSystemNode targetDirectory) {
+        nodeLock.readLock().lock();
         
-        if (nodeType.equals(VirtualFileSystemNodeType.DIRECTORY)) {
-            // Emit something relevant for directory. TODO:
+        try {
+            preserve();
+        } finally {
+            nodeLock.readLock().unlock();
         }
         
-        byteBuffer.position(0);
-        return byteBuffer.array();
+        sourceDirectory.prepareIndexChange();
+        targetDirectory.prepareIndexChange();
+        fileSystem.reserve(
+                0, 
+                sourceDirectory.getDirectoryIndex().getHeight() + 1 +
+                targetDirectory.getDirectoryIndex().getHeight() + 1);
     }
     
-    private String checkNodeName(String name, 
-                                 VirtualFileSystemNode parentDirectory) {
-        if (name.isEmpty()) {
-            throw new IllegalArgumentException("The name of a node is empty.");
-        }
+    /**
+     * Detaches this node from its parent directory and frees its inode.
+     * A directory must be empty in order to be deleted.
+     */
+    public void delete() {
+        checkWritable();
+        beginOperation();
+        Lock accountingLock = lockAccounting(this);
+        VirtualFileSystemNode parentDirectory;
         
-        if (name.length() > MAXIMUM_NODE_NAME_LENGTH) {
-            throw new IllegalArgumentException("The node name is " +
-                    (name.length() - MAXIMUM_NODE_NAME_LENGTH) +
-                    " character(s) too long.");
+        try {
+            parentDirectory = lockParent();
+        } catch (RuntimeException ex) {
+            unlockAccounting(accountingLock);
+            endOperation();
+            throw ex;
         }
         
-        if (parentDirectory.containsNodeName(name)) {
-            throw new IllegalArgumentException("The name \"" + name + "\"" +
-                    " is already occupied.");
+        try {
+            nodeLock.writeLock().lock();
+            
+            try {
+                if (nodeType == VirtualFileSystemNodeType.DIRECTORY
+                        && !listChildNames(null, 1).isEmpty()) {
+                    throw new IllegalStateException(
+                            "The directory \"" + nodeName + "\" is not " +
+                            "empty.");
+                }
+                
+                parentDirectory.detachNode(nodeName);
+                
+                if (fileSystem != null) {
+                    preserve();
+                    
+                    if (nodeType == VirtualFileSystemNodeType.DIRECTORY) {
+                        releaseDirectoryIndex();
+                    } else if (nodeType 
+                            == VirtualFileSystemNodeType.REGULAR_FILE) {
+                        freeReservedBlocks();
+                        
+                        if (inlineData == null) {
+                            loadExtentMap();
+                            resize(0L);
+                            extentMap.store(fileSystem);
+                        }
+                    }
+                    
+                    fileSystem.freeInode(inodeNumber);
+                    inodeNumber = -1;
+                }
+            } finally {
+                nodeLock.writeLock().unlock();
+            }
+        } finally {
+            parentDirectory.nodeLock.writeLock().unlock();
+            unlockAccounting(accountingLock);
+            endOperation();
+        }
+    }
+    
+    /**
+     * Returns the absolute path of this node. The path of a node that is not
+     * attached to the root directory starts with the name of the topmost
+     * detached directory.
+     * 
+     * @return the path of this node.
+     */
+    public String getPath() {
+        if (parent == null) {
+            return nodeName;
         }
         
-        return name;
+        String parentPath = parent.getPath();
+        
+        return parentPath.endsWith("/") ? parentPath + nodeName :
+                                          parentPath + "/" + nodeName;
+    }
+    
+    /**
+     * Returns the parent directory of this node.
+     * 
+     * @return the parent directory, or {@code null} for the root directory.
+     */
+    public VirtualFileSystemNode getParent() {
+        return parent;
+    }
+    
+    /**
+     * Returns the name of this node.
+     * 
+     * @return the node name.
+     */
+    public String getNodeName() {
+        return nodeName;
+    }
+    
+    /**
+     * Returns the type of this node.
+     * 
+     * @return the node type.
+     */
+    public VirtualFileSystemNodeType getNodeType() {
+        return nodeType;
+    }
+    
+    /**
+     * Returns the node size. If this node represents a regular file, the size
+     * of that file is returned. If this node represents a directory, returns 
+     * the total size of all the files in the subtree represented by this 
+     * directory. The total is maintained incrementally, so it is returned in
+     * constant time.
+     * 
+     * @return the size in bytes.
+     */
+    public long getNodeSize() {
+        if (nodeType == VirtualFileSystemNodeType.DIRECTORY) {
+            return readMetadata(() -> nodeSize + subtreeSizeDelta.sum());
+        }
+        
+        return readMetadata(() -> nodeSize);
+    }
+    
+    /**
+     * Returns the number of nodes in the subtree of this directory, not 
+     * counting the directory itself. Like the size of the subtree, the count
+     * is maintained incrementally and returned in constant time.
+     * 
+     * @return the number of nodes below this directory.
+     */
+    public long getNodeCount() {
+        checkIsDirectory();
+        return readMetadata(() -> nodeCount + nodeCountDelta.sum());
+    }
+    
+    /**
+     * Sets the quotas of this directory. A quota below the current total is 
+     * allowed; it stops the subtree from growing until enough is deleted.
+     * 
+     * @param byteQuota the maximum total size of the files in the subtree of
+     *                  this directory, or {@link #NO_QUOTA}.
+     * @param nodeQuota the maximum number of nodes in the subtree of this 
+     *                  directory, or {@link #NO_QUOTA}.
+     */
+    public void setQuotas(long byteQuota, long nodeQuota) {
+        checkIsDirectory();
+        checkWritable();
+        checkQuota(byteQuota);
+        checkQuota(nodeQuota);
+        beginOperation();
+        nodeLock.writeLock().lock();
+        
+        try {
+            this.byteQuota = byteQuota;
+            this.nodeQuota = nodeQuota;
+            
+            if (fileSystem != null) {
+                fileSystem.writeNode(this);
+            }
+        } finally {
+            nodeLock.writeLock().unlock();
+            endOperation();
+        }
+    }
+    
+    /**
+     * Returns the byte quota of this directory. The space in use is returned
+     * by {@link #getNodeSize()}.
+     * 
+     * @return the maximum total size of the files in the subtree, or 
+     *         {@link #NO_QUOTA}.
+     */
+    public long getByteQuota() {
+        checkIsDirectory();
+        return byteQuota;
+    }
+    
+    /**
+     * Returns the node quota of this directory. The nodes in use are counted
+     * by {@link #getNodeCount()}.
+     * 
+     * @return the maximum number of nodes in the subtree, or 
+     *         {@link #NO_QUOTA}.
+     */
+    public long getNodeQuota() {
+        checkIsDirectory();
+        return nodeQuota;
+    }
+    
+    /**
+     * Returns whether this regular file stores its content compressed, or 
+     * whether this directory passes the compression on to the nodes created
+     * in it.
+     * 
+     * @return {@code true} if the compression attribute is set.
+     */
+    public boolean isCompressed() {
+        if (nodeType == VirtualFileSystemNodeType.SYMBOLIC_LINK) {
+            return getLink().isCompressed();
+        }
+        
+        return compressed;
+    }
+    
+    /**
+     * Sets the compression attribute of this node. Setting it on a directory
+     * affects only the nodes created in the directory afterwards. Changing 
+     * it on a regular file rewrites the content of the file chunk by chunk;
+     * a file whose content fits in its inode is compressed once it grows 
+     * out of it.
+     * 
+     * @param compressed whether to compress the content.
+     */
+    public void setCompressed(boolean compressed) {
+        checkWritable();
+        
+        if (nodeType == VirtualFileSystemNodeType.SYMBOLIC_LINK) {
+            getLink().setCompressed(compressed);
+            return;
+        }
+        
+        beginOperation();
+        nodeLock.writeLock().lock();
+        
+        try {
+            if (this.compressed == compressed) {
+                return;
+            }
+            
+            if (nodeType == VirtualFileSystemNodeType.REGULAR_FILE
+                    && inlineData == null) {
+                preserve();
+                loadExtentMap();
+                convertContent(compressed);
+            }
+            
+            this.compressed = compressed;
+            
+            if (fileSystem != null) {
+                if (nodeType == VirtualFileSystemNodeType.REGULAR_FILE) {
+                    extentMap.store(fileSystem);
+                }
+                
+                fileSystem.writeNode(this);
+            }
+        } finally {
+            nodeLock.writeLock().unlock();
+            endOperation();
+        }
+    }
+    
+    /**
+     * Returns the creation time stamp of this node that is represented by the
+     * number of milliseconds since the Unix Epoch (00:00:00 UTC Thursday 1
+     * January, 1970).
+     * 
+     * @return the creation time stamp.
+     */
+    public long getCreationTimestamp() {
+        return readMetadata(() -> creationTime);
+    }
+    
+    /**
+     * Returns the last access time stamp in milliseconds since the Unix Epoch.
+     * 
+     * @return the last access time stamp.
+     */
+    public long getLastAccessTimestamp() {
+        return readMetadata(() -> lastAccessedTime);
+    }
+    
+    /**
+     * Returns the last modification time stamp in milliseconds since the Unix
+     * Epoch.
+     * 
+     * @return the last modification time stamp.
+     */
+    public long getLastModificationTimestamp() {
+        return readMetadata(() -> lastModificationTime);
+    }
+    
+    /**
+     * Checks whether this node is password protected. A protected node 
+     * protects its whole subtree; see {@link VirtualFileSystemSession}.
+     * 
+     * @return {@code true} if this node has a password.
+     */
+    public boolean hasPassword() {
+        return passwordHash != null;
+    }
+    
+    /**
+     * Returns the password hash of this node.
+     * 
+     * @return the hash, or {@code null} if this node has no password.
+     */
+    byte[] getPasswordHash() {
+        return passwordHash;
+    }
+    
+    /**
+     * Returns the node this symbolic link points to.
+     * 
+     * @return the linked node, or {@code null} if this node is not a 
+     *         symbolic link.
+     */
+    VirtualFileSystemNode getLinkedNode() {
+        return nodeType == VirtualFileSystemNodeType.SYMBOLIC_LINK ?
+               getLink() : 
+               null;
+    }
+    
+    /**
+     * Returns the file system holding this node.
+     * 
+     * @return the file system, or {@code null} if this node does not belong
+     *         to any.
+     */
+    VirtualFilesystem getFileSystem() {
+        return fileSystem;
+    }
+    
+    /**
+     * Returns the inode number of this node.
+     * 
+     * @return the inode number, or -1 if this node was not persisted.
+     */
+    int getInodeNumber() {
+        return inodeNumber;
+    }
+    
+    /**
+     * Returns the number of bytes in a block of the file system holding this
+     * node.
+     * 
+     * @return the block size.
+     */
+    int getBlockSize() {
+        checkFileSystem();
+        return fileSystem.getBlockSize();
+    }
+    
+    /**
+     * Returns the read lock of this node. While it is held, the children of
+     * a directory and the extent map of a regular file do not change.
+     * 
+     * @return the read lock.
+     */
+    Lock getReadLock() {
+        return nodeLock.readLock();
+    }
+    
+    /**
+     * Clears the mark set when the totals of this directory change. Called 
+     * right before the inode of the directory is written.
+     */
+    void clearAccountingDirty() {
+        accountingDirty = false;
+    }
+    
+    /**
+     * Sets the inode number of this node.
+     * 
+     * @param inodeNumber the new inode number.
+     */
+    void setInodeNumber(int inodeNumber) {
+        this.inodeNumber = inodeNumber;
+    }
+    
+    /**
+     * Binds this node to the given file system.
+     * 
+     * @param fileSystem the file system holding this node.
+     */
+    void setFileSystem(VirtualFilesystem fileSystem) {
+        this.fileSystem = fileSystem;
+    }
+    
+    /**
+     * Marks the directories above this node as traversed now. A node 
+     * resolved through the path cache bypasses the child maps of the 
+     * directories on its path, which would otherwise look cold however hot
+     * the path is.
+     */
+    void touchAncestors() {
+        long currentTime = System.currentTimeMillis();
+        
+        for (VirtualFileSystemNode directory = parent;
+                directory != null;
+                directory = directory.parent) {
+            directory.lastTraversalTime = currentTime;
+        }
+    }
+    
+    /**
+     * Returns the generation of the state of this node on the image.
+     * 
+     * @return the generation.
+     */
+    long getGeneration() {
+        return generation;
+    }
+    
+    /**
+     * Sets the generation of this node.
+     * 
+     * @param generation the new generation.
+     */
+    void setGeneration(long generation) {
+        this.generation = generation;
+    }
+    
+    /**
+     * Makes this node a read-only node of the given snapshot.
+     * 
+     * @param snapshot the snapshot.
+     */
+    void setSnapshot(VirtualFileSystemSnapshot snapshot) {
+        this.snapshot = snapshot;
+    }
+    
+    /**
+     * Returns the blocks this node refers to which may be shared with the 
+     * snapshots: the data blocks and the first extent block of a regular 
+     * file, or the root block of the index of a directory.
+     * 
+     * @return the referred blocks.
+     */
+    List<VirtualFileSystemBlockIndexRange> getReferencedRanges() {
+        List<VirtualFileSystemBlockIndexRange> ranges = new ArrayList<>();
+        
+        if (nodeType == VirtualFileSystemNodeType.DIRECTORY) {
+            if (directoryIndexRootBlockIndex 
+                    != VirtualDirectoryIndex.NO_BLOCK) {
+                ranges.add(new VirtualFileSystemBlockIndexRange(
+                        directoryIndexRootBlockIndex,
+                        directoryIndexRootBlockIndex));
+            }
+        } else if (nodeType == VirtualFileSystemNodeType.REGULAR_FILE
+                && inlineData == null) {
+            loadExtentMap();
+            ranges.addAll(extentMap.getExtents());
+            int chainBlockIndex = extentMap.getFirstIndirectBlockIndex();
+            
+            if (chainBlockIndex != -1) {
+                ranges.add(new VirtualFileSystemBlockIndexRange(
+                        chainBlockIndex, 
+                        chainBlockIndex));
+            }
+        }
+        
+        return ranges;
+    }
+    
+    /**
+     * Gives up the blocks of this node decoded from a preserved copy. The
+     * blocks still shared lose a reference, the rest are freed.
+     */
+    void releasePreservedCopy() {
+        if (nodeType == VirtualFileSystemNodeType.DIRECTORY) {
+            releaseDirectoryIndex();
+        } else if (nodeType == VirtualFileSystemNodeType.REGULAR_FILE
+                && inlineData == null) {
+            loadExtentMap();
+            
+            for (VirtualFileSystemBlockIndexRange range : 
+                    extentMap.getExtents()) {
+                fileSystem.freeBlocks(range);
+            }
+            
+            extentMap.releaseIndirectChain(fileSystem);
+        }
+    }
+    
+    /**
+     * Drops the child maps of the directories in this subtree that were not
+     * traversed since the given time. The children of an unloaded directory 
+     * are read again from their inodes on the next traversal, except those
+     * still referenced elsewhere, which are attached again as they are; so 
+     * the node objects obtained before the unloading stay valid.
+     * 
+     * @param threshold the time before which a directory counts as cold.
+     * @return the number of unloaded directories.
+     */
+    int unloadColdDirectories(long threshold) {
+        List<VirtualFileSystemNode> childDirectories = new ArrayList<>();
+        nodeLock.writeLock().lock();
+        
+        try {
+            if (childMap == null || fileSystem == null) {
+                purgeUnloadedChildMap();
+                return 0;
+            }
+            
+            if (lastTraversalTime < threshold && parent != null) {
+                fileSystem.getPathCache().invalidateSubtree(getPath());
+                
+                if (unloadedChildMap == null) {
+                    unloadedChildMap = new HashMap<>();
+                }
+                
+                for (VirtualFileSystemNode child : childMap.values()) {
+                    unloadedChildMap.put(child.inodeNumber,
+                                         new WeakReference<>(child));
+                }
+                
+                childMap = null;
+                childMapComplete = false;
+                return 1;
+            }
+            
+            for (VirtualFileSystemNode child : childMap.values()) {
+                if (child.nodeType == VirtualFileSystemNodeType.DIRECTORY) {
+                    childDirectories.add(child);
+                }
+            }
+        } finally {
+            nodeLock.writeLock().unlock();
+        }
+        
+        int unloaded = 0;
+        
+        for (VirtualFileSystemNode childDirectory : childDirectories) {
+            unloaded += childDirectory.unloadColdDirectories(threshold);
+        }
+        
+        return unloaded;
+    }
+    
+    /**
+     * Reads bytes of this regular file starting at the given position into 
+     * the given buffer. Reads as many bytes as fit in the buffer or remain in
+     * the file. The blocks are read through the block cache, so only the 
+     * requested range is ever held in memory.
+     * 
+     * @param position the position in the file.
+     * @param target   the buffer to read into.
+     * @return the number of bytes read, or -1 if {@code position} is at or 
+     *         past the end of the file.
+     */
+    public int readContent(long position, ByteBuffer target) {
+        Objects.requireNonNull(target, "The target buffer is null.");
+        checkPosition(position);
+        
+        if (nodeType == VirtualFileSystemNodeType.SYMBOLIC_LINK) {
+            return getLink().readContent(position, target);
+        }
+        
+        checkIsRegularFile();
+        lockContentForReading();
+        
+        try {
+            long size = getNodeSize();
+            
+            if (position >= size) {
+                return target.hasRemaining() ? -1 : 0;
+            }
+            
+            int length = (int) Math.min(target.remaining(), size - position);
+            
+            if (inlineData != null) {
+                target.put(inlineData, (int) position, length);
+            } else {
+                readBlocks(position, target, length);
+            }
+            
+            long stamp = metadataLock.writeLock();
+            lastAccessedTime = System.currentTimeMillis();
+            metadataLock.unlockWrite(stamp);
+            return length;
+        } finally {
+            nodeLock.readLock().unlock();
+        }
+    }
+    
+    /**
+     * Writes the remaining bytes of the given buffer to this regular file 
+     * starting at the given position. The file grows as needed; a gap between
+     * the old end of the file and {@code position} reads as zeros. The data 
+     * blocks are written through the block cache, and the block list and the
+     * inode through the journal. The content of a file of at most 
+     * {@link #INLINE_DATA_CAPACITY} bytes is written into its inode, and is
+     * moved to a data block once the file grows larger.
+     * 
+     * @param position the position in the file.
+     * @param source   the buffer to write.
+     * @return the number of bytes written.
+     * @throws QuotaExceededException if the file would grow past a byte 
+     *                                quota.
+     */
+    public int writeContent(long position, ByteBuffer source) {
+        Objects.requireNonNull(source, "The source buffer is null.");
+        checkPosition(position);
+        checkWritable();
+        
+        if (nodeType == VirtualFileSystemNodeType.SYMBOLIC_LINK) {
+            return getLink().writeContent(position, source);
+        }
+        
+        checkIsRegularFile();
+        int length = source.remaining();
+        long end = checkFileSize(position + length);
+        beginOperation();
+        Lock accountingLock = lockAccounting(this);
+        nodeLock.writeLock().lock();
+        
+        try {
+            checkFileGrowth(end);
+            preserve();
+            
+            if (inlineData != null && end > INLINE_DATA_CAPACITY) {
+                promoteInlineData();
+            }
+            
+            if (inlineData != null) {
+                source.get(inlineData, (int) position, length);
+                setNodeSize(Math.max(end, getNodeSize()));
+            } else {
+                loadExtentMap();
+                resize(Math.max(end, getNodeSize()));
+                writeBlocks(position, source, length);
+            }
+            
+            storeFile();
+            return length;
+        } finally {
+            nodeLock.writeLock().unlock();
+            unlockAccounting(accountingLock);
+            endOperation();
+        }
+    }
+    
+    /**
+     * Sets the size of this regular file. A file that grows is padded with 
+     * zeros; a file that shrinks frees the blocks past its new end. A file
+     * truncated to at most {@link #INLINE_DATA_CAPACITY} bytes moves its
+     * content into its inode and frees all its blocks.
+     * 
+     * @param size the new size of the file.
+     * @throws QuotaExceededException if the file would grow past a byte 
+     *                                quota.
+     */
+    public void truncate(long size) {
+        checkPosition(size);
+        checkWritable();
+        
+        if (nodeType == VirtualFileSystemNodeType.SYMBOLIC_LINK) {
+            getLink().truncate(size);
+            return;
+        }
+        
+        checkIsRegularFile();
+        checkFileSize(size);
+        beginOperation();
+        Lock accountingLock = lockAccounting(this);
+        nodeLock.writeLock().lock();
+        
+        try {
+            checkFileGrowth(size);
+            preserve();
+            
+            if (size <= INLINE_DATA_CAPACITY) {
+                resizeInline((int) size);
+            } else {
+                if (inlineData != null) {
+                    promoteInlineData();
+                }
+                
+                loadExtentMap();
+                resize(size);
+            }
+            
+            storeFile();
+        } finally {
+            nodeLock.writeLock().unlock();
+            unlockAccounting(accountingLock);
+            endOperation();
+        }
+    }
+    
+    /**
+     * Opens a channel over the content of this regular file. The channel 
+     * supports random access, reads ahead on sequential scans and coalesces
+     * small consecutive writes; the buffered writes reach the file when the
+     * channel is closed, at the latest.
+     * 
+     * @return the channel positioned at the beginning of the file.
+     */
+    public SeekableByteChannel openChannel() {
+        if (nodeType == VirtualFileSystemNodeType.SYMBOLIC_LINK) {
+            return getLink().openChannel();
+        }
+        
+        checkIsRegularFile();
+        return new VirtualFileChannel(this, false);
+    }
+    
+    /**
+     * Opens a stream reading the content of this regular file from the 
+     * beginning.
+     * 
+     * @return the input stream.
+     */
+    public InputStream openInputStream() {
+        return Channels.newInputStream(openChannel());
+    }
+    
+    /**
+     * Opens a stream writing the content of this regular file. Small writes
+     * are coalesced into whole blocks; the buffered bytes reach the file when
+     * the stream is flushed or closed, at the latest.
+     * 
+     * @param append whether to append to the current content instead of 
+     *               replacing it.
+     * @return the output stream.
+     */
+    public OutputStream openOutputStream(boolean append) {
+        if (nodeType == VirtualFileSystemNodeType.SYMBOLIC_LINK) {
+            return getLink().openOutputStream(append);
+        }
+        
+        checkIsRegularFile();
+        
+        if (!append) {
+            truncate(0L);
+        }
+        
+        return new VirtualFileChannel(this, append).newOutputStream();
+    }
+    
+    /**
+     * Loads the data blocks covering the given range of this regular file 
+     * into the block cache ahead of the reads. The reads of all the extents
+     * are submitted to the I/O scheduler at once, and each extent is read 
+     * with as few transfers as possible.
+     * 
+     * @param position the position of the first byte to load.
+     * @param length   the number of bytes to load.
+     */
+    void prefetch(long position, long length) {
+        lockContentForReading();
+        
+        try {
+            long end = Math.min(position + length, getNodeSize());
+            
+            if (position >= end || inlineData != null) {
+                return;
+            }
+            
+            int blockSize = fileSystem.getBlockSize();
+            int firstBlock = (int)(position / blockSize);
+            int lastBlock = (int)((end - 1) / blockSize);
+            VirtualBlockCache blockCache = fileSystem.getBlockCache();
+            
+            if (compressed) {
+                // Load the stored blocks of the whole chunks:
+                int chunkBlocks = 
+                        VirtualFileChunkCodec.getChunkBlocks(blockSize);
+                firstBlock -= firstBlock % chunkBlocks;
+                lastBlock = Math.min(extentMap.getBlockCount() - 1,
+                                     lastBlock - lastBlock % chunkBlocks + 
+                                     chunkBlocks - 1);
+            }
+            
+            List<VirtualFileSystemBlockIndexRange> ranges = new ArrayList<>();
+            
+            for (int fileBlock = firstBlock; fileBlock <= lastBlock;) {
+                int runLength = Math.min(extentMap.getRunLength(fileBlock),
+                                         lastBlock - fileBlock + 1);
+                int blockIndex = extentMap.getBlockIndex(fileBlock);
+                
+                if (blockIndex != VirtualFileExtentMap.HOLE) {
+                    ranges.add(new VirtualFileSystemBlockIndexRange(
+                            blockIndex, 
+                            blockIndex + runLength - 1));
+                }
+                
+                fileBlock += runLength;
+            }
+            
+            blockCache.prefetch(ranges);
+        } finally {
+            nodeLock.readLock().unlock();
+        }
+    }
+    
+    /**
+     * Reserves in a single allocation the blocks this regular file needs to 
+     * grow to the given size, so that a file written piece by piece, 
+     * interleaved with other files, still gets as few extents as possible.
+     * The growth of the file takes the reserved blocks first. The blocks not
+     * taken must be returned with {@link #releaseReservedBlocks()}; blocks 
+     * reserved at a crash stay allocated. A compressed file reserves no 
+     * blocks, since its final number of blocks is not known in advance.
+     * 
+     * @param size the expected final size of the file.
+     */
+    void reserveBlocks(long size) {
+        checkIsRegularFile();
+        checkFileSize(size);
+        
+        if (size <= INLINE_DATA_CAPACITY || compressed) {
+            return;
+        }
+        
+        nodeLock.writeLock().lock();
+        
+        try {
+            loadExtentMap();
+            int blockSize = fileSystem.getBlockSize();
+            int blockCount = (int)((size + blockSize - 1) / blockSize) - 
+                             extentMap.getBlockCount();
+            
+            if (reservedRanges == null) {
+                reservedRanges = new ArrayDeque<>();
+            }
+            
+            if (blockCount > 0) {
+                reservedRanges.addAll(
+                        fileSystem.allocateBlocks(
+                                blockCount, 
+                                extentMap.getGoalBlockIndex()));
+            }
+        } finally {
+            nodeLock.writeLock().unlock();
+        }
+    }
+    
+    /**
+     * Frees the blocks reserved by {@link #reserveBlocks(long)} that the 
+     * file did not take.
+     */
+    void releaseReservedBlocks() {
+        beginOperation();
+        nodeLock.writeLock().lock();
+        
+        try {
+            freeReservedBlocks();
+        } finally {
+            nodeLock.writeLock().unlock();
+            endOperation();
+        }
+    }
+    
+    private void freeReservedBlocks() {
+        if (reservedRanges != null) {
+            for (VirtualFileSystemBlockIndexRange range : reservedRanges) {
+                fileSystem.freeBlocks(range);
+            }
+            
+            reservedRanges = null;
+        }
+    }
+    
+    /**
+     * Encodes the metadata of this node, and not its content, into an inode. 
+     * The metadata is written from the start of the buffer and the data area
+     * at {@link VirtualFileSystemInodeTable#DATA_AREA_OFFSET}; the buffer is
+     * expected to be zeroed.
+     * 
+     * @param inode the buffer of {@link VirtualFileSystemInodeTable#INODE_SIZE}
+     *              bytes receiving the inode.
+     */
+    void encodeInode(ByteBuffer inode) {
+        if (nodeType == VirtualFileSystemNodeType.DIRECTORY) {
+            foldTotals();
+        }
+        
+        inode.put(VirtualFileSystemInodeTable.INODE_VERSION);
+        inode.put(nodeType.getValue());
+        
+        // The inode number of the parent plus one, so that -1 encodes as 0:
+        VirtualFileSystemNode parent = this.parent;
+        VirtualFileSystemInodeTable.putVarint(
+                inode, 
+                parent != null ? parent.inodeNumber + 1L : 0L);
+        
+        VirtualFileSystemInodeTable.putName(inode, nodeName);
+        
+        byte flags = 0;
+        
+        if (passwordHash != null) {
+            flags |= PASSWORD_FLAG;
+        }
+        
+        if (nodeType == VirtualFileSystemNodeType.SYMBOLIC_LINK) {
+            flags |= SYMBOLIC_LINK_FLAG;
+        }
+        
+        if (inlineData != null) {
+            flags |= INLINE_DATA_FLAG;
+        }
+        
+        if (compressed) {
+            flags |= COMPRESSED_FLAG;
+        }
+        
+        long nodeSize;
+        long stamp = metadataLock.readLock();
+        
+        try {
+            nodeSize = this.nodeSize;
+            VirtualFileSystemInodeTable.putVarint(inode, nodeSize);
+            inode.put(flags);
+            
+            if (passwordHash != null) {
+                inode.put(passwordHash);
+            }
+            
+            VirtualFileSystemInodeTable.putVarint(inode, creationTime);
+            VirtualFileSystemInodeTable.putVarint(inode, lastAccessedTime);
+            VirtualFileSystemInodeTable.putVarint(inode, lastModificationTime);
+        } finally {
+            metadataLock.unlockRead(stamp);
+        }
+        
+        VirtualFileSystemInodeTable.putVarint(inode, generation);
+        
+        if (nodeType == VirtualFileSystemNodeType.SYMBOLIC_LINK) {
+            VirtualFileSystemNode link = this.link;
+            VirtualFileSystemInodeTable.putVarint(
+                    inode,
+                    (link != null ? link.inodeNumber : linkInodeNumber) + 1L);
+        }
+        
+        if (nodeType == VirtualFileSystemNodeType.SYMBOLIC_LINK) {
+            return;
+        }
+        
+        if (inode.position() > VirtualFileSystemInodeTable.DATA_AREA_OFFSET) {
+            throw new IllegalStateException(
+                    "The metadata of the node \"" + nodeName + "\" does " +
+                    "not fit in an inode.");
+        }
+        
+        inode.position(VirtualFileSystemInodeTable.DATA_AREA_OFFSET);
+        
+        if (nodeType == VirtualFileSystemNodeType.DIRECTORY) {
+            // The root block of the directory index and the node count:
+            inode.putInt(directoryIndexRootBlockIndex);
+            VirtualFileSystemInodeTable.putVarint(inode, nodeCount);
+            
+            // The quotas plus one, so that NO_QUOTA encodes as 0:
+            VirtualFileSystemInodeTable.putVarint(inode, byteQuota + 1L);
+            VirtualFileSystemInodeTable.putVarint(inode, nodeQuota + 1L);
+        } else if (inlineData != null) {
+            // The content of the file:
+            inode.put(inlineData, 0, (int) nodeSize);
+        } else {
+            // The extent map:
+            extentMap.encodeInline(inode);
+        }
+    }
+    
+    /**
+     * Marks the given inode as the copy of a node preserved for a snapshot.
+     * 
+     * @param inode the inode positioned at its first byte.
+     */
+    static void markPreserved(ByteBuffer inode) {
+        int flagsPosition = getFlagsPosition(inode);
+        inode.put(flagsPosition, 
+                  (byte)(inode.get(flagsPosition) | PRESERVED_FLAG));
+    }
+    
+    /**
+     * Returns whether the given inode holds a node of the live tree, that is
+     * neither a free inode, nor a preserved copy, nor a snapshot record.
+     * 
+     * @param inode the inode positioned at its first byte.
+     * @return {@code true} if the inode holds a live node.
+     */
+    static boolean isLiveNodeInode(ByteBuffer inode) {
+        return isNodeInode(inode) 
+                && (inode.get(getFlagsPosition(inode)) & PRESERVED_FLAG) == 0;
+    }
+    
+    /**
+     * Returns whether the given inode holds a node, either of the live tree
+     * or preserved for a snapshot.
+     * 
+     * @param inode the inode positioned at its first byte.
+     * @return {@code true} if the inode holds a node.
+     */
+    static boolean isNodeInode(ByteBuffer inode) {
+        if (inode.get(inode.position()) 
+                != VirtualFileSystemInodeTable.INODE_VERSION) {
+            return false;
+        }
+        
+        byte type = inode.get(inode.position() + 1);
+        
+        for (VirtualFileSystemNodeType nodeType : 
+                VirtualFileSystemNodeType.values()) {
+            if (nodeType.getValue() == type) {
+                return true;
+            }
+        }
+        
+        return false;
+    }
+    
+    /**
+     * Returns the absolute position of the flags byte in the given inode.
+     */
+    private static int getFlagsPosition(ByteBuffer inode) {
+        ByteBuffer buffer = inode.duplicate();
+        
+        // Skip the version, the type, the parent, the name and the size:
+        buffer.position(buffer.position() + 2);
+        VirtualFileSystemInodeTable.getVarint(buffer);
+        int nameLength = (int) VirtualFileSystemInodeTable.getVarint(buffer);
+        buffer.position(buffer.position() + nameLength);
+        VirtualFileSystemInodeTable.getVarint(buffer);
+        return buffer.position();
+    }
+    
+    /**
+     * Decodes a node from the given inode. This is the inverse of 
+     * {@link #encodeInode(ByteBuffer)}. The inode is decoded in place, so 
+     * {@code inode} may be a slice of a memory mapped image. The parent of 
+     * the returned node is left unset; the caller attaches it.
+     * 
+     * @param inode       the inode positioned at its first byte.
+     * @param inodeNumber the number of the inode.
+     * @return the node.
+     * @throws IllegalArgumentException if the inode is free or of an 
+     *                                  unsupported version.
+     */
+    static VirtualFileSystemNode decodeInode(ByteBuffer inode,
+                                             int inodeNumber) {
+        byte version = inode.get();
+        
+        if (version != VirtualFileSystemInodeTable.INODE_VERSION) {
+            throw new IllegalArgumentException(
+                    "The inode " + inodeNumber + " has an unsupported " +
+                    "version: " + version);
+        }
+        
+        VirtualFileSystemNodeType nodeType = 
+                VirtualFileSystemNodeType.valueOf(inode.get());
+        
+        // Skip the inode number of the parent:
+        VirtualFileSystemInodeTable.getVarint(inode);
+        
+        VirtualFileSystemNode node = 
+                new VirtualFileSystemNode(
+                        VirtualFileSystemInodeTable.getName(inode),
+                        nodeType,
+                        inodeNumber);
+        
+        node.nodeSize = VirtualFileSystemInodeTable.getVarint(inode);
+        byte flags = inode.get();
+        node.compressed = (flags & COMPRESSED_FLAG) != 0;
+        
+        if ((flags & PASSWORD_FLAG) != 0) {
+            node.passwordHash = 
+                    new byte[VirtualPasswordHasher.HASH_LENGTH];
+            inode.get(node.passwordHash);
+        }
+        
+        node.creationTime = VirtualFileSystemInodeTable.getVarint(inode);
+        node.lastAccessedTime = VirtualFileSystemInodeTable.getVarint(inode);
+        node.lastModificationTime = 
+                VirtualFileSystemInodeTable.getVarint(inode);
+        node.generation = VirtualFileSystemInodeTable.getVarint(inode);
+        
+        if ((flags & SYMBOLIC_LINK_FLAG) != 0) {
+            node.linkInodeNumber = 
+                    (int) VirtualFileSystemInodeTable.getVarint(inode) - 1;
+        }
+        
+        inode.position(VirtualFileSystemInodeTable.DATA_AREA_OFFSET);
+        
+        if (nodeType == VirtualFileSystemNodeType.DIRECTORY) {
+            node.directoryIndexRootBlockIndex = inode.getInt();
+            node.nodeCount = VirtualFileSystemInodeTable.getVarint(inode);
+            node.byteQuota = VirtualFileSystemInodeTable.getVarint(inode) - 1L;
+            node.nodeQuota = VirtualFileSystemInodeTable.getVarint(inode) - 1L;
+        } else if ((flags & INLINE_DATA_FLAG) != 0) {
+            node.extentMap = new VirtualFileExtentMap();
+            node.inlineData = new byte[INLINE_DATA_CAPACITY];
+            inode.get(node.inlineData, 0, (int) node.nodeSize);
+        } else if (nodeType == VirtualFileSystemNodeType.REGULAR_FILE) {
+            node.extentMap = VirtualFileExtentMap.decodeInline(inode);
+        }
+        
+        return node;
+    }
+    
+    /**
+     * Reads a metadata field with an optimistic read, falling back to the 
+     * read lock if the field was modified concurrently.
+     * 
+     * @param fieldReader reads the field.
+     * @return the value of the field.
+     */
+    private long readMetadata(LongSupplier fieldReader) {
+        long stamp = metadataLock.tryOptimisticRead();
+        long value = fieldReader.getAsLong();
+        
+        if (metadataLock.validate(stamp)) {
+            return value;
+        }
+        
+        stamp = metadataLock.readLock();
+        
+        try {
+            return fieldReader.getAsLong();
+        } finally {
+            metadataLock.unlockRead(stamp);
+        }
+    }
+    
+    /**
+     * Read-locks the content of this regular file, loading the extent map 
+     * first if needed. Loading modifies the node, so it happens under the 
+     * write lock, which is then downgraded.
+     */
+    private void lockContentForReading() {
+        nodeLock.readLock().lock();
+        
+        if (extentMap.isLoaded()) {
+            return;
+        }
+        
+        nodeLock.readLock().unlock();
+        nodeLock.writeLock().lock();
+        
+        try {
+            loadExtentMap();
+            nodeLock.readLock().lock();
+        } finally {
+            nodeLock.writeLock().unlock();
+        }
+    }
+    
+    /**
+     * Reads the indirect extent blocks of this regular file unless they are
+     * loaded already.
+     */
+    private void loadExtentMap() {
+        if (!extentMap.isLoaded()) {
+            checkFileSystem();
+            extentMap.load(fileSystem);
+        }
+    }
+    
+    /**
+     * Sets the size of this file to {@code size} without persisting it. New
+     * blocks are allocated and zeroed, preferably right after the last block 
+     * of the file so that its last extent grows in place; blocks past the new
+     * end are freed, and the tail of the new last block is zeroed, so that 
+     * the bytes past the end of the file are always zeros.
+     * 
+     * @param size the new size.
+     */
+    private void resize(long size) {
+        if (compressed) {
+            resizeChunks(size);
+            return;
+        }
+        
+        int oldBlockCount = extentMap.getBlockCount();
+        int blockSize = fileSystem.getBlockSize();
+        int newBlockCount = (int)((size + blockSize - 1) / blockSize);
+        VirtualBlockCache blockCache = fileSystem.getBlockCache();
+        
+        if (newBlockCount > oldBlockCount) {
+            byte[] zeros = new byte[blockSize];
+            
+            for (VirtualFileSystemBlockIndexRange range : 
+                    allocateGrowth(newBlockCount - oldBlockCount)) {
+                for (int blockIndex = range.getMinimumBlockRangeIndex();
+                        blockIndex <= range.getMaximumBlockRangeIndex();
+                        ++blockIndex) {
+                    blockCache.write(blockIndex, 0, zeros, 0, blockSize);
+                }
+                
+                extentMap.append(range);
+            }
+        } else if (newBlockCount < oldBlockCount) {
+            for (VirtualFileSystemBlockIndexRange range : 
+                    extentMap.truncate(newBlockCount)) {
+                fileSystem.freeBlocks(range);
+            }
+        }
+        
+        int tailLength = (int)(size % blockSize);
+        
+        if (size < getNodeSize() && tailLength > 0) {
+            invalidateFingerprints(newBlockCount - 1, newBlockCount - 1);
+            unshareBlocks(newBlockCount - 1, newBlockCount - 1, 0L, 0L);
+            blockCache.write(extentMap.getBlockIndex(newBlockCount - 1),
+                             tailLength,
+                             new byte[blockSize],
+                             0,
+                             blockSize - tailLength);
+        }
+        
+        setNodeSize(size);
+    }
+    
+    /**
+     * Allocates the given number of blocks for the growth of this file, 
+     * taking the reserved blocks first.
+     * 
+     * @param blockCount the number of blocks to allocate.
+     * @return the allocated ranges in file order.
+     */
+    private List<VirtualFileSystemBlockIndexRange> 
+        allocateGrowth(int blockCount) {
+        List<VirtualFileSystemBlockIndexRange> ranges = new ArrayList<>();
+        int goalBlockIndex = extentMap.getGoalBlockIndex();
+        
+        while (blockCount > 0 
+                && reservedRanges != null 
+                && !reservedRanges.isEmpty()) {
+            VirtualFileSystemBlockIndexRange range = reservedRanges.poll();
+            
+            if (range.getLength() > blockCount) {
+                int splitIndex = range.getMinimumBlockRangeIndex() + blockCount;
+                reservedRanges.addFirst(
+                        new VirtualFileSystemBlockIndexRange(
+                                splitIndex,
+                                range.getMaximumBlockRangeIndex()));
+                range = new VirtualFileSystemBlockIndexRange(
+                        range.getMinimumBlockRangeIndex(),
+                        splitIndex - 1);
+            }
+            
+            ranges.add(range);
+            blockCount -= range.getLength();
+            goalBlockIndex = range.getMaximumBlockRangeIndex() + 1;
+        }
+        
+        if (blockCount > 0) {
+            ranges.addAll(fileSystem.allocateBlocks(blockCount, 
+                                                    goalBlockIndex));
+        }
+        
+        return ranges;
+    }
+    
+    /**
+     * Sets the size of this file to {@code size} bytes, at most 
+     * {@link #INLINE_DATA_CAPACITY}, and stores the content in the inode. 
+     * The content of a file stored in blocks is copied into the inode and 
+     * the blocks are freed.
+     * 
+     * @param size the new size.
+     */
+    private void resizeInline(int size) {
+        if (inlineData != null) {
+            Arrays.fill(inlineData, size, INLINE_DATA_CAPACITY, (byte) 0);
+        } else {
+            byte[] data = new byte[INLINE_DATA_CAPACITY];
+            loadExtentMap();
+            readBlocks(0L, 
+                       ByteBuffer.wrap(data), 
+                       (int) Math.min(size, getNodeSize()));
+            resize(0L);
+            inlineData = data;
+        }
+        
+        setNodeSize(size);
+    }
+    
+    /**
+     * Moves the content of this file from its inode to a data block.
+     */
+    private void promoteInlineData() {
+        byte[] data = inlineData;
+        int size = (int) getNodeSize();
+        
+        inlineData = null;
+        setNodeSize(0L);
+        resize(size);
+        
+        if (size > 0 && compressed) {
+            byte[] chunkData = Arrays.copyOf(data, getChunkBytes());
+            storeChunk(extentMap, 0, chunkData);
+            decodedChunk = new DecodedChunk(0, chunkData);
+        } else if (size > 0) {
+            fileSystem.getBlockCache().write(extentMap.getBlockIndex(0),
+                                             0,
+                                             data,
+                                             0,
+                                             size);
+        }
+    }
+    
+    /**
+     * Reads {@code length} bytes of this file stored in blocks starting at 
+     * the given position into the given buffer.
+     */
+    private void readBlocks(long position, ByteBuffer target, int length) {
+        if (compressed) {
+            readChunks(position, target, length);
+            return;
+        }
+        
+        int blockSize = fileSystem.getBlockSize();
+        VirtualBlockCache blockCache = fileSystem.getBlockCache();
+        byte[] blockBuffer = target.hasArray() ? null : new byte[blockSize];
+        
+        for (int done = 0; done < length;) {
+            long currentPosition = position + done;
+            int blockOffset = (int)(currentPosition % blockSize);
+            int chunkLength = Math.min(blockSize - blockOffset,
+                                       length - done);
+            int blockIndex = 
+                    extentMap.getBlockIndex(
+                            (int)(currentPosition / blockSize));
+            
+            if (blockBuffer == null) {
+                blockCache.read(blockIndex, 
+                                blockOffset,
+                                target.array(),
+                                target.arrayOffset() + target.position(),
+                                chunkLength);
+                target.position(target.position() + chunkLength);
+            } else {
+                blockCache.read(blockIndex,
+                                blockOffset,
+                                blockBuffer,
+                                0,
+                                chunkLength);
+                target.put(blockBuffer, 0, chunkLength);
+            }
+            
+            done += chunkLength;
+        }
+    }
+    
+    /**
+     * Writes {@code length} bytes of the given buffer to the blocks of this
+     * file starting at the given position. The blocks must be allocated. 
+     * While the deduplication is enabled, a block written in full whose 
+     * content is already stored is mapped to the stored block instead.
+     */
+    private void writeBlocks(long position, ByteBuffer source, int length) {
+        if (compressed) {
+            writeChunks(position, source, length);
+            return;
+        }
+        
+        int blockSize = fileSystem.getBlockSize();
+        VirtualBlockCache blockCache = fileSystem.getBlockCache();
+        byte[] blockBuffer = source.hasArray() ? null : new byte[blockSize];
+        boolean deduplicate = fileSystem.isDeduplicationEnabled();
+        
+        if (length > 0) {
+            int firstFileBlock = (int)(position / blockSize);
+            int lastFileBlock = (int)((position + length - 1) / blockSize);
+            invalidateFingerprints(firstFileBlock, lastFileBlock);
+            unshareBlocks(firstFileBlock,
+                          lastFileBlock,
+                          position,
+                          position + length);
+        }
+        
+        for (int done = 0; done < length;) {
+            long currentPosition = position + done;
+            int blockOffset = (int)(currentPosition % blockSize);
+            int chunkLength = Math.min(blockSize - blockOffset,
+                                       length - done);
+            int fileBlock = (int)(currentPosition / blockSize);
+            int blockIndex = extentMap.getBlockIndex(fileBlock);
+            byte[] data;
+            int dataOffset;
+            
+            if (blockBuffer == null) {
+                data = source.array();
+                dataOffset = source.arrayOffset() + source.position();
+                source.position(source.position() + chunkLength);
+            } else {
+                source.get(blockBuffer, 0, chunkLength);
+                data = blockBuffer;
+                dataOffset = 0;
+            }
+            
+            if (deduplicate && chunkLength == blockSize) {
+                writeDeduplicated(fileBlock, blockIndex, data, dataOffset);
+            } else {
+                blockCache.write(blockIndex,
+                                 blockOffset,
+                                 data,
+                                 dataOffset,
+                                 chunkLength);
+            }
+            
+            done += chunkLength;
+        }
+    }
+    
+    /**
+     * Writes a full block of this file, or maps the file block to a stored
+     * block with the same content and frees its own block.
+     * 
+     * @param fileBlock  the index of the block in this file.
+     * @param blockIndex the block the file block is mapped to.
+     * @param data       the array holding the content of the block.
+     * @param offset     the offset of the content.
+     */
+    private void writeDeduplicated(int fileBlock, 
+                                   int blockIndex, 
+                                   byte[] data, 
+                                   int offset) {
+        int blockSize = fileSystem.getBlockSize();
+        long fingerprint = 
+                VirtualFileSystemDeduplicationTable.fingerprint(data,
+                                                                offset,
+                                                                blockSize);
+        int sharedBlockIndex = 
+                fileSystem.shareBlock(fingerprint, data, offset, blockIndex);
+        
+        if (sharedBlockIndex == -1) {
+            fileSystem.getBlockCache().write(blockIndex, 
+                                             0, 
+                                             data, 
+                                             offset, 
+                                             blockSize);
+            fileSystem.registerBlock(fingerprint, blockIndex);
+        } else {
+            extentMap.remap(fileBlock, 
+                            new VirtualFileSystemBlockIndexRange(
+                                    sharedBlockIndex, 
+                                    sharedBlockIndex));
+            fileSystem.freeBlocks(
+                    new VirtualFileSystemBlockIndexRange(blockIndex, 
+                                                         blockIndex));
+        }
+    }
+    
+    /**
+     * Reads {@code length} bytes of this compressed file starting at the 
+     * given position into the given buffer, decompressing the chunks they
+     * lie in.
+     */
+    private void readChunks(long position, ByteBuffer target, int length) {
+        int chunkBytes = getChunkBytes();
+        
+        for (int done = 0; done < length;) {
+            long currentPosition = position + done;
+            int chunkOffset = (int)(currentPosition % chunkBytes);
+            int chunkLength = Math.min(chunkBytes - chunkOffset,
+                                       length - done);
+            
+            target.put(decodeChunk((int)(currentPosition / chunkBytes)),
+                       chunkOffset,
+                       chunkLength);
+            done += chunkLength;
+        }
+    }
+    
+    /**
+     * Writes {@code length} bytes of the given buffer to this compressed file
+     * starting at the given position. Each chunk touched is decompressed, 
+     * unless it is overwritten up to the end of the file, updated and 
+     * compressed into new blocks. The file blocks must exist.
+     */
+    private void writeChunks(long position, ByteBuffer source, int length) {
+        int chunkBytes = getChunkBytes();
+        long size = getNodeSize();
+        
+        for (int done = 0; done < length;) {
+            long currentPosition = position + done;
+            int chunk = (int)(currentPosition / chunkBytes);
+            int chunkOffset = (int)(currentPosition % chunkBytes);
+            int chunkLength = Math.min(chunkBytes - chunkOffset,
+                                       length - done);
+            long chunkEnd = Math.min((long)(chunk + 1) * chunkBytes, size);
+            byte[] data = 
+                    chunkOffset == 0 
+                            && currentPosition + chunkLength >= chunkEnd ?
+                    new byte[chunkBytes] :
+                    decodeChunk(chunk);
+            
+            decodedChunk = null;
+            source.get(data, chunkOffset, chunkLength);
+            storeChunk(extentMap, chunk, data);
+            decodedChunk = new DecodedChunk(chunk, data);
+            done += chunkLength;
+        }
+    }
+    
+    /**
+     * Sets the size of this compressed file to {@code size} without 
+     * persisting it. The file grows by a hole; a file that shrinks frees the
+     * chunks past its new end and compresses its new last chunk again with 
+     * the bytes past the end zeroed. A last chunk stored uncompressed is 
+     * compressed again when the file grows, since the longer run of file 
+     * blocks of the chunk would pass it off as compressed otherwise.
+     * 
+     * @param size the new size.
+     */
+    private void resizeChunks(long size) {
+        int blockSize = fileSystem.getBlockSize();
+        int chunkBlocks = VirtualFileChunkCodec.getChunkBlocks(blockSize);
+        int chunkBytes = chunkBlocks * blockSize;
+        int oldBlockCount = extentMap.getBlockCount();
+        int newBlockCount = (int)((size + blockSize - 1) / blockSize);
+        int lastChunk = -1;
+        byte[] data = null;
+        
+        if (newBlockCount > oldBlockCount) {
+            int oldLastChunk = (oldBlockCount - 1) / chunkBlocks;
+            
+            if (oldBlockCount % chunkBlocks != 0 
+                    && isStoredUncompressed(oldLastChunk)) {
+                lastChunk = oldLastChunk;
+                data = decodeChunk(lastChunk);
+            }
+        } else if (size < getNodeSize() && size % chunkBytes != 0) {
+            lastChunk = (int)(size / chunkBytes);
+            data = decodeChunk(lastChunk);
+            Arrays.fill(data, (int)(size % chunkBytes), chunkBytes, (byte) 0);
+        }
+        
+        decodedChunk = null;
+        int keptBlockCount = lastChunk == -1 ? 
+                Math.min(oldBlockCount, newBlockCount) : 
+                lastChunk * chunkBlocks;
+        
+        for (VirtualFileSystemBlockIndexRange range : 
+                extentMap.truncate(keptBlockCount)) {
+            fileSystem.freeBlocks(range);
+        }
+        
+        if (newBlockCount > keptBlockCount) {
+            extentMap.appendHole(newBlockCount - keptBlockCount);
+        }
+        
+        if (lastChunk != -1) {
+            storeChunk(extentMap, lastChunk, data);
+            decodedChunk = new DecodedChunk(lastChunk, data);
+        }
+        
+        setNodeSize(size);
+    }
+    
+    /**
+     * Rewrites the content of this regular file, stored in blocks, into new
+     * blocks in the compressed or in the plain layout chunk by chunk, and 
+     * frees the old blocks.
+     * 
+     * @param toCompressed whether to compress the content.
+     */
+    private void convertContent(boolean toCompressed) {
+        int blockSize = fileSystem.getBlockSize();
+        int chunkBlocks = VirtualFileChunkCodec.getChunkBlocks(blockSize);
+        int blockCount = extentMap.getBlockCount();
+        VirtualBlockCache blockCache = fileSystem.getBlockCache();
+        VirtualFileExtentMap newExtentMap = new VirtualFileExtentMap();
+        
+        for (int chunk = 0; chunk * chunkBlocks < blockCount; ++chunk) {
+            int chunkLength = Math.min(chunkBlocks,
+                                       blockCount - chunk * chunkBlocks);
+            byte[] data = readChunk(extentMap, compressed, chunk);
+            
+            if (toCompressed) {
+                newExtentMap.appendHole(chunkLength);
+                storeChunk(newExtentMap, chunk, data);
+                continue;
+            }
+            
+            int block = 0;
+            
+            for (VirtualFileSystemBlockIndexRange range :
+                    fileSystem.allocateBlocks(
+                            chunkLength, 
+                            newExtentMap.getGoalBlockIndex())) {
+                for (int blockIndex = range.getMinimumBlockRangeIndex();
+                        blockIndex <= range.getMaximumBlockRangeIndex();
+                        ++blockIndex) {
+                    blockCache.write(blockIndex, 
+                                     0, 
+                                     data, 
+                                     block++ * blockSize, 
+                                     blockSize);
+                }
+                
+                newExtentMap.append(range);
+            }
+        }
+        
+        for (VirtualFileSystemBlockIndexRange range : 
+                extentMap.getExtents()) {
+            fileSystem.freeBlocks(range);
+        }
+        
+        extentMap.releaseIndirectChain(fileSystem);
+        extentMap = newExtentMap;
+        decodedChunk = null;
+    }
+    
+    /**
+     * Returns the content of the given chunk of this compressed file, taken
+     * from the chunk decompressed last if it is the one. The caller must not
+     * change the returned array unless it clears {@code decodedChunk} first.
+     * 
+     * @param chunk the index of the chunk.
+     * @return the content of the chunk followed by zeros.
+     */
+    private byte[] decodeChunk(int chunk) {
+        DecodedChunk decoded = decodedChunk;
+        
+        if (decoded != null && decoded.chunk == chunk) {
+            return decoded.data;
+        }
+        
+        byte[] data = readChunk(extentMap, true, chunk);
+        decodedChunk = new DecodedChunk(chunk, data);
+        return data;
+    }
+    
+    /**
+     * Reads the content of the given chunk of a file with the given extent
+     * map.
+     * 
+     * @param map        the extent map of the file.
+     * @param compressed whether the file is laid out compressed.
+     * @param chunk      the index of the chunk.
+     * @return the content of the chunk followed by zeros.
+     */
+    private byte[] readChunk(VirtualFileExtentMap map, 
+                             boolean compressed, 
+                             int chunk) {
+        int blockSize = fileSystem.getBlockSize();
+        int chunkBlocks = VirtualFileChunkCodec.getChunkBlocks(blockSize);
+        int firstFileBlock = chunk * chunkBlocks;
+        int chunkLength = Math.min(chunkBlocks, 
+                                   map.getBlockCount() - firstFileBlock);
+        int storedBlocks = compressed ? 
+                getStoredBlockCount(map, firstFileBlock, chunkLength) :
+                chunkLength;
+        byte[] data = new byte[chunkBlocks * blockSize];
+        
+        if (storedBlocks == chunkLength) {
+            readFileBlocks(map, firstFileBlock, storedBlocks, data);
+        } else if (storedBlocks > 0) {
+            byte[] storedData = new byte[storedBlocks * blockSize];
+            readFileBlocks(map, firstFileBlock, storedBlocks, storedData);
+            VirtualFileChunkCodec.decompress(storedData, 
+                                             storedData.length, 
+                                             data);
+        }
+        
+        return data;
+    }
+    
+    /**
+     * Compresses the given content into new blocks mapped by the first file
+     * blocks of the given chunk of a compressed file, and frees the blocks 
+     * the chunk held before. The content is stored as is if compressing it
+     * saves no block, and not at all if it is all zeros. The file blocks of
+     * the chunk must exist.
+     * 
+     * @param map   the extent map of the file.
+     * @param chunk the index of the chunk.
+     * @param data  the content of the chunk followed by zeros.
+     */
+    private void storeChunk(VirtualFileExtentMap map, int chunk, byte[] data) {
+        int blockSize = fileSystem.getBlockSize();
+        int chunkBlocks = VirtualFileChunkCodec.getChunkBlocks(blockSize);
+        int firstFileBlock = chunk * chunkBlocks;
+        int chunkLength = Math.min(chunkBlocks, 
+                                   map.getBlockCount() - firstFileBlock);
+        byte[] storedData = data;
+        int storedBlocks = chunkLength;
+        
+        if (isZero(data, chunkLength * blockSize)) {
+            storedBlocks = 0;
+        } else if (chunkLength > 1) {
+            byte[] compressedData = new byte[(chunkLength - 1) * blockSize];
+            int compressedLength = 
+                    VirtualFileChunkCodec.compress(data, 
+                                                   chunkLength * blockSize, 
+                                                   compressedData);
+            
+            if (compressedLength != -1) {
+                storedData = compressedData;
+                storedBlocks = (compressedLength + blockSize - 1) / blockSize;
+            }
+        }
+        
+        List<VirtualFileSystemBlockIndexRange> ranges = 
+                storedBlocks == 0 ?
+                Collections.emptyList() :
+                fileSystem.allocateBlocks(storedBlocks, 
+                                          map.getGoalBlockIndex());
+        VirtualBlockCache blockCache = fileSystem.getBlockCache();
+        int block = 0;
+        
+        for (VirtualFileSystemBlockIndexRange range : ranges) {
+            for (int blockIndex = range.getMinimumBlockRangeIndex();
+                    blockIndex <= range.getMaximumBlockRangeIndex();
+                    ++blockIndex) {
+                blockCache.write(blockIndex, 
+                                 0, 
+                                 storedData, 
+                                 block++ * blockSize, 
+                                 blockSize);
+            }
+        }
+        
+        for (VirtualFileSystemBlockIndexRange range : 
+                map.replace(firstFileBlock, chunkLength, ranges)) {
+            fileSystem.freeBlocks(range);
+        }
+    }
+    
+    /**
+     * Returns whether the given chunk of this compressed file is stored 
+     * uncompressed, that is, fills its run of file blocks.
+     */
+    private boolean isStoredUncompressed(int chunk) {
+        int chunkBlocks = 
+                VirtualFileChunkCodec.getChunkBlocks(
+                        fileSystem.getBlockSize());
+        int firstFileBlock = chunk * chunkBlocks;
+        int chunkLength = Math.min(chunkBlocks, 
+                                   extentMap.getBlockCount() - firstFileBlock);
+        return getStoredBlockCount(extentMap, 
+                                   firstFileBlock, 
+                                   chunkLength) == chunkLength;
+    }
+    
+    /**
+     * Returns the number of blocks a chunk of a compressed file is stored in:
+     * the number of file blocks of the chunk before its hole.
+     */
+    private static int getStoredBlockCount(VirtualFileExtentMap map,
+                                           int firstFileBlock,
+                                           int chunkLength) {
+        int storedBlocks = 0;
+        
+        while (storedBlocks < chunkLength
+                && map.getBlockIndex(firstFileBlock + storedBlocks) 
+                   != VirtualFileExtentMap.HOLE) {
+            storedBlocks += map.getRunLength(firstFileBlock + storedBlocks);
+        }
+        
+        return Math.min(storedBlocks, chunkLength);
+    }
+    
+    /**
+     * Reads the given file blocks of a file with the given extent map into 
+     * the given array, loading each run of blocks with a single vectored 
+     * read.
+     */
+    private void readFileBlocks(VirtualFileExtentMap map,
+                                int firstFileBlock,
+                                int blockCount,
+                                byte[] target) {
+        int blockSize = fileSystem.getBlockSize();
+        VirtualBlockCache blockCache = fileSystem.getBlockCache();
+        
+        for (int block = 0; block < blockCount;) {
+            int blockIndex = map.getBlockIndex(firstFileBlock + block);
+            int runLength = Math.min(map.getRunLength(firstFileBlock + block),
+                                     blockCount - block);
+            
+            if (runLength > 1) {
+                blockCache.prefetch(blockIndex, runLength);
+            }
+            
+            for (int i = 0; i < runLength; ++i, ++block) {
+                blockCache.read(blockIndex + i, 
+                                0, 
+                                target, 
+                                block * blockSize, 
+                                blockSize);
+            }
+        }
+    }
+    
+    /**
+     * Returns the number of content bytes in a chunk of a compressed file.
+     */
+    private int getChunkBytes() {
+        int blockSize = fileSystem.getBlockSize();
+        return VirtualFileChunkCodec.getChunkBlocks(blockSize) * blockSize;
+    }
+    
+    private static boolean isZero(byte[] data, int length) {
+        for (int i = 0; i < length; ++i) {
+            if (data[i] != 0) {
+                return false;
+            }
+        }
+        
+        return true;
+    }
+    
+    /**
+     * Sets the size of this file and adds the change to the totals of the
+     * directories above it.
+     * 
+     * @param size the new size.
+     */
+    private void setNodeSize(long size) {
+        long stamp = metadataLock.writeLock();
+        long delta = size - nodeSize;
+        nodeSize = size;
+        metadataLock.unlockWrite(stamp);
+        
+        if (delta != 0L) {
+            propagate(delta, 0L);
+        }
+    }
+    
+    /**
+     * Returns the number of bytes this node adds to the size of each 
+     * directory above it. A symbolic link adds nothing, so that no file is 
+     * counted twice.
+     * 
+     * @return the accounted size.
+     */
+    private long getAccountedSize() {
+        return nodeType == VirtualFileSystemNodeType.SYMBOLIC_LINK ? 
+                0L : 
+                getNodeSize();
+    }
+    
+    /**
+     * Returns the number of nodes this node adds to the node count of each
+     * directory above it.
+     * 
+     * @return the accounted node count.
+     */
+    private long getAccountedNodeCount() {
+        return nodeType == VirtualFileSystemNodeType.DIRECTORY ?
+                getNodeCount() + 1L :
+                1L;
+    }
+    
+    /**
+     * Adds the given deltas to the totals of every directory above this node
+     * and marks the directories for writing. The caller holds the move lock
+     * in either mode, so that the parent chain does not change during the 
+     * walk.
+     * 
+     * @param sizeDelta      the change of the size.
+     * @param nodeCountDelta the change of the node count.
+     */
+    private void propagate(long sizeDelta, long nodeCountDelta) {
+        for (VirtualFileSystemNode directory = parent; 
+                directory != null; 
+                directory = directory.parent) {
+            if (sizeDelta != 0L) {
+                directory.subtreeSizeDelta.add(sizeDelta);
+            }
+            
+            if (nodeCountDelta != 0L) {
+                directory.nodeCountDelta.add(nodeCountDelta);
+            }
+            
+            // Marked after the update, so that writing the directory either
+            // sees the update or is requested again:
+            if (!directory.accountingDirty && directory.fileSystem != null) {
+                directory.accountingDirty = true;
+                directory.fileSystem.addDirtyDirectory(directory);
+            }
+        }
+    }
+    
+    /**
+     * Checks that growing this file to the given size exceeds no byte quota.
+     * Called before any block is allocated.
+     * 
+     * @param size the new size of the file.
+     */
+    private void checkFileGrowth(long size) {
+        long growth = size - getNodeSize();
+        VirtualFileSystemNode parentDirectory = parent;
+        
+        if (growth > 0L && parentDirectory != null) {
+            parentDirectory.checkQuotas(growth, 0L);
+        }
+    }
+    
+    /**
+     * Checks that adding the given size and node count below this directory
+     * exceeds neither the quotas of this directory nor those of the 
+     * directories above it. Only the parent chain is visited, and a directory
+     * without quotas costs two field reads. The caller holds the move lock in
+     * either mode.
+     * 
+     * @param sizeDelta      the size to add.
+     * @param nodeCountDelta the number of nodes to add.
+     * @throws QuotaExceededException if a quota would be exceeded.
+     */
+    private void checkQuotas(long sizeDelta, long nodeCountDelta) {
+        for (VirtualFileSystemNode directory = this; 
+                directory != null; 
+                directory = directory.parent) {
+            long byteQuota = directory.byteQuota;
+            
+            if (byteQuota != NO_QUOTA && sizeDelta > 0L
+                    && directory.getNodeSize() + sizeDelta > byteQuota) {
+                throw new QuotaExceededException(
+                        "The byte quota (" + byteQuota + ") of the " +
+                        "directory \"" + directory.getPath() + "\" would " +
+                        "be exceeded.");
+            }
+            
+            long nodeQuota = directory.nodeQuota;
+            
+            if (nodeQuota != NO_QUOTA && nodeCountDelta > 0L
+                    && directory.getNodeCount() + nodeCountDelta > nodeQuota) {
+                throw new QuotaExceededException(
+                        "The node quota (" + nodeQuota + ") of the " +
+                        "directory \"" + directory.getPath() + "\" would " +
+                        "be exceeded.");
+            }
+        }
+    }
+    
+    private static void checkQuota(long quota) {
+        if (quota < NO_QUOTA) {
+            throw new IllegalArgumentException(
+                    "The quota (" + quota + ") is negative.");
+        }
+    }
+    
+    /**
+     * Moves the pending changes of the totals of this directory into the 
+     * totals read from its inode. A change added concurrently stays pending
+     * and is not lost.
+     */
+    private void foldTotals() {
+        long stamp = metadataLock.writeLock();
+        
+        try {
+            long sizeDelta = subtreeSizeDelta.sum();
+            subtreeSizeDelta.add(-sizeDelta);
+            nodeSize += sizeDelta;
+            
+            long countDelta = nodeCountDelta.sum();
+            nodeCountDelta.add(-countDelta);
+            nodeCount += countDelta;
+        } finally {
+            metadataLock.unlockWrite(stamp);
+        }
+    }
+    
+    /**
+     * Acquires the move lock of the file system for changing the totals on
+     * the parent chain of the given node: in write mode if the node is a 
+     * directory, since attaching or detaching it changes the parent chains 
+     * of its whole subtree, and in read mode otherwise.
+     * 
+     * @param node the node being attached, detached or resized.
+     * @return the acquired lock, or {@code null} if this node does not 
+     *         belong to a file system.
+     */
+    private Lock lockAccounting(VirtualFileSystemNode node) {
+        if (fileSystem == null) {
+            return null;
+        }
+        
+        Lock lock = node.nodeType == VirtualFileSystemNodeType.DIRECTORY ?
+                fileSystem.getMoveLock() :
+                fileSystem.getAccountingLock();
+        
+        lock.lock();
+        return lock;
+    }
+    
+    private static void unlockAccounting(Lock lock) {
+        if (lock != null) {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Persists the extent map together with the inode of this file.
+     */
+    private void storeFile() {
+        extentMap.store(fileSystem);
+        touch();
+        fileSystem.writeNode(this);
+    }
+    
+    private void checkIsRegularFile() {
+        if (nodeType != VirtualFileSystemNodeType.REGULAR_FILE) {
+            throw new IllegalStateException(
+                    "The node \"" + nodeName + "\" is not a regular file.");
+        }
+    }
+    
+    private void checkFileSystem() {
+        if (fileSystem == null) {
+            throw new IllegalStateException(
+                    "The node \"" + nodeName + "\" does not belong to a " +
+                    "file system.");
+        }
+    }
+    
+    private static void checkPosition(long position) {
+        if (position < 0L) {
+            throw new IllegalArgumentException(
+                    "The position (" + position + ") is negative.");
+        }
+    }
+    
+    /**
+     * Checks that a file of the given size has at most 
+     * {@code Integer.MAX_VALUE} blocks.
+     */
+    private long checkFileSize(long size) {
+        checkFileSystem();
+        long maximumSize = (long) Integer.MAX_VALUE * fileSystem.getBlockSize();
+        
+        if (size > maximumSize) {
+            throw new IllegalArgumentException(
+                    "The file size (" + size + ") exceeds the maximum file " +
+                    "size (" + maximumSize + ").");
+        }
+        
+        return size;
+    }
+    
+    /**
+     * Begins a journaled operation if this node belongs to a file system.
+     */
+    private void beginOperation() {
+        if (fileSystem != null) {
+            fileSystem.beginOperation();
+        }
+    }
+    
+    private void endOperation() {
+        if (fileSystem != null) {
+            fileSystem.endOperation();
+        }
+    }
+    
+    /**
+     * Updates the last modification time stamp of this node.
+     */
+    private void touch() {
+        long stamp = metadataLock.writeLock();
+        lastModificationTime = System.currentTimeMillis();
+        metadataLock.unlockWrite(stamp);
+    }
+    
+    /**
+     * Write-locks the parent directory of this node. Since the node may be 
+     * moved while waiting for the lock, the parent is checked again once the
+     * lock is acquired.
+     * 
+     * @return the locked parent directory.
+     */
+    private VirtualFileSystemNode lockParent() {
+        while (true) {
+            VirtualFileSystemNode parentDirectory = parent;
+            
+            if (parentDirectory == null) {
+                throw new IllegalStateException(
+                        "The node \"" + nodeName + "\" is not attached.");
+            }
+            
+            parentDirectory.nodeLock.writeLock().lock();
+            
+            if (parent == parentDirectory) {
+                return parentDirectory;
+            }
+            
+            parentDirectory.nodeLock.writeLock().unlock();
+        }
+    }
+    
+    /**
+     * Write-locks the given directories top-down: shallower directories 
+     * first, and directories at the same depth in ascending inode number
+     * order. The caller must hold the move lock of the file system, so that 
+     * the depths do not change.
+     * 
+     * @param directories the directories to lock.
+     * @return the locked directories in locking order.
+     */
+    private static List<VirtualFileSystemNode> 
+        lockTopDown(VirtualFileSystemNode... directories) {
+        List<VirtualFileSystemNode> lockList = new ArrayList<>();
+        
+        for (VirtualFileSystemNode directory : directories) {
+            if (!lockList.contains(directory)) {
+                lockList.add(directory);
+            }
+        }
+        
+        lockList.sort(Comparator
+                .comparingInt(VirtualFileSystemNode::getDepth)
+                .thenComparingInt(directory -> directory.inodeNumber));
+        
+        for (VirtualFileSystemNode directory : lockList) {
+            directory.nodeLock.writeLock().lock();
+        }
+        
+        return lockList;
+    }
+    
+    private static void unlockAll(List<VirtualFileSystemNode> directories) {
+        for (int i = directories.size() - 1; i >= 0; --i) {
+            directories.get(i).nodeLock.writeLock().unlock();
+        }
+    }
+    
+    private int getDepth() {
+        int depth = 0;
+        
+        for (VirtualFileSystemNode node = parent; 
+                node != null; 
+                node = node.parent) {
+            ++depth;
+        }
+        
+        return depth;
+    }
+    
+    /**
+     * Returns the child map of this directory after loading all the children
+     * not loaded yet.
+     * 
+     * @return the complete child map.
+     */
+    private Map<String, VirtualFileSystemNode> getChildMap() {
+        Map<String, VirtualFileSystemNode> map = getLoadedChildMap();
+        
+        if (!childMapComplete) {
+            if (fileSystem != null) {
+                getDirectoryIndex().scan(null, (name, inodeNumber) -> {
+                    if (!map.containsKey(name)) {
+                        loadChild(inodeNumber);
+                    }
+                    
+                    return true;
+                });
+            }
+            
+            childMapComplete = true;
+        }
+        
+        return map;
+    }
+    
+    /**
+     * Returns the map of the children loaded so far, creating it if this 
+     * directory was not traversed yet.
+     * 
+     * @return the possibly partial child map.
+     */
+    private Map<String, VirtualFileSystemNode> getLoadedChildMap() {
+        lastTraversalTime = System.currentTimeMillis();
+        
+        if (childMap == null) {
+            childMap = new HashMap<>();
+            childMapComplete = fileSystem == null;
+        }
+        
+        return childMap;
+    }
+    
+    /**
+     * Returns the loaded child with the given name. Does not modify the child
+     * map, so the read lock of this directory suffices.
+     * 
+     * @param name the name of the child.
+     * @return the child, or {@code null} if it is not loaded.
+     */
+    private VirtualFileSystemNode getLoadedChild(String name) {
+        lastTraversalTime = System.currentTimeMillis();
+        return childMap == null ? null : childMap.get(name);
+    }
+    
+    /**
+     * Reads the child with the given inode and adds it to the child map.
+     * 
+     * @param childInodeNumber the inode number of the child.
+     * @return the child node.
+     */
+    private VirtualFileSystemNode loadChild(int childInodeNumber) {
+        VirtualFileSystemNode child = null;
+        
+        if (unloadedChildMap != null) {
+            WeakReference<VirtualFileSystemNode> reference = 
+                    unloadedChildMap.remove(childInodeNumber);
+            
+            if (reference != null) {
+                child = reference.get();
+            }
+            
+            if (unloadedChildMap.isEmpty()) {
+                unloadedChildMap = null;
+            }
+        }
+        
+        if (child == null) {
+            child = readNode(childInodeNumber);
+            child.parent = this;
+        }
+        
+        getLoadedChildMap().put(child.nodeName, child);
+        return child;
+    }
+    
+    /**
+     * Removes the children collected by the garbage collector from the map 
+     * of the unloaded children.
+     */
+    private void purgeUnloadedChildMap() {
+        if (unloadedChildMap == null) {
+            return;
+        }
+        
+        Iterator<WeakReference<VirtualFileSystemNode>> iterator = 
+                unloadedChildMap.values().iterator();
+        
+        while (iterator.hasNext()) {
+            if (iterator.next().get() == null) {
+                iterator.remove();
+            }
+        }
+        
+        if (unloadedChildMap.isEmpty()) {
+            unloadedChildMap = null;
+        }
+    }
+    
+    private int lookupIndex(String name) {
+        return fileSystem == null ? -1 : getDirectoryIndex().lookup(name);
+    }
+    
+    private VirtualDirectoryIndex getDirectoryIndex() {
+        return new VirtualDirectoryIndex(fileSystem, 
+                                         directoryIndexRootBlockIndex);
+    }
+    
+    /**
+     * Hashes the given password, or returns {@code null} for no password.
+     */
+    private static byte[] hashPassword(String password) {
+        return password != null ? VirtualPasswordHasher.hash(password) : null;
+    }
+    
+    /**
+     * Returns the linked node, reading it from its inode if needed.
+     * 
+     * @return the linked node.
+     */
+    private VirtualFileSystemNode getLink() {
+        if (link == null) {
+            link = readNode(linkInodeNumber);
+        }
+        
+        return link;
+    }
+    
+    /**
+     * Reads a node of the tree this node belongs to: the live tree or a 
+     * snapshot.
+     * 
+     * @param inodeNumber the live inode number of the node.
+     * @return the node.
+     */
+    private VirtualFileSystemNode readNode(int inodeNumber) {
+        return snapshot == null ? fileSystem.readNode(inodeNumber) :
+                                  snapshot.readNode(inodeNumber);
+    }
+    
+    /**
+     * Preserves this node for the newest snapshot if the snapshot sees its
+     * state. Called before the node changes its blocks; a change of the 
+     * inode alone is preserved by {@link VirtualFilesystem#writeNode}.
+     */
+    private void preserve() {
+        if (fileSystem != null && inodeNumber != -1) {
+            fileSystem.preserveNode(this);
+        }
+    }
+    
+    /**
+     * Readies the directory index of this directory for a change by 
+     * preserving this directory for the newest snapshot and unsharing the 
+     * index. Both may run out of space, so they are done before the change
+     * touches anything in memory; neither changes what the directory holds.
+     */
+    private void prepareIndexChange() {
+        preserve();
+        unshareDirectoryIndex();
+    }
+    
+    /**
+     * Readies this directory for attaching the given node and reserves the 
+     * inode and the index blocks the attaching takes, so that it cannot run
+     * out of space once it has started. Paired with 
+     * {@link VirtualFilesystem#releaseReservation()}.
+     * 
+     * @param node the node to attach, holding its read lock.
+     */
+    private void reserveAttachment(VirtualFileSystemNode node) {
+        node.preserve();
+        prepareIndexChange();
+        fileSystem.reserve(node.inodeNumber == -1 ? 1 : 0,
+                           getDirectoryIndex().getHeight() + 1);
+    }
+    
+    /**
+     * Gives this directory a copy of its directory index of its own if the 
+     * index is shared with a snapshot, so that the index can be changed.
+     */
+    private void unshareDirectoryIndex() {
+        int rootBlockIndex = directoryIndexRootBlockIndex;
+        
+        if (rootBlockIndex == VirtualDirectoryIndex.NO_BLOCK
+                || !fileSystem.isBlockShared(rootBlockIndex)) {
+            return;
+        }
+        
+        directoryIndexRootBlockIndex = 
+                getDirectoryIndex().copy().getRootBlockIndex();
+        
+        if (!fileSystem.dropSharedReference(rootBlockIndex)) {
+            // The snapshots let go of the old index meanwhile:
+            new VirtualDirectoryIndex(fileSystem, rootBlockIndex).destroy();
+        }
+    }
+    
+    /**
+     * Gives up the directory index of this directory: an index shared with
+     * a snapshot loses a reference, any other index is destroyed.
+     */
+    private void releaseDirectoryIndex() {
+        if (directoryIndexRootBlockIndex != VirtualDirectoryIndex.NO_BLOCK
+                && !fileSystem.dropSharedReference(
+                        directoryIndexRootBlockIndex)) {
+            getDirectoryIndex().destroy();
+        }
+        
+        directoryIndexRootBlockIndex = VirtualDirectoryIndex.NO_BLOCK;
+    }
+    
+    /**
+     * Moves the given blocks of this file to new blocks if they are shared 
+     * with a snapshot, so that they can be written. A block lying entirely 
+     * within the bytes {@code writeStart} to {@code writeEnd} (exclusive) is
+     * about to be overwritten, so its content is not copied.
+     * 
+     * @param firstFileBlock the first file block to write.
+     * @param lastFileBlock  the last file block to write.
+     * @param writeStart     the position of the first byte to write.
+     * @param writeEnd       the position past the last byte to write.
+     */
+    private void unshareBlocks(int firstFileBlock, 
+                               int lastFileBlock,
+                               long writeStart,
+                               long writeEnd) {
+        if (!fileSystem.hasSharedBlocks()) {
+            return;
+        }
+        
+        for (int fileBlock = firstFileBlock; fileBlock <= lastFileBlock;) {
+            int blockIndex = extentMap.getBlockIndex(fileBlock);
+            int runLength = Math.min(extentMap.getRunLength(fileBlock),
+                                     lastFileBlock - fileBlock + 1);
+            VirtualFileSystemBlockIndexRange sharedRange =
+                    fileSystem.findSharedBlocks(blockIndex, 
+                                                blockIndex + runLength - 1);
+            
+            if (sharedRange == null) {
+                fileBlock += runLength;
+                continue;
+            }
+            
+            int sharedFileBlock = fileBlock + 
+                                  sharedRange.getMinimumBlockRangeIndex() - 
+                                  blockIndex;
+            copyOnWrite(sharedFileBlock, sharedRange, writeStart, writeEnd);
+            fileBlock = sharedFileBlock + sharedRange.getLength();
+        }
+    }
+    
+    /**
+     * Copies the given shared blocks, holding the file blocks from 
+     * {@code firstFileBlock} on, to new blocks and maps the file blocks to 
+     * the copies. The shared blocks lose the reference of this file.
+     */
+    private void copyOnWrite(int firstFileBlock,
+                             VirtualFileSystemBlockIndexRange sharedRange,
+                             long writeStart,
+                             long writeEnd) {
+        int blockSize = fileSystem.getBlockSize();
+        VirtualBlockCache blockCache = fileSystem.getBlockCache();
+        byte[] blockBuffer = new byte[blockSize];
+        int goalBlockIndex = 
+                firstFileBlock == 0 ? 
+                -1 : 
+                extentMap.getBlockIndex(firstFileBlock - 1) + 1;
+        int fileBlock = firstFileBlock;
+        
+        for (VirtualFileSystemBlockIndexRange range : 
+                fileSystem.allocateBlocks(sharedRange.getLength(),
+                                          goalBlockIndex)) {
+            for (int i = 0; i < range.getLength(); ++i) {
+                long blockStart = (long)(fileBlock + i) * blockSize;
+                
+                if (blockStart < writeStart 
+                        || blockStart + blockSize > writeEnd) {
+                    blockCache.read(sharedRange.getMinimumBlockRangeIndex() +
+                                    fileBlock + i - firstFileBlock,
+                                    0,
+                                    blockBuffer,
+                                    0,
+                                    blockSize);
+                    blockCache.write(range.getMinimumBlockRangeIndex() + i,
+                                     0,
+                                     blockBuffer,
+                                     0,
+                                     blockSize);
+                }
+            }
+            
+            extentMap.remap(fileBlock, range);
+            fileBlock += range.getLength();
+        }
+        
+        fileSystem.freeBlocks(sharedRange);
+    }
+    
+    /**
+     * Invalidates the fingerprints of the given blocks of this file, which 
+     * are about to be written in place.
+     * 
+     * @param firstFileBlock the first file block to write.
+     * @param lastFileBlock  the last file block to write.
+     */
+    private void invalidateFingerprints(int firstFileBlock, 
+                                        int lastFileBlock) {
+        if (!fileSystem.hasFingerprintedBlocks()) {
+            return;
+        }
+        
+        for (int fileBlock = firstFileBlock; fileBlock <= lastFileBlock;) {
+            int blockIndex = extentMap.getBlockIndex(fileBlock);
+            int runLength = Math.min(extentMap.getRunLength(fileBlock),
+                                     lastFileBlock - fileBlock + 1);
+            fileSystem.invalidateFingerprints(
+                    new VirtualFileSystemBlockIndexRange(
+                            blockIndex, 
+                            blockIndex + runLength - 1));
+            fileBlock += runLength;
+        }
+    }
+    
+    private void checkWritable() {
+        if (snapshot != null) {
+            throw new IllegalStateException(
+                    "The node \"" + nodeName + "\" belongs to the " +
+                    "read-only snapshot \"" + snapshot.getName() + "\".");
+        }
+    }
+    
+    private void checkIsDirectory() {
+        if (nodeType != VirtualFileSystemNodeType.DIRECTORY) {
+            throw new IllegalStateException(
+                    "The node \"" + nodeName + "\" is not a directory.");
+        }
+    }
+    
+    private String checkNodeName(String name, 
+                                 VirtualFileSystemNode parentDirectory) {
+        if (name.isEmpty()) {
+            throw new IllegalArgumentException("The name of a node is empty.");
+        }
+        
+        if (name.length() > MAXIMUM_NODE_NAME_LENGTH) {
+            throw new IllegalArgumentException("The node name is " +
+                    (name.length() - MAXIMUM_NODE_NAME_LENGTH) +
+                    " character(s) too long.");
+        }
+        
+        int encodedLength = 
+                VirtualFileSystemInodeTable.getEncodedNameLength(name);
+        
+        if (encodedLength > MAXIMUM_NODE_NAME_BYTES) {
+            throw new IllegalArgumentException("The node name is " +
+                    (encodedLength - MAXIMUM_NODE_NAME_BYTES) +
+                    " byte(s) too long in UTF-8.");
+        }
+        
+        if (parentDirectory.containsNodeName(name)) {
+            throw new IllegalArgumentException("The name \"" + name + "\"" +
+                    " is already occupied.");
+        }
+        
+        return name;
+    }
+    
+    /**
+     * A chunk of a compressed file together with its decompressed content.
+     */
+    private static final class DecodedChunk {
+        
+        /**
+         * The index of the chunk.
+         */
+        final int chunk;
+        
+        /**
+         * The content of the chunk followed by zeros.
+         */
+        final byte[] data;
+        
+        DecodedChunk(int chunk, byte[] data) {
+            this.chunk = chunk;
+            this.data = data;
+        }
     }
 }
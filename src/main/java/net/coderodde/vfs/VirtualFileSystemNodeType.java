@@ -26,4 +26,21 @@ public enum VirtualFileSystemNodeType {
     public byte getValue() {
         return value;
     }
+    
+    /**
+     * Returns the node type encoded by the given byte value.
+     * 
+     * @param value the byte value of a node type.
+     * @return the node type.
+     */
+    public static VirtualFileSystemNodeType valueOf(byte value) {
+        for (VirtualFileSystemNodeType nodeType : values()) {
+            if (nodeType.value == value) {
+                return nodeType;
+            }
+        }
+        
+        throw new IllegalArgumentException(
+                "Unknown node type value: " + value);
+    }
 }
@@ -0,0 +1,350 @@
+package net.coderodde.vfs;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.SeekableByteChannel;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This class implements a session of a user of a virtual file system. A 
+ * password protected node protects its whole subtree: a node is accessible
+ * in a session only if every protected node on its path was authorized in 
+ * the session with the right password.
+ * <p>
+ * The session remembers the password hash of each node it authorized, keyed
+ * by the inode number, so that the password of a node is verified only once
+ * per session; checking the access to a node afterwards walks its parent 
+ * chain and compares the hashes, without hashing anything. An authorization
+ * survives the unloading of the node, and lapses when the password of the 
+ * node changes or its inode is reused, since the fresh salt makes the hash 
+ * differ. A session may be used by many threads at the same time.
+ * <p>
+ * The access to the nodes is enforced by the operations of the session: 
+ * resolving a path, looking up a child, opening the content and creating or
+ * deleting a node all fail with a {@link SecurityException} if the node 
+ * involved is not accessible; the target of a symbolic link must be 
+ * accessible as well. A node created in the session is authorized in it 
+ * right away. The password hash of the created nodes is derived once per 
+ * distinct password and session, so creating many protected nodes does not
+ * run the slow key derivation for each of them; the nodes protected by the
+ * same password in the same session share the salt.
+ * 
+ * @author Rodion "rodde" Efremov
+ * @version 1.6 (Aug 17, 2017)
+ */
+public final class VirtualFileSystemSession {
+
+    /**
+     * The file system of this session.
+     */
+    private final VirtualFilesystem fileSystem;
+    
+    /**
+     * Maps the inode number of each authorized node to the hash it was 
+     * authorized against.
+     */
+    private final Map<Integer, byte[]> authorizedHashMap = 
+            new ConcurrentHashMap<>();
+    
+    /**
+     * Maps each password of the nodes created in this session to its hash.
+     */
+    private final Map<String, byte[]> derivedHashMap = 
+            new ConcurrentHashMap<>();
+    
+    /**
+     * Constructs a session of the given file system.
+     * 
+     * @param fileSystem the file system.
+     */
+    VirtualFileSystemSession(VirtualFilesystem fileSystem) {
+        this.fileSystem = fileSystem;
+    }
+    
+    /**
+     * Authorizes the given node in this session if the password is right. 
+     * A node without a password needs no authorization. The password is 
+     * always verified, so a wrong one is rejected even if the node was 
+     * authorized before; the earlier authorization stays in effect.
+     * 
+     * @param node     the node to authorize.
+     * @param password the password of the node.
+     * @return {@code true} if the node is authorized.
+     */
+    public boolean authorize(VirtualFileSystemNode node, String password) {
+        checkNode(node);
+        Objects.requireNonNull(password, "The input password is null.");
+        byte[] passwordHash = node.getPasswordHash();
+        
+        if (passwordHash == null) {
+            return true;
+        }
+        
+        if (!VirtualPasswordHasher.matches(password, passwordHash)) {
+            return false;
+        }
+        
+        authorizedHashMap.put(node.getInodeNumber(), passwordHash);
+        return true;
+    }
+    
+    /**
+     * Checks whether the given node is accessible in this session.
+     * 
+     * @param node the node to check.
+     * @return {@code true} if every protected node on the path of the node 
+     *         is authorized.
+     */
+    public boolean canAccess(VirtualFileSystemNode node) {
+        checkNode(node);
+        
+        for (VirtualFileSystemNode current = node;
+                current != null;
+                current = current.getParent()) {
+            byte[] passwordHash = current.getPasswordHash();
+            
+            if (passwordHash != null && !isAuthorized(current, passwordHash)) {
+                return false;
+            }
+        }
+        
+        return true;
+    }
+    
+    /**
+     * Checks that the given node is accessible in this session.
+     * 
+     * @param node the node to check.
+     * @throws SecurityException if the node is not accessible.
+     */
+    public void checkAccess(VirtualFileSystemNode node) {
+        if (!canAccess(node)) {
+            throw new SecurityException(
+                    "Access to the node \"" + node.getPath() + "\" is " +
+                    "denied.");
+        }
+    }
+    
+    /**
+     * Resolves the given absolute path to a node accessible in this session.
+     * 
+     * @param path the absolute path to resolve.
+     * @return the node, or {@code null} if the path does not exist.
+     * @throws SecurityException if the node is not accessible.
+     * @see VirtualFilesystem#resolve(String)
+     */
+    public VirtualFileSystemNode resolve(String path) {
+        VirtualFileSystemNode node = fileSystem.resolve(path);
+        
+        if (node != null) {
+            checkTargetAccess(node);
+        }
+        
+        return node;
+    }
+    
+    /**
+     * Returns the child of the given directory with the given name.
+     * 
+     * @param directory the directory.
+     * @param name      the name of the child.
+     * @return the child, or {@code null} if there is no such child.
+     * @throws SecurityException if the directory or the child is not 
+     *                           accessible.
+     */
+    public VirtualFileSystemNode getChild(VirtualFileSystemNode directory,
+                                          String name) {
+        checkTargetAccess(directory);
+        VirtualFileSystemNode child = directory.getChild(name);
+        
+        if (child != null) {
+            checkTargetAccess(child);
+        }
+        
+        return child;
+    }
+    
+    /**
+     * Opens a channel over the content of the given regular file.
+     * 
+     * @param node the file.
+     * @return the channel.
+     * @throws SecurityException if the file is not accessible.
+     */
+    public SeekableByteChannel openChannel(VirtualFileSystemNode node) {
+        checkTargetAccess(node);
+        return node.openChannel();
+    }
+    
+    /**
+     * Opens a stream reading the content of the given regular file.
+     * 
+     * @param node the file.
+     * @return the input stream.
+     * @throws SecurityException if the file is not accessible.
+     */
+    public InputStream openInputStream(VirtualFileSystemNode node) {
+        checkTargetAccess(node);
+        return node.openInputStream();
+    }
+    
+    /**
+     * Opens a stream writing the content of the given regular file.
+     * 
+     * @param node   the file.
+     * @param append whether to append to the current content.
+     * @return the output stream.
+     * @throws SecurityException if the file is not accessible.
+     */
+    public OutputStream openOutputStream(VirtualFileSystemNode node, 
+                                         boolean append) {
+        checkTargetAccess(node);
+        return node.openOutputStream(append);
+    }
+    
+    /**
+     * Creates a regular file in the given directory.
+     * 
+     * @param fileName        the name of the file.
+     * @param password        the password of the file, or {@code null}.
+     * @param parentDirectory the directory of the file.
+     * @return the new file.
+     * @throws SecurityException if the directory is not accessible.
+     */
+    public VirtualFileSystemNode 
+        createRegularFile(String fileName,
+                          String password,
+                          VirtualFileSystemNode parentDirectory) {
+        return createNode(fileName, 
+                          password, 
+                          parentDirectory,
+                          VirtualFileSystemNodeType.REGULAR_FILE,
+                          null);
+    }
+    
+    /**
+     * Creates a directory in the given directory.
+     * 
+     * @param directoryName   the name of the directory.
+     * @param password        the password of the directory, or 
+     *                        {@code null}.
+     * @param parentDirectory the parent directory.
+     * @return the new directory.
+     * @throws SecurityException if the parent directory is not accessible.
+     */
+    public VirtualFileSystemNode 
+        createDirectory(String directoryName,
+                        String password,
+                        VirtualFileSystemNode parentDirectory) {
+        return createNode(directoryName, 
+                          password, 
+                          parentDirectory,
+                          VirtualFileSystemNodeType.DIRECTORY,
+                          null);
+    }
+    
+    /**
+     * Creates a symbolic link in the given directory.
+     * 
+     * @param linkName        the name of the link.
+     * @param password        the password of the link, or {@code null}.
+     * @param parentDirectory the directory of the link.
+     * @param linkedNode      the node the link points to.
+     * @return the new link.
+     * @throws SecurityException if the directory or the linked node is not
+     *                           accessible.
+     */
+    public VirtualFileSystemNode 
+        createSymbolicLink(String linkName,
+                           String password,
+                           VirtualFileSystemNode parentDirectory,
+                           VirtualFileSystemNode linkedNode) {
+        Objects.requireNonNull(linkedNode, "The linked node is null.");
+        checkTargetAccess(linkedNode);
+        return createNode(linkName, 
+                          password, 
+                          parentDirectory,
+                          VirtualFileSystemNodeType.SYMBOLIC_LINK,
+                          linkedNode);
+    }
+    
+    /**
+     * Deletes the given node along with its subtree.
+     * 
+     * @param node the node to delete.
+     * @throws SecurityException if the node is not accessible.
+     */
+    public void delete(VirtualFileSystemNode node) {
+        checkAccess(node);
+        node.delete();
+    }
+    
+    /**
+     * Forgets all the authorizations and the derived password hashes of this
+     * session.
+     */
+    public void clear() {
+        authorizedHashMap.clear();
+        derivedHashMap.clear();
+    }
+    
+    private VirtualFileSystemNode createNode(
+            String nodeName,
+            String password,
+            VirtualFileSystemNode parentDirectory,
+            VirtualFileSystemNodeType nodeType,
+            VirtualFileSystemNode linkedNode) {
+        checkTargetAccess(parentDirectory);
+        byte[] passwordHash = 
+                password != null ?
+                derivedHashMap.computeIfAbsent(password, 
+                                               VirtualPasswordHasher::hash) :
+                null;
+        
+        VirtualFileSystemNode node = 
+                VirtualFileSystemNode.createNode(nodeName,
+                                                 passwordHash,
+                                                 parentDirectory,
+                                                 nodeType,
+                                                 linkedNode);
+        
+        if (passwordHash != null) {
+            authorizedHashMap.put(node.getInodeNumber(), passwordHash);
+        }
+        
+        return node;
+    }
+    
+    /**
+     * Checks that the given node and, if it is a symbolic link, the nodes it
+     * leads to are accessible in this session.
+     */
+    private void checkTargetAccess(VirtualFileSystemNode node) {
+        checkAccess(node);
+        
+        for (VirtualFileSystemNode linked = node.getLinkedNode();
+                linked != null;
+                linked = linked.getLinkedNode()) {
+            checkAccess(linked);
+        }
+    }
+    
+    private boolean isAuthorized(VirtualFileSystemNode node, 
+                                 byte[] passwordHash) {
+        return Arrays.equals(authorizedHashMap.get(node.getInodeNumber()),
+                             passwordHash);
+    }
+    
+    private void checkNode(VirtualFileSystemNode node) {
+        Objects.requireNonNull(node, "The input node is null.");
+        
+        if (node.getFileSystem() != fileSystem) {
+            throw new IllegalArgumentException(
+                    "The node \"" + node.getPath() + "\" does not belong " +
+                    "to the file system of this session.");
+        }
+    }
+}
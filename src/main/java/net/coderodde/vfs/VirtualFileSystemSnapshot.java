@@ -0,0 +1,183 @@
+package net.coderodde.vfs;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This class represents a read-only, point-in-time snapshot of a virtual file
+ * system. The tree of a snapshot is read through {@link #getRoot()}; its
+ * nodes support all the queries of the live nodes, while their mutators
+ * throw an {@link IllegalStateException}.
+ * <p>
+ * A snapshot stores only what changed after it was taken: the inodes of the
+ * nodes changed since, preserved as they were, keyed by the inode numbers of
+ * the live nodes. Every other node is read from the live tree.
+ * 
+ * @author Rodion "rodde" Efremov
+ * @version 1.6 (Aug 17, 2017)
+ */
+public final class VirtualFileSystemSnapshot {
+
+    /**
+     * The snapshot table holding this snapshot.
+     */
+    private final VirtualFileSystemSnapshotTable snapshotTable;
+    
+    /**
+     * The name of this snapshot.
+     */
+    private final String name;
+    
+    /**
+     * The generation of this snapshot. The generations grow with the
+     * creation order of the snapshots.
+     */
+    private final long generation;
+    
+    /**
+     * The time at which this snapshot was taken.
+     */
+    private final long creationTime;
+    
+    /**
+     * The inode holding the record of this snapshot.
+     */
+    private final int recordInodeNumber;
+    
+    /**
+     * The root block of the on-image index of {@code preservedInodes}.
+     * Guarded by the lock of the snapshot table.
+     */
+    private int redirectRootBlockIndex;
+    
+    /**
+     * Maps the inode number of each node preserved for this snapshot to the
+     * inode holding its preserved copy.
+     */
+    private final Map<Integer, Integer> preservedInodes =
+            new ConcurrentHashMap<>();
+    
+    /**
+     * Set when the deletion of this snapshot begins.
+     */
+    private volatile boolean deleted;
+    
+    /**
+     * The root directory of this snapshot, or {@code null} until first
+     * requested.
+     */
+    private VirtualFileSystemNode root;
+    
+    VirtualFileSystemSnapshot(VirtualFileSystemSnapshotTable snapshotTable,
+                              String name,
+                              long generation,
+                              long creationTime,
+                              int recordInodeNumber,
+                              int redirectRootBlockIndex) {
+        this.snapshotTable          = snapshotTable;
+        this.name                   = name;
+        this.generation             = generation;
+        this.creationTime           = creationTime;
+        this.recordInodeNumber      = recordInodeNumber;
+        this.redirectRootBlockIndex = redirectRootBlockIndex;
+    }
+    
+    /**
+     * Returns the name of this snapshot.
+     * 
+     * @return the name.
+     */
+    public String getName() {
+        return name;
+    }
+    
+    /**
+     * Returns the time at which this snapshot was taken. The number of
+     * milliseconds since the Unix Epoch.
+     * 
+     * @return the creation time.
+     */
+    public long getCreationTimestamp() {
+        return creationTime;
+    }
+    
+    /**
+     * Returns the number of nodes changed since this snapshot was taken and
+     * before the next snapshot was taken, whose old inodes this snapshot
+     * holds.
+     * 
+     * @return the number of preserved nodes.
+     */
+    public int getPreservedNodeCount() {
+        return preservedInodes.size();
+    }
+    
+    /**
+     * Returns the root directory of this snapshot.
+     * 
+     * @return the read-only root directory.
+     * @throws IllegalStateException if this snapshot was deleted.
+     */
+    public synchronized VirtualFileSystemNode getRoot() {
+        checkNotDeleted();
+        
+        if (root == null) {
+            root = snapshotTable.readRoot(this);
+        }
+        
+        return root;
+    }
+    
+    @Override
+    public String toString() {
+        return "[" + name + ", generation " + generation + ", " +
+               preservedInodes.size() + " preserved node(s)]";
+    }
+    
+    /**
+     * Reads the node with the given live inode number as this snapshot sees
+     * it.
+     * 
+     * @param inodeNumber the inode number of the node in the live tree.
+     * @return the read-only node.
+     */
+    VirtualFileSystemNode readNode(int inodeNumber) {
+        checkNotDeleted();
+        return snapshotTable.readNode(this, inodeNumber);
+    }
+    
+    long getGeneration() {
+        return generation;
+    }
+    
+    int getRecordInodeNumber() {
+        return recordInodeNumber;
+    }
+    
+    int getRedirectRootBlockIndex() {
+        return redirectRootBlockIndex;
+    }
+    
+    void setRedirectRootBlockIndex(int redirectRootBlockIndex) {
+        this.redirectRootBlockIndex = redirectRootBlockIndex;
+    }
+    
+    Map<Integer, Integer> getPreservedInodes() {
+        return preservedInodes;
+    }
+    
+    boolean isDeleted() {
+        return deleted;
+    }
+    
+    void markDeleted() {
+        deleted = true;
+    }
+    
+    private void checkNotDeleted() {
+        if (deleted) {
+            throw new IllegalStateException(
+                    "The snapshot \"" + name + "\" was deleted.");
+        }
+    }
+}
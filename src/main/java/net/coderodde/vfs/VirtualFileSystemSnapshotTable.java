@@ -0,0 +1,574 @@
+package net.coderodde.vfs;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * This class keeps the snapshots of a virtual file system.
+ * <p>
+ * Each snapshot has a generation, and so has each live node: the generation
+ * of the newest snapshot when the state of the node on the image came to be.
+ * A node whose generation is older than the newest snapshot is in the state
+ * that snapshot sees, so the node is preserved before it changes: its inode
+ * is copied into a free inode marked as preserved, the copy is recorded in
+ * the snapshot under the inode number of the node, and the node gets the
+ * generation of the snapshot. The blocks the copy refers to, that is the
+ * data blocks and the chain head of a file or the index root of a directory,
+ * gain a reference in the {@link VirtualFileSystemBlockReferenceTable}; the
+ * node copies them on write from then on. Taking a snapshot is thus a write
+ * of a single inode, and a snapshot costs only the nodes changed while it is
+ * the newest one.
+ * <p>
+ * A snapshot reads a node from the preserved copy recorded in the oldest
+ * snapshot not older than itself, and from the live tree if there is no
+ * copy. Deleting a snapshot hands each of its copies that the previous
+ * snapshot sees over to that snapshot and drops the rest.
+ * <p>
+ * On the image the table is an inode holding the last generation and the
+ * root of a {@link VirtualDirectoryIndex} mapping the snapshot names to
+ * their record inodes. A record holds the name, the generation, the
+ * creation time and the root of another index mapping the decimal inode
+ * numbers of the preserved nodes to their copies. The references of the 
+ * copies to the blocks are counted in the 
+ * {@link VirtualFileSystemBlockReferenceTable}, which is stored on its own.
+ * 
+ * @author Rodion "rodde" Efremov
+ * @version 1.6 (Aug 17, 2017)
+ */
+final class VirtualFileSystemSnapshotTable {
+
+    /**
+     * The type byte of the snapshot table inode. Differs from the values of
+     * the node types.
+     */
+    private static final byte SNAPSHOT_TABLE_TYPE = 16;
+    
+    /**
+     * The type byte of a snapshot record inode.
+     */
+    private static final byte SNAPSHOT_RECORD_TYPE = 17;
+    
+    /**
+     * The maximum number of bytes in the UTF-8 encoding of a snapshot name.
+     */
+    private static final int MAXIMUM_NAME_BYTES = 96;
+    
+    /**
+     * The number of preserved nodes released by a single operation while a
+     * snapshot is deleted, which keeps each operation well within the
+     * journal.
+     */
+    private static final int DELETION_BATCH_SIZE = 64;
+    
+    /**
+     * The file system.
+     */
+    private final VirtualFilesystem fileSystem;
+    
+    /**
+     * The inode table of the file system.
+     */
+    private final VirtualFileSystemInodeTable inodeTable;
+    
+    /**
+     * The reference counts of the shared blocks.
+     */
+    private final VirtualFileSystemBlockReferenceTable referenceTable;
+    
+    /**
+     * The inode of the snapshot table.
+     */
+    private final int tableInodeNumber;
+    
+    /**
+     * The inode of the live root directory.
+     */
+    private final int rootInodeNumber;
+    
+    /**
+     * The snapshots in ascending generation order, including a snapshot
+     * being deleted.
+     */
+    private final List<VirtualFileSystemSnapshot> snapshots =
+            new CopyOnWriteArrayList<>();
+    
+    /**
+     * Guards the changes of the snapshots and of their on-image structures.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+    
+    /**
+     * Serializes the deletions of snapshots.
+     */
+    private final ReentrantLock deletionLock = new ReentrantLock();
+    
+    /**
+     * Maps the snapshot names to their record inodes.
+     */
+    private final VirtualDirectoryIndex catalog;
+    
+    /**
+     * The generation of the last snapshot taken.
+     */
+    private long lastGeneration;
+    
+    /**
+     * The generation of the newest snapshot not being deleted, or zero.
+     */
+    private volatile long newestGeneration;
+    
+    /**
+     * Loads the snapshot table of a mounted file system.
+     * 
+     * @param fileSystem     the file system.
+     * @param inodeTable     the inode table of the file system.
+     * @param referenceTable the table of block references.
+     * @param superblock     the superblock of the image.
+     */
+    VirtualFileSystemSnapshotTable(
+            VirtualFilesystem fileSystem,
+            VirtualFileSystemInodeTable inodeTable,
+            VirtualFileSystemBlockReferenceTable referenceTable,
+            VirtualFileSystemSuperblock superblock) {
+        this.fileSystem       = fileSystem;
+        this.inodeTable       = inodeTable;
+        this.referenceTable   = referenceTable;
+        this.tableInodeNumber = superblock.getSnapshotTableInodeNumber();
+        this.rootInodeNumber  = superblock.getRootInodeNumber();
+        
+        ByteBuffer inode = inodeTable.read(tableInodeNumber);
+        checkInode(inode, SNAPSHOT_TABLE_TYPE, tableInodeNumber);
+        lastGeneration = VirtualFileSystemInodeTable.getVarint(inode);
+        catalog = new VirtualDirectoryIndex(fileSystem, inode.getInt());
+        
+        List<VirtualFileSystemSnapshot> loadedSnapshots = new ArrayList<>();
+        catalog.scan(null, (name, recordInodeNumber) -> {
+            loadedSnapshots.add(readRecord(recordInodeNumber));
+            return true;
+        });
+        
+        loadedSnapshots.sort(
+                Comparator.comparingLong(
+                        VirtualFileSystemSnapshot::getGeneration));
+        snapshots.addAll(loadedSnapshots);
+        updateNewestGeneration();
+    }
+    
+    /**
+     * Writes the inode of an empty snapshot table.
+     * 
+     * @param inode the zeroed buffer receiving the inode.
+     */
+    static void format(ByteBuffer inode) {
+        inode.put(VirtualFileSystemInodeTable.INODE_VERSION);
+        inode.put(SNAPSHOT_TABLE_TYPE);
+        VirtualFileSystemInodeTable.putVarint(inode, 0L);
+        inode.putInt(VirtualDirectoryIndex.NO_BLOCK);
+    }
+    
+    /**
+     * Returns the generation of the newest snapshot, which a node must have
+     * reached in order to change without being preserved.
+     * 
+     * @return the newest generation, or zero if there are no snapshots.
+     */
+    long getNewestGeneration() {
+        return newestGeneration;
+    }
+    
+    /**
+     * Returns the snapshots in creation order.
+     * 
+     * @return the list of the snapshots.
+     */
+    List<VirtualFileSystemSnapshot> getSnapshots() {
+        List<VirtualFileSystemSnapshot> list = new ArrayList<>();
+        
+        for (VirtualFileSystemSnapshot snapshot : snapshots) {
+            if (!snapshot.isDeleted()) {
+                list.add(snapshot);
+            }
+        }
+        
+        return Collections.unmodifiableList(list);
+    }
+    
+    /**
+     * Returns the snapshot with the given name.
+     * 
+     * @param name the name of the snapshot.
+     * @return the snapshot, or {@code null} if there is none.
+     */
+    VirtualFileSystemSnapshot getSnapshot(String name) {
+        for (VirtualFileSystemSnapshot snapshot : snapshots) {
+            if (!snapshot.isDeleted() && snapshot.getName().equals(name)) {
+                return snapshot;
+            }
+        }
+        
+        return null;
+    }
+    
+    /**
+     * Takes a snapshot. Must be called while no operation is running, after
+     * the totals of the directories have been written.
+     * 
+     * @param name the name of the snapshot.
+     * @return the snapshot.
+     */
+    VirtualFileSystemSnapshot create(String name) {
+        if (name.isEmpty()) {
+            throw new IllegalArgumentException("The snapshot name is empty.");
+        }
+        
+        if (VirtualFileSystemInodeTable.getEncodedNameLength(name)
+                > MAXIMUM_NAME_BYTES) {
+            throw new IllegalArgumentException(
+                    "The snapshot name \"" + name + "\" is too long.");
+        }
+        
+        lock.lock();
+        
+        try {
+            for (VirtualFileSystemSnapshot snapshot : snapshots) {
+                if (snapshot.getName().equals(name)) {
+                    throw new IllegalArgumentException(
+                            "The snapshot \"" + name + "\" already exists.");
+                }
+            }
+            
+            VirtualFileSystemSnapshot snapshot =
+                    new VirtualFileSystemSnapshot(this,
+                                                  name,
+                                                  lastGeneration + 1,
+                                                  System.currentTimeMillis(),
+                                                  inodeTable.allocate(),
+                                                  VirtualDirectoryIndex
+                                                          .NO_BLOCK);
+            ++lastGeneration;
+            writeRecord(snapshot);
+            catalog.insert(name, snapshot.getRecordInodeNumber());
+            writeTableInode();
+            snapshots.add(snapshot);
+            updateNewestGeneration();
+            return snapshot;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Deletes the given snapshot. The preserved nodes are released in
+     * batches, each in an operation of its own; if the deletion is cut short
+     * by a crash, the snapshot is still there, holding the nodes not yet
+     * released, and can be deleted again.
+     * 
+     * @param name the name of the snapshot.
+     */
+    void delete(String name) {
+        deletionLock.lock();
+        
+        try {
+            VirtualFileSystemSnapshot snapshot;
+            lock.lock();
+            
+            try {
+                snapshot = getSnapshot(name);
+                
+                if (snapshot == null) {
+                    throw new IllegalArgumentException(
+                            "No snapshot named \"" + name + "\".");
+                }
+                
+                snapshot.markDeleted();
+                updateNewestGeneration();
+            } finally {
+                lock.unlock();
+            }
+            
+            List<Integer> inodeNumbers =
+                    new ArrayList<>(snapshot.getPreservedInodes().keySet());
+            
+            for (int from = 0;
+                    from < inodeNumbers.size();
+                    from += DELETION_BATCH_SIZE) {
+                int to = Math.min(inodeNumbers.size(),
+                                  from + DELETION_BATCH_SIZE);
+                fileSystem.beginOperation();
+                lock.lock();
+                
+                try {
+                    for (int inodeNumber : inodeNumbers.subList(from, to)) {
+                        releasePreservedNode(snapshot, inodeNumber);
+                    }
+                    
+                    writeRecord(snapshot);
+                } finally {
+                    lock.unlock();
+                    fileSystem.endOperation();
+                }
+            }
+            
+            fileSystem.beginOperation();
+            lock.lock();
+            
+            try {
+                new VirtualDirectoryIndex(fileSystem,
+                                          snapshot.getRedirectRootBlockIndex())
+                        .destroy();
+                catalog.delete(name);
+                fileSystem.freeInode(snapshot.getRecordInodeNumber());
+                writeTableInode();
+                snapshots.remove(snapshot);
+            } finally {
+                lock.unlock();
+                fileSystem.endOperation();
+            }
+        } finally {
+            deletionLock.unlock();
+        }
+    }
+    
+    /**
+     * Preserves the inode of the given node for the newest snapshot unless
+     * the node has reached its generation. Sets the generation of the node,
+     * but does not write the inode of the node.
+     * 
+     * @param node the live node about to change.
+     * @return {@code true} if the generation of the node changed.
+     */
+    boolean preserve(VirtualFileSystemNode node) {
+        lock.lock();
+        
+        try {
+            VirtualFileSystemSnapshot snapshot = getNewestSnapshot();
+            
+            if (snapshot == null
+                    || node.getGeneration() >= snapshot.getGeneration()) {
+                return false;
+            }
+            
+            int inodeNumber = node.getInodeNumber();
+            
+            if (!snapshot.getPreservedInodes().containsKey(inodeNumber)) {
+                byte[] bytes = new byte[VirtualFileSystemInodeTable.INODE_SIZE];
+                inodeTable.read(inodeNumber).get(bytes);
+                ByteBuffer copy = ByteBuffer.wrap(bytes)
+                                            .order(ByteOrder.LITTLE_ENDIAN);
+                VirtualFileSystemNode.markPreserved(copy);
+                
+                int copyInodeNumber = inodeTable.allocate();
+                inodeTable.write(copyInodeNumber, copy);
+                
+                for (VirtualFileSystemBlockIndexRange range :
+                        fileSystem.readNode(copyInodeNumber)
+                                  .getReferencedRanges()) {
+                    referenceTable.addReference(range);
+                }
+                
+                addRedirect(snapshot, inodeNumber, copyInodeNumber);
+                writeRecord(snapshot);
+            }
+            
+            node.setGeneration(snapshot.getGeneration());
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Reads the root directory of the given snapshot.
+     * 
+     * @param snapshot the snapshot.
+     * @return the read-only root directory.
+     */
+    VirtualFileSystemNode readRoot(VirtualFileSystemSnapshot snapshot) {
+        return readNode(snapshot, rootInodeNumber);
+    }
+    
+    /**
+     * Reads the node with the given live inode number as the given snapshot
+     * sees it. A node preserved while its live inode is being read is read
+     * again from its copy.
+     * 
+     * @param snapshot    the snapshot.
+     * @param inodeNumber the inode number of the node in the live tree.
+     * @return the read-only node.
+     */
+    VirtualFileSystemNode readNode(VirtualFileSystemSnapshot snapshot,
+                                   int inodeNumber) {
+        while (true) {
+            int resolvedInodeNumber = resolve(snapshot, inodeNumber);
+            VirtualFileSystemNode node;
+            
+            try {
+                node = fileSystem.readNode(resolvedInodeNumber);
+            } catch (IllegalArgumentException ex) {
+                // The live node was deleted while being read:
+                if (resolve(snapshot, inodeNumber) == resolvedInodeNumber) {
+                    throw ex;
+                }
+                
+                continue;
+            }
+            
+            if (resolve(snapshot, inodeNumber) == resolvedInodeNumber) {
+                node.setSnapshot(snapshot);
+                return node;
+            }
+        }
+    }
+    
+    /**
+     * Returns the inode holding the given node as the given snapshot sees
+     * it.
+     */
+    private int resolve(VirtualFileSystemSnapshot snapshot, int inodeNumber) {
+        for (VirtualFileSystemSnapshot other : snapshots) {
+            if (other.getGeneration() >= snapshot.getGeneration()) {
+                Integer copyInodeNumber =
+                        other.getPreservedInodes().get(inodeNumber);
+                
+                if (copyInodeNumber != null) {
+                    return copyInodeNumber;
+                }
+            }
+        }
+        
+        return inodeNumber;
+    }
+    
+    /**
+     * Hands the copy of the given node over to the previous snapshot if that
+     * snapshot sees it, and frees the copy otherwise.
+     */
+    private void releasePreservedNode(VirtualFileSystemSnapshot snapshot,
+                                      int inodeNumber) {
+        Map<Integer, Integer> preservedInodes = snapshot.getPreservedInodes();
+        int copyInodeNumber = preservedInodes.get(inodeNumber);
+        VirtualFileSystemNode copy = fileSystem.readNode(copyInodeNumber);
+        VirtualFileSystemSnapshot previous = getPrevious(snapshot);
+        
+        if (previous != null
+                && copy.getGeneration() < previous.getGeneration()
+                && !previous.getPreservedInodes()
+                            .containsKey(inodeNumber)) {
+            addRedirect(previous, inodeNumber, copyInodeNumber);
+            writeRecord(previous);
+            preservedInodes.remove(inodeNumber);
+        } else {
+            preservedInodes.remove(inodeNumber);
+            copy.releasePreservedCopy();
+            fileSystem.freeInode(copyInodeNumber);
+        }
+        
+        VirtualDirectoryIndex redirectIndex =
+                new VirtualDirectoryIndex(fileSystem,
+                                          snapshot.getRedirectRootBlockIndex());
+        redirectIndex.delete(Integer.toString(inodeNumber));
+        snapshot.setRedirectRootBlockIndex(redirectIndex.getRootBlockIndex());
+    }
+    
+    /**
+     * Records the copy of a node in the given snapshot. The record inode of
+     * the snapshot is written by the caller.
+     */
+    private void addRedirect(VirtualFileSystemSnapshot snapshot,
+                             int inodeNumber,
+                             int copyInodeNumber) {
+        snapshot.getPreservedInodes().put(inodeNumber, copyInodeNumber);
+        VirtualDirectoryIndex redirectIndex =
+                new VirtualDirectoryIndex(fileSystem,
+                                          snapshot.getRedirectRootBlockIndex());
+        redirectIndex.insert(Integer.toString(inodeNumber), copyInodeNumber);
+        snapshot.setRedirectRootBlockIndex(redirectIndex.getRootBlockIndex());
+    }
+    
+    private VirtualFileSystemSnapshot getNewestSnapshot() {
+        for (int i = snapshots.size() - 1; i >= 0; --i) {
+            VirtualFileSystemSnapshot snapshot = snapshots.get(i);
+            
+            if (!snapshot.isDeleted()) {
+                return snapshot;
+            }
+        }
+        
+        return null;
+    }
+    
+    private VirtualFileSystemSnapshot
+        getPrevious(VirtualFileSystemSnapshot snapshot) {
+        int index = snapshots.indexOf(snapshot);
+        return index > 0 ? snapshots.get(index - 1) : null;
+    }
+    
+    private void updateNewestGeneration() {
+        VirtualFileSystemSnapshot snapshot = getNewestSnapshot();
+        newestGeneration = snapshot == null ? 0L : snapshot.getGeneration();
+    }
+    
+    private VirtualFileSystemSnapshot readRecord(int recordInodeNumber) {
+        ByteBuffer inode = inodeTable.read(recordInodeNumber);
+        checkInode(inode, SNAPSHOT_RECORD_TYPE, recordInodeNumber);
+        
+        VirtualFileSystemSnapshot snapshot =
+                new VirtualFileSystemSnapshot(
+                        this,
+                        VirtualFileSystemInodeTable.getName(inode),
+                        VirtualFileSystemInodeTable.getVarint(inode),
+                        VirtualFileSystemInodeTable.getVarint(inode),
+                        recordInodeNumber,
+                        inode.getInt());
+        
+        new VirtualDirectoryIndex(fileSystem,
+                                  snapshot.getRedirectRootBlockIndex())
+                .scan(null, (key, copyInodeNumber) -> {
+                    snapshot.getPreservedInodes()
+                            .put(Integer.parseInt(key), copyInodeNumber);
+                    return true;
+                });
+        
+        return snapshot;
+    }
+    
+    private void writeRecord(VirtualFileSystemSnapshot snapshot) {
+        ByteBuffer inode = VirtualFileSystemInodeTable.getEncodeBuffer();
+        inode.put(VirtualFileSystemInodeTable.INODE_VERSION);
+        inode.put(SNAPSHOT_RECORD_TYPE);
+        VirtualFileSystemInodeTable.putName(inode, snapshot.getName());
+        VirtualFileSystemInodeTable.putVarint(inode, snapshot.getGeneration());
+        VirtualFileSystemInodeTable.putVarint(inode,
+                                              snapshot.getCreationTimestamp());
+        inode.putInt(snapshot.getRedirectRootBlockIndex());
+        inodeTable.write(snapshot.getRecordInodeNumber(), inode);
+    }
+    
+    private void writeTableInode() {
+        ByteBuffer inode = VirtualFileSystemInodeTable.getEncodeBuffer();
+        inode.put(VirtualFileSystemInodeTable.INODE_VERSION);
+        inode.put(SNAPSHOT_TABLE_TYPE);
+        VirtualFileSystemInodeTable.putVarint(inode, lastGeneration);
+        inode.putInt(catalog.getRootBlockIndex());
+        inodeTable.write(tableInodeNumber, inode);
+    }
+    
+    private static void checkInode(ByteBuffer inode,
+                                   byte type,
+                                   int inodeNumber) {
+        if (inode.get() != VirtualFileSystemInodeTable.INODE_VERSION
+                || inode.get() != type) {
+            throw new IllegalArgumentException(
+                    "The inode " + inodeNumber + " does not hold a " +
+                    (type == SNAPSHOT_TABLE_TYPE ? "snapshot table." :
+                                                   "snapshot record."));
+        }
+    }
+}
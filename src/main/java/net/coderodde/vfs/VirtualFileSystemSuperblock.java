@@ -0,0 +1,455 @@
+package net.coderodde.vfs;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * This class represents the superblock of a native image. The superblock is
+ * stored in the block 0 and describes the layout of the image: the block 
+ * size, the inode ratio the image was formatted with, the number of blocks, the location of the allocation bitmap, the 
+ * number of inodes, the location of the inode bitmap and the inode table, 
+ * the location of the journal and the inode numbers of the root directory,
+ * the snapshot table and the deduplication table. The superblock fits in the
+ * smallest block size, so it can be read before the block size of the image
+ * is known.
+ * 
+ * @author Rodion "rodde" Efremov
+ * @version 1.6 (Aug 10, 2017)
+ */
+final class VirtualFileSystemSuperblock {
+
+    /**
+     * The index of the block holding the superblock.
+     */
+    static final int SUPERBLOCK_INDEX = 0;
+    
+    /**
+     * The magic number identifying a native image ("VFS1" in ASCII).
+     */
+    private static final int MAGIC = 0x56465331;
+    
+    /**
+     * The version of the image format.
+     */
+    private static final int VERSION = 7;
+    
+    /**
+     * The number of inodes reserved for the root directory and the tables.
+     */
+    private static final int RESERVED_INODE_COUNT = 4;
+    
+    /**
+     * The minimum number of blocks in the journal.
+     */
+    private static final int MINIMUM_JOURNAL_BLOCKS = 64;
+    
+    /**
+     * The maximum number of bytes in the journal, unless 
+     * {@link #MINIMUM_JOURNAL_BLOCKS} blocks take more.
+     */
+    private static final int MAXIMUM_JOURNAL_SIZE = 8 * 1024 * 1024;
+    
+    /**
+     * The number of bytes in a block.
+     */
+    private final int blockSize;
+    
+    /**
+     * The number of image bytes per inode the image was formatted with.
+     */
+    private final int bytesPerInode;
+    
+    /**
+     * The number of blocks in the image.
+     */
+    private final int totalBlocks;
+    
+    /**
+     * The index of the first allocation bitmap block.
+     */
+    private final int bitmapFirstBlockIndex;
+    
+    /**
+     * The number of blocks in the allocation bitmap.
+     */
+    private final int bitmapBlockCount;
+    
+    /**
+     * The number of inodes in the image.
+     */
+    private final int inodeCount;
+    
+    /**
+     * The index of the first block of the inode bitmap.
+     */
+    private final int inodeBitmapFirstBlockIndex;
+    
+    /**
+     * The number of blocks in the inode bitmap.
+     */
+    private final int inodeBitmapBlockCount;
+    
+    /**
+     * The index of the first block of the inode table.
+     */
+    private final int inodeTableFirstBlockIndex;
+    
+    /**
+     * The number of blocks in the inode table.
+     */
+    private final int inodeTableBlockCount;
+    
+    /**
+     * The index of the first block of the journal.
+     */
+    private final int journalFirstBlockIndex;
+    
+    /**
+     * The number of blocks in the journal.
+     */
+    private final int journalBlockCount;
+    
+    /**
+     * The inode number of the root directory.
+     */
+    private final int rootInodeNumber;
+    
+    /**
+     * The inode number of the snapshot table.
+     */
+    private final int snapshotTableInodeNumber;
+    
+    /**
+     * The inode number of the deduplication table.
+     */
+    private final int deduplicationTableInodeNumber;
+    
+    /**
+     * The inode number of the block reference table.
+     */
+    private final int referenceTableInodeNumber;
+    
+    /**
+     * Constructs a superblock.
+     * 
+     * @param blockSize                  the number of bytes in a block.
+     * @param bytesPerInode              the image bytes per inode.
+     * @param totalBlocks                the number of blocks in the image.
+     * @param bitmapFirstBlockIndex      the first allocation bitmap block.
+     * @param bitmapBlockCount           the number of allocation bitmap blocks.
+     * @param inodeCount                 the number of inodes.
+     * @param inodeBitmapFirstBlockIndex the first block of the inode bitmap.
+     * @param inodeBitmapBlockCount      the number of inode bitmap blocks.
+     * @param inodeTableFirstBlockIndex  the first block of the inode table.
+     * @param inodeTableBlockCount       the number of inode table blocks.
+     * @param journalFirstBlockIndex     the first block of the journal.
+     * @param journalBlockCount          the number of journal blocks.
+     * @param rootInodeNumber            the root directory inode.
+     * @param snapshotTableInodeNumber   the snapshot table inode.
+     * @param deduplicationTableInodeNumber the deduplication table inode.
+     * @param referenceTableInodeNumber  the block reference table inode.
+     */
+    VirtualFileSystemSuperblock(int blockSize,
+                                int bytesPerInode,
+                                int totalBlocks,
+                                int bitmapFirstBlockIndex,
+                                int bitmapBlockCount,
+                                int inodeCount,
+                                int inodeBitmapFirstBlockIndex,
+                                int inodeBitmapBlockCount,
+                                int inodeTableFirstBlockIndex,
+                                int inodeTableBlockCount,
+                                int journalFirstBlockIndex,
+                                int journalBlockCount,
+                                int rootInodeNumber,
+                                int snapshotTableInodeNumber,
+                                int deduplicationTableInodeNumber,
+                                int referenceTableInodeNumber) {
+        this.blockSize                  = blockSize;
+        this.bytesPerInode              = bytesPerInode;
+        this.totalBlocks                = totalBlocks;
+        this.bitmapFirstBlockIndex      = bitmapFirstBlockIndex;
+        this.bitmapBlockCount           = bitmapBlockCount;
+        this.inodeCount                 = inodeCount;
+        this.inodeBitmapFirstBlockIndex = inodeBitmapFirstBlockIndex;
+        this.inodeBitmapBlockCount      = inodeBitmapBlockCount;
+        this.inodeTableFirstBlockIndex  = inodeTableFirstBlockIndex;
+        this.inodeTableBlockCount       = inodeTableBlockCount;
+        this.journalFirstBlockIndex     = journalFirstBlockIndex;
+        this.journalBlockCount          = journalBlockCount;
+        this.rootInodeNumber            = rootInodeNumber;
+        this.snapshotTableInodeNumber   = snapshotTableInodeNumber;
+        this.deduplicationTableInodeNumber = deduplicationTableInodeNumber;
+        this.referenceTableInodeNumber  = referenceTableInodeNumber;
+    }
+    
+    /**
+     * Computes the layout of a fresh image with the given number of blocks:
+     * the superblock, followed by the allocation bitmap, the inode bitmap, 
+     * the inode table and the journal. The image gets an inode per 
+     * {@code bytesPerInode} bytes, but at least enough blocks of inodes for 
+     * the reserved inodes. The journal takes
+     * about 1/32 of the image, but at most 8 MB. The root directory is the 
+     * inode 0, the snapshot table is the inode 1, the deduplication table is
+     * the inode 2 and the block reference table is the inode 3.
+     * 
+     * @param totalBlocks   the number of blocks in the image.
+     * @param blockSize     the number of bytes in a block.
+     * @param bytesPerInode the number of image bytes per inode.
+     * @return the superblock describing the layout.
+     */
+    static VirtualFileSystemSuperblock createLayout(int totalBlocks,
+                                                    int blockSize,
+                                                    int bytesPerInode) {
+        VirtualFileBlock.checkBlockSize(blockSize);
+        VirtualFileSystemInodeTable.checkBytesPerInode(bytesPerInode);
+        int bitmapBlockCount =
+                VirtualFileSystemAllocationBitmap.getBlockCount(totalBlocks,
+                                                                blockSize);
+        
+        int inodesPerBlock = blockSize / VirtualFileSystemInodeTable.INODE_SIZE;
+        long inodeTableBlocks = 
+                Math.max(getReservedInodeBlockCount(blockSize), 
+                         (long) totalBlocks * blockSize / bytesPerInode /
+                             inodesPerBlock);
+        
+        int inodeTableBlockCount = 
+                (int) Math.min(inodeTableBlocks, 
+                               Integer.MAX_VALUE / inodesPerBlock);
+        
+        int inodeCount = inodeTableBlockCount * inodesPerBlock;
+        int inodeBitmapBlockCount = 
+                VirtualFileSystemAllocationBitmap.getBlockCount(inodeCount,
+                                                                blockSize);
+        
+        int journalBlockCount = 
+                Math.max(MINIMUM_JOURNAL_BLOCKS,
+                         Math.min(MAXIMUM_JOURNAL_SIZE / blockSize, 
+                                  totalBlocks / 32));
+        
+        int inodeBitmapFirstBlockIndex = 
+                SUPERBLOCK_INDEX + 1 + bitmapBlockCount;
+        int inodeTableFirstBlockIndex = 
+                inodeBitmapFirstBlockIndex + inodeBitmapBlockCount;
+        int journalFirstBlockIndex = 
+                inodeTableFirstBlockIndex + inodeTableBlockCount;
+        long reservedBlocks = (long) journalFirstBlockIndex + 
+                              journalBlockCount;
+        
+        if (reservedBlocks >= totalBlocks) {
+            throw new IllegalArgumentException(
+                    "The image of " + totalBlocks + " block(s) is too " +
+                    "small.");
+        }
+        
+        return new VirtualFileSystemSuperblock(blockSize,
+                                               bytesPerInode,
+                                               totalBlocks,
+                                               SUPERBLOCK_INDEX + 1,
+                                               bitmapBlockCount,
+                                               inodeCount,
+                                               inodeBitmapFirstBlockIndex,
+                                               inodeBitmapBlockCount,
+                                               inodeTableFirstBlockIndex,
+                                               inodeTableBlockCount,
+                                               journalFirstBlockIndex,
+                                               journalBlockCount,
+                                               0,
+                                               1,
+                                               2,
+                                               3);
+    }
+    
+    /**
+     * Reads the superblock of the given native image file.
+     * 
+     * @param file the native image file.
+     * @return the superblock.
+     * @throws IllegalArgumentException if the file does not start with a
+     *                                  superblock of a supported version.
+     */
+    static VirtualFileSystemSuperblock read(File file) {
+        ByteBuffer buffer = 
+                ByteBuffer.allocate(VirtualFileBlock.MINIMUM_BLOCK_SIZE);
+        
+        try (FileChannel channel = FileChannel.open(file.toPath(),
+                                                    StandardOpenOption.READ)) {
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0) {
+                    break;
+                }
+            }
+        } catch (IOException ex) {
+            throw new RuntimeException(
+                    "Cannot read the file \"" + file.getAbsolutePath() +
+                    "\".", ex);
+        }
+        
+        buffer.flip();
+        return read(buffer);
+    }
+    
+    /**
+     * Reads a superblock from the given buffer.
+     * 
+     * @param buffer the buffer holding the superblock.
+     * @return the superblock.
+     * @throws IllegalArgumentException if the buffer does not hold a
+     *                                  superblock of a supported version.
+     */
+    static VirtualFileSystemSuperblock read(ByteBuffer buffer) {
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        
+        if (buffer.remaining() < VirtualFileBlock.MINIMUM_BLOCK_SIZE
+                || buffer.getInt() != MAGIC) {
+            throw new IllegalArgumentException(
+                    "Not a virtual file system image.");
+        }
+        
+        int version = buffer.getInt();
+        
+        if (version != VERSION) {
+            throw new IllegalArgumentException(
+                    "Unsupported image version: " + version);
+        }
+        
+        int blockSize = VirtualFileBlock.checkBlockSize(buffer.getInt());
+        int inodeSize = buffer.getInt();
+        
+        if (inodeSize != VirtualFileSystemInodeTable.INODE_SIZE) {
+            throw new IllegalArgumentException(
+                    "Unsupported inode size: " + inodeSize);
+        }
+        
+        return new VirtualFileSystemSuperblock(blockSize,
+                                               buffer.getInt(),
+                                               buffer.getInt(),
+                                               buffer.getInt(),
+                                               buffer.getInt(),
+                                               buffer.getInt(),
+                                               buffer.getInt(),
+                                               buffer.getInt(),
+                                               buffer.getInt(),
+                                               buffer.getInt(),
+                                               buffer.getInt(),
+                                               buffer.getInt(),
+                                               buffer.getInt(),
+                                               buffer.getInt(),
+                                               buffer.getInt(),
+                                               buffer.getInt());
+    }
+    
+    /**
+     * Converts this superblock to a block.
+     * 
+     * @return the bytes of the superblock block.
+     */
+    byte[] toByteArray() {
+        ByteBuffer byteBuffer =
+                ByteBuffer.allocate(blockSize)
+                          .order(ByteOrder.LITTLE_ENDIAN);
+        
+        byteBuffer.putInt(MAGIC);
+        byteBuffer.putInt(VERSION);
+        byteBuffer.putInt(blockSize);
+        byteBuffer.putInt(VirtualFileSystemInodeTable.INODE_SIZE);
+        byteBuffer.putInt(bytesPerInode);
+        byteBuffer.putInt(totalBlocks);
+        byteBuffer.putInt(bitmapFirstBlockIndex);
+        byteBuffer.putInt(bitmapBlockCount);
+        byteBuffer.putInt(inodeCount);
+        byteBuffer.putInt(inodeBitmapFirstBlockIndex);
+        byteBuffer.putInt(inodeBitmapBlockCount);
+        byteBuffer.putInt(inodeTableFirstBlockIndex);
+        byteBuffer.putInt(inodeTableBlockCount);
+        byteBuffer.putInt(journalFirstBlockIndex);
+        byteBuffer.putInt(journalBlockCount);
+        byteBuffer.putInt(rootInodeNumber);
+        byteBuffer.putInt(snapshotTableInodeNumber);
+        byteBuffer.putInt(deduplicationTableInodeNumber);
+        byteBuffer.putInt(referenceTableInodeNumber);
+        
+        byteBuffer.position(0);
+        return byteBuffer.array();
+    }
+    
+    int getBlockSize() {
+        return blockSize;
+    }
+    
+    int getBytesPerInode() {
+        return bytesPerInode;
+    }
+    
+    int getTotalBlocks() {
+        return totalBlocks;
+    }
+    
+    int getBitmapFirstBlockIndex() {
+        return bitmapFirstBlockIndex;
+    }
+    
+    int getBitmapBlockCount() {
+        return bitmapBlockCount;
+    }
+    
+    int getInodeCount() {
+        return inodeCount;
+    }
+    
+    int getInodeBitmapFirstBlockIndex() {
+        return inodeBitmapFirstBlockIndex;
+    }
+    
+    int getInodeBitmapBlockCount() {
+        return inodeBitmapBlockCount;
+    }
+    
+    int getInodeTableFirstBlockIndex() {
+        return inodeTableFirstBlockIndex;
+    }
+    
+    int getInodeTableBlockCount() {
+        return inodeTableBlockCount;
+    }
+    
+    int getJournalFirstBlockIndex() {
+        return journalFirstBlockIndex;
+    }
+    
+    int getJournalBlockCount() {
+        return journalBlockCount;
+    }
+    
+    int getRootInodeNumber() {
+        return rootInodeNumber;
+    }
+    
+    int getSnapshotTableInodeNumber() {
+        return snapshotTableInodeNumber;
+    }
+    
+    int getDeduplicationTableInodeNumber() {
+        return deduplicationTableInodeNumber;
+    }
+    
+    int getReferenceTableInodeNumber() {
+        return referenceTableInodeNumber;
+    }
+    
+    /**
+     * Returns the number of inode table blocks holding the reserved inodes,
+     * which a fresh image writes when formatted.
+     * 
+     * @param blockSize the number of bytes in a block.
+     * @return the number of blocks.
+     */
+    static int getReservedInodeBlockCount(int blockSize) {
+        return (RESERVED_INODE_COUNT * VirtualFileSystemInodeTable.INODE_SIZE 
+                + blockSize - 1) / blockSize;
+    }
+}
@@ -0,0 +1,688 @@
+package net.coderodde.vfs;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class implements the bulk copying of whole directory trees between the
+ * native file system and a virtual file system.
+ * <p>
+ * A transfer is a pipeline of three stages. The calling thread walks the
+ * source tree, creates the directories and hands each regular file to a pool
+ * of reader threads; the readers read the files in chunks into a bounded
+ * queue, from which a pool of writer threads writes the chunks to their
+ * positions in the target files. The chunk buffers come from a fixed pool,
+ * so the memory held by a transfer is bounded, and a slow target stalls the
+ * readers instead of piling up data. A file imported into the image reserves
+ * the blocks for its known size before its first chunk is written, so that
+ * the files written in parallel do not fragment each other.
+ * <p>
+ * Symbolic links and other special files are skipped. A transfer stops at
+ * the first failure and throws it once all the threads are done.
+ * 
+ * @author Rodion "rodde" Efremov
+ * @version 1.6 (Aug 17, 2017)
+ */
+public final class VirtualFileSystemTransfer {
+
+    /**
+     * The number of bytes in a chunk.
+     */
+    private static final int CHUNK_SIZE = 256 * 1024;
+    
+    /**
+     * The number of chunk buffers per thread.
+     */
+    private static final int BUFFERS_PER_THREAD = 2;
+    
+    /**
+     * The number of files per reader that may wait for a reader.
+     */
+    private static final int PENDING_FILES_PER_READER = 4;
+    
+    /**
+     * The chunk marking the end of the queue for a writer.
+     */
+    private static final Chunk END_OF_QUEUE = new Chunk(null, 0L, null);
+    
+    /**
+     * The threads reading the source files.
+     */
+    private final ExecutorService readers;
+    
+    /**
+     * The threads writing the target files.
+     */
+    private final ExecutorService writers;
+    
+    /**
+     * The number of writer threads.
+     */
+    private final int writerCount;
+    
+    /**
+     * Limits the number of files waiting for a reader.
+     */
+    private final Semaphore pendingFiles;
+    
+    /**
+     * The chunks read and not yet written.
+     */
+    private final BlockingQueue<Chunk> chunkQueue;
+    
+    /**
+     * The buffers not held by any chunk.
+     */
+    private final BlockingQueue<ByteBuffer> bufferPool;
+    
+    /**
+     * The first failure of the transfer, or {@code null}.
+     */
+    private final AtomicReference<Throwable> failure =
+            new AtomicReference<>();
+    
+    private final LongAdder fileCounter      = new LongAdder();
+    private final LongAdder directoryCounter = new LongAdder();
+    private final LongAdder byteCounter      = new LongAdder();
+    
+    private VirtualFileSystemTransfer(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException(
+                    "The number of threads (" + threads + ") is not " +
+                    "positive.");
+        }
+        
+        int bufferCount = 2 * threads * BUFFERS_PER_THREAD;
+        
+        this.readers      = Executors.newFixedThreadPool(threads);
+        this.writers      = Executors.newFixedThreadPool(threads);
+        this.writerCount  = threads;
+        this.pendingFiles = new Semaphore(threads * PENDING_FILES_PER_READER);
+        this.chunkQueue   = new ArrayBlockingQueue<>(bufferCount + threads);
+        this.bufferPool   = new ArrayBlockingQueue<>(bufferCount);
+        
+        for (int i = 0; i < bufferCount; ++i) {
+            bufferPool.add(ByteBuffer.allocate(CHUNK_SIZE));
+        }
+    }
+    
+    /**
+     * Copies the content of the given native directory into the given
+     * virtual directory, using a reader and a writer thread per processor.
+     * 
+     * @param nativeDirectory  the native directory to copy from.
+     * @param targetDirectory  the virtual directory to copy into.
+     * @return the statistics of the transfer.
+     */
+    public static VirtualFileSystemTransferStatistics
+        importTree(File nativeDirectory,
+                   VirtualFileSystemNode targetDirectory) {
+        return importTree(nativeDirectory,
+                          targetDirectory,
+                          Runtime.getRuntime().availableProcessors());
+    }
+    
+    /**
+     * Copies the content of the given native directory into the given
+     * virtual directory. Existing virtual directories are merged into; an
+     * existing virtual node with the name of a copied file fails the
+     * transfer.
+     * 
+     * @param nativeDirectory  the native directory to copy from.
+     * @param targetDirectory  the virtual directory to copy into.
+     * @param threads          the number of reader threads and of writer
+     *                         threads.
+     * @return the statistics of the transfer.
+     */
+    public static VirtualFileSystemTransferStatistics
+        importTree(File nativeDirectory,
+                   VirtualFileSystemNode targetDirectory,
+                   int threads) {
+        Objects.requireNonNull(nativeDirectory,
+                               "The native directory is null.");
+        Objects.requireNonNull(targetDirectory,
+                               "The target directory is null.");
+        checkNativeDirectory(nativeDirectory);
+        
+        if (targetDirectory.getNodeType()
+                != VirtualFileSystemNodeType.DIRECTORY) {
+            throw new IllegalArgumentException(
+                    "The node \"" + targetDirectory.getPath() + "\" is not " +
+                    "a directory.");
+        }
+        
+        VirtualFileSystemTransfer transfer =
+                new VirtualFileSystemTransfer(threads);
+        
+        return transfer.run(() -> transfer.walkNative(nativeDirectory.toPath(),
+                                                      targetDirectory));
+    }
+    
+    /**
+     * Copies the content of the given virtual directory into the given
+     * native directory, using a reader and a writer thread per processor.
+     * 
+     * @param sourceDirectory the virtual directory to copy from.
+     * @param nativeDirectory the native directory to copy into.
+     * @return the statistics of the transfer.
+     */
+    public static VirtualFileSystemTransferStatistics
+        exportTree(VirtualFileSystemNode sourceDirectory,
+                   File nativeDirectory) {
+        return exportTree(sourceDirectory,
+                          nativeDirectory,
+                          Runtime.getRuntime().availableProcessors());
+    }
+    
+    /**
+     * Copies the content of the given virtual directory into the given
+     * native directory, which is created if needed. Existing native files
+     * are overwritten.
+     * 
+     * @param sourceDirectory the virtual directory to copy from.
+     * @param nativeDirectory the native directory to copy into.
+     * @param threads         the number of reader threads and of writer
+     *                        threads.
+     * @return the statistics of the transfer.
+     */
+    public static VirtualFileSystemTransferStatistics
+        exportTree(VirtualFileSystemNode sourceDirectory,
+                   File nativeDirectory,
+                   int threads) {
+        Objects.requireNonNull(sourceDirectory,
+                               "The source directory is null.");
+        Objects.requireNonNull(nativeDirectory,
+                               "The native directory is null.");
+        
+        if (sourceDirectory.getNodeType()
+                != VirtualFileSystemNodeType.DIRECTORY) {
+            throw new IllegalArgumentException(
+                    "The node \"" + sourceDirectory.getPath() + "\" is not " +
+                    "a directory.");
+        }
+        
+        VirtualFileSystemTransfer transfer =
+                new VirtualFileSystemTransfer(threads);
+        
+        Path nativePath = nativeDirectory.toPath();
+        return transfer.run(() -> transfer.walkVirtual(sourceDirectory,
+                                                       nativePath));
+    }
+    
+    /**
+     * Runs the walk of the source tree in the calling thread, then drains
+     * the pipeline and shuts the threads down.
+     * 
+     * @param walk the walk submitting the files.
+     * @return the statistics of the transfer.
+     */
+    private VirtualFileSystemTransferStatistics run(IoRunnable walk) {
+        long startTime = System.nanoTime();
+        
+        for (int i = 0; i < writerCount; ++i) {
+            writers.execute(this::write);
+        }
+        
+        try {
+            walk.run();
+        } catch (IOException | RuntimeException ex) {
+            fail(ex);
+        } finally {
+            readers.shutdown();
+            awaitTermination(readers);
+            
+            for (int i = 0; i < writerCount; ++i) {
+                putUninterruptibly(chunkQueue, END_OF_QUEUE);
+            }
+            
+            writers.shutdown();
+            awaitTermination(writers);
+        }
+        
+        Throwable cause = failure.get();
+        
+        if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+        }
+        
+        if (cause != null) {
+            throw new RuntimeException("The transfer failed.", cause);
+        }
+        
+        return new VirtualFileSystemTransferStatistics(
+                fileCounter.sum(),
+                directoryCounter.sum(),
+                byteCounter.sum(),
+                System.nanoTime() - startTime);
+    }
+    
+    /**
+     * Walks the native tree rooted at {@code root}, mirroring its directories
+     * under {@code targetDirectory} and submitting its regular files.
+     */
+    private void walkNative(Path root, VirtualFileSystemNode targetDirectory)
+    throws IOException {
+        Map<Path, VirtualFileSystemNode> directoryMap = new HashMap<>();
+        directoryMap.put(root, targetDirectory);
+        
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            
+            @Override
+            public FileVisitResult preVisitDirectory(
+                    Path directory,
+                    BasicFileAttributes attributes) {
+                if (failure.get() != null) {
+                    return FileVisitResult.TERMINATE;
+                }
+                
+                if (!directory.equals(root)) {
+                    directoryMap.put(
+                            directory,
+                            getOrCreateDirectory(
+                                    directoryMap.get(directory.getParent()),
+                                    directory.getFileName().toString()));
+                }
+                
+                return FileVisitResult.CONTINUE;
+            }
+            
+            @Override
+            public FileVisitResult visitFile(Path file,
+                                             BasicFileAttributes attributes) {
+                if (failure.get() != null) {
+                    return FileVisitResult.TERMINATE;
+                }
+                
+                if (attributes.isRegularFile()) {
+                    VirtualFileSystemNode parent =
+                            directoryMap.get(file.getParent());
+                    
+                    submit(() -> importFile(file,
+                                            attributes.size(),
+                                            parent));
+                }
+                
+                return FileVisitResult.CONTINUE;
+            }
+            
+            @Override
+            public FileVisitResult postVisitDirectory(Path directory,
+                                                      IOException ex)
+            throws IOException {
+                if (ex != null) {
+                    throw ex;
+                }
+                
+                directoryMap.remove(directory);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+    
+    /**
+     * Walks the virtual tree rooted at {@code directory}, mirroring its
+     * directories under {@code nativeDirectory} and submitting its regular
+     * files.
+     */
+    private void walkVirtual(VirtualFileSystemNode directory,
+                             Path nativeDirectory) throws IOException {
+        Files.createDirectories(nativeDirectory);
+        
+        for (VirtualFileSystemNode child : directory.getChildren()) {
+            if (failure.get() != null) {
+                return;
+            }
+            
+            Path nativePath = nativeDirectory.resolve(child.getNodeName());
+            
+            switch (child.getNodeType()) {
+                case DIRECTORY:
+                    directoryCounter.increment();
+                    walkVirtual(child, nativePath);
+                    break;
+                
+                case REGULAR_FILE:
+                    submit(() -> exportFile(child, nativePath));
+                    break;
+                
+                default:
+                    // Symbolic links are skipped.
+            }
+        }
+    }
+    
+    private VirtualFileSystemNode getOrCreateDirectory(
+            VirtualFileSystemNode parent,
+            String name) {
+        VirtualFileSystemNode directory = parent.getChild(name);
+        
+        if (directory == null) {
+            directoryCounter.increment();
+            return VirtualFileSystemNode.createDirectory(name, null, parent);
+        }
+        
+        if (directory.getNodeType() != VirtualFileSystemNodeType.DIRECTORY) {
+            throw new IllegalStateException(
+                    "The node \"" + directory.getPath() + "\" is not a " +
+                    "directory.");
+        }
+        
+        return directory;
+    }
+    
+    /**
+     * Hands a file over to the readers, waiting while too many files are
+     * pending.
+     * 
+     * @param task the task reading the file.
+     */
+    private void submit(IoRunnable task) {
+        pendingFiles.acquireUninterruptibly();
+        
+        readers.execute(() -> {
+            try {
+                if (failure.get() == null) {
+                    task.run();
+                }
+            } catch (IOException | RuntimeException ex) {
+                fail(ex);
+            } finally {
+                pendingFiles.release();
+            }
+        });
+    }
+    
+    /**
+     * Creates the virtual file for the given native file, reserves its blocks
+     * and reads the native file into the chunk queue.
+     */
+    private void importFile(Path file,
+                            long size,
+                            VirtualFileSystemNode parent) throws IOException {
+        VirtualFileSystemNode node =
+                VirtualFileSystemNode.createRegularFile(
+                        file.getFileName().toString(),
+                        null,
+                        parent);
+        
+        node.reserveBlocks(size);
+        
+        FileCopy copy = new FileCopy() {
+            
+            @Override
+            void write(long position, ByteBuffer buffer) {
+                node.writeContent(position, buffer);
+            }
+            
+            @Override
+            void finish() {
+                node.releaseReservedBlocks();
+            }
+        };
+        
+        try (FileChannel channel = FileChannel.open(file,
+                                                    StandardOpenOption.READ)) {
+            long position = 0L;
+            
+            while (true) {
+                ByteBuffer buffer = takeBuffer();
+                
+                while (buffer.hasRemaining()
+                        && channel.read(buffer) >= 0) {
+                }
+                
+                if (!enqueue(copy, position, buffer)) {
+                    break;
+                }
+                
+                position += CHUNK_SIZE;
+            }
+        } finally {
+            copy.chunkDone();
+        }
+    }
+    
+    /**
+     * Creates the native file for the given virtual file and reads the
+     * virtual file into the chunk queue.
+     */
+    private void exportFile(VirtualFileSystemNode node, Path file)
+    throws IOException {
+        FileChannel channel =
+                FileChannel.open(file,
+                                 StandardOpenOption.CREATE,
+                                 StandardOpenOption.TRUNCATE_EXISTING,
+                                 StandardOpenOption.WRITE);
+        
+        FileCopy copy = new FileCopy() {
+            
+            @Override
+            void write(long position, ByteBuffer buffer) throws IOException {
+                while (buffer.hasRemaining()) {
+                    position += channel.write(buffer, position);
+                }
+            }
+            
+            @Override
+            void finish() throws IOException {
+                channel.close();
+            }
+        };
+        
+        try {
+            long position = 0L;
+            
+            while (true) {
+                ByteBuffer buffer = takeBuffer();
+                
+                while (buffer.hasRemaining()
+                        && node.readContent(position + buffer.position(),
+                                            buffer) > 0) {
+                }
+                
+                if (!enqueue(copy, position, buffer)) {
+                    break;
+                }
+                
+                position += CHUNK_SIZE;
+            }
+        } finally {
+            copy.chunkDone();
+        }
+    }
+    
+    /**
+     * Queues the given filled buffer for writing, or returns it to the pool
+     * if it is empty.
+     * 
+     * @return {@code true} if the buffer was full, so that the file may have
+     *         more chunks.
+     */
+    private boolean enqueue(FileCopy copy, long position, ByteBuffer buffer) {
+        boolean full = !buffer.hasRemaining();
+        buffer.flip();
+        
+        if (!buffer.hasRemaining() || failure.get() != null) {
+            buffer.clear();
+            putUninterruptibly(bufferPool, buffer);
+            return false;
+        }
+        
+        copy.pendingChunks.incrementAndGet();
+        putUninterruptibly(chunkQueue, new Chunk(copy, position, buffer));
+        return full;
+    }
+    
+    /**
+     * The loop of a writer thread.
+     */
+    private void write() {
+        while (true) {
+            Chunk chunk = takeUninterruptibly(chunkQueue);
+            
+            if (chunk == END_OF_QUEUE) {
+                return;
+            }
+            
+            try {
+                if (failure.get() == null) {
+                    int length = chunk.buffer.remaining();
+                    chunk.copy.write(chunk.position, chunk.buffer);
+                    byteCounter.add(length);
+                }
+            } catch (IOException | RuntimeException ex) {
+                fail(ex);
+            } finally {
+                chunk.buffer.clear();
+                putUninterruptibly(bufferPool, chunk.buffer);
+                chunk.copy.chunkDone();
+            }
+        }
+    }
+    
+    private ByteBuffer takeBuffer() {
+        return takeUninterruptibly(bufferPool);
+    }
+    
+    private void fail(Throwable cause) {
+        failure.compareAndSet(null, cause);
+    }
+    
+    private static void checkNativeDirectory(File nativeDirectory) {
+        if (!nativeDirectory.isDirectory()) {
+            throw new IllegalArgumentException(
+                    "\"" + nativeDirectory.getAbsolutePath() + "\" is not " +
+                    "a directory.");
+        }
+    }
+    
+    private static <T> T takeUninterruptibly(BlockingQueue<T> queue) {
+        boolean interrupted = false;
+        
+        try {
+            while (true) {
+                try {
+                    return queue.take();
+                } catch (InterruptedException ex) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+    
+    private static <T> void putUninterruptibly(BlockingQueue<T> queue,
+                                               T element) {
+        boolean interrupted = false;
+        
+        try {
+            while (true) {
+                try {
+                    queue.put(element);
+                    return;
+                } catch (InterruptedException ex) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+    
+    private static void awaitTermination(ExecutorService executor) {
+        boolean interrupted = false;
+        
+        try {
+            while (true) {
+                try {
+                    if (executor.awaitTermination(1L, TimeUnit.MINUTES)) {
+                        return;
+                    }
+                } catch (InterruptedException ex) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+    
+    /**
+     * A task that may throw an {@code IOException}.
+     */
+    @FunctionalInterface
+    private interface IoRunnable {
+        void run() throws IOException;
+    }
+    
+    /**
+     * The copying of a single file. The reader holds one pending count while
+     * it reads, and each queued chunk holds another; the file is finished
+     * when the last count is released.
+     */
+    private abstract class FileCopy {
+        
+        final AtomicInteger pendingChunks = new AtomicInteger(1);
+        
+        abstract void write(long position, ByteBuffer buffer)
+        throws IOException;
+        
+        abstract void finish() throws IOException;
+        
+        void chunkDone() {
+            if (pendingChunks.decrementAndGet() != 0) {
+                return;
+            }
+            
+            try {
+                finish();
+                fileCounter.increment();
+            } catch (IOException | RuntimeException ex) {
+                fail(ex);
+            }
+        }
+    }
+    
+    /**
+     * A chunk of a file waiting to be written.
+     */
+    private static final class Chunk {
+        
+        final FileCopy copy;
+        final long position;
+        final ByteBuffer buffer;
+        
+        Chunk(FileCopy copy, long position, ByteBuffer buffer) {
+            this.copy     = copy;
+            this.position = position;
+            this.buffer   = buffer;
+        }
+    }
+}
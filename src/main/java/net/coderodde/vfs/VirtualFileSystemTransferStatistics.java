@@ -0,0 +1,112 @@
+package net.coderodde.vfs;
+
+/**
+ * This class holds the counters of a completed bulk transfer between a native
+ * directory tree and a virtual file system.
+ * 
+ * @author Rodion "rodde" Efremov
+ * @version 1.6 (Aug 17, 2017)
+ */
+public final class VirtualFileSystemTransferStatistics {
+
+    /**
+     * The number of copied regular files.
+     */
+    private final long files;
+    
+    /**
+     * The number of created directories.
+     */
+    private final long directories;
+    
+    /**
+     * The number of copied bytes.
+     */
+    private final long bytes;
+    
+    /**
+     * The duration of the transfer in nanoseconds.
+     */
+    private final long nanos;
+    
+    VirtualFileSystemTransferStatistics(long files,
+                                        long directories,
+                                        long bytes,
+                                        long nanos) {
+        this.files       = files;
+        this.directories = directories;
+        this.bytes       = bytes;
+        this.nanos       = nanos;
+    }
+    
+    /**
+     * Returns the number of copied regular files.
+     * 
+     * @return the number of files.
+     */
+    public long getFiles() {
+        return files;
+    }
+    
+    /**
+     * Returns the number of created directories.
+     * 
+     * @return the number of directories.
+     */
+    public long getDirectories() {
+        return directories;
+    }
+    
+    /**
+     * Returns the number of copied bytes.
+     * 
+     * @return the number of bytes.
+     */
+    public long getBytes() {
+        return bytes;
+    }
+    
+    /**
+     * Returns the duration of the transfer in milliseconds.
+     * 
+     * @return the duration.
+     */
+    public long getMillis() {
+        return nanos / 1_000_000L;
+    }
+    
+    /**
+     * Returns the number of files copied per second.
+     * 
+     * @return the file rate.
+     */
+    public double getFilesPerSecond() {
+        return perSecond(files);
+    }
+    
+    /**
+     * Returns the number of bytes copied per second.
+     * 
+     * @return the throughput.
+     */
+    public double getBytesPerSecond() {
+        return perSecond(bytes);
+    }
+    
+    @Override
+    public String toString() {
+        return String.format(
+                "[files: %d, directories: %d, bytes: %d, time: %d ms, " +
+                "files/s: %.1f, MB/s: %.1f]",
+                files,
+                directories,
+                bytes,
+                getMillis(),
+                getFilesPerSecond(),
+                getBytesPerSecond() / (1024.0 * 1024.0));
+    }
+    
+    private double perSecond(long count) {
+        return nanos == 0L ? 0.0 : count * 1e9 / nanos;
+    }
+}
@@ -1,17 +1,48 @@
 package net.coderodde.vfs;
 
+import java.io.Closeable;
 import java.io.File;
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * This class provides a view over a virtual file system via its application 
  * programming interface.
+ * <p>
+ * A mounted file system may be used by many threads at the same time. The 
+ * nodes lock themselves as described in {@link VirtualFileSystemNode}; the
+ * block cache, the block allocator and the path cache are thread-safe, and 
+ * the block devices serve concurrent reads and writes. Moves between 
+ * directories are serialized by a file system wide lock, which keeps the 
+ * tree free of cycles and makes the top-down lock order well defined. The 
+ * same lock, taken in shared mode, keeps the parent chains fixed while the 
+ * size and node count totals of the directories are updated.
+ * <p>
+ * A file system may have any number of named, read-only snapshots. Taking a
+ * snapshot copies no data: the nodes changed afterwards are preserved for
+ * the snapshot on their first change and share their blocks with the 
+ * preserved copies until the blocks are written; see 
+ * {@link VirtualFileSystemSnapshotTable}.
+ * <p>
+ * The data blocks of a file system may be deduplicated: while the 
+ * deduplication is enabled, a block written with a content already stored
+ * refers to the stored block; see {@link VirtualFileSystemDeduplicationTable}.
  * 
  * @author Rodion "rodde" Efremov
  * @version 1.6 (Aug 6, 2017)
  */
-public final class VirtualFilesystem {
+public final class VirtualFilesystem implements Closeable {
 
     /**
      * The number of blocks in this virtual file system; both occupied and 
@@ -19,6 +50,346 @@ public final class VirtualFilesystem {
      */
     private int totalBlocks;
     
+    /**
+     * The block device over the native image file. Kept open for the whole 
+     * lifetime of this virtual file system.
+     */
+    private final VirtualBlockDevice blockDevice;
+    
+    /**
+     * The I/O scheduler serving the batched transfers of the block cache.
+     */
+    private final VirtualBlockScheduler blockScheduler;
+    
+    /**
+     * The block cache shared by all the nodes of this file system.
+     */
+    private final VirtualBlockCache blockCache;
+    
+    /**
+     * The superblock describing the layout of the native image.
+     */
+    private final VirtualFileSystemSuperblock superblock;
+    
+    /**
+     * The allocation bitmap of the native image.
+     */
+    private final VirtualFileSystemAllocationBitmap allocationBitmap;
+    
+    /**
+     * Holds all the unoccupied block ranges that are ready for reuse.
+     */
+    private final VirtualFileSystemBlockAllocator blockAllocator;
+    
+    /**
+     * The inode bitmap of the native image.
+     */
+    private final VirtualFileSystemAllocationBitmap inodeBitmap;
+    
+    /**
+     * Holds all the free inodes.
+     */
+    private final VirtualFileSystemBlockAllocator inodeAllocator;
+    
+    /**
+     * The table of the inodes holding the metadata of the nodes.
+     */
+    private final VirtualFileSystemInodeTable inodeTable;
+    
+    /**
+     * The write-ahead journal of the metadata blocks.
+     */
+    private final VirtualFileSystemJournal journal;
+    
+    /**
+     * The reference counts of the blocks shared with the snapshots or by 
+     * deduplication.
+     */
+    private final VirtualFileSystemBlockReferenceTable blockReferenceTable;
+    
+    /**
+     * The snapshots of this file system.
+     */
+    private final VirtualFileSystemSnapshotTable snapshotTable;
+    
+    /**
+     * The fingerprints of the deduplicated data blocks.
+     */
+    private final VirtualFileSystemDeduplicationTable deduplicationTable;
+    
+    /**
+     * The root directory.
+     */
+    private final VirtualFileSystemNode root;
+    
+    /**
+     * Caches the results of path resolution.
+     */
+    private final VirtualPathCache pathCache = 
+            new VirtualPathCache(VirtualPathCache.DEFAULT_CAPACITY);
+    
+    /**
+     * Held in write mode by the moves of nodes between directories and by 
+     * anything else that changes the parent chain of a subtree, and in read 
+     * mode by the updates of the directory totals walking a parent chain.
+     * Acquired after beginning an operation and before any node lock.
+     */
+    private final ReentrantReadWriteLock moveLock = 
+            new ReentrantReadWriteLock();
+    
+    /**
+     * The directories whose totals changed since their inodes were last 
+     * written.
+     */
+    private final Set<VirtualFileSystemNode> dirtyDirectories = 
+            ConcurrentHashMap.newKeySet();
+    
+    /**
+     * The inodes and the metadata blocks set aside by each thread for the 
+     * change it is making.
+     */
+    private final ThreadLocal<Reservation> reservation = new ThreadLocal<>();
+    
+    /**
+     * Mounts the virtual file system stored in the image of the given block
+     * device. Mounting replays the journal, loads the allocation bitmap and 
+     * the inode bitmap with a single sequential read each and builds the 
+     * allocators from them, so the mount time is proportional to the size of
+     * the journal and the bitmaps, plus the number of the runs of shared 
+     * blocks and the size of the deduplication index. The reference counts
+     * of the shared blocks are read from their own index; no node is read 
+     * but the root directory.
+     * 
+     * @param blockDevice        the block device of the image.
+     * @param blockScheduler     the I/O scheduler over the block device.
+     * @param superblock         the superblock of the image.
+     * @param blockCacheCapacity the capacity of the block cache in bytes.
+     */
+    private VirtualFilesystem(VirtualBlockDevice blockDevice, 
+                              VirtualBlockScheduler blockScheduler,
+                              VirtualFileSystemSuperblock superblock,
+                              long blockCacheCapacity) {
+        this.blockDevice = blockDevice;
+        this.blockScheduler = blockScheduler;
+        this.blockCache = new VirtualBlockCache(blockScheduler, 
+                                                blockCacheCapacity);
+        this.superblock = superblock;
+        this.totalBlocks = superblock.getTotalBlocks();
+        VirtualFileSystemJournal.replay(blockDevice, superblock);
+        this.allocationBitmap = 
+                VirtualFileSystemAllocationBitmap.load(
+                        blockDevice, 
+                        superblock.getTotalBlocks(),
+                        superblock.getBitmapFirstBlockIndex(),
+                        superblock.getBitmapBlockCount());
+        this.blockAllocator = 
+                VirtualFileSystemBlockAllocator.fromBitmap(allocationBitmap);
+        this.inodeBitmap = 
+                VirtualFileSystemAllocationBitmap.load(
+                        blockDevice, 
+                        superblock.getInodeCount(),
+                        superblock.getInodeBitmapFirstBlockIndex(),
+                        superblock.getInodeBitmapBlockCount());
+        this.inodeAllocator = 
+                VirtualFileSystemBlockAllocator.fromBitmap(inodeBitmap);
+        this.inodeTable = 
+                new VirtualFileSystemInodeTable(this, 
+                                                superblock, 
+                                                inodeAllocator);
+        this.journal = 
+                new VirtualFileSystemJournal(
+                        blockDevice, 
+                        superblock, 
+                        blockCache, 
+                        allocationBitmap, 
+                        blockAllocator,
+                        inodeBitmap,
+                        inodeAllocator,
+                        this::beforeCommit,
+                        VirtualFileSystemJournal
+                                .DEFAULT_COMMIT_INTERVAL_MILLIS);
+        
+        this.blockReferenceTable =
+                new VirtualFileSystemBlockReferenceTable(this,
+                                                         inodeTable,
+                                                         superblock);
+        this.snapshotTable = 
+                new VirtualFileSystemSnapshotTable(this,
+                                                   inodeTable,
+                                                   blockReferenceTable,
+                                                   superblock);
+        this.deduplicationTable = 
+                new VirtualFileSystemDeduplicationTable(this,
+                                                        inodeTable,
+                                                        blockReferenceTable,
+                                                        allocationBitmap,
+                                                        superblock);
+        
+        this.root = readNode(superblock.getRootInodeNumber());
+        this.journal.start();
+    }
+    
+    /**
+     * Creates a new native image holding an empty virtual file system with 
+     * the given number of blocks of the default size.
+     * 
+     * @param file        the image file to create.
+     * @param totalBlocks the number of blocks in the image.
+     */
+    public static void createNativeImage(File file, int totalBlocks) {
+        createNativeImage(file, 
+                          totalBlocks, 
+                          VirtualFileBlock.DEFAULT_BLOCK_SIZE);
+    }
+    
+    /**
+     * Creates a new native image holding an empty virtual file system with 
+     * the given number of blocks of the given size. The block size is a power
+     * of two between 512 bytes and 64 kilobytes; it is recorded in the 
+     * superblock and cannot be changed afterwards. Larger blocks suit images
+     * holding mostly large files and allow for larger images, since an image
+     * holds at most {@code Integer.MAX_VALUE} blocks.
+     * 
+     * @param file        the image file to create.
+     * @param totalBlocks the number of blocks in the image.
+     * @param blockSize   the number of bytes in a block.
+     */
+    public static void createNativeImage(File file, 
+                                         int totalBlocks, 
+                                         int blockSize) {
+        createNativeImage(file, 
+                          totalBlocks, 
+                          blockSize,
+                          VirtualFileSystemInodeTable.DEFAULT_BYTES_PER_INODE);
+    }
+    
+    /**
+     * Creates a new native image holding an empty virtual file system with 
+     * the given number of blocks of the given size and an inode per the 
+     * given number of image bytes. Like the block size, the inode ratio is 
+     * recorded in the superblock and fixes the number of inodes for the life
+     * of the image: a smaller ratio suits images holding many small files, a
+     * larger one leaves more blocks to the data.
+     * 
+     * @param file          the image file to create.
+     * @param totalBlocks   the number of blocks in the image.
+     * @param blockSize     the number of bytes in a block.
+     * @param bytesPerInode the number of image bytes per inode; at least the
+     *                      inode size of 256 bytes.
+     */
+    public static void createNativeImage(File file, 
+                                         int totalBlocks, 
+                                         int blockSize,
+                                         int bytesPerInode) {
+        Objects.requireNonNull(file, "The input file is null.");
+        
+        if (file.length() > 0L) {
+            throw new IllegalArgumentException(
+                    "File \"" + file.getAbsolutePath() + "\" is not " +
+                    "empty.");
+        }
+        
+        VirtualFileSystemSuperblock superblock = 
+                VirtualFileSystemSuperblock.createLayout(totalBlocks, 
+                                                         blockSize,
+                                                         bytesPerInode);
+        
+        VirtualFileSystemAllocationBitmap allocationBitmap = 
+                VirtualFileSystemAllocationBitmap.create(
+                        blockSize,
+                        totalBlocks,
+                        superblock.getBitmapFirstBlockIndex(),
+                        superblock.getBitmapBlockCount());
+        
+        // Reserve the superblock, the bitmaps, the inode table and the 
+        // journal:
+        allocationBitmap.markAllocated(
+                new VirtualFileSystemBlockIndexRange(
+                        VirtualFileSystemSuperblock.SUPERBLOCK_INDEX,
+                        superblock.getJournalFirstBlockIndex() + 
+                        superblock.getJournalBlockCount() - 1));
+        
+        VirtualFileSystemAllocationBitmap inodeBitmap = 
+                VirtualFileSystemAllocationBitmap.create(
+                        blockSize,
+                        superblock.getInodeCount(),
+                        superblock.getInodeBitmapFirstBlockIndex(),
+                        superblock.getInodeBitmapBlockCount());
+        
+        int rootInodeNumber = superblock.getRootInodeNumber();
+        inodeBitmap.markAllocated(
+                new VirtualFileSystemBlockIndexRange(rootInodeNumber,
+                                                     rootInodeNumber));
+        
+        int snapshotTableInodeNumber = 
+                superblock.getSnapshotTableInodeNumber();
+        int deduplicationTableInodeNumber = 
+                superblock.getDeduplicationTableInodeNumber();
+        int referenceTableInodeNumber = 
+                superblock.getReferenceTableInodeNumber();
+        inodeBitmap.markAllocated(
+                new VirtualFileSystemBlockIndexRange(
+                        snapshotTableInodeNumber,
+                        referenceTableInodeNumber));
+        
+        VirtualFileSystemNode root = 
+                VirtualFileSystemNode.createRootDirectory(rootInodeNumber);
+        
+        // The root inode is the first inode of the first table block:
+        ByteBuffer rootInode = VirtualFileSystemInodeTable.getEncodeBuffer();
+        root.encodeInode(rootInode);
+        
+        ByteBuffer inodeTableBlocks = 
+                ByteBuffer.allocate(
+                        VirtualFileSystemSuperblock
+                                .getReservedInodeBlockCount(blockSize) * 
+                        blockSize);
+        inodeTableBlocks.put(rootInode.array());
+        
+        // The table inodes follow it:
+        ByteBuffer tableInode = VirtualFileSystemInodeTable.getEncodeBuffer();
+        VirtualFileSystemSnapshotTable.format(tableInode);
+        inodeTableBlocks.position(snapshotTableInodeNumber * 
+                                  VirtualFileSystemInodeTable.INODE_SIZE);
+        inodeTableBlocks.put(tableInode.array());
+        
+        tableInode = VirtualFileSystemInodeTable.getEncodeBuffer();
+        VirtualFileSystemDeduplicationTable.format(tableInode);
+        inodeTableBlocks.position(deduplicationTableInodeNumber * 
+                                  VirtualFileSystemInodeTable.INODE_SIZE);
+        inodeTableBlocks.put(tableInode.array());
+        
+        tableInode = VirtualFileSystemInodeTable.getEncodeBuffer();
+        VirtualFileSystemBlockReferenceTable.format(tableInode);
+        inodeTableBlocks.position(referenceTableInodeNumber * 
+                                  VirtualFileSystemInodeTable.INODE_SIZE);
+        inodeTableBlocks.put(tableInode.array());
+        inodeTableBlocks.position(0);
+        
+        try (VirtualBlockDevice blockDevice = 
+                new ChannelVirtualBlockDevice(file, blockSize)) {
+            blockDevice.writeBlock(
+                    VirtualFileSystemSuperblock.SUPERBLOCK_INDEX, 
+                    ByteBuffer.wrap(superblock.toByteArray()));
+            
+            allocationBitmap.flush(blockDevice);
+            inodeBitmap.flush(blockDevice);
+            VirtualFileSystemJournal.format(blockDevice, superblock);
+            
+            blockDevice.write(
+                    blockDevice.getBlockOffset(
+                            superblock.getInodeTableFirstBlockIndex()),
+                    inodeTableBlocks);
+            
+            // Extend the image to its full size:
+            blockDevice.write(
+                    blockDevice.getBlockOffset(totalBlocks) - 1,
+                    ByteBuffer.allocate(1));
+            
+            blockDevice.force();
+        }
+    }
+    
     /**
      * Reads a virtual file system from a given native image file.
      * 
@@ -27,7 +398,90 @@ public final class VirtualFilesystem {
      */
     public static VirtualFilesystem 
         readVirtualFileSystemFromNativeImage(File file) {
-        return null;
+        return readVirtualFileSystemFromNativeImage(
+                file, 
+                VirtualFileSystemAccessMode.CHANNEL);
+    }
+    
+    /**
+     * Reads a virtual file system from a given native image file using the
+     * given access mode and the default block cache capacity.
+     * 
+     * @param file       the file containing the virtual file system.
+     * @param accessMode the image access mode.
+     * @return the virtual file system.
+     */
+    public static VirtualFilesystem 
+        readVirtualFileSystemFromNativeImage(
+                File file, 
+                VirtualFileSystemAccessMode accessMode) {
+        return readVirtualFileSystemFromNativeImage(
+                file,
+                accessMode,
+                VirtualBlockCache.DEFAULT_CAPACITY);
+    }
+    
+    /**
+     * Reads a virtual file system from a given native image file using the
+     * given access mode and block cache capacity. In the mode 
+     * {@link VirtualFileSystemAccessMode#MEMORY_MAPPED} the image is mapped 
+     * into memory, and blocks as well as inodes are read directly from the 
+     * mapping.
+     * 
+     * @param file               the file containing the virtual file 
+     *                           system.
+     * @param accessMode         the image access mode.
+     * @param blockCacheCapacity the maximum number of bytes the block cache
+     *                           may hold.
+     * @return the virtual file system.
+     */
+    public static VirtualFilesystem 
+        readVirtualFileSystemFromNativeImage(
+                File file, 
+                VirtualFileSystemAccessMode accessMode,
+                long blockCacheCapacity) {
+        Objects.requireNonNull(file, "The input file is null.");
+        Objects.requireNonNull(accessMode, "The access mode is null.");
+        
+        VirtualFileSystemSuperblock superblock = 
+                VirtualFileSystemSuperblock.read(file);
+        
+        VirtualBlockDevice blockDevice;
+        
+        switch (accessMode) {
+            case CHANNEL:
+                blockDevice = 
+                        new ChannelVirtualBlockDevice(
+                                file, 
+                                superblock.getBlockSize());
+                break;
+                
+            case MEMORY_MAPPED:
+                blockDevice = 
+                        new MappedVirtualBlockDevice(
+                                file, 
+                                superblock.getBlockSize());
+                break;
+                
+            default:
+                throw new IllegalStateException("This should not be thrown.");
+        }
+        
+        VirtualBlockScheduler blockScheduler = 
+                new VirtualBlockScheduler(
+                        blockDevice, 
+                        VirtualBlockScheduler.DEFAULT_THREAD_COUNT);
+        
+        try {
+            return new VirtualFilesystem(blockDevice, 
+                                         blockScheduler,
+                                         superblock, 
+                                         blockCacheCapacity);
+        } catch (RuntimeException ex) {
+            blockScheduler.close();
+            blockDevice.close();
+            throw ex;
+        }
     }
         
     /**
@@ -43,8 +497,865 @@ public final class VirtualFilesystem {
     }
     
     /**
-     * Holds all the unoccupied block ranges that are ready for reuse.
+     * Returns the root directory of this file system.
+     * 
+     * @return the root directory.
+     */
+    public VirtualFileSystemNode getRoot() {
+        return root;
+    }
+    
+    /**
+     * Takes a read-only snapshot of this file system. The snapshot is taken
+     * at a point where no operation is running, so it is consistent while
+     * the file system is in use, and it copies no data: from then on, the 
+     * first change of each node preserves the old inode of the node, and the
+     * blocks of the node are copied on write.
+     * 
+     * @param name the unique name of the snapshot.
+     * @return the snapshot.
+     * @throws IllegalArgumentException if a snapshot with the given name 
+     *                                  exists.
+     */
+    public VirtualFileSystemSnapshot createSnapshot(String name) {
+        Objects.requireNonNull(name, "The snapshot name is null.");
+        return journal.runExclusively(() -> {
+            // The snapshot is to see the current totals of the directories:
+            writeDirtyDirectories();
+            return snapshotTable.create(name);
+        });
+    }
+    
+    /**
+     * Returns the snapshots of this file system.
+     * 
+     * @return the snapshots in creation order.
+     */
+    public List<VirtualFileSystemSnapshot> getSnapshots() {
+        return snapshotTable.getSnapshots();
+    }
+    
+    /**
+     * Returns the snapshot with the given name.
+     * 
+     * @param name the name of the snapshot.
+     * @return the snapshot, or {@code null} if there is no such snapshot.
+     */
+    public VirtualFileSystemSnapshot getSnapshot(String name) {
+        Objects.requireNonNull(name, "The snapshot name is null.");
+        return snapshotTable.getSnapshot(name);
+    }
+    
+    /**
+     * Deletes the snapshot with the given name. The nodes preserved only for
+     * that snapshot and the blocks no longer referred to are freed. The 
+     * nodes of the snapshot must not be used afterwards.
+     * 
+     * @param name the name of the snapshot.
+     * @throws IllegalArgumentException if there is no such snapshot.
+     */
+    public void deleteSnapshot(String name) {
+        Objects.requireNonNull(name, "The snapshot name is null.");
+        snapshotTable.delete(name);
+    }
+    
+    /**
+     * Enables or disables the deduplication of the data blocks. The setting
+     * is stored in the image. While the deduplication is enabled, each data 
+     * block a file writes in full is fingerprinted, and a block whose 
+     * content is already stored is shared instead of written; the shared
+     * blocks are copied on write. Disabling the deduplication keeps the 
+     * blocks already shared.
+     * 
+     * @param enabled whether to deduplicate the written blocks.
+     */
+    public void setDeduplicationEnabled(boolean enabled) {
+        beginOperation();
+        
+        try {
+            deduplicationTable.setEnabled(enabled);
+        } finally {
+            endOperation();
+        }
+    }
+    
+    /**
+     * Returns whether the data blocks written are deduplicated.
+     * 
+     * @return {@code true} if the deduplication is enabled.
+     */
+    public boolean isDeduplicationEnabled() {
+        return deduplicationTable.isEnabled();
+    }
+    
+    /**
+     * Opens a session in which password protected nodes are authorized.
+     * 
+     * @return a new session with no authorized nodes.
+     */
+    public VirtualFileSystemSession openSession() {
+        return new VirtualFileSystemSession(this);
+    }
+    
+    /**
+     * Returns the number of bytes in a block of this file system.
+     * 
+     * @return the block size.
+     */
+    public int getBlockSize() {
+        return superblock.getBlockSize();
+    }
+    
+    /**
+     * Returns the number of image bytes per inode this file system was 
+     * formatted with.
+     * 
+     * @return the inode ratio.
+     */
+    public int getBytesPerInode() {
+        return superblock.getBytesPerInode();
+    }
+    
+    /**
+     * Makes all the completed operations durable: writes the dirty cached 
+     * blocks back to the native image and commits the journal. Without 
+     * flushing, the operations become durable within a commit interval.
+     */
+    public void flush() {
+        blockCache.flush();
+        journal.commit();
+    }
+    
+    /**
+     * Returns the counters of the block cache of this file system.
+     * 
+     * @return the block cache statistics.
      */
-    private final List<VirtualFileSystemBlockIndexRange> emptyBlockRangeList =
-            new ArrayList<>();
-}
+    public VirtualBlockCacheStatistics getBlockCacheStatistics() {
+        return blockCache.getStatistics();
+    }
+    
+    /**
+     * Flushes and closes the native image of this virtual file system. The
+     * journal is checkpointed, so the next mount has nothing to replay.
+     */
+    @Override
+    public void close() {
+        try {
+            blockCache.flush();
+            journal.close();
+        } finally {
+            blockScheduler.close();
+            blockDevice.close();
+        }
+    }
+    
+    /**
+     * Returns the block device over the native image file.
+     * 
+     * @return the block device.
+     */
+    VirtualBlockDevice getBlockDevice() {
+        return blockDevice;
+    }
+    
+    /**
+     * Returns the I/O scheduler over the native image file.
+     * 
+     * @return the I/O scheduler.
+     */
+    VirtualBlockScheduler getBlockScheduler() {
+        return blockScheduler;
+    }
+    
+    /**
+     * Returns the block cache of this file system.
+     * 
+     * @return the block cache.
+     */
+    VirtualBlockCache getBlockCache() {
+        return blockCache;
+    }
+    
+    /**
+     * Resolves the given absolute path to a node. Symbolic links in the path 
+     * are followed; a symbolic link as the last component of the path is 
+     * returned as is. The components "." and ".." are resolved lexically 
+     * before the lookup. Resolved canonical paths and nonexistent paths are
+     * cached, so that resolving the same path again takes a single hash 
+     * table probe.
+     * 
+     * @param path the absolute path to resolve.
+     * @return the node, or {@code null} if the path does not exist.
+     */
+    public VirtualFileSystemNode resolve(String path) {
+        return resolveNormalizedPath(normalizePath(path));
+    }
+    
+    /**
+     * Drops the loaded children of every directory that was not traversed
+     * during the last {@code idleMillis} milliseconds. Unloaded directories 
+     * reload their children on the next traversal, so the heap usage stays 
+     * proportional to the working set. The root directory itself always stays
+     * loaded. Resolving a path through the path cache counts as traversing
+     * the directories on it. The nodes obtained before the unloading stay 
+     * valid: a child still in use is attached again as it is instead of 
+     * being read anew.
+     * 
+     * @param idleMillis the idle time after which a directory is cold.
+     * @return the number of unloaded directories.
+     */
+    public int unloadColdDirectories(long idleMillis) {
+        long threshold = System.currentTimeMillis() - idleMillis;
+        
+        // The totals of an unloaded directory must be on the image before it
+        // is read again, so they are written first, and no total may change
+        // until the unloading is done:
+        beginOperation();
+        moveLock.writeLock().lock();
+        
+        try {
+            writeDirtyDirectories();
+            return root.unloadColdDirectories(threshold);
+        } finally {
+            moveLock.writeLock().unlock();
+            endOperation();
+        }
+    }
+    
+    /**
+     * Returns the path cache of this file system.
+     * 
+     * @return the path cache.
+     */
+    VirtualPathCache getPathCache() {
+        return pathCache;
+    }
+    
+    /**
+     * Returns the lock serializing the moves of nodes between directories.
+     * 
+     * @return the move lock.
+     */
+    Lock getMoveLock() {
+        return moveLock.writeLock();
+    }
+    
+    /**
+     * Returns the shared counterpart of the move lock. While it is held, no 
+     * node changes its parent chain.
+     * 
+     * @return the read lock of the move lock.
+     */
+    Lock getAccountingLock() {
+        return moveLock.readLock();
+    }
+    
+    /**
+     * Records that the totals of the given directory changed, so that its
+     * inode is written before the next commit.
+     * 
+     * @param directory the directory.
+     */
+    void addDirtyDirectory(VirtualFileSystemNode directory) {
+        dirtyDirectories.add(directory);
+    }
+    
+    /**
+     * Begins an operation whose metadata writes are to be committed 
+     * atomically. Must be called before acquiring any directory lock.
+     */
+    void beginOperation() {
+        journal.beginOperation();
+    }
+    
+    /**
+     * Ends an operation begun with {@link #beginOperation()}.
+     */
+    void endOperation() {
+        journal.endOperation();
+    }
+    
+    /**
+     * Reads the node whose metadata is stored in the inode with the given
+     * number. On a memory mapped image the inode is decoded directly from the
+     * mapping. The children of a directory node are not read until the 
+     * directory is traversed.
+     * 
+     * @param inodeNumber the number of the inode.
+     * @return the node.
+     */
+    VirtualFileSystemNode readNode(int inodeNumber) {
+        VirtualFileSystemNode node = 
+                VirtualFileSystemNode.decodeInode(inodeTable.read(inodeNumber), 
+                                                  inodeNumber);
+        
+        node.setFileSystem(this);
+        return node;
+    }
+    
+    /**
+     * Writes the inode of the given node, allocating an inode first if the 
+     * node was not yet persisted. The node is encoded while holding its read
+     * lock, so that a concurrent modification of the node, such as a write to
+     * the content of a file, cannot tear the encoding; the encoding and the 
+     * write happen under the monitor of the node, so that the last write of 
+     * an inode always carries the latest state of the node.
+     * 
+     * @param node the node to write.
+     */
+    void writeNode(VirtualFileSystemNode node) {
+        writeNode(node, true);
+    }
+    
+    /**
+     * Writes the inode of the given node. If the node has no inode, one is 
+     * allocated when {@code allocate} is set, and otherwise nothing is 
+     * written.
+     * 
+     * @param node     the node to write.
+     * @param allocate whether to allocate an inode for a new node.
+     */
+    private void writeNode(VirtualFileSystemNode node, boolean allocate) {
+        Lock nodeReadLock = node.getReadLock();
+        nodeReadLock.lock();
+        
+        try {
+            synchronized (node) {
+                if (node.getInodeNumber() == -1) {
+                    if (!allocate) {
+                        return;
+                    }
+                    
+                    node.setInodeNumber(allocateInode());
+                    node.setGeneration(snapshotTable.getNewestGeneration());
+                } else {
+                    preserveNode(node);
+                }
+                
+                ByteBuffer inode = 
+                        VirtualFileSystemInodeTable.getEncodeBuffer();
+                node.encodeInode(inode);
+                inodeTable.write(node.getInodeNumber(), inode);
+            }
+        } finally {
+            nodeReadLock.unlock();
+        }
+    }
+    
+    /**
+     * Preserves the inode of the given node for the newest snapshot if the 
+     * snapshot sees the node in its current state, and writes the inode 
+     * with the new generation of the node. Must be called before the node 
+     * changes on the image, holding the write lock of the node, or its read
+     * lock if only the inode changes.
+     * 
+     * @param node the live node about to change.
+     */
+    void preserveNode(VirtualFileSystemNode node) {
+        if (node.getGeneration() >= snapshotTable.getNewestGeneration()) {
+            return;
+        }
+        
+        synchronized (node) {
+            if (snapshotTable.preserve(node)) {
+                ByteBuffer inode = 
+                        VirtualFileSystemInodeTable.getEncodeBuffer();
+                node.encodeInode(inode);
+                inodeTable.write(node.getInodeNumber(), inode);
+            }
+        }
+    }
+    
+    /**
+     * Returns whether any block is shared with a snapshot or by 
+     * deduplication.
+     * 
+     * @return {@code true} if there are shared blocks.
+     */
+    boolean hasSharedBlocks() {
+        return !blockReferenceTable.isEmpty();
+    }
+    
+    /**
+     * Returns whether the given block is shared with a snapshot or by 
+     * deduplication.
+     * 
+     * @param blockIndex the index of the block.
+     * @return {@code true} if the block is shared.
+     */
+    boolean isBlockShared(int blockIndex) {
+        return !blockReferenceTable.isEmpty() 
+                && blockReferenceTable.isShared(blockIndex);
+    }
+    
+    /**
+     * Finds the first run of shared blocks within the given blocks.
+     * 
+     * @param first the first block to search.
+     * @param last  the last block to search.
+     * @return the shared blocks, or {@code null} if there are none.
+     */
+    VirtualFileSystemBlockIndexRange findSharedBlocks(int first, int last) {
+        return blockReferenceTable.findShared(first, last);
+    }
+    
+    /**
+     * Drops a reference to the given block if the block is shared. A 
+     * structure giving up a shared block it does not change in place, such
+     * as a directory index, checks with this method whether it is left as 
+     * the only owner and has to free the structure.
+     * 
+     * @param blockIndex the index of the block.
+     * @return {@code true} if the block was shared.
+     */
+    boolean dropSharedReference(int blockIndex) {
+        return blockReferenceTable.dropSharedReference(blockIndex);
+    }
+    
+    /**
+     * Returns whether some blocks may carry a fingerprint, which a block 
+     * written in place must lose first.
+     * 
+     * @return {@code true} if there may be fingerprinted blocks.
+     */
+    boolean hasFingerprintedBlocks() {
+        return deduplicationTable.isActive();
+    }
+    
+    /**
+     * Finds a stored block with the given content and adds a reference to 
+     * it.
+     * 
+     * @param fingerprint   the fingerprint of the content.
+     * @param data          the array holding the content of a full block.
+     * @param offset        the offset of the content.
+     * @param ownBlockIndex the block the caller would write the content to.
+     * @return the index of the stored block, or -1 if there is none.
+     */
+    int shareBlock(long fingerprint, 
+                   byte[] data, 
+                   int offset, 
+                   int ownBlockIndex) {
+        return deduplicationTable.share(fingerprint, 
+                                        data, 
+                                        offset, 
+                                        ownBlockIndex);
+    }
+    
+    /**
+     * Records the fingerprint of a data block just written in full.
+     * 
+     * @param fingerprint the fingerprint of the content of the block.
+     * @param blockIndex  the index of the block.
+     */
+    void registerBlock(long fingerprint, int blockIndex) {
+        deduplicationTable.register(fingerprint, blockIndex);
+    }
+    
+    /**
+     * Invalidates the fingerprints of the given blocks before they are 
+     * written in place.
+     * 
+     * @param range the blocks.
+     */
+    void invalidateFingerprints(VirtualFileSystemBlockIndexRange range) {
+        deduplicationTable.invalidate(range);
+    }
+    
+    /**
+     * Clears the given inode and returns it to the free inodes. The inode 
+     * becomes reusable once the running operation is committed.
+     * 
+     * @param inodeNumber the number of the inode to free.
+     */
+    void freeInode(int inodeNumber) {
+        inodeTable.clear(inodeNumber);
+        journal.freeInode(inodeNumber);
+    }
+    
+    /**
+     * Returns a little-endian buffer holding the given metadata block. 
+     * Metadata blocks bypass the block cache: a block not yet checkpointed is
+     * served by the journal, and otherwise, on a memory mapped image, the 
+     * returned buffer is a slice of the mapping.
+     * 
+     * @param blockIndex the index of the metadata block.
+     * @return the buffer holding the block.
+     */
+    ByteBuffer readMetadataBlock(int blockIndex) {
+        ByteBuffer journaledBlock = journal.read(blockIndex);
+        
+        if (journaledBlock != null) {
+            return journaledBlock.order(ByteOrder.LITTLE_ENDIAN);
+        }
+        
+        return blockDevice.sliceBlock(blockIndex)
+                          .order(ByteOrder.LITTLE_ENDIAN);
+    }
+    
+    /**
+     * Writes the given metadata block through the journal. The block becomes
+     * durable when the running operation is committed.
+     * 
+     * @param blockIndex the index of the metadata block.
+     * @param data       the block data. Must not be modified afterwards.
+     */
+    void writeMetadataBlock(int blockIndex, byte[] data) {
+        journal.write(blockIndex, data);
+    }
+    
+    /**
+     * Writes a part of the given metadata block through the journal. The 
+     * rest of the block is left intact.
+     * 
+     * @param blockIndex the index of the metadata block.
+     * @param offset     the offset of the part within the block.
+     * @param source     the array holding the part from its start.
+     * @param length     the number of bytes in the part.
+     */
+    void writeMetadataBlock(int blockIndex, 
+                            int offset, 
+                            byte[] source, 
+                            int length) {
+        journal.write(blockIndex, offset, source, length);
+    }
+    
+    /**
+     * Allocates a single block for metadata.
+     * 
+     * @return the index of the allocated block.
+     */
+    int allocateMetadataBlock() {
+        Reservation currentReservation = reservation.get();
+        
+        if (currentReservation != null 
+                && !currentReservation.blocks.isEmpty()) {
+            return currentReservation.blocks.pop();
+        }
+        
+        VirtualFileSystemBlockIndexRange range = blockAllocator.allocate(1);
+        
+        if (range == null) {
+            throw new IllegalStateException("No free blocks left.");
+        }
+        
+        return range.getMinimumBlockRangeIndex();
+    }
+    
+    /**
+     * Sets aside the given numbers of inodes and metadata blocks for the 
+     * running thread, so that the change about to be made cannot run out of
+     * them halfway: {@link #allocateMetadataBlock()} and the allocation of an
+     * inode by {@link #writeNode(VirtualFileSystemNode)} draw from the 
+     * reservation first. A reservation made while the thread holds one is 
+     * covered by the outer reservation. Every call must be paired with a 
+     * call to {@link #releaseReservation()}.
+     * 
+     * @param inodeCount the number of the inodes to set aside.
+     * @param blockCount the number of the metadata blocks to set aside.
+     * @throws IllegalStateException if there are not enough free inodes or
+     *                               blocks, in which case nothing is set 
+     *                               aside.
+     */
+    void reserve(int inodeCount, int blockCount) {
+        Reservation currentReservation = reservation.get();
+        
+        if (currentReservation != null) {
+            currentReservation.depth++;
+            return;
+        }
+        
+        Reservation newReservation = new Reservation();
+        
+        try {
+            for (int i = 0; i < inodeCount; ++i) {
+                newReservation.inodes.push(inodeTable.allocate());
+            }
+            
+            for (int i = 0; i < blockCount; ++i) {
+                newReservation.blocks.push(allocateMetadataBlock());
+            }
+        } catch (IllegalStateException ex) {
+            free(newReservation);
+            throw ex;
+        }
+        
+        reservation.set(newReservation);
+    }
+    
+    /**
+     * Ends the reservation made by the matching call to 
+     * {@link #reserve(int, int)}. The inodes and the blocks the outermost 
+     * reservation left unused are freed at once, as they were never written.
+     */
+    void releaseReservation() {
+        Reservation currentReservation = reservation.get();
+        
+        if (currentReservation.depth > 0) {
+            currentReservation.depth--;
+            return;
+        }
+        
+        reservation.remove();
+        free(currentReservation);
+    }
+    
+    /**
+     * Returns the unused inodes and blocks of the given reservation to their
+     * allocators.
+     * 
+     * @param unusedReservation the reservation.
+     */
+    private void free(Reservation unusedReservation) {
+        for (int inodeNumber : unusedReservation.inodes) {
+            inodeAllocator.free(
+                    new VirtualFileSystemBlockIndexRange(inodeNumber, 
+                                                         inodeNumber));
+        }
+        
+        for (int blockIndex : unusedReservation.blocks) {
+            blockAllocator.free(
+                    new VirtualFileSystemBlockIndexRange(blockIndex, 
+                                                         blockIndex));
+        }
+    }
+    
+    /**
+     * Allocates an inode, drawing from the reservation of the running thread
+     * first.
+     * 
+     * @return the number of the allocated inode.
+     */
+    private int allocateInode() {
+        Reservation currentReservation = reservation.get();
+        
+        if (currentReservation != null 
+                && !currentReservation.inodes.isEmpty()) {
+            return currentReservation.inodes.pop();
+        }
+        
+        return inodeTable.allocate();
+    }
+    
+    /**
+     * Frees a metadata block that is never shared, such as a node of a 
+     * {@link VirtualLongIndex}, without consulting the reference counts. The
+     * block becomes reusable once the running operation is committed.
+     * 
+     * @param blockIndex the index of the metadata block.
+     */
+    void freeMetadataBlock(int blockIndex) {
+        blockCache.discard(blockIndex);
+        journal.free(new VirtualFileSystemBlockIndexRange(blockIndex, 
+                                                          blockIndex));
+    }
+    
+    /**
+     * Allocates the given number of blocks, starting at the goal block if it
+     * is free and contiguously otherwise if possible.
+     * 
+     * @param blockCount     the number of blocks to allocate.
+     * @param goalBlockIndex the preferred first block, or -1 for none.
+     * @return the allocated block ranges.
+     */
+    List<VirtualFileSystemBlockIndexRange> 
+        allocateBlocks(int blockCount, int goalBlockIndex) {
+        return blockAllocator.allocateRuns(blockCount, goalBlockIndex);
+    }
+    
+    /**
+     * Returns the given block range to the free space. The blocks become 
+     * reusable once the running operation is committed. A shared block only
+     * loses a reference; it is freed with its last reference.
+     * 
+     * @param range the range to free.
+     */
+    void freeBlocks(VirtualFileSystemBlockIndexRange range) {
+        List<VirtualFileSystemBlockIndexRange> unreferencedRanges;
+        
+        if (deduplicationTable.isActive()) {
+            unreferencedRanges = deduplicationTable.release(range);
+        } else if (blockReferenceTable.isEmpty()) {
+            unreferencedRanges = Collections.singletonList(range);
+        } else {
+            unreferencedRanges = blockReferenceTable.release(range);
+        }
+        
+        for (VirtualFileSystemBlockIndexRange unreferencedRange : 
+                unreferencedRanges) {
+            for (int blockIndex = 
+                        unreferencedRange.getMinimumBlockRangeIndex();
+                    blockIndex <= 
+                        unreferencedRange.getMaximumBlockRangeIndex();
+                    ++blockIndex) {
+                blockCache.discard(blockIndex);
+            }
+            
+            journal.free(unreferencedRange);
+        }
+    }
+    
+    /**
+     * Prepares the running transaction for its commit: writes the changed
+     * directory totals and spills a batch of fingerprints to the image.
+     */
+    private void beforeCommit() {
+        writeDirtyDirectories();
+        deduplicationTable.spill();
+    }
+    
+    /**
+     * Writes the inodes of the directories whose totals changed. Called 
+     * before each commit, so the totals reach the image with the commit of
+     * the changes or with the next one. The dirty mark of a 
+     * directory is cleared before its totals are read, so a concurrent change
+     * either makes it into the inode or marks the directory again.
+     */
+    private void writeDirtyDirectories() {
+        if (dirtyDirectories.isEmpty()) {
+            return;
+        }
+        
+        Lock accountingLock = getAccountingLock();
+        accountingLock.lock();
+        
+        try {
+            Iterator<VirtualFileSystemNode> iterator = 
+                    dirtyDirectories.iterator();
+            
+            while (iterator.hasNext()) {
+                VirtualFileSystemNode directory = iterator.next();
+                iterator.remove();
+                directory.clearAccountingDirty();
+                
+                // A deleted directory has no inode to write:
+                writeNode(directory, false);
+            }
+        } finally {
+            accountingLock.unlock();
+        }
+    }
+    
+    /**
+     * Resolves a normalized path, consulting and populating the path cache. 
+     * The parent path is resolved recursively, so the cached prefixes of the
+     * path are reused.
+     * 
+     * @param path the normalized path.
+     * @return the node, or {@code null} if the path does not exist.
+     */
+    private VirtualFileSystemNode resolveNormalizedPath(String path) {
+        if (path.equals(VirtualFileSystemNode.ROOT_DIRECTORY_NAME)) {
+            return root;
+        }
+        
+        long generation = pathCache.getGeneration();
+        Optional<VirtualFileSystemNode> cachedEntry = pathCache.get(path);
+        
+        if (cachedEntry != null) {
+            VirtualFileSystemNode node = cachedEntry.orElse(null);
+            
+            if (node != null) {
+                node.touchAncestors();
+            }
+            
+            return node;
+        }
+        
+        int lastSeparatorIndex = path.lastIndexOf('/');
+        String parentPath = lastSeparatorIndex == 0 ? 
+                VirtualFileSystemNode.ROOT_DIRECTORY_NAME :
+                path.substring(0, lastSeparatorIndex);
+        
+        VirtualFileSystemNode parent = resolveNormalizedPath(parentPath);
+        
+        if (parent == null) {
+            return null;
+        }
+        
+        if (parent.getNodeType() == VirtualFileSystemNodeType.REGULAR_FILE) {
+            return null;
+        }
+        
+        VirtualFileSystemNode node = 
+                parent.getChild(path.substring(lastSeparatorIndex + 1));
+        
+        // Cache only the paths that do not traverse a symbolic link:
+        if (node != null) {
+            if (node.getPath().equals(path)) {
+                pathCache.putPositive(path, node, generation);
+            }
+        } else if (parent.getNodeType() == VirtualFileSystemNodeType.DIRECTORY 
+                && parent.getPath().equals(parentPath)) {
+            pathCache.putNegative(path, generation);
+        }
+        
+        return node;
+    }
+    
+    /**
+     * Normalizes the given absolute path: removes empty components and the
+     * components ".", and cancels each component ".." with the preceding 
+     * component.
+     * 
+     * @param path the path to normalize.
+     * @return the normalized path.
+     */
+    private static String normalizePath(String path) {
+        Objects.requireNonNull(path, "The input path is null.");
+        
+        if (!path.startsWith("/")) {
+            throw new IllegalArgumentException(
+                    "The path \"" + path + "\" is not absolute.");
+        }
+        
+        Deque<String> components = new ArrayDeque<>();
+        
+        for (String component : path.split("/")) {
+            if (component.isEmpty() || component.equals(".")) {
+                continue;
+            }
+            
+            if (component.equals("..")) {
+                components.pollLast();
+            } else {
+                components.addLast(component);
+            }
+        }
+        
+        if (components.isEmpty()) {
+            return VirtualFileSystemNode.ROOT_DIRECTORY_NAME;
+        }
+        
+        StringBuilder stringBuilder = new StringBuilder();
+        
+        for (String component : components) {
+            stringBuilder.append('/').append(component);
+        }
+        
+        return stringBuilder.toString();
+    }
+    
+    /**
+     * The inodes and the metadata blocks set aside by a thread.
+     */
+    private static final class Reservation {
+        
+        /**
+         * The reserved inodes not used yet.
+         */
+        final Deque<Integer> inodes = new ArrayDeque<>();
+        
+        /**
+         * The reserved blocks not used yet.
+         */
+        final Deque<Integer> blocks = new ArrayDeque<>();
+        
+        /**
+         * The number of the reservations covered by this one and not yet 
+         * released.
+         */
+        int depth;
+    }
+}
\ No newline at end of file
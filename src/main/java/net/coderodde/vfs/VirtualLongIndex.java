@@ -0,0 +1,557 @@
+package net.coderodde.vfs;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * This class implements an on-image B+-tree mapping 64-bit keys to 64-bit
+ * values, such as the fingerprints of the data blocks to the blocks. The
+ * tree is laid out as a {@link VirtualDirectoryIndex}: each tree node
+ * occupies a single block, the leaves are chained in key order, and a leaf
+ * that becomes empty is unlinked and freed. The entries have a fixed size,
+ * however, so that a node is decoded into two primitive arrays and searched
+ * by binary search without decoding any strings.
+ * <p>
+ * Every tree node starts with a header consisting of the node type (1 byte),
+ * the number of keys (2 bytes) and a link (4 bytes): the index of the next
+ * leaf, or -1 for the last leaf, in a leaf; the leftmost child in an
+ * internal node. The header is followed by the entries: a key (8 bytes) and
+ * either the value (in a leaf) or the index of the child node holding the
+ * keys not smaller than the key (in an internal node), 8 bytes either way.
+ * The keys are ordered as signed numbers.
+ * <p>
+ * The blocks of the tree are freed directly through the journal, bypassing
+ * the reference counts, since a tree node is never shared.
+ * 
+ * @author Rodion "rodde" Efremov
+ * @version 1.6 (Aug 22, 2017)
+ */
+final class VirtualLongIndex {
+
+    /**
+     * Denotes a leaf node.
+     */
+    private static final byte LEAF_NODE = 1;
+    
+    /**
+     * Denotes an internal node.
+     */
+    private static final byte INTERNAL_NODE = 2;
+    
+    /**
+     * The number of bytes in the header of a tree node.
+     */
+    private static final int NODE_HEADER_SIZE =
+            Byte.BYTES + Short.BYTES + Integer.BYTES;
+    
+    /**
+     * The number of bytes in an entry.
+     */
+    private static final int ENTRY_SIZE = 2 * Long.BYTES;
+    
+    /**
+     * Denotes the absence of a block.
+     */
+    static final int NO_BLOCK = -1;
+    
+    /**
+     * Visits the entries of a tree.
+     */
+    interface EntryVisitor {
+
+        /**
+         * Visits an entry.
+         * 
+         * @param key   the key of the entry.
+         * @param value the value of the entry.
+         * @return {@code true} to continue the visiting.
+         */
+        boolean visit(long key, long value);
+    }
+    
+    /**
+     * The file system storing the tree nodes.
+     */
+    private final VirtualFilesystem fileSystem;
+    
+    /**
+     * The maximum number of entries in a tree node.
+     */
+    private final int nodeCapacity;
+    
+    /**
+     * The index of the block holding the root node, or {@link #NO_BLOCK} if
+     * the tree is empty.
+     */
+    private int rootBlockIndex;
+    
+    /**
+     * Constructs a view over the tree with the given root.
+     * 
+     * @param fileSystem     the file system storing the tree nodes.
+     * @param rootBlockIndex the index of the root block, or {@link #NO_BLOCK}.
+     */
+    VirtualLongIndex(VirtualFilesystem fileSystem, int rootBlockIndex) {
+        this.fileSystem =
+                Objects.requireNonNull(fileSystem,
+                                       "The input file system is null.");
+        this.nodeCapacity =
+                (fileSystem.getBlockSize() - NODE_HEADER_SIZE) / ENTRY_SIZE;
+        this.rootBlockIndex = rootBlockIndex;
+    }
+    
+    /**
+     * Returns the index of the root block. The root changes when the root
+     * node splits or collapses, so the owner of the tree must persist it
+     * after each insertion and deletion.
+     * 
+     * @return the root block index, or {@link #NO_BLOCK}.
+     */
+    int getRootBlockIndex() {
+        return rootBlockIndex;
+    }
+    
+    /**
+     * Returns the value mapped to the given key.
+     * 
+     * @param key          the key to look up.
+     * @param defaultValue the value to return if the key is not present.
+     * @return the value of the key, or {@code defaultValue}.
+     */
+    long get(long key, long defaultValue) {
+        if (rootBlockIndex == NO_BLOCK) {
+            return defaultValue;
+        }
+        
+        Node node = readTreeNode(rootBlockIndex);
+        
+        while (!node.leaf) {
+            node = readTreeNode(node.getChildAt(node.getChildPosition(key)));
+        }
+        
+        int index = node.search(key);
+        return index >= 0 ? node.values[index] : defaultValue;
+    }
+    
+    /**
+     * Maps the given key to the given value, replacing the value mapped to
+     * it before.
+     * 
+     * @param key   the key.
+     * @param value the value.
+     */
+    void put(long key, long value) {
+        if (rootBlockIndex == NO_BLOCK) {
+            Node root = new Node(fileSystem.allocateMetadataBlock(),
+                                 true,
+                                 nodeCapacity);
+            root.link = NO_BLOCK;
+            root.insertAt(0, key, value);
+            writeTreeNode(root);
+            rootBlockIndex = root.blockIndex;
+            return;
+        }
+        
+        Split split = put(readTreeNode(rootBlockIndex), key, value);
+        
+        if (split != null) {
+            Node root = new Node(fileSystem.allocateMetadataBlock(),
+                                 false,
+                                 nodeCapacity);
+            root.link = rootBlockIndex;
+            root.insertAt(0, split.separator, split.rightBlockIndex);
+            writeTreeNode(root);
+            rootBlockIndex = root.blockIndex;
+        }
+    }
+    
+    /**
+     * Removes the given key from the tree.
+     * 
+     * @param key the key to remove.
+     * @return {@code true} if the key was present.
+     */
+    boolean delete(long key) {
+        if (rootBlockIndex == NO_BLOCK) {
+            return false;
+        }
+        
+        // The internal nodes on the path to the leaf and the position of
+        // the child taken in each of them:
+        List<Node> path = new ArrayList<>();
+        List<Integer> positions = new ArrayList<>();
+        Node node = readTreeNode(rootBlockIndex);
+        
+        while (!node.leaf) {
+            int position = node.getChildPosition(key);
+            path.add(node);
+            positions.add(position);
+            node = readTreeNode(node.getChildAt(position));
+        }
+        
+        int index = node.search(key);
+        
+        if (index < 0) {
+            return false;
+        }
+        
+        node.removeAt(index);
+        
+        if (node.size > 0) {
+            writeTreeNode(node);
+            return true;
+        }
+        
+        unlinkLeaf(node, path, positions);
+        freeTreeNode(node);
+        
+        // Remove the freed node from its parent, freeing the parents left
+        // without children:
+        for (int level = path.size() - 1; level >= 0; --level) {
+            Node parent = path.get(level);
+            int position = positions.get(level);
+            
+            if (position != Node.LEFTMOST_CHILD) {
+                parent.removeAt(position);
+            } else if (parent.size > 0) {
+                parent.link = (int) parent.values[0];
+                parent.removeAt(0);
+            } else {
+                freeTreeNode(parent);
+                continue;
+            }
+            
+            writeTreeNode(parent);
+            collapseRoot();
+            return true;
+        }
+        
+        rootBlockIndex = NO_BLOCK;
+        return true;
+    }
+    
+    /**
+     * Frees all the blocks of the tree, leaving the tree empty.
+     */
+    void destroy() {
+        if (rootBlockIndex != NO_BLOCK) {
+            destroy(readTreeNode(rootBlockIndex));
+            rootBlockIndex = NO_BLOCK;
+        }
+    }
+    
+    /**
+     * Visits the entries in ascending key order. The visiting stops as soon
+     * as the visitor returns {@code false}.
+     * 
+     * @param visitor the entry visitor.
+     */
+    void scan(EntryVisitor visitor) {
+        if (rootBlockIndex == NO_BLOCK) {
+            return;
+        }
+        
+        Node node = readTreeNode(rootBlockIndex);
+        
+        while (!node.leaf) {
+            node = readTreeNode(node.link);
+        }
+        
+        while (true) {
+            for (int index = 0; index < node.size; ++index) {
+                if (!visitor.visit(node.keys[index], node.values[index])) {
+                    return;
+                }
+            }
+            
+            if (node.link == NO_BLOCK) {
+                return;
+            }
+            
+            node = readTreeNode(node.link);
+        }
+    }
+    
+    private void destroy(Node node) {
+        if (!node.leaf) {
+            destroy(readTreeNode(node.link));
+            
+            for (int i = 0; i < node.size; ++i) {
+                destroy(readTreeNode((int) node.values[i]));
+            }
+        }
+        
+        freeTreeNode(node);
+    }
+    
+    /**
+     * Inserts into the subtree rooted at {@code node}.
+     * 
+     * @return the split of {@code node}, or {@code null} if it did not split.
+     */
+    private Split put(Node node, long key, long value) {
+        if (node.leaf) {
+            int index = node.search(key);
+            
+            if (index >= 0) {
+                node.values[index] = value;
+                writeTreeNode(node);
+                return null;
+            }
+            
+            node.insertAt(-index - 1, key, value);
+        } else {
+            int position = node.getChildPosition(key);
+            Split childSplit = put(readTreeNode(node.getChildAt(position)),
+                                   key,
+                                   value);
+            
+            if (childSplit == null) {
+                return null;
+            }
+            
+            node.insertAt(position + 1,
+                          childSplit.separator,
+                          childSplit.rightBlockIndex);
+        }
+        
+        if (node.size <= nodeCapacity) {
+            writeTreeNode(node);
+            return null;
+        }
+        
+        return split(node);
+    }
+    
+    /**
+     * Splits an overflowing node into two halves and writes both.
+     */
+    private Split split(Node node) {
+        int middle = node.size / 2;
+        Node right = new Node(fileSystem.allocateMetadataBlock(),
+                              node.leaf,
+                              nodeCapacity);
+        long separator;
+        int first;
+        
+        if (node.leaf) {
+            separator = node.keys[middle];
+            right.link = node.link;
+            node.link = right.blockIndex;
+            first = middle;
+        } else {
+            separator = node.keys[middle];
+            right.link = (int) node.values[middle];
+            first = middle + 1;
+        }
+        
+        right.size = node.size - first;
+        System.arraycopy(node.keys, first, right.keys, 0, right.size);
+        System.arraycopy(node.values, first, right.values, 0, right.size);
+        node.size = middle;
+        
+        writeTreeNode(node);
+        writeTreeNode(right);
+        return new Split(separator, right.blockIndex);
+    }
+    
+    /**
+     * Makes the leaf preceding the given leaf in the chain point past it, as
+     * in {@link VirtualDirectoryIndex}.
+     */
+    private void unlinkLeaf(Node leaf,
+                            List<Node> path,
+                            List<Integer> positions) {
+        for (int level = path.size() - 1; level >= 0; --level) {
+            int position = positions.get(level);
+            
+            if (position == Node.LEFTMOST_CHILD) {
+                continue;
+            }
+            
+            Node node = readTreeNode(path.get(level).getChildAt(position - 1));
+            
+            while (!node.leaf) {
+                node = readTreeNode(node.getChildAt(node.size - 1));
+            }
+            
+            node.link = leaf.link;
+            writeTreeNode(node);
+            return;
+        }
+    }
+    
+    /**
+     * Replaces the root by its only child as long as the root is an internal
+     * node without keys.
+     */
+    private void collapseRoot() {
+        Node root = readTreeNode(rootBlockIndex);
+        
+        while (!root.leaf && root.size == 0) {
+            freeTreeNode(root);
+            rootBlockIndex = root.link;
+            root = readTreeNode(rootBlockIndex);
+        }
+    }
+    
+    private Node readTreeNode(int blockIndex) {
+        return Node.decode(blockIndex,
+                           fileSystem.readMetadataBlock(blockIndex),
+                           nodeCapacity);
+    }
+    
+    private void writeTreeNode(Node node) {
+        fileSystem.writeMetadataBlock(node.blockIndex,
+                                      node.encode(fileSystem.getBlockSize()));
+    }
+    
+    private void freeTreeNode(Node node) {
+        fileSystem.freeMetadataBlock(node.blockIndex);
+    }
+    
+    /**
+     * Describes the split of a tree node.
+     */
+    private static final class Split {
+
+        /**
+         * The smallest key of the right node.
+         */
+        final long separator;
+        
+        /**
+         * The block index of the new right node.
+         */
+        final int rightBlockIndex;
+        
+        Split(long separator, int rightBlockIndex) {
+            this.separator = separator;
+            this.rightBlockIndex = rightBlockIndex;
+        }
+    }
+    
+    /**
+     * The decoded contents of a single tree node.
+     */
+    private static final class Node {
+
+        /**
+         * The child position of the leftmost child of an internal node,
+         * which is held in {@code link}.
+         */
+        static final int LEFTMOST_CHILD = -1;
+        
+        /**
+         * The index of the block holding this node.
+         */
+        final int blockIndex;
+        
+        /**
+         * Whether this node is a leaf.
+         */
+        final boolean leaf;
+        
+        /**
+         * The next leaf for a leaf node, the leftmost child for an internal
+         * node.
+         */
+        int link;
+        
+        /**
+         * The sorted keys, with room for one more than fits in a block.
+         */
+        final long[] keys;
+        
+        /**
+         * The values for a leaf node; the children to the right of the
+         * respective keys for an internal node.
+         */
+        final long[] values;
+        
+        /**
+         * The number of entries.
+         */
+        int size;
+        
+        Node(int blockIndex, boolean leaf, int capacity) {
+            this.blockIndex = blockIndex;
+            this.leaf = leaf;
+            this.keys = new long[capacity + 1];
+            this.values = new long[capacity + 1];
+        }
+        
+        int search(long key) {
+            return Arrays.binarySearch(keys, 0, size, key);
+        }
+        
+        /**
+         * Returns the position of the child of an internal node that covers
+         * the given key: the index of the key to the left of the child, or
+         * {@link #LEFTMOST_CHILD}.
+         */
+        int getChildPosition(long key) {
+            int index = search(key);
+            return index >= 0 ? index : -index - 2;
+        }
+        
+        /**
+         * Returns the child of an internal node at the given position.
+         */
+        int getChildAt(int position) {
+            return position == LEFTMOST_CHILD ? link : (int) values[position];
+        }
+        
+        void insertAt(int index, long key, long value) {
+            System.arraycopy(keys, index, keys, index + 1, size - index);
+            System.arraycopy(values, index, values, index + 1, size - index);
+            keys[index] = key;
+            values[index] = value;
+            ++size;
+        }
+        
+        void removeAt(int index) {
+            --size;
+            System.arraycopy(keys, index + 1, keys, index, size - index);
+            System.arraycopy(values, index + 1, values, index, size - index);
+        }
+        
+        byte[] encode(int blockSize) {
+            ByteBuffer byteBuffer =
+                    ByteBuffer.allocate(blockSize)
+                              .order(ByteOrder.LITTLE_ENDIAN);
+            
+            byteBuffer.put(leaf ? LEAF_NODE : INTERNAL_NODE);
+            byteBuffer.putShort((short) size);
+            byteBuffer.putInt(link);
+            
+            for (int i = 0; i < size; ++i) {
+                byteBuffer.putLong(keys[i]);
+                byteBuffer.putLong(values[i]);
+            }
+            
+            return byteBuffer.array();
+        }
+        
+        static Node decode(int blockIndex,
+                           ByteBuffer byteBuffer,
+                           int capacity) {
+            Node node = new Node(blockIndex,
+                                 byteBuffer.get() == LEAF_NODE,
+                                 capacity);
+            node.size = byteBuffer.getShort();
+            node.link = byteBuffer.getInt();
+            
+            for (int i = 0; i < node.size; ++i) {
+                node.keys[i] = byteBuffer.getLong();
+                node.values[i] = byteBuffer.getLong();
+            }
+            
+            return node;
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package net.coderodde.vfs;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.security.spec.InvalidKeySpecException;
+import java.util.Arrays;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+/**
+ * This class derives and verifies the password hashes of the protected 
+ * nodes. A hash is a random salt followed by the PBKDF2-HMAC-SHA256 key 
+ * derived from the password and the salt, {@link #HASH_LENGTH} bytes in 
+ * total, so that it fits in the inode of the node.
+ * <p>
+ * The derivation is deliberately slow, so a password is hashed only when a 
+ * protected node is created and when a session authorizes it for the first
+ * time; see {@link VirtualFileSystemSession}. Each thread reuses its own key
+ * factory.
+ * 
+ * @author Rodion "rodde" Efremov
+ * @version 1.6 (Aug 17, 2017)
+ */
+final class VirtualPasswordHasher {
+
+    /**
+     * The number of bytes in a password hash.
+     */
+    static final int HASH_LENGTH = 32;
+    
+    /**
+     * The number of bytes in the salt at the start of a hash.
+     */
+    private static final int SALT_LENGTH = 16;
+    
+    /**
+     * The number of PBKDF2 iterations.
+     */
+    private static final int ITERATIONS = 10_000;
+    
+    /**
+     * The name of the key derivation algorithm.
+     */
+    private static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+    
+    /**
+     * The source of the salts.
+     */
+    private static final SecureRandom SALT_SOURCE = new SecureRandom();
+    
+    /**
+     * The key factory of each thread.
+     */
+    private static final ThreadLocal<SecretKeyFactory> KEY_FACTORY =
+            ThreadLocal.withInitial(() -> {
+                try {
+                    return SecretKeyFactory.getInstance(ALGORITHM);
+                } catch (NoSuchAlgorithmException ex) {
+                    throw new RuntimeException("Cannot hash passwords.", ex);
+                }
+            });
+    
+    private VirtualPasswordHasher() {}
+    
+    /**
+     * Hashes the given password with a fresh salt.
+     * 
+     * @param password the password.
+     * @return the hash of {@link #HASH_LENGTH} bytes.
+     */
+    static byte[] hash(String password) {
+        byte[] hash = new byte[HASH_LENGTH];
+        SALT_SOURCE.nextBytes(hash);
+        deriveKey(password, hash);
+        return hash;
+    }
+    
+    /**
+     * Checks whether the given password matches the given hash. The derived
+     * keys are compared in constant time.
+     * 
+     * @param password the password to check.
+     * @param hash     the hash created by {@link #hash(String)}.
+     * @return {@code true} if the password matches.
+     */
+    static boolean matches(String password, byte[] hash) {
+        byte[] candidate = Arrays.copyOf(hash, HASH_LENGTH);
+        deriveKey(password, candidate);
+        return MessageDigest.isEqual(candidate, hash);
+    }
+    
+    /**
+     * Derives the key from the given password and the salt at the start of 
+     * {@code hash}, and stores it after the salt.
+     */
+    private static void deriveKey(String password, byte[] hash) {
+        PBEKeySpec keySpec = 
+                new PBEKeySpec(password.toCharArray(),
+                               Arrays.copyOf(hash, SALT_LENGTH),
+                               ITERATIONS,
+                               (HASH_LENGTH - SALT_LENGTH) * Byte.SIZE);
+        
+        try {
+            byte[] key = KEY_FACTORY.get()
+                                    .generateSecret(keySpec)
+                                    .getEncoded();
+            System.arraycopy(key, 0, hash, SALT_LENGTH, key.length);
+        } catch (InvalidKeySpecException ex) {
+            throw new RuntimeException("Cannot hash the password.", ex);
+        } finally {
+            keySpec.clearPassword();
+        }
+    }
+}
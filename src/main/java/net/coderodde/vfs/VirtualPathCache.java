@@ -0,0 +1,191 @@
+package net.coderodde.vfs;
+
+import java.util.Iterator;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class implements a concurrent cache mapping normalized absolute paths
+ * to the nodes they resolve to. A path that does not resolve to any node is
+ * cached as a negative entry. The cache holds at most a fixed number of
+ * entries; when it overflows, the oldest entries are evicted first.
+ * <p>
+ * Only canonical paths are cached: a path that traverses a symbolic link is
+ * never cached, because a change in the linked directory would not
+ * invalidate it. Under this rule a modification of the tree can be
+ * invalidated precisely: attaching a node invalidates the (negative) entry of
+ * its path, and detaching a node invalidates the entries of its path and of
+ * all the paths below it.
+ * <p>
+ * A resolution racing with a modification of the tree could cache a result
+ * that the modification has just invalidated. To rule this out, every 
+ * invalidation increments a generation counter; an entry is kept only if the
+ * generation did not change since its resolution started.
+ * 
+ * @author Rodion "rodde" Efremov
+ * @version 1.6 (Aug 13, 2017)
+ */
+final class VirtualPathCache {
+
+    /**
+     * The default maximum number of cached paths.
+     */
+    static final int DEFAULT_CAPACITY = 64 * 1024;
+    
+    /**
+     * The value of a negative entry.
+     */
+    private static final Optional<VirtualFileSystemNode> NEGATIVE_ENTRY =
+            Optional.empty();
+    
+    /**
+     * Maps each cached path to the node it resolves to, or to
+     * {@link #NEGATIVE_ENTRY}.
+     */
+    private final ConcurrentHashMap<String, Optional<VirtualFileSystemNode>>
+            entryMap = new ConcurrentHashMap<>();
+    
+    /**
+     * The cached paths in insertion order. May contain paths that were
+     * already invalidated.
+     */
+    private final Queue<String> insertionQueue =
+            new ConcurrentLinkedQueue<>();
+    
+    /**
+     * The number of paths in {@code insertionQueue}.
+     */
+    private final AtomicInteger insertionQueueLength = new AtomicInteger();
+    
+    /**
+     * Incremented on every invalidation.
+     */
+    private final AtomicLong generation = new AtomicLong();
+    
+    /**
+     * The maximum number of cached paths.
+     */
+    private final int capacity;
+    
+    /**
+     * Constructs this path cache.
+     * 
+     * @param capacity the maximum number of cached paths.
+     */
+    VirtualPathCache(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException(
+                    "The path cache capacity (" + capacity + ") is not " +
+                    "positive.");
+        }
+        
+        this.capacity = capacity;
+    }
+    
+    /**
+     * Looks up the given path.
+     * 
+     * @param path the normalized path.
+     * @return {@code null} if the path is not cached, an empty optional if the
+     *         path is cached as nonexistent, or the optional holding the node
+     *         the path resolves to.
+     */
+    Optional<VirtualFileSystemNode> get(String path) {
+        return entryMap.get(path);
+    }
+    
+    /**
+     * Returns the current generation. Must be read before resolving a path
+     * whose result is to be cached.
+     * 
+     * @return the current generation.
+     */
+    long getGeneration() {
+        return generation.get();
+    }
+    
+    /**
+     * Caches the node the given path resolves to.
+     * 
+     * @param path       the normalized path.
+     * @param node       the node.
+     * @param generation the generation read before the resolution.
+     */
+    void putPositive(String path, VirtualFileSystemNode node, 
+                     long generation) {
+        put(path, Optional.of(node), generation);
+    }
+    
+    /**
+     * Caches the fact that the given path does not resolve to any node.
+     * 
+     * @param path       the normalized path.
+     * @param generation the generation read before the resolution.
+     */
+    void putNegative(String path, long generation) {
+        put(path, NEGATIVE_ENTRY, generation);
+    }
+    
+    /**
+     * Removes the entry of the given path.
+     * 
+     * @param path the normalized path.
+     */
+    void invalidate(String path) {
+        generation.incrementAndGet();
+        entryMap.remove(path);
+    }
+    
+    /**
+     * Removes the entries of the given path and of all the paths below it.
+     * 
+     * @param path the normalized path.
+     */
+    void invalidateSubtree(String path) {
+        generation.incrementAndGet();
+        entryMap.remove(path);
+        String prefix = path.endsWith("/") ? path : path + "/";
+        Iterator<String> iterator = entryMap.keySet().iterator();
+        
+        while (iterator.hasNext()) {
+            if (iterator.next().startsWith(prefix)) {
+                iterator.remove();
+            }
+        }
+    }
+    
+    /**
+     * Adds an entry and evicts the oldest entries while the cache is over 
+     * capacity. The insertion queue is also trimmed when the invalidated 
+     * paths in it make it twice as long as the capacity. The entry is 
+     * removed again if an invalidation happened since {@code generation}.
+     */
+    private void put(String path, 
+                     Optional<VirtualFileSystemNode> entry,
+                     long generation) {
+        if (entryMap.put(path, entry) == null) {
+            insertionQueue.offer(path);
+            insertionQueueLength.incrementAndGet();
+        }
+        
+        if (this.generation.get() != generation) {
+            entryMap.remove(path, entry);
+        }
+        
+        while (entryMap.size() > capacity
+                || insertionQueueLength.get() > 2 * capacity) {
+            String evictedPath = insertionQueue.poll();
+            
+            if (evictedPath == null) {
+                break;
+            }
+            
+            insertionQueueLength.decrementAndGet();
+            entryMap.remove(evictedPath);
+        }
+    }
+}
@@ -4,8 +4,11 @@ import java.io.File;
 import java.io.PrintStream;
 import java.util.Objects;
 import java.util.Scanner;
+import net.coderodde.vfs.VirtualFilesystem;
 import net.coderodde.command.line.AbstractCommandProvider;
 import net.coderodde.command.line.support.BufferedCommandProvider;
+import net.coderodde.vfs.app.actions.AbstractCommandAction;
+import net.coderodde.vfs.app.actions.BadCommandException;
 
 public class App {
     
@@ -15,8 +18,10 @@ public class App {
     private final PrintStream out;
     private final PrintStream err;
     private final AbstractCommandProvider commandProvider;
+    private final AppCommandListener commandListener;
     private boolean done = false;
     private String currentNativeDirectory;
+    private VirtualFilesystem fileSystem;
     
     public App(Scanner scanner, PrintStream out, PrintStream err) {
         this.scanner = Objects.requireNonNull(scanner, 
@@ -29,7 +34,8 @@ public class App {
                                           "The error print writer is null.");
         
         this.commandProvider = new BufferedCommandProvider();
-        commandProvider.addCommandListener(new AppCommandListener(this));
+        this.commandListener = new AppCommandListener(this);
+        commandProvider.addCommandListener(commandListener);
     }
     
     public void run() {
@@ -39,20 +45,42 @@ public class App {
             commandProvider.processLine(line);
         }
         
+        setFileSystem(null);
         System.out.println("Bye!");
     }
     
     public void execute(String command) {
-        if (command.endsWith(commandProvider.getCommandSeparator())) {
-            System.err.println("Fuck yeah!");
-            command = command.substring(0, command.length() - 2); // Remove the command separator.
-        } else {
-            System.err.println("Fuck no!");
+        String separator = commandProvider.getCommandSeparator();
+        
+        if (command.endsWith(separator)) {
+            // Remove the command separator.
+            command = command.substring(0, 
+                                        command.length() - separator.length());
+        }
+        
+        command = command.trim();
+        
+        if (command.isEmpty()) {
+            return;
         }
         
         String[] words = command.split("\\s+");
+        AbstractCommandAction action = commandListener.getAction(words[0]);
         
+        if (action == null) {
+            error(commandListener.isKnownCommand(words[0]) ?
+                  "command \"" + words[0] + "\" is not implemented." :
+                  "unknown command \"" + words[0] + "\".");
+            return;
+        }
         
+        try {
+            action.run(words);
+        } catch (BadCommandException ex) {
+            error(ex.getMessage());
+        } catch (RuntimeException ex) {
+            error(ex.getMessage() != null ? ex.getMessage() : ex.toString());
+        }
     }
     
     public void changeCurrentNativeDirectory(String newCurrentNativeDirectory) {
@@ -73,12 +101,46 @@ public class App {
         this.currentNativeDirectory = newCurrentNativeDirectory;
     }
     
+    public File getCurrentNativeDirectory() {
+        return new File(currentNativeDirectory == null ? 
+                        "." : 
+                        currentNativeDirectory);
+    }
+    
+    public VirtualFilesystem getFileSystem() {
+        return fileSystem;
+    }
+    
+    /**
+     * Sets the current virtual file system. The previous one, if any, is 
+     * closed.
+     * 
+     * @param fileSystem the new virtual file system, or {@code null}.
+     */
+    public void setFileSystem(VirtualFilesystem fileSystem) {
+        if (this.fileSystem != null && this.fileSystem != fileSystem) {
+            this.fileSystem.close();
+        }
+        
+        this.fileSystem = fileSystem;
+    }
+    
+    public void print(String message) {
+        out.println(message);
+    }
+    
     public void requestExit() {
         done = true;
     }
     
     public static void main(String[] args) {
         App app = new App(new Scanner(System.in), System.out, System.err);
+        
+        if (args.length > 0) {
+            // Mount the image given at the command line.
+            app.execute("mount " + args[0]);
+        }
+        
         app.run();
     }
     
@@ -5,28 +5,52 @@ import java.util.HashMap;
 import java.util.Map;
 import java.util.Objects;
 import net.coderodde.command.line.CommandListener;
+import net.coderodde.vfs.app.actions.ChangedDirectoryAction;
+import net.coderodde.vfs.app.actions.MountAction;
+import net.coderodde.vfs.app.actions.NativeToVirtualAction;
+import net.coderodde.vfs.app.actions.VirtualToNativeAction;
 
 public class AppCommandListener implements CommandListener {
 
-    private static final Map<String, AbstractCommandAction> actionDispatchTable =
+    private final Map<String, AbstractCommandAction> actionDispatchTable =
             new HashMap<>();
     
-    static {
+    private final App app;
+    
+    public AppCommandListener(App app) {
+        this.app = Objects.requireNonNull(app, "The input app is null.");
+        
         actionDispatchTable.put("pwd", null);
         actionDispatchTable.put("vpwd", null);
-        actionDispatchTable.put("cd", null);
+        actionDispatchTable.put("cd", new ChangedDirectoryAction(app));
         actionDispatchTable.put("vcd", null);
-        actionDispatchTable.put("v2n", null);
-        actionDispatchTable.put("n2v", null);
+        actionDispatchTable.put("v2n", new VirtualToNativeAction(app));
+        actionDispatchTable.put("n2v", new NativeToVirtualAction(app));
+        actionDispatchTable.put("mount", new MountAction(app));
         actionDispatchTable.put("link", null);
         actionDispatchTable.put("help", null);
         actionDispatchTable.put("psswd", null);
     }
     
-    private final App app;
+    /**
+     * Returns the action of the given command name, or {@code null} if the
+     * command is not implemented or there is no such command.
+     * 
+     * @param commandName the name of the command.
+     * @return the action of the command.
+     */
+    public AbstractCommandAction getAction(String commandName) {
+        return actionDispatchTable.get(commandName);
+    }
     
-    public AppCommandListener(App app) {
-        this.app = Objects.requireNonNull(app, "The input app is null.");
+    /**
+     * Checks whether a command with the given name is known.
+     * 
+     * @param commandName the name of the command.
+     * @return {@code true} if the command is known.
+     */
+    public boolean isKnownCommand(String commandName) {
+        return actionDispatchTable.containsKey(commandName);
     }
     
     @Override
@@ -17,5 +17,15 @@ public abstract class AbstractCommandAction {
         this.app = Objects.requireNonNull(app, "The input App is null.");
     }
     
-    abstract void run(String[] tokens);
+    protected App getApp() {
+        return app;
+    }
+    
+    /**
+     * Runs this action.
+     * 
+     * @param tokens the tokens of the command, the command name first.
+     * @throws BadCommandException if the command is invalid.
+     */
+    public abstract void run(String[] tokens);
 }
@@ -15,9 +15,11 @@ public final class ChangedDirectoryAction extends AbstractCommandAction {
     }
     
     @Override
-    void run(String[] tokens) {
+    public void run(String[] tokens) {
         if (tokens.length != 2) {
             throw new BadCommandException("bad \"cd\" command");
         }
+        
+        getApp().changeCurrentNativeDirectory(tokens[1]);
     }
 }
@@ -0,0 +1,43 @@
+package net.coderodde.vfs.app.actions;
+
+import java.io.File;
+import net.coderodde.vfs.VirtualFilesystem;
+import net.coderodde.vfs.app.App;
+
+/**
+ * This class implements opening a native image as the current virtual file
+ * system: {@code mount <image file>}. The previously open file system, if 
+ * any, is closed.
+ * 
+ * @author Rodion "rodde" Efremov
+ * @version 1.6 (Aug 22, 2017)
+ */
+public final class MountAction extends AbstractCommandAction {
+
+    public MountAction(App app) {
+        super(app);
+    }
+    
+    @Override
+    public void run(String[] tokens) {
+        if (tokens.length != 2) {
+            throw new BadCommandException("bad \"mount\" command");
+        }
+        
+        File image = new File(tokens[1]);
+        
+        if (!image.isAbsolute()) {
+            image = new File(getApp().getCurrentNativeDirectory(), tokens[1]);
+        }
+        
+        if (!image.isFile()) {
+            throw new BadCommandException(
+                    "image \"" + image.getPath() + "\" does not exist");
+        }
+        
+        // Close the current image first; it may be the one being remounted.
+        getApp().setFileSystem(null);
+        getApp().setFileSystem(
+                VirtualFilesystem.readVirtualFileSystemFromNativeImage(image));
+    }
+}
@@ -0,0 +1,54 @@
+package net.coderodde.vfs.app.actions;
+
+import java.io.File;
+import net.coderodde.vfs.VirtualFileSystemNode;
+import net.coderodde.vfs.VirtualFileSystemTransfer;
+import net.coderodde.vfs.VirtualFileSystemTransferStatistics;
+import net.coderodde.vfs.VirtualFilesystem;
+import net.coderodde.vfs.app.App;
+
+/**
+ * This class implements copying a native directory tree into the virtual file
+ * system: {@code n2v <native directory> <virtual directory>}.
+ * 
+ * @author Rodion "rodde" Efremov
+ * @version 1.6 (Aug 17, 2017)
+ */
+public final class NativeToVirtualAction extends AbstractCommandAction {
+
+    public NativeToVirtualAction(App app) {
+        super(app);
+    }
+    
+    @Override
+    public void run(String[] tokens) {
+        if (tokens.length != 3) {
+            throw new BadCommandException("bad \"n2v\" command");
+        }
+        
+        VirtualFilesystem fileSystem = getApp().getFileSystem();
+        
+        if (fileSystem == null) {
+            throw new BadCommandException("no virtual file system is open");
+        }
+        
+        File nativeDirectory = new File(tokens[1]);
+        
+        if (!nativeDirectory.isAbsolute()) {
+            nativeDirectory = new File(getApp().getCurrentNativeDirectory(),
+                                       tokens[1]);
+        }
+        
+        VirtualFileSystemNode targetDirectory = fileSystem.resolve(tokens[2]);
+        
+        if (targetDirectory == null) {
+            throw new BadCommandException(
+                    "virtual directory \"" + tokens[2] + "\" does not exist");
+        }
+        
+        VirtualFileSystemTransferStatistics statistics =
+                VirtualFileSystemTransfer.importTree(nativeDirectory,
+                                                     targetDirectory);
+        getApp().print(statistics.toString());
+    }
+}
@@ -0,0 +1,54 @@
+package net.coderodde.vfs.app.actions;
+
+import java.io.File;
+import net.coderodde.vfs.VirtualFileSystemNode;
+import net.coderodde.vfs.VirtualFileSystemTransfer;
+import net.coderodde.vfs.VirtualFileSystemTransferStatistics;
+import net.coderodde.vfs.VirtualFilesystem;
+import net.coderodde.vfs.app.App;
+
+/**
+ * This class implements copying a virtual directory tree into the native file
+ * system: {@code v2n <virtual directory> <native directory>}.
+ * 
+ * @author Rodion "rodde" Efremov
+ * @version 1.6 (Aug 17, 2017)
+ */
+public final class VirtualToNativeAction extends AbstractCommandAction {
+
+    public VirtualToNativeAction(App app) {
+        super(app);
+    }
+    
+    @Override
+    public void run(String[] tokens) {
+        if (tokens.length != 3) {
+            throw new BadCommandException("bad \"v2n\" command");
+        }
+        
+        VirtualFilesystem fileSystem = getApp().getFileSystem();
+        
+        if (fileSystem == null) {
+            throw new BadCommandException("no virtual file system is open");
+        }
+        
+        VirtualFileSystemNode sourceDirectory = fileSystem.resolve(tokens[1]);
+        
+        if (sourceDirectory == null) {
+            throw new BadCommandException(
+                    "virtual directory \"" + tokens[1] + "\" does not exist");
+        }
+        
+        File nativeDirectory = new File(tokens[2]);
+        
+        if (!nativeDirectory.isAbsolute()) {
+            nativeDirectory = new File(getApp().getCurrentNativeDirectory(),
+                                       tokens[2]);
+        }
+        
+        VirtualFileSystemTransferStatistics statistics =
+                VirtualFileSystemTransfer.exportTree(sourceDirectory,
+                                                     nativeDirectory);
+        getApp().print(statistics.toString());
+    }
+}